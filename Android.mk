@@ -145,6 +145,7 @@ LOCAL_SRC_FILES:= \
 	rsDriverLoader.cpp \
 	rsElement.cpp \
 	rsFBOCache.cpp \
+	rsFifoRing.cpp \
 	rsFifoSocket.cpp \
 	rsFileA3D.cpp \
 	rsFont.cpp \
@@ -250,6 +251,7 @@ LOCAL_SRC_FILES:= \
 	rsDriverLoader.cpp \
 	rsElement.cpp \
 	rsFBOCache.cpp \
+	rsFifoRing.cpp \
 	rsFifoSocket.cpp \
 	rsFileA3D.cpp \
 	rsFont.cpp \
@@ -24,6 +24,7 @@ rs_cpp_SRC_FILES := \
 	Type.cpp \
 	Allocation.cpp \
 	Script.cpp \
+	ScriptBatch.cpp \
 	ScriptC.cpp \
 	ScriptIntrinsics.cpp \
 	Sampler.cpp
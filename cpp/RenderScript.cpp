@@ -49,6 +49,7 @@ RS::RS() {
     mMessageRun = false;
     mInit = false;
     mCurrentError = RS_SUCCESS;
+    mBatch = nullptr;
 
     memset(&mElements, 0, sizeof(mElements));
     memset(&mSamplers, 0, sizeof(mSamplers));
@@ -165,7 +166,8 @@ bool RS::init(const char * name, int targetApi, uint32_t flags) {
     }
 
     if (flags & ~(RS_CONTEXT_SYNCHRONOUS | RS_CONTEXT_LOW_LATENCY |
-                  RS_CONTEXT_LOW_POWER | RS_CONTEXT_WAIT_FOR_ATTACH)) {
+                  RS_CONTEXT_LOW_POWER | RS_CONTEXT_WAIT_FOR_ATTACH |
+                  RS_CONTEXT_SPIN_WAIT | RS_CONTEXT_RING_FIFO)) {
         ALOGE("Invalid flags passed");
         return false;
     }
@@ -23,6 +23,10 @@ using namespace android;
 using namespace RSC;
 
 void Script::invoke(uint32_t slot, const void *v, size_t len) const {
+    if (mRS->mBatch != nullptr) {
+        mRS->mBatch->add(RS_BATCH_INVOKE, this, slot, nullptr, nullptr, v, len);
+        return;
+    }
     tryDispatch(mRS, RS::dispatch->ScriptInvokeV(mRS->getContext(), getID(), slot, v, len));
 }
 
@@ -33,6 +37,10 @@ void Script::forEach(uint32_t slot, sp<const Allocation> ain, sp<const Allocatio
     }
     void *in_id = BaseObj::getObjID(ain);
     void *out_id = BaseObj::getObjID(aout);
+    if (mRS->mBatch != nullptr) {
+        mRS->mBatch->add(RS_BATCH_FOR_EACH, this, slot, in_id, out_id, usr, usrLen);
+        return;
+    }
     tryDispatch(mRS, RS::dispatch->ScriptForEach(mRS->getContext(), getID(), slot, in_id, out_id, usr, usrLen, nullptr, 0));
 }
 
@@ -47,10 +55,19 @@ void Script::bindAllocation(sp<Allocation> va, uint32_t slot) const {
 
 
 void Script::setVar(uint32_t index, sp<const BaseObj> o) const {
+    if (mRS->mBatch != nullptr) {
+        mRS->mBatch->add(RS_BATCH_SET_VAR_OBJ, this, index, (o == nullptr) ? 0 : o->getID(),
+                         nullptr, nullptr, 0);
+        return;
+    }
     tryDispatch(mRS, RS::dispatch->ScriptSetVarObj(mRS->getContext(), getID(), index, (o == nullptr) ? 0 : o->getID()));
 }
 
 void Script::setVar(uint32_t index, const void *v, size_t len) const {
+    if (mRS->mBatch != nullptr) {
+        mRS->mBatch->add(RS_BATCH_SET_VAR, this, index, nullptr, nullptr, v, len);
+        return;
+    }
     tryDispatch(mRS, RS::dispatch->ScriptSetVarV(mRS->getContext(), getID(), index, v, len));
 }
 
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include <malloc.h>
+#include <string.h>
+
+#include "RenderScript.h"
+#include "rsCppInternal.h"
+
+using namespace android;
+using namespace RSC;
+
+// The core queues commands with less payload than this inline and returns at
+// once; a larger payload is passed by pointer and the caller waits for the RS
+// thread to finish with it.  Submissions are split to stay below the limit.
+static const size_t kMaxInlineSubmit = 1024;
+
+// Records are padded so that the header of the next one stays aligned.
+static size_t recordSize(size_t dataLen) {
+    return (sizeof(RsBatchCommand) + dataLen + 7) & ~(size_t)7;
+}
+
+ScriptBatch::ScriptBatch(sp<RS> rs) {
+    mRS = rs;
+    mData = nullptr;
+    mLen = 0;
+    mCapacity = 0;
+    mPatchOffset = 0;
+    mCount = 0;
+    mMode = MODE_IDLE;
+}
+
+ScriptBatch::~ScriptBatch() {
+    end();
+    free(mData);
+}
+
+void ScriptBatch::begin() {
+    if (mRS->mBatch != nullptr) {
+        mRS->throwError(RS_ERROR_INVALID_PARAMETER, "Another batch is already recording.");
+        return;
+    }
+    mLen = 0;
+    mCount = 0;
+    mMode = MODE_RECORD;
+    mRS->mBatch = this;
+}
+
+void ScriptBatch::beginPatch() {
+    if (mRS->mBatch != nullptr) {
+        mRS->throwError(RS_ERROR_INVALID_PARAMETER, "Another batch is already recording.");
+        return;
+    }
+    mPatchOffset = 0;
+    mMode = MODE_PATCH;
+    mRS->mBatch = this;
+}
+
+void ScriptBatch::end() {
+    if (mRS->mBatch == this) {
+        mRS->mBatch = nullptr;
+    }
+    mMode = MODE_IDLE;
+}
+
+void ScriptBatch::add(uint32_t type, const Script *s, uint32_t slot, void *obj, void *aout,
+                      const void *data, size_t len) {
+    if (mMode == MODE_PATCH) {
+        patch(type, s, slot, obj, aout, data, len);
+    } else {
+        record(type, s, slot, obj, aout, data, len);
+    }
+}
+
+void ScriptBatch::record(uint32_t type, const Script *s, uint32_t slot, void *obj, void *aout,
+                         const void *data, size_t len) {
+    size_t size = recordSize(len);
+    if (mLen + size > mCapacity) {
+        size_t capacity = mCapacity ? mCapacity : 1024;
+        while (capacity < mLen + size) {
+            capacity *= 2;
+        }
+        uint8_t *d = (uint8_t *)realloc(mData, capacity);
+        if (d == nullptr) {
+            mRS->throwError(RS_ERROR_RUNTIME_ERROR, "Unable to grow script batch.");
+            return;
+        }
+        mData = d;
+        mCapacity = capacity;
+    }
+
+    RsBatchCommand *cmd = (RsBatchCommand *)&mData[mLen];
+    memset(cmd, 0, size);
+    cmd->type = type;
+    cmd->bytes = size;
+    cmd->script = s->getID();
+    cmd->slot = slot;
+    cmd->dataLen = len;
+    cmd->obj = obj;
+    cmd->aout = aout;
+    if (len) {
+        memcpy(&cmd[1], data, len);
+    }
+    mLen += size;
+    mCount++;
+}
+
+void ScriptBatch::patch(uint32_t type, const Script *s, uint32_t slot, void *obj, void *aout,
+                        const void *data, size_t len) {
+    while (mPatchOffset < mLen) {
+        RsBatchCommand *cmd = (RsBatchCommand *)&mData[mPatchOffset];
+        mPatchOffset += cmd->bytes;
+        if (cmd->type != type || cmd->script != s->getID() || cmd->slot != slot) {
+            continue;
+        }
+        if (cmd->dataLen != len) {
+            mRS->throwError(RS_ERROR_INVALID_PARAMETER,
+                            "Patched value size differs from the recorded size.");
+            return;
+        }
+        cmd->obj = obj;
+        cmd->aout = aout;
+        if (len) {
+            memcpy(&cmd[1], data, len);
+        }
+        return;
+    }
+    mRS->throwError(RS_ERROR_INVALID_PARAMETER, "No recorded command left to patch.");
+}
+
+void ScriptBatch::submit() {
+    if (mMode != MODE_IDLE) {
+        mRS->throwError(RS_ERROR_INVALID_PARAMETER, "Cannot submit a batch before end().");
+        return;
+    }
+    if (mLen == 0) {
+        return;
+    }
+    if (RS::dispatch->ScriptBatchExecute == nullptr) {
+        submitEach();
+        return;
+    }
+
+    // Cut the recording at record boundaries into pieces that fit inline.
+    // The pieces are queued in order, so the replay order is unchanged.
+    size_t start = 0;
+    while (start < mLen && mRS->getError() == RS_SUCCESS) {
+        size_t end = start;
+        do {
+            end += ((const RsBatchCommand *)&mData[end])->bytes;
+        } while (end < mLen &&
+                 end - start + ((const RsBatchCommand *)&mData[end])->bytes < kMaxInlineSubmit);
+        if (end - start >= kMaxInlineSubmit) {
+            ALOGV("Script batch record of %zu bytes is submitted synchronously", end - start);
+        }
+        tryDispatch(mRS, RS::dispatch->ScriptBatchExecute(mRS->getContext(), &mData[start],
+                                                          end - start));
+        start = end;
+    }
+}
+
+// Fallback for drivers without rsScriptBatchExecute.
+void ScriptBatch::submitEach() {
+    RsContext con = mRS->getContext();
+    size_t offset = 0;
+    while (offset < mLen && mRS->getError() == RS_SUCCESS) {
+        const RsBatchCommand *cmd = (const RsBatchCommand *)&mData[offset];
+        const void *payload = &cmd[1];
+        switch (cmd->type) {
+        case RS_BATCH_SET_VAR:
+            RS::dispatch->ScriptSetVarV(con, cmd->script, cmd->slot, payload, cmd->dataLen);
+            break;
+        case RS_BATCH_SET_VAR_OBJ:
+            RS::dispatch->ScriptSetVarObj(con, cmd->script, cmd->slot, cmd->obj);
+            break;
+        case RS_BATCH_INVOKE:
+            RS::dispatch->ScriptInvokeV(con, cmd->script, cmd->slot, payload, cmd->dataLen);
+            break;
+        case RS_BATCH_FOR_EACH:
+            RS::dispatch->ScriptForEach(con, cmd->script, cmd->slot, cmd->obj, cmd->aout,
+                                        cmd->dataLen ? payload : nullptr, cmd->dataLen,
+                                        nullptr, 0);
+            break;
+        }
+        offset += cmd->bytes;
+    }
+}
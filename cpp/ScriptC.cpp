@@ -29,3 +29,14 @@ ScriptC::ScriptC(sp<RS> rs,
                                       rs->mCacheDir, rs->mCacheDirLen, (const char *)codeTxt, codeLength);
 }
 
+bool ScriptC::precompile(sp<RS> rs, const void *codeTxt, size_t codeLength,
+                         const char *cachedName, size_t cachedNameLength,
+                         uint32_t msgId) {
+    if (RS::dispatch->ScriptCPrecompile == nullptr) {
+        return false;
+    }
+    RS::dispatch->ScriptCPrecompile(rs->getContext(), cachedName, cachedNameLength,
+                                    rs->mCacheDir, rs->mCacheDirLen,
+                                    (const char *)codeTxt, codeLength, msgId);
+    return true;
+}
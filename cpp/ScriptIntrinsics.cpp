@@ -242,6 +242,14 @@ void ScriptIntrinsicBlur::setRadius(float radius) {
     }
 }
 
+void ScriptIntrinsicBlur::setMode(RsBlurMode mode) {
+    if (mode == RS_BLUR_MODE_GAUSSIAN || mode == RS_BLUR_MODE_BOX) {
+        Script::setVar(2, (int32_t)mode);
+    } else {
+        mRS->throwError(RS_ERROR_INVALID_PARAMETER, "Invalid blur mode");
+    }
+}
+
 
 
 sp<ScriptIntrinsicColorMatrix> ScriptIntrinsicColorMatrix::create(sp<RS> rs) {
@@ -425,7 +433,7 @@ sp<ScriptIntrinsicHistogram> ScriptIntrinsicHistogram::create(sp<RS> rs, sp<cons
 }
 
 ScriptIntrinsicHistogram::ScriptIntrinsicHistogram(sp<RS> rs, sp<const Element> e)
-    : ScriptIntrinsic(rs, RS_SCRIPT_INTRINSIC_ID_HISTOGRAM, e) {
+    : ScriptIntrinsic(rs, RS_SCRIPT_INTRINSIC_ID_HISTOGRAM, e), mAccumulate(false) {
 
 }
 
@@ -505,6 +513,15 @@ void ScriptIntrinsicHistogram::forEach_dot(sp<Allocation> ain) {
     Script::forEach(1, ain, nullptr, nullptr, 0);
 }
 
+void ScriptIntrinsicHistogram::setAccumulate(bool accumulate) {
+    mAccumulate = accumulate;
+    Script::setVar(2, (int32_t)accumulate);
+}
+
+void ScriptIntrinsicHistogram::reset() {
+    Script::setVar(2, (int32_t)mAccumulate);
+}
+
 sp<ScriptIntrinsicLUT> ScriptIntrinsicLUT::create(sp<RS> rs, sp<const Element> e) {
     if (!(e->isCompatible(Element::U8_4(rs)))) {
         rs->throwError(RS_ERROR_INVALID_ELEMENT, "Invalid element for LUT");
@@ -636,3 +653,19 @@ void ScriptIntrinsicYuvToRGB::forEach(sp<Allocation> out) {
 
     Script::forEach(0, nullptr, out, nullptr, 0);
 }
+
+void ScriptIntrinsicYuvToRGB::setTransform(const RsYuvToRGBTransform &t) {
+    if (t.cropX < 0 || t.cropY < 0 || t.cropWidth < 0 || t.cropHeight < 0) {
+        mRS->throwError(RS_ERROR_INVALID_PARAMETER, "Invalid crop rectangle in YuvToRGB");
+        return;
+    }
+    if (t.rotation != 0 && t.rotation != 90 && t.rotation != 180 && t.rotation != 270) {
+        mRS->throwError(RS_ERROR_INVALID_PARAMETER, "YuvToRGB rotation must be a multiple of 90");
+        return;
+    }
+    if (t.filter != RS_YUV_FILTER_BILINEAR && t.filter != RS_YUV_FILTER_BOX) {
+        mRS->throwError(RS_ERROR_INVALID_PARAMETER, "Invalid filter in YuvToRGB");
+        return;
+    }
+    Script::setVar(1, &t, sizeof(t));
+}
@@ -47,6 +47,7 @@ class Type;
 class Allocation;
 class Script;
 class ScriptC;
+class ScriptBatch;
 class Sampler;
 
 /**
@@ -82,7 +83,9 @@ class Sampler;
      RS_INIT_LOW_LATENCY = 2, ///< Prefer low latency devices over potentially higher throughput devices.
      // Bitflag 4 is reserved for the context flag low power
      RS_INIT_WAIT_FOR_ATTACH = 8,   ///< Kernel execution will hold to give time for a debugger to be attached
-     RS_INIT_MAX = 16
+     RS_INIT_SPIN_WAIT = 16, ///< CPU worker threads spin briefly between launches. Cuts launch latency at the cost of power.
+     RS_INIT_RING_FIFO = 32, ///< Commands reach the RS thread through a shared memory ring instead of a socket.
+     RS_INIT_MAX = 64
  };
 
  /**
@@ -255,9 +258,13 @@ class Sampler;
         sp<const Sampler> MIRRORED_REPEAT_LINEAR;
         sp<const Sampler> MIRRORED_REPEAT_LINEAR_MIP_LINEAR;
     } mSamplers;
+    ScriptBatch *mBatch;
+
     friend class Sampler;
     friend class Element;
     friend class ScriptC;
+    friend class Script;
+    friend class ScriptBatch;
 };
 
  /**
@@ -361,6 +368,10 @@ public:
 
     /**
      * Propagate changes from one usage of the Allocation to other usages of the Allocation.
+     *
+     * For an Allocation created over a user pointer, RS_ALLOCATION_USAGE_SHARED
+     * publishes what the caller wrote to the pointer.  Nothing is ever written back
+     * to the pointer; when the driver keeps a copy, read results with copy*To().
      * @param[in] srcLocation source location with changes to propagate elsewhere
      */
     void syncAll(RsAllocationUsageType srcLocation);
@@ -576,6 +587,12 @@ public:
     /**
      * Creates an Allocation for use by scripts with a given Type and a backing pointer. For use
      * with RS_ALLOCATION_USAGE_SHARED.
+     *
+     * The kernels work on the pointer in place when every row of the Type is a
+     * multiple of 16 bytes, with rows packed tightly.  Otherwise the driver keeps a
+     * copy, filled from the pointer at creation and by syncAll(RS_ALLOCATION_USAGE_SHARED),
+     * and the pointer is only ever read.  Either way, the pointer must stay valid for the
+     * lifetime of the Allocation.
      * @param[in] rs Context to which the Allocation will belong
      * @param[in] type Type of the Allocation
      * @param[in] mipmaps desired mipmap behavior for the Allocation
@@ -1457,6 +1474,28 @@ public:
  * The parent class for all user-defined scripts. This is intended to be used by auto-generated code only.
  */
 class ScriptC : public Script {
+public:
+    /**
+     * Compile a script in the background, so that constructing it later
+     * only has to load the cached result.  Takes the same code and name as
+     * the generated ScriptC_* constructor passes to ScriptC.  Scripts are
+     * compiled in parallel.
+     *
+     * As each script finishes, an RsPrecompileProgress is delivered to the
+     * message handler with msgId as its id.
+     *
+     * @param[in] rs the RS context
+     * @param[in] codeTxt script bitcode
+     * @param[in] codeLength size of codeTxt in bytes
+     * @param[in] cachedName name the script is cached under
+     * @param[in] cachedNameLength length of cachedName
+     * @param[in] msgId message id for progress reports
+     * @return false if the runtime cannot precompile scripts
+     */
+    static bool precompile(sp<RS> rs, const void *codeTxt, size_t codeLength,
+                           const char *cachedName, size_t cachedNameLength,
+                           uint32_t msgId);
+
 protected:
     ScriptC(sp<RS> rs,
             const void *codeTxt, size_t codeLength,
@@ -1465,6 +1504,85 @@ protected:
 
 };
 
+/**
+ * Records a sequence of script commands and submits them to the RenderScript
+ * thread as one message.
+ *
+ * Between begin() and end(), setVar, invoke and forEach calls made on any
+ * script of the context, including the reflected set_*, invoke_* and
+ * forEach_* methods, are recorded instead of being sent.  submit() then
+ * replays the whole sequence, and may be called again every frame.
+ *
+ * The core only queues commands with less than 1024 bytes of payload without
+ * waiting, so submit() sends longer recordings as several client to core
+ * commands, cut between recorded calls.  A single call whose record alone
+ * reaches that size, such as setVar of a large array, is sent by itself and
+ * waits for the RenderScript thread.
+ *
+ * To change arguments between submissions, call beginPatch(), repeat only
+ * the calls whose values changed, in the order they were recorded, and call
+ * end().  Each call overwrites the next recorded command for the same script
+ * and slot.  Values must keep the size they were recorded with.
+ *
+ * Scripts and allocations referenced by recorded commands must outlive the
+ * batch.
+ */
+class ScriptBatch : public android::RSC::LightRefBase<ScriptBatch> {
+public:
+    ScriptBatch(sp<RS> rs);
+    virtual ~ScriptBatch();
+
+    /**
+     * Starts recording, dropping any previously recorded commands.
+     */
+    void begin();
+
+    /**
+     * Starts patching the recorded commands.
+     */
+    void beginPatch();
+
+    /**
+     * Stops recording or patching.
+     */
+    void end();
+
+    /**
+     * Sends all recorded commands to the RenderScript thread.
+     */
+    void submit();
+
+    /**
+     * Returns the number of recorded commands.
+     */
+    uint32_t getCommandCount() const { return mCount; }
+
+private:
+    friend class Script;
+
+    enum {
+        MODE_IDLE,
+        MODE_RECORD,
+        MODE_PATCH
+    };
+
+    void add(uint32_t type, const Script *s, uint32_t slot, void *obj, void *aout,
+             const void *data, size_t len);
+    void record(uint32_t type, const Script *s, uint32_t slot, void *obj, void *aout,
+                const void *data, size_t len);
+    void patch(uint32_t type, const Script *s, uint32_t slot, void *obj, void *aout,
+               const void *data, size_t len);
+    void submitEach();
+
+    sp<RS> mRS;
+    uint8_t *mData;
+    size_t mLen;
+    size_t mCapacity;
+    size_t mPatchOffset;
+    uint32_t mCount;
+    int mMode;
+};
+
 /**
  * The parent class for all script intrinsics. Intrinsics provide highly optimized implementations of
  * basic functions. This is not intended to be used directly.
@@ -1645,6 +1763,13 @@ class ScriptIntrinsicBlur : public ScriptIntrinsic {
      * @param[in] radius radius of the blur
      */
     void setRadius(float radius);
+    /**
+     * Selects the blur algorithm, RS_BLUR_MODE_GAUSSIAN (the default) or
+     * RS_BLUR_MODE_BOX. The box mode approximates the Gaussian with three
+     * box filters, which costs the same per pixel at any radius.
+     * @param[in] mode the RsBlurMode to use
+     */
+    void setMode(RsBlurMode mode);
 };
 
 /**
@@ -1780,6 +1905,7 @@ class ScriptIntrinsicHistogram : public ScriptIntrinsic {
  private:
     ScriptIntrinsicHistogram(sp<RS> rs, sp<const Element> e);
     sp<Allocation> mOut;
+    bool mAccumulate;
  public:
     /**
      * Create an intrinsic for calculating the histogram of an uchar
@@ -1836,6 +1962,21 @@ class ScriptIntrinsicHistogram : public ScriptIntrinsic {
      * @param ain The input image
      */
     void forEach_dot(sp<Allocation> ain);
+    /**
+     * Keep a running histogram over successive forEach and forEach_dot
+     * calls. Each call adds its counts to the running totals and writes
+     * the totals to the output allocation. This is useful for a
+     * histogram over a stream of frames or over tiles of an image.
+     * The totals start out cleared.
+     *
+     * @param[in] accumulate true to accumulate, false for a fresh
+     *                       histogram per call (the default)
+     */
+    void setAccumulate(bool accumulate);
+    /**
+     * Clear the running totals kept by setAccumulate(true).
+     */
+    void reset();
 };
 
 /**
@@ -1971,6 +2112,17 @@ class ScriptIntrinsicYuvToRGB : public ScriptIntrinsic {
      */
     void forEach(sp<Allocation> out);
 
+    /**
+     * Crop, rotate and resample the input while converting it. The crop
+     * rectangle is rotated clockwise and scaled to the size of the output
+     * allocation passed to forEach, so a reduced resolution output never
+     * needs a full resolution RGB frame. The default is no crop, no
+     * rotation and an output the size of the input.
+     *
+     * @param[in] t crop rectangle, rotation and RsYuvFilter to use
+     */
+    void setTransform(const RsYuvToRGBTransform &t);
+
 };
 
 /**
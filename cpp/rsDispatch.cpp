@@ -418,6 +418,18 @@ bool loadSymbols(void* handle, dispatchTable& dispatchTab, int device_api) {
         }
     }
 
+    // Optional.  Without it ScriptBatch sends the recorded commands one at a
+    // time.
+    dispatchTab.ScriptBatchExecute = (ScriptBatchExecuteFnPtr)dlsym(handle, "rsScriptBatchExecute");
+    if (dispatchTab.ScriptBatchExecute == NULL) {
+        LOG_API("Couldn't initialize dispatchTab.ScriptBatchExecute");
+    }
+    // Optional.  Without it ScriptC::precompile() returns false.
+    dispatchTab.ScriptCPrecompile = (ScriptCPrecompileFnPtr)dlsym(handle, "rsScriptCPrecompile");
+    if (dispatchTab.ScriptCPrecompile == NULL) {
+        LOG_API("Couldn't initialize dispatchTab.ScriptCPrecompile");
+    }
+
     return true;
 
 }
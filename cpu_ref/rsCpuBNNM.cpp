@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include "rsCpuBNNM.h"
+
+#include <string.h>
+
+#include <algorithm>
+
+namespace android {
+namespace renderscript {
+
+// BNNM is computed in tiles of C so that the work can be spread across the
+// worker threads.  Within a tile, slices of A and B are packed into panels
+// of BNNM_MR rows / BNNM_NR columns with the offsets already subtracted, so
+// the inner loop reads both operands sequentially.  All arithmetic is
+// integer, so the result matches the reference triple loop exactly.
+#define BNNM_MR 4
+#define BNNM_NR 4
+#define BNNM_TILE_M 32
+#define BNNM_TILE_N 32
+#define BNNM_TILE_K 256
+
+// Pack rows [row, row + rows) and columns [col, col + cols) of a row major
+// uint8 matrix into panels of 'panel' rows, interleaved along the column
+// (K) axis.  Rows past the end of the matrix are zero filled.
+static void packBNNMPanels(int16_t *dst, const uint8_t *src, size_t ld, int32_t offset,
+                           size_t row, size_t rows, size_t col, size_t cols,
+                           uint32_t panel) {
+    for (size_t p = 0; p < rows; p += panel) {
+        for (size_t l = 0; l < cols; l++) {
+            for (uint32_t r = 0; r < panel; r++) {
+                int16_t v = 0;
+                if (p + r < rows) {
+                    v = (int16_t)((int32_t)src[(row + p + r) * ld + col + l] - offset);
+                }
+                *dst++ = v;
+            }
+        }
+    }
+}
+
+// Accumulate one BNNM_MR x BNNM_NR block of the tile accumulator.
+static inline void kernelBNNMBlock(int32_t *acc, size_t accStride,
+                                   const int16_t *pa, const int16_t *pb, size_t kb) {
+    int32_t total[BNNM_MR][BNNM_NR];
+    memset(total, 0, sizeof(total));
+    for (size_t l = 0; l < kb; l++) {
+        for (uint32_t i = 0; i < BNNM_MR; i++) {
+            const int32_t av = pa[i];
+            for (uint32_t j = 0; j < BNNM_NR; j++) {
+                total[i][j] += av * (int32_t)pb[j];
+            }
+        }
+        pa += BNNM_MR;
+        pb += BNNM_NR;
+    }
+    for (uint32_t i = 0; i < BNNM_MR; i++) {
+        for (uint32_t j = 0; j < BNNM_NR; j++) {
+            acc[i * accStride + j] += total[i][j];
+        }
+    }
+}
+
+static void kernelBNNMTile(const BNNMLaunchStruct *bl, uint32_t tile) {
+    // Calculations are done in 1.10.21 fixed-point format for the final output,
+    // just before there's a shift down to drop the fractional parts. The output
+    // values are gated to 0 to 255 to fit in a byte, but the 10-bit format
+    // gives some headroom to avoid wrapping around on small overflows.
+    const int c_shift = 21;
+
+    int16_t packedA[BNNM_TILE_M * BNNM_TILE_K];
+    int16_t packedB[BNNM_TILE_N * BNNM_TILE_K];
+    int32_t acc[BNNM_TILE_M * BNNM_TILE_N];
+
+    const size_t i0 = (tile / bl->tilesN) * BNNM_TILE_M;
+    const size_t j0 = (tile % bl->tilesN) * BNNM_TILE_N;
+    const size_t mb = std::min((size_t)BNNM_TILE_M, bl->m - i0);
+    const size_t nb = std::min((size_t)BNNM_TILE_N, bl->n - j0);
+
+    memset(acc, 0, sizeof(acc));
+    for (size_t l0 = 0; l0 < bl->k; l0 += BNNM_TILE_K) {
+        const size_t kb = std::min((size_t)BNNM_TILE_K, bl->k - l0);
+
+        // C = A * B.transposed(), so both A and B are read along their rows.
+        packBNNMPanels(packedA, bl->a, bl->lda, bl->a_offset, i0, mb, l0, kb, BNNM_MR);
+        packBNNMPanels(packedB, bl->b, bl->ldb, bl->b_offset, j0, nb, l0, kb, BNNM_NR);
+
+        for (size_t i = 0; i < mb; i += BNNM_MR) {
+            for (size_t j = 0; j < nb; j += BNNM_NR) {
+                kernelBNNMBlock(&acc[i * BNNM_TILE_N + j], BNNM_TILE_N,
+                                &packedA[i * kb], &packedB[j * kb], kb);
+            }
+        }
+    }
+
+    for (size_t i = 0; i < mb; i++) {
+        uint8_t *out = bl->c + (i0 + i) * bl->ldc + j0;
+        for (size_t j = 0; j < nb; j++) {
+            const int32_t total = acc[i * BNNM_TILE_N + j];
+            int32_t output =
+                ((((total + bl->c_offset) * bl->c_mult_int) + (1 << (c_shift - 1)))
+                 >> c_shift);
+            if (output > 255) {
+                output = 255;
+            }
+            if (output < 0) {
+                output = 0;
+            }
+            out[j] = (uint8_t)(output);
+        }
+    }
+}
+
+void rsdBNNMWalk(void *usr, uint32_t idx) {
+    BNNMLaunchStruct *bl = (BNNMLaunchStruct *)usr;
+
+    while (1) {
+        uint32_t tile = (uint32_t)__sync_fetch_and_add(&bl->mTileNum, 1);
+        if (tile >= bl->tileCount) {
+            return;
+        }
+        kernelBNNMTile(bl, tile);
+    }
+}
+
+void rsdBNNMSetup(BNNMLaunchStruct *bl) {
+    bl->tilesN = (bl->n + BNNM_TILE_N - 1) / BNNM_TILE_N;
+    bl->tileCount = ((bl->m + BNNM_TILE_M - 1) / BNNM_TILE_M) * bl->tilesN;
+    bl->mTileNum = 0;
+}
+
+}
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef RSD_CPU_BNNM_H
+#define RSD_CPU_BNNM_H
+
+#include <stddef.h>
+#include <stdint.h>
+
+// The tiled BNNM kernel of the BLAS intrinsic.  It has no dependency on the
+// rest of the driver so that tests can build it on its own.
+
+namespace android {
+namespace renderscript {
+
+struct BNNMLaunchStruct {
+    size_t m, n, k;
+    const uint8_t *a;
+    size_t lda;
+    const uint8_t *b;
+    size_t ldb;
+    uint8_t *c;
+    size_t ldc;
+    int32_t a_offset;
+    int32_t b_offset;
+    int32_t c_offset;
+    int32_t c_mult_int;
+
+    uint32_t tilesN;
+    uint32_t tileCount;
+    volatile int mTileNum;
+};
+
+// Fill in the tiling of bl, once its matrices are set.
+void rsdBNNMSetup(BNNMLaunchStruct *bl);
+
+// Worker callback: computes tiles of C until none are left.  Any number of
+// threads can run it on the same launch.
+void rsdBNNMWalk(void *usr, uint32_t idx);
+
+}
+}
+
+#endif
@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include "rsCpuBlurBox.h"
+
+#include <math.h>
+#include <stdlib.h>
+#include <string.h>
+
+#include <algorithm>
+
+namespace android {
+namespace renderscript {
+
+// Split the Gaussian into three box passes, each applied vertically and
+// then horizontally, whose variances add up to sigma^2 (Kovesi, "Fast
+// almost-Gaussian filtering").  The boxes have odd widths wl or wl + 2.
+void rsdBlurBoxRadii(float radius, int *boxRadius) {
+    // Same sigma as the Gaussian weights.
+    float sigma = 0.4f * radius + 0.6f;
+    float var12 = 12.f * sigma * sigma;
+
+    int wl = (int)floorf(sqrtf(var12 / 3.f + 1.f));
+    if (!(wl & 1)) {
+        wl--;
+    }
+    int m = (int)roundf((var12 - 3 * wl * wl - 12 * wl - 9) / (-4.f * wl - 4.f));
+    for (int i = 0; i < 3; i++) {
+        boxRadius[i] = ((i < m) ? wl : wl + 2) >> 1;
+    }
+}
+
+static inline int ClampRow(int y, int h) {
+    return std::min(std::max(y, 0), h - 1);
+}
+
+template <typename T>
+static void AddRow(uint32_t *dst, const T *src, size_t n) {
+    for (size_t i = 0; i < n; i++) {
+        dst[i] += src[i];
+    }
+}
+
+template <typename T>
+static void SlideRow(uint32_t *dst, const uint32_t *prev, const T *add, const T *sub,
+                     size_t n) {
+    for (size_t i = 0; i < n; i++) {
+        dst[i] = prev[i] + add[i] - sub[i];
+    }
+}
+
+bool BlurBoxState::setup(size_t elements, const int *r) {
+    // Sliding pass k + 1 to a row needs the rows of pass k from
+    // 2 * radius + 1 above to radius below it.
+    int rows0 = 2 * r[1] + 2;
+    int rows1 = 2 * r[2] + 2;
+    size_t needed = elements * (rows0 + rows1 + 3);
+    if (needed > size) {
+        uint32_t *p = (uint32_t *)realloc(mem, needed * sizeof(uint32_t));
+        if (!p) {
+            return false;
+        }
+        mem = p;
+        size = needed;
+    }
+
+    n = elements;
+    radius = r;
+    ringRows[0] = rows0;
+    ringRows[1] = rows1;
+    ring[0] = mem;
+    ring[1] = ring[0] + rows0 * n;
+    sum = ring[1] + rows1 * n;
+    tmp[0] = sum + n;
+    tmp[1] = tmp[0] + n;
+    for (int i = 0; i < 3; i++) {
+        last[i] = -1;
+    }
+    ready = true;
+    return true;
+}
+
+// Adds row y of the input of vertical pass "pass" to dst.
+void BlurBoxState::addRow(uint32_t *dst, const uint8_t *pin, size_t stride,
+                          int h, int pass, int y) {
+    if (pass == 0) {
+        AddRow(dst, pin + y * stride, n);
+    } else {
+        AddRow(dst, ringRow(pin, stride, h, pass - 1, y), n);
+    }
+}
+
+// Returns row y of vertical pass 0 or 1.  Rows are produced in order, each
+// one from the previous one; a row that cannot be reached that way is
+// summed from scratch.
+const uint32_t * BlurBoxState::ringRow(const uint8_t *pin, size_t stride,
+                                       int h, int pass, int y) {
+    const int rows = ringRows[pass];
+    const int r = radius[pass];
+    uint32_t *base = ring[pass];
+
+    if (last[pass] >= 0 && y <= last[pass] &&
+        y >= std::max(first[pass], last[pass] - rows + 1)) {
+        return base + (y % rows) * n;
+    }
+
+    if (last[pass] < 0 || y < last[pass] || y - last[pass] > 2 * r + 1) {
+        uint32_t *dst = base + (y % rows) * n;
+        memset(dst, 0, n * sizeof(uint32_t));
+        for (int i = -r; i <= r; i++) {
+            addRow(dst, pin, stride, h, pass, ClampRow(y + i, h));
+        }
+        first[pass] = y;
+        last[pass] = y;
+        return dst;
+    }
+
+    uint32_t *dst = nullptr;
+    while (last[pass] < y) {
+        int j = last[pass] + 1;
+        dst = base + (j % rows) * n;
+        const uint32_t *prev = base + ((j - 1) % rows) * n;
+        int addY = ClampRow(j + r, h);
+        int subY = ClampRow(j - 1 - r, h);
+        if (pass == 0) {
+            SlideRow(dst, prev, pin + addY * stride, pin + subY * stride, n);
+        } else {
+            // Fetch the newer row first so producing it cannot evict the
+            // older one.
+            const uint32_t *add = ringRow(pin, stride, h, 0, addY);
+            const uint32_t *sub = ringRow(pin, stride, h, 0, subY);
+            SlideRow(dst, prev, add, sub, n);
+        }
+        last[pass] = j;
+    }
+    return dst;
+}
+
+// Returns row y of the last vertical pass.
+const uint32_t * BlurBoxState::vertical(const uint8_t *pin, size_t stride,
+                                        int h, int y) {
+    const int r = radius[2];
+    if (last[2] >= 0 && y == last[2] + 1) {
+        const uint32_t *add = ringRow(pin, stride, h, 1, ClampRow(y + r, h));
+        const uint32_t *sub = ringRow(pin, stride, h, 1, ClampRow(y - 1 - r, h));
+        SlideRow(sum, sum, add, sub, n);
+    } else if (last[2] != y) {
+        memset(sum, 0, n * sizeof(uint32_t));
+        for (int i = -r; i <= r; i++) {
+            addRow(sum, pin, stride, h, 2, ClampRow(y + i, h));
+        }
+    }
+    last[2] = y;
+    return sum;
+}
+
+// One horizontal box pass over a row of w pixels of C channels, clamped at
+// the ends.  At radius 25 the boxes are at most 23 wide, so the sums of the
+// second pass still fit in 32 bits.
+template <int C>
+static void BoxH(uint32_t *out, const uint32_t *in, int w, int r) {
+    for (int c = 0; c < C; c++) {
+        uint32_t s = in[c] * (r + 1);
+        for (int i = 1; i <= r; i++) {
+            s += in[std::min(i, w - 1) * C + c];
+        }
+        for (int x = 0; x < w; x++) {
+            out[x * C + c] = s;
+            s += in[std::min(x + r + 1, w - 1) * C + c] - in[std::max(x - r, 0) * C + c];
+        }
+    }
+}
+
+// The last horizontal pass, writing pixels [x1, x2).  The sums may exceed
+// 32 bits here.
+template <int C>
+static void BoxHOut(uint8_t *out, const uint32_t *in, int w, int r, float scale,
+                    int x1, int x2) {
+    for (int c = 0; c < C; c++) {
+        uint64_t s = 0;
+        for (int i = -r; i <= r; i++) {
+            s += in[ClampRow(x1 + i, w) * C + c];
+        }
+        for (int x = x1; x < x2; x++) {
+            out[(x - x1) * C + c] = (uint8_t)((float)s * scale + 0.5f);
+            s += in[std::min(x + r + 1, w - 1) * C + c];
+            s -= in[std::max(x - r, 0) * C + c];
+        }
+    }
+}
+
+template <int C>
+static bool BoxRow(BlurBoxState *s, uint8_t *out, const uint8_t *pin, size_t stride,
+                   int w, int h, const int *r, int y, int x1, int x2) {
+    if (!s->ready && !s->setup(w * C, r)) {
+        return false;
+    }
+
+    float scale = 1.f;
+    for (int i = 0; i < 3; i++) {
+        scale *= (float)(2 * r[i] + 1);
+    }
+    scale = 1.f / (scale * scale);
+
+    const uint32_t *sum = s->vertical(pin, stride, h, y);
+    BoxH<C>(s->tmp[0], sum, w, r[0]);
+    BoxH<C>(s->tmp[1], s->tmp[0], w, r[1]);
+    BoxHOut<C>(out, s->tmp[1], w, r[2], scale, x1, x2);
+    return true;
+}
+
+bool rsdBlurBoxRow(BlurBoxState *s, int channels, uint8_t *out,
+                   const uint8_t *pin, size_t stride, int w, int h,
+                   const int *boxRadius, int y, int x1, int x2) {
+    if (channels == 4) {
+        return BoxRow<4>(s, out, pin, stride, w, h, boxRadius, y, x1, x2);
+    }
+    return BoxRow<1>(s, out, pin, stride, w, h, boxRadius, y, x1, x2);
+}
+
+}
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef RSD_CPU_BLUR_BOX_H
+#define RSD_CPU_BLUR_BOX_H
+
+#include <stddef.h>
+#include <stdint.h>
+
+// RS_BLUR_MODE_BOX of the Blur intrinsic.  It has no dependency on the rest
+// of the driver so that tests can build it on its own.
+
+namespace android {
+namespace renderscript {
+
+// Per thread state of the box blur.  The three vertical passes keep running
+// sums down the rows a thread works on, so each new row adds and removes one
+// row per pass whatever the radius.  The sums are integers, which keeps the
+// result exact and independent of how the rows are split between threads.
+//
+// Zero initialize it, clear ready whenever the input or the radii change,
+// and free mem when done.
+struct BlurBoxState {
+    uint32_t *mem;
+    size_t size;        // elements in mem
+    size_t n;           // elements in a row
+    bool ready;         // laid out for the current launch
+    const int *radius;
+    uint32_t *ring[2];  // recent rows of the first two vertical passes
+    int ringRows[2];
+    int first[2];       // rows [first, last] of each ring are valid
+    int last[3];        // -1 when the pass has no row
+    uint32_t *sum;      // row last[2] of the third vertical pass
+    uint32_t *tmp[2];   // the first two horizontal passes
+
+    bool setup(size_t elements, const int *radius);
+    const uint32_t * vertical(const uint8_t *pin, size_t stride, int h, int y);
+    const uint32_t * ringRow(const uint8_t *pin, size_t stride, int h, int pass, int y);
+    void addRow(uint32_t *dst, const uint8_t *pin, size_t stride, int h, int pass, int y);
+};
+
+// Split the Gaussian of the given blur radius into the radii of three box
+// passes.
+void rsdBlurBoxRadii(float radius, int *boxRadius);
+
+// Write pixels [x1, x2) of row y of the w x h image of channels (1 or 4)
+// uint8 channels at pin, blurred with the three boxRadius passes, to out.
+// Returns false if the scratch rows cannot be allocated.
+bool rsdBlurBoxRow(BlurBoxState *s, int channels, uint8_t *out,
+                   const uint8_t *pin, size_t stride, int w, int h,
+                   const int *boxRadius, int y, int x1, int x2);
+
+}
+}
+
+#endif
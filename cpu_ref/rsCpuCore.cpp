@@ -18,6 +18,9 @@
 #include "rsCpuScript.h"
 #include "rsCpuScriptGroup.h"
 #include "rsCpuScriptGroup2.h"
+#ifndef RS_COMPATIBILITY_LIB
+#include "rsCpuPrecompile.h"
+#endif
 
 #include <malloc.h>
 #include "rsContext.h"
@@ -30,6 +33,10 @@
 #include <string.h>
 #include <unistd.h>
 
+#if defined(ARCH_X86_HAVE_SSSE3)
+#include <cpuid.h>
+#endif
+
 #if !defined(RS_SERVER) && !defined(RS_COMPATIBILITY_LIB)
 #include <cutils/properties.h>
 #include "utils/StopWatch.h"
@@ -50,11 +57,24 @@ typedef void (*outer_foreach_t)(
     uint32_t x1, uint32_t x2, uint32_t outstep);
 
 
+// How long workers and the launching thread busy wait in spin wait mode
+// before blocking.
+static const nsecs_t kLaunchSpinTime = 100 * 1000;
+
+static inline void cpuRelax() {
+#if defined(__i386__) || defined(__x86_64__)
+    __builtin_ia32_pause();
+#elif defined(__arm__) || defined(__aarch64__)
+    __asm__ __volatile__("yield");
+#endif
+}
+
 static pthread_key_t gThreadTLSKey = 0;
 static uint32_t gThreadTLSKeyCount = 0;
 static pthread_mutex_t gInitMutex = PTHREAD_MUTEX_INITIALIZER;
 
 bool android::renderscript::gArchUseSIMD = false;
+bool android::renderscript::gArchUseAVX2 = false;
 
 RsdCpuReference::~RsdCpuReference() {
 }
@@ -114,6 +134,9 @@ RsdCpuReferenceImpl::RsdCpuReferenceImpl(Context *rsc) {
     mSetupCompilerCallback = nullptr;
     mEmbedGlobalInfo = true;
     mEmbedGlobalInfoSkipConstant = true;
+#ifndef RS_COMPATIBILITY_LIB
+    mPrecompiler = nullptr;
+#endif
 }
 
 
@@ -143,38 +166,110 @@ void * RsdCpuReferenceImpl::helperThreadProc(void *vrsc) {
     ALOGE("SETAFFINITY ret = %i %s", ret, EGLUtils::strerror(ret));
 #endif
 
+    // The first wait always returns immediately, it reports the thread as
+    // started to init().
+    bool started = false;
+    uint32_t epoch = 0;
     while (!dc->mExit) {
-        dc->mWorkers.mLaunchSignals[idx].wait();
+        if (dc->mWorkers.mSpinWait && started) {
+            dc->waitForLaunch(idx, &epoch);
+        } else {
+            dc->mWorkers.mLaunchSignals[idx].wait();
+        }
+        started = true;
         if (dc->mWorkers.mLaunchCallback) {
            // idx +1 is used because the calling thread is always worker 0.
            dc->mWorkers.mLaunchCallback(dc->mWorkers.mLaunchData, idx+1);
         }
-        __sync_fetch_and_sub(&dc->mWorkers.mRunningCount, 1);
-        dc->mWorkers.mCompleteSignal.set();
+        int running = __sync_sub_and_fetch(&dc->mWorkers.mRunningCount, 1);
+        // Pairs with the barrier after the launcher parks in waitForComplete().
+        __sync_synchronize();
+        if (!dc->mWorkers.mSpinWait ||
+            (running == 0 && __sync_fetch_and_or(&dc->mWorkers.mLauncherParked, 0))) {
+            dc->mWorkers.mCompleteSignal.set();
+        }
     }
 
     //ALOGV("RS helperThread exited %p idx=%i", dc, idx);
     return nullptr;
 }
 
-void RsdCpuReferenceImpl::launchThreads(WorkerCallback_t cbk, void *data) {
-    mWorkers.mLaunchData = data;
-    mWorkers.mLaunchCallback = cbk;
+// Wait for the launch after the one numbered *seenEpoch.  Spin first, then
+// park on the worker's launch signal.
+void RsdCpuReferenceImpl::waitForLaunch(uint32_t idx, uint32_t *seenEpoch) {
+    const nsecs_t deadline = systemTime(SYSTEM_TIME_MONOTONIC) + kLaunchSpinTime;
+    uint32_t spins = 0;
+    while (mWorkers.mLaunchEpoch == *seenEpoch && !mExit) {
+        if (((++spins & 63) == 0) && systemTime(SYSTEM_TIME_MONOTONIC) > deadline) {
+            break;
+        }
+        cpuRelax();
+    }
+
+    if (mWorkers.mLaunchEpoch == *seenEpoch && !mExit) {
+        __sync_lock_test_and_set(&mWorkers.mParked[idx], 1);
+        // lock_test_and_set is only an acquire barrier.  The flag must be
+        // visible before the epoch is read again, pairing with the barrier
+        // in launchThreads, or both sides can miss each other.
+        __sync_synchronize();
+        // A launch may have started before we parked.  If we can clear our
+        // own flag the launcher has not seen it, otherwise it has signalled
+        // us and we consume that signal below.
+        if ((mWorkers.mLaunchEpoch == *seenEpoch && !mExit) ||
+            !__sync_bool_compare_and_swap(&mWorkers.mParked[idx], 1, 0)) {
+            mWorkers.mLaunchSignals[idx].wait();
+        }
+    }
+    *seenEpoch = mWorkers.mLaunchEpoch;
+}
 
-    // fast path for very small launches
-    MTLaunchStruct *mtls = (MTLaunchStruct *)data;
-    if (mtls && mtls->fep.dim.y <= 1 && mtls->end.x <= mtls->start.x + mtls->mSliceSize) {
-        if (mWorkers.mLaunchCallback) {
-            mWorkers.mLaunchCallback(mWorkers.mLaunchData, 0);
+// Wait for all workers to finish the current launch.
+void RsdCpuReferenceImpl::waitForComplete() {
+    if (mWorkers.mSpinWait) {
+        const nsecs_t deadline = systemTime(SYSTEM_TIME_MONOTONIC) + kLaunchSpinTime;
+        uint32_t spins = 0;
+        while (__sync_fetch_and_or(&mWorkers.mRunningCount, 0) != 0) {
+            if (((++spins & 63) == 0) && systemTime(SYSTEM_TIME_MONOTONIC) > deadline) {
+                break;
+            }
+            cpuRelax();
         }
-        return;
+        __sync_lock_test_and_set(&mWorkers.mLauncherParked, 1);
+        // Publish the flag before reading the count, see waitForLaunch().
+        __sync_synchronize();
+    }
+
+    while (__sync_fetch_and_or(&mWorkers.mRunningCount, 0) != 0) {
+        mWorkers.mCompleteSignal.wait();
+    }
+
+    if (mWorkers.mSpinWait) {
+        __sync_lock_test_and_set(&mWorkers.mLauncherParked, 0);
     }
+}
+
+void RsdCpuReferenceImpl::launchThreads(WorkerCallback_t cbk, void *data) {
+    mWorkers.mLaunchData = data;
+    mWorkers.mLaunchCallback = cbk;
 
     mWorkers.mRunningCount = mWorkers.mCount;
     __sync_synchronize();
 
-    for (uint32_t ct = 0; ct < mWorkers.mCount; ct++) {
-        mWorkers.mLaunchSignals[ct].set();
+    if (mWorkers.mSpinWait) {
+        // Spinning workers pick the launch up from the epoch, only the
+        // parked ones need the (much slower) signal.
+        __sync_fetch_and_add(&mWorkers.mLaunchEpoch, 1);
+        // The new epoch must be visible before the parked flags are read.
+        __sync_synchronize();
+        for (uint32_t ct = 0; ct < mWorkers.mCount; ct++) {
+            if (__sync_bool_compare_and_swap(&mWorkers.mParked[ct], 1, 0)) {
+                mWorkers.mLaunchSignals[ct].set();
+            }
+        }
+    } else {
+        for (uint32_t ct = 0; ct < mWorkers.mCount; ct++) {
+            mWorkers.mLaunchSignals[ct].set();
+        }
     }
 
     // We use the calling thread as one of the workers so we can start without
@@ -183,9 +278,7 @@ void RsdCpuReferenceImpl::launchThreads(WorkerCallback_t cbk, void *data) {
         mWorkers.mLaunchCallback(mWorkers.mLaunchData, 0);
     }
 
-    while (__sync_fetch_and_or(&mWorkers.mRunningCount, 0) != 0) {
-        mWorkers.mCompleteSignal.wait();
-    }
+    waitForComplete();
 }
 
 
@@ -197,6 +290,31 @@ void RsdCpuReferenceImpl::unlockMutex() {
     pthread_mutex_unlock(&gInitMutex);
 }
 
+#if defined(ARCH_X86_HAVE_SSSE3)
+// AVX2 needs both the CPU feature and the OS saving the YMM registers on
+// context switches, which /proc/cpuinfo does not tell apart.
+static bool CpuHasAVX2() {
+    unsigned int eax, ebx, ecx, edx;
+    if (!__get_cpuid(1, &eax, &ebx, &ecx, &edx) ||
+        !(ecx & bit_OSXSAVE) || !(ecx & bit_AVX)) {
+        return false;
+    }
+
+    // XCR0 bits 1 and 2: SSE and AVX state enabled.
+    unsigned int xcr0, xcr0hi;
+    __asm__ ("xgetbv" : "=a" (xcr0), "=d" (xcr0hi) : "c" (0));
+    if ((xcr0 & 0x6) != 0x6) {
+        return false;
+    }
+
+    if (__get_cpuid_max(0, nullptr) < 7) {
+        return false;
+    }
+    __cpuid_count(7, 0, eax, ebx, ecx, edx);
+    return (ebx & bit_AVX2) != 0;
+}
+#endif
+
 // Determine if the CPU we're running on supports SIMD instructions.
 static void GetCpuInfo() {
     // Read the CPU flags from /proc/cpuinfo.
@@ -220,6 +338,10 @@ static void GetCpuInfo() {
         }
     }
     fclose(cpuinfo);
+
+#if defined(ARCH_X86_HAVE_SSSE3)
+    gArchUseAVX2 = gArchUseSIMD && CpuHasAVX2();
+#endif
 }
 
 bool RsdCpuReferenceImpl::init(uint32_t version_major, uint32_t version_minor,
@@ -267,6 +389,8 @@ bool RsdCpuReferenceImpl::init(uint32_t version_major, uint32_t version_minor,
     mWorkers.mNativeThreadId = (pid_t *) calloc(mWorkers.mCount, sizeof(pid_t));
     mWorkers.mLaunchSignals = new Signal[mWorkers.mCount];
     mWorkers.mLaunchCallback = nullptr;
+    mWorkers.mParked = (volatile int *) calloc(mWorkers.mCount, sizeof(int));
+    mWorkers.mSpinWait = (mRSC->mHal.flags & RS_CONTEXT_SPIN_WAIT) != 0;
 
     mWorkers.mCompleteSignal.init();
 
@@ -305,11 +429,17 @@ void RsdCpuReferenceImpl::setPriority(int32_t priority) {
 }
 
 RsdCpuReferenceImpl::~RsdCpuReferenceImpl() {
+#ifndef RS_COMPATIBILITY_LIB
+    // Running compiles may still report progress, so this goes first.
+    delete mPrecompiler;
+#endif
+
     mExit = true;
     mWorkers.mLaunchData = nullptr;
     mWorkers.mLaunchCallback = nullptr;
     mWorkers.mRunningCount = mWorkers.mCount;
     __sync_synchronize();
+    // Spinning workers see mExit on their own, parked ones need the signal.
     for (uint32_t ct = 0; ct < mWorkers.mCount; ct++) {
         mWorkers.mLaunchSignals[ct].set();
     }
@@ -320,6 +450,7 @@ RsdCpuReferenceImpl::~RsdCpuReferenceImpl() {
     rsAssert(__sync_fetch_and_or(&mWorkers.mRunningCount, 0) == 0);
     free(mWorkers.mThreadId);
     free(mWorkers.mNativeThreadId);
+    free((void *)mWorkers.mParked);
     delete[] mWorkers.mLaunchSignals;
 
     // Global structure cleanup.
@@ -403,6 +534,65 @@ static void walk_general(void *usr, uint32_t idx) {
 
 }
 
+// Very small launches are cheaper to run on the calling thread than to
+// wake the workers for.
+static bool isSmallLaunch(const MTLaunchStruct *mtls) {
+    return mtls->fep.dim.y <= 1 && mtls->end.x <= mtls->start.x + mtls->mSliceSize;
+}
+
+// Record the time at which a worker ran out of slices.  The spread between
+// the first and the last worker going idle is the tail of the launch.
+static void markIdle(MTLaunchStruct *mtls) {
+    const uint32_t now =
+        (uint32_t)((systemTime(SYSTEM_TIME_MONOTONIC) - mtls->mStatsStart) / 1000) + 1;
+    __sync_bool_compare_and_swap(&mtls->mFirstIdle, 0, now);
+    uint32_t last = mtls->mLastIdle;
+    while (last < now && !__sync_bool_compare_and_swap(&mtls->mLastIdle, last, now)) {
+        last = mtls->mLastIdle;
+    }
+}
+
+// Claim the next slice of [begin, end).  Static slicing hands out fixed
+// size slices.  Guided slicing claims a share of the remaining work, so
+// slices start large to keep the atomic traffic down and shrink towards
+// mSliceSize at the end, which lets the threads finish close together
+// when rows have uneven cost.
+static bool nextSlice(MTLaunchStruct *mtls, uint32_t begin, uint32_t end,
+                      uint32_t *sliceStart, uint32_t *sliceEnd) {
+    if (!mtls->mGuided) {
+        uint32_t slice = (uint32_t)__sync_fetch_and_add(&mtls->mSliceNum, 1);
+        *sliceStart = begin + slice * mtls->mSliceSize;
+        *sliceEnd = rsMin(*sliceStart + mtls->mSliceSize, end);
+    } else {
+        const uint32_t total = end - begin;
+        while (1) {
+            const uint32_t pos = (uint32_t)mtls->mSliceNum;
+            if (pos >= total) {
+                *sliceStart = *sliceEnd = end;
+                break;
+            }
+            uint32_t size = (total - pos) / (mtls->mThreadCount * 2);
+            size = rsMin(rsMax(size, mtls->mSliceSize), total - pos);
+            if (__sync_bool_compare_and_swap(&mtls->mSliceNum, (int)pos, (int)(pos + size))) {
+                *sliceStart = begin + pos;
+                *sliceEnd = *sliceStart + size;
+                break;
+            }
+        }
+    }
+
+    if (*sliceEnd <= *sliceStart) {
+        if (mtls->mCollectStats) {
+            markIdle(mtls);
+        }
+        return false;
+    }
+    if (mtls->mCollectStats) {
+        __sync_fetch_and_add(&mtls->mSliceCount, 1);
+    }
+    return true;
+}
+
 static void walk_2d(void *usr, uint32_t idx) {
     MTLaunchStruct *mtls = (MTLaunchStruct *)usr;
     RsExpandKernelDriverInfo fep = mtls->fep;
@@ -410,13 +600,8 @@ static void walk_2d(void *usr, uint32_t idx) {
     outer_foreach_t fn = (outer_foreach_t) mtls->kernel;
 
     while (1) {
-        uint32_t slice  = (uint32_t)__sync_fetch_and_add(&mtls->mSliceNum, 1);
-        uint32_t yStart = mtls->start.y + slice * mtls->mSliceSize;
-        uint32_t yEnd   = yStart + mtls->mSliceSize;
-
-        yEnd = rsMin(yEnd, mtls->end.y);
-
-        if (yEnd <= yStart) {
+        uint32_t yStart, yEnd;
+        if (!nextSlice(mtls, mtls->start.y, mtls->end.y, &yStart, &yEnd)) {
             return;
         }
 
@@ -435,13 +620,8 @@ static void walk_1d(void *usr, uint32_t idx) {
     outer_foreach_t fn = (outer_foreach_t) mtls->kernel;
 
     while (1) {
-        uint32_t slice  = (uint32_t)__sync_fetch_and_add(&mtls->mSliceNum, 1);
-        uint32_t xStart = mtls->start.x + slice * mtls->mSliceSize;
-        uint32_t xEnd   = xStart + mtls->mSliceSize;
-
-        xEnd = rsMin(xEnd, mtls->end.x);
-
-        if (xEnd <= xStart) {
+        uint32_t xStart, xEnd;
+        if (!nextSlice(mtls, mtls->start.x, mtls->end.x, &xStart, &xEnd)) {
             return;
         }
 
@@ -471,10 +651,25 @@ void RsdCpuReferenceImpl::launchThreads(const Allocation ** ains,
         const size_t targetByteChunk = 16 * 1024;
         mInForEach = true;
 
+        mtls->mGuided = !mRSC->props.mDebugStaticSlices;
+        mtls->mThreadCount = mWorkers.mCount + 1;
+        mtls->mCollectStats = mRSC->props.mLogScheduler;
+        if (mtls->mCollectStats) {
+            mtls->mSliceCount = 0;
+            mtls->mStatsStart = systemTime(SYSTEM_TIME_MONOTONIC);
+            mtls->mFirstIdle = 0;
+            mtls->mLastIdle = 0;
+        }
+
         if (outerDims) {
             // No fancy logic for chunk size
             mtls->mSliceSize = 1;
-            launchThreads(walk_general, mtls);
+            mtls->mGuided = false;
+            if (isSmallLaunch(mtls)) {
+                walk_general(mtls, 0);
+            } else {
+                launchThreads(walk_general, mtls);
+            }
         } else if (mtls->fep.dim.y > 1) {
             uint32_t s1 = mtls->fep.dim.y / ((mWorkers.mCount + 1) * 4);
             uint32_t s2 = 0;
@@ -518,10 +713,20 @@ void RsdCpuReferenceImpl::launchThreads(const Allocation ** ains,
                 mtls->mSliceSize = 1;
             }
 
-            launchThreads(walk_1d, mtls);
+            if (isSmallLaunch(mtls)) {
+                walk_1d(mtls, 0);
+            } else {
+                launchThreads(walk_1d, mtls);
+            }
         }
         mInForEach = false;
 
+        if (mtls->mCollectStats) {
+            ALOGD("forEach slot %u: %s slices, min size %u, %i slices, tail idle %.3f ms",
+                  mtls->fep.slot, mtls->mGuided ? "guided" : "static", mtls->mSliceSize,
+                  mtls->mSliceCount, (mtls->mLastIdle - mtls->mFirstIdle) / 1000.0);
+        }
+
     } else {
         outer_foreach_t fn = (outer_foreach_t) mtls->kernel;
         uint32_t slice = 0;
@@ -569,6 +774,12 @@ RsdCpuReference::CpuScript * RsdCpuReferenceImpl::createScript(const ScriptC *s,
                                     uint8_t const *bitcode, size_t bitcodeSize,
                                     uint32_t flags) {
 
+#ifndef RS_COMPATIBILITY_LIB
+    if (mPrecompiler) {
+        mPrecompiler->wait(resName, cacheDir);
+    }
+#endif
+
     RsdCpuScriptImpl *i = new RsdCpuScriptImpl(this, s);
     if (!i->init(resName, cacheDir, bitcode, bitcodeSize, flags
         , getBccPluginName()
@@ -579,6 +790,21 @@ RsdCpuReference::CpuScript * RsdCpuReferenceImpl::createScript(const ScriptC *s,
     return i;
 }
 
+bool RsdCpuReferenceImpl::precompileScript(char const *resName, char const *cacheDir,
+                                           uint8_t const *bitcode, size_t bitcodeSize,
+                                           PrecompileCallback cb, void *usr) {
+#ifndef RS_COMPATIBILITY_LIB
+    // Only the context thread creates scripts, so this needs no lock.
+    if (mPrecompiler == nullptr) {
+        mPrecompiler = new CpuPrecompiler(this);
+    }
+    mPrecompiler->add(resName, cacheDir, bitcode, bitcodeSize, cb, usr);
+    return true;
+#else
+    return false;
+#endif
+}
+
 extern RsdCpuScriptImpl * rsdIntrinsic_3DLUT(RsdCpuReferenceImpl *ctx,
                                              const Script *s, const Element *e);
 extern RsdCpuScriptImpl * rsdIntrinsic_Convolve3x3(RsdCpuReferenceImpl *ctx,
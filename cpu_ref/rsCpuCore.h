@@ -37,12 +37,16 @@ namespace renderscript {
 // Whether the CPU we're running on supports SIMD instructions
 extern bool gArchUseSIMD;
 
+// Whether the x86 intrinsics can use their AVX2 kernels
+extern bool gArchUseAVX2;
+
 typedef void (* InvokeFunc_t)(void);
 typedef void (* ForEachFunc_t)(void);
 typedef void (*WorkerCallback_t)(void *usr, uint32_t idx);
 
 class RsdCpuScriptImpl;
 class RsdCpuReferenceImpl;
+class CpuPrecompiler;
 
 struct ScriptTLSStruct {
     android::renderscript::Context * mContext;
@@ -61,10 +65,26 @@ struct MTLaunchStruct {
     const Allocation * ains[RS_KERNEL_INPUT_LIMIT];
     Allocation * aout[RS_KERNEL_INPUT_LIMIT];
 
+    // With static slicing every slice is mSliceSize long and mSliceNum is
+    // the index of the next slice.  With guided slicing mSliceSize is the
+    // smallest slice handed out and mSliceNum is the offset of the first
+    // unclaimed element along the sliced dimension.
     uint32_t mSliceSize;
     volatile int mSliceNum;
+    bool mGuided;
+    uint32_t mThreadCount;
     bool isThreadable;
 
+    // Scheduling statistics, only gathered when mCollectStats is set.
+    bool mCollectStats;
+    // The idle times are in microseconds after mStatsStart, plus one so
+    // that 0 means not yet set.  32 bits keep the updates lock free and
+    // the reads whole on 32 bit targets.
+    volatile int mSliceCount;
+    int64_t mStatsStart;
+    volatile uint32_t mFirstIdle;
+    volatile uint32_t mLastIdle;
+
     RsLaunchDimensions start;
     RsLaunchDimensions end;
 };
@@ -81,6 +101,8 @@ public:
     void setPriority(int32_t priority) override;
     virtual void launchThreads(WorkerCallback_t cbk, void *data);
     static void * helperThreadProc(void *vrsc);
+    void waitForLaunch(uint32_t idx, uint32_t *seenEpoch);
+    void waitForComplete();
     RsdCpuScriptImpl * setTLS(RsdCpuScriptImpl *sc);
 
     Context * getContext() {return mRSC;}
@@ -95,6 +117,9 @@ public:
                              uint8_t const *bitcode, size_t bitcodeSize, uint32_t flags) override;
     CpuScript * createIntrinsic(const Script *s, RsScriptIntrinsicID iid, Element *e) override;
     void* createScriptGroup(const ScriptGroupBase *sg) override;
+    bool precompileScript(char const *resName, char const *cacheDir,
+                          uint8_t const *bitcode, size_t bitcodeSize,
+                          PrecompileCallback cb, void *usr) override;
 
     const RsdCpuReference::CpuSymbol *symLookup(const char *);
 
@@ -133,6 +158,9 @@ public:
         return mBccPluginName.string();
     }
     bool getInForEach() override { return mInForEach; }
+    // For callers of launchThreads() running kernels themselves, so that
+    // nested launches from the kernels run serially as they do in a forEach.
+    void setInForEach(bool v) { mInForEach = v; }
 
     // Set to true if we should embed global variable information in the code.
     void setEmbedGlobalInfo(bool v) override {
@@ -173,6 +201,16 @@ protected:
         Signal *mLaunchSignals;
         WorkerCallback_t mLaunchCallback;
         void *mLaunchData;
+
+        // Spin wait mode (RS_CONTEXT_SPIN_WAIT).  Workers watch mLaunchEpoch
+        // for a short while after finishing a launch and only fall back to
+        // their launch signal once they have set their mParked entry.  The
+        // launcher likewise only signals workers that parked, and workers
+        // only signal completion when the launcher has parked.
+        bool mSpinWait;
+        volatile uint32_t mLaunchEpoch;
+        volatile int *mParked;
+        volatile int mLauncherParked;
     };
     Workers mWorkers;
     bool mExit;
@@ -195,6 +233,11 @@ protected:
     // when potentially embedding information about globals.
     // Defaults to true.
     bool mEmbedGlobalInfoSkipConstant;
+
+#ifndef RS_COMPATIBILITY_LIB
+    // Created by the first precompileScript() call.
+    CpuPrecompiler *mPrecompiler;
+#endif
 };
 
 
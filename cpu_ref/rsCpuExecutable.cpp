@@ -11,6 +11,11 @@
 #include <unistd.h>
 #else
 #include "bcc/Config/Config.h"
+#include <dirent.h>
+#include <sys/stat.h>
+#include <sys/time.h>
+#include <algorithm>
+#include <vector>
 #endif
 
 #include <dlfcn.h>
@@ -124,6 +129,84 @@ bool SharedLibraryUtils::createSharedLibrary(const char *driverName,
 
 }
 
+void SharedLibraryUtils::touchSharedLibrary(const char *cacheDir,
+                                            const char *resName) {
+    std::string sharedLibName = findSharedObjectName(cacheDir, resName);
+    utimes(sharedLibName.c_str(), nullptr);
+}
+
+String8 SharedLibraryUtils::getSharedLibraryPath(const char *cacheDir,
+                                                 const char *resName) {
+    return String8(findSharedObjectName(cacheDir, resName).c_str());
+}
+
+void SharedLibraryUtils::trimSharedLibraries(const char *cacheDir,
+                                             const char *prefix,
+                                             size_t maxBytes,
+                                             const char *keepResName) {
+    // Split the path of a library named prefix into its directory and the
+    // start of the file name, without the ".so".
+    std::string pattern = findSharedObjectName(cacheDir, prefix);
+    pattern.erase(pattern.length() - 3);
+    std::string dirName(".");
+    size_t slash = pattern.rfind('/');
+    if (slash != std::string::npos) {
+        dirName = pattern.substr(0, slash);
+        pattern.erase(0, slash + 1);
+    }
+    std::string keepName = findSharedObjectName(cacheDir, keepResName);
+
+    DIR *dir = opendir(dirName.c_str());
+    if (dir == nullptr) {
+        return;
+    }
+
+    struct CacheEntry {
+        time_t mtime;
+        size_t size;
+        std::string path;
+    };
+    std::vector<CacheEntry> entries;
+    size_t total = 0;
+
+    struct dirent *de;
+    while ((de = readdir(dir)) != nullptr) {
+        const size_t len = strlen(de->d_name);
+        if (strncmp(de->d_name, pattern.c_str(), pattern.length()) != 0 ||
+            len < 3 || strcmp(de->d_name + len - 3, ".so") != 0) {
+            continue;
+        }
+        std::string path = dirName + "/" + de->d_name;
+        struct stat st;
+        if (stat(path.c_str(), &st) != 0) {
+            continue;
+        }
+        total += st.st_size;
+        if (path != keepName) {
+            entries.push_back({st.st_mtime, (size_t)st.st_size, path});
+        }
+    }
+    closedir(dir);
+
+    std::sort(entries.begin(), entries.end(),
+              [](const CacheEntry& a, const CacheEntry& b) {
+                  return a.mtime < b.mtime;
+              });
+
+    for (const CacheEntry& e : entries) {
+        if (total <= maxBytes) {
+            break;
+        }
+        // Processes that already mapped the library keep their mapping.
+        if (unlink(e.path.c_str()) == 0) {
+            total -= e.size;
+            std::string keyPath(e.path);
+            keyPath.replace(keyPath.length() - 3, 3, ".key");
+            unlink(keyPath.c_str());
+        }
+    }
+}
+
 #endif  // RS_COMPATIBILITY_LIB
 
 const char* RsdCpuScriptImpl::BCC_EXE_PATH = "/system/bin/bcc";
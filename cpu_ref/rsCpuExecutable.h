@@ -32,6 +32,20 @@ public:
     static bool createSharedLibrary(const char* driverName,
                                     const char* cacheDir,
                                     const char* resName);
+
+    // Mark the shared library for resName as recently used, for
+    // trimSharedLibraries().
+    static void touchSharedLibrary(const char* cacheDir, const char* resName);
+
+    // Delete the least recently used shared libraries whose resName starts
+    // with prefix until they take at most maxBytes in total, along with the
+    // ".key" file kept next to each of them, if any.  The library for
+    // keepResName is never deleted.
+    static void trimSharedLibraries(const char* cacheDir, const char* prefix,
+                                    size_t maxBytes, const char* keepResName);
+
+    // Path of the shared library createSharedLibrary() builds for resName.
+    static String8 getSharedLibraryPath(const char* cacheDir, const char* resName);
 #endif
 
     // Load the shared library referred to by cacheDir and resName. If we have
@@ -83,7 +83,7 @@ void RsdCpuScriptIntrinsic3DLUT::kernel(const RsExpandKernelDriverInfo *info,
 
     //ALOGE("strides %zu %zu", stride_y, stride_z);
 
-#if defined(ARCH_ARM_USE_INTRINSICS)
+#if defined(ARCH_ARM_USE_INTRINSICS) || defined(ARCH_X86_HAVE_SSSE3)
     if (gArchUseSIMD) {
         int32_t len = x2 - x1;
         if(len > 0) {
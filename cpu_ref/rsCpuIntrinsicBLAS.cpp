@@ -18,6 +18,7 @@
 #include "rsCpuIntrinsic.h"
 #include "rsCpuIntrinsicInlines.h"
 #include "rsCpuBLASDispatch.h"
+#include "rsCpuBNNM.h"
 
 using namespace android;
 using namespace android::renderscript;
@@ -49,11 +50,11 @@ protected:
 #ifdef RS_COMPATIBILITY_LIB
     bool isBlasLibInitialized = false;
 #endif
-    static void kernelBNNM(size_t m, size_t n, size_t k,
-                           const uint8_t* a, uint8_t a_offset, size_t lda,
-                           const uint8_t* b, uint8_t b_offset, size_t ldb,
-                           uint8_t* c, int32_t c_offset, size_t ldc,
-                           int32_t c_mult_int);
+    void kernelBNNM(size_t m, size_t n, size_t k,
+                    const uint8_t* a, uint8_t a_offset, size_t lda,
+                    const uint8_t* b, uint8_t b_offset, size_t ldb,
+                    uint8_t* c, int32_t c_offset, size_t ldc,
+                    int32_t c_mult_int);
 
 
 
@@ -671,37 +672,26 @@ void RsdCpuScriptIntrinsicBLAS::kernelBNNM(size_t m, size_t n, size_t k,
                                            const uint8_t* b, uint8_t b_offset, size_t ldb,
                                            uint8_t* c, int32_t c_offset, size_t ldc,
                                            int32_t c_mult_int) {
-    // Calculations are done in 1.10.21 fixed-point format for the final output,
-    // just before there's a shift down to drop the fractional parts. The output
-    // values are gated to 0 to 255 to fit in a byte, but the 10-bit format
-    // gives some headroom to avoid wrapping around on small overflows.
-    const int c_shift = 21;
-    size_t i = 0, j = 0, l = 0;
-    for (j = 0; j < n; j++) {
-        for (i = 0; i < m; i++) {
-            int32_t total = 0;
-            for (l = 0; l < k; l++) {
-                const int a_index = ((i * lda) + l);
-                const uint8_t a_as_byte = a[a_index];
-                const int32_t a_as_int = (((int32_t)(a_as_byte)) - a_offset);
-                const int b_index = ((j * ldb) + l);
-                const uint8_t b_as_byte = b[b_index];
-                const int32_t b_as_int = (((int32_t)(b_as_byte)) - b_offset);
-                const int32_t mult_as_int = (a_as_int * b_as_int);
-                total += mult_as_int;
-            }
-            const int c_index = ((ldc * i) + j);
-            int32_t output =
-                ((((total + c_offset) * c_mult_int) + (1 << (c_shift - 1)))
-                 >> c_shift);
-            if (output > 255) {
-                output = 255;
-            }
-            if (output < 0) {
-                output = 0;
-            }
-            c[c_index] = (uint8_t)(output);
-        }
+    BNNMLaunchStruct bl;
+    bl.m = m;
+    bl.n = n;
+    bl.k = k;
+    bl.a = a;
+    bl.lda = lda;
+    bl.b = b;
+    bl.ldb = ldb;
+    bl.c = c;
+    bl.ldc = ldc;
+    bl.a_offset = a_offset;
+    bl.b_offset = b_offset;
+    bl.c_offset = c_offset;
+    bl.c_mult_int = c_mult_int;
+    rsdBNNMSetup(&bl);
+
+    if (mCtx->getThreadCount() > 1 && bl.tileCount > 1 && !mCtx->getInForEach()) {
+        mCtx->launchThreads(rsdBNNMWalk, &bl);
+    } else {
+        rsdBNNMWalk(&bl, 0);
     }
 }
 
@@ -14,6 +14,7 @@
  * limitations under the License.
  */
 
+#include "rsCpuBlurBox.h"
 #include "rsCpuIntrinsic.h"
 #include "rsCpuIntrinsicInlines.h"
 
@@ -32,6 +33,10 @@ public:
     void setGlobalVar(uint32_t slot, const void *data, size_t dataLength) override;
     void setGlobalObj(uint32_t slot, ObjectBase *data) override;
 
+    void preLaunch(uint32_t slot, const Allocation ** ains,
+                   uint32_t inLen, Allocation * aout, const void * usr,
+                   uint32_t usrLen, const RsScriptCall * sc) override;
+
     ~RsdCpuScriptIntrinsicBlur() override;
     RsdCpuScriptIntrinsicBlur(RsdCpuReferenceImpl *ctx, const Script *s, const Element *e);
 
@@ -42,6 +47,9 @@ protected:
     size_t *mScratchSize;
     float mRadius;
     int mIradius;
+    int mMode;
+    int mBoxRadius[3];
+    BlurBoxState *mBox;
     ObjectBaseRef<Allocation> mAlloc;
 
     static void kernelU4(const RsExpandKernelDriverInfo *info,
@@ -50,7 +58,12 @@ protected:
     static void kernelU1(const RsExpandKernelDriverInfo *info,
                          uint32_t xstart, uint32_t xend,
                          uint32_t outstep);
+    template <int C>
+    static void kernelBox(const RsExpandKernelDriverInfo *info,
+                          uint32_t xstart, uint32_t xend,
+                          uint32_t outstep);
     void ComputeGaussianWeights();
+    void selectKernel();
 };
 
 }
@@ -100,15 +113,50 @@ void RsdCpuScriptIntrinsicBlur::ComputeGaussianWeights() {
     }
 }
 
+void RsdCpuScriptIntrinsicBlur::selectKernel() {
+    mRootPtr = nullptr;
+    if (mElement->getType() == RS_TYPE_UNSIGNED_8) {
+        bool box = mMode == RS_BLUR_MODE_BOX;
+        switch (mElement->getVectorSize()) {
+        case 1:
+            mRootPtr = box ? &kernelBox<1> : &kernelU1;
+            break;
+        case 4:
+            mRootPtr = box ? &kernelBox<4> : &kernelU4;
+            break;
+        }
+    }
+}
+
 void RsdCpuScriptIntrinsicBlur::setGlobalObj(uint32_t slot, ObjectBase *data) {
     rsAssert(slot == 1);
     mAlloc.set(static_cast<Allocation *>(data));
 }
 
 void RsdCpuScriptIntrinsicBlur::setGlobalVar(uint32_t slot, const void *data, size_t dataLength) {
-    rsAssert(slot == 0);
-    mRadius = ((const float *)data)[0];
-    ComputeGaussianWeights();
+    switch (slot) {
+    case 0:
+        mRadius = ((const float *)data)[0];
+        ComputeGaussianWeights();
+        rsdBlurBoxRadii(mRadius, mBoxRadius);
+        break;
+    case 2:
+        mMode = ((const int32_t *)data)[0];
+        selectKernel();
+        break;
+    default:
+        rsAssert(0);
+    }
+}
+
+void RsdCpuScriptIntrinsicBlur::preLaunch(uint32_t slot, const Allocation ** ains,
+                                          uint32_t inLen, Allocation * aout,
+                                          const void * usr, uint32_t usrLen,
+                                          const RsScriptCall *sc) {
+    // The input or the radius may have changed since the last launch.
+    for (uint32_t i = 0; i < mCtx->getThreadCount(); i++) {
+        mBox[i].ready = false;
+    }
 }
 
 
@@ -354,7 +402,8 @@ void RsdCpuScriptIntrinsicBlur::kernelU4(const RsExpandKernelDriverInfo *info,
 void RsdCpuScriptIntrinsicBlur::kernelU1(const RsExpandKernelDriverInfo *info,
                                          uint32_t xstart, uint32_t xend,
                                          uint32_t outstep) {
-    float buf[4 * 2048];
+    float stackbuf[4 * 2048];
+    float *buf = &stackbuf[0];
     RsdCpuScriptIntrinsicBlur *cp = (RsdCpuScriptIntrinsicBlur *)info->usr;
     if (!cp->mAlloc.get()) {
         ALOGE("Blur executed without input, skipping");
@@ -375,7 +424,16 @@ void RsdCpuScriptIntrinsicBlur::kernelU1(const RsExpandKernelDriverInfo *info,
     }
 #endif
 
-    float *fout = (float *)buf;
+    if (info->dim.x > 4 * 2048) {
+        if ((info->dim.x > cp->mScratchSize[info->lid]) || !cp->mScratch[info->lid]) {
+            // Pad the side of the allocation by four units to allow alignment later
+            cp->mScratch[info->lid] = realloc(cp->mScratch[info->lid], (info->dim.x + 4) * 4);
+            cp->mScratchSize[info->lid] = info->dim.x;
+        }
+        // realloc only aligns to 8 bytes so we manually align to 16.
+        buf = (float *) ((((intptr_t)cp->mScratch[info->lid]) + 15) & ~0xf);
+    }
+    float *fout = buf;
     int y = info->current.y;
     if ((y > cp->mIradius) && (y < ((int)info->dim.y - cp->mIradius -1))) {
         const uchar *pi = pin + (y - cp->mIradius) * stride;
@@ -402,7 +460,7 @@ void RsdCpuScriptIntrinsicBlur::kernelU1(const RsExpandKernelDriverInfo *info,
             uint32_t len = x2 - (x1 + cp->mIradius);
             len &= ~3;
             if (len > 0) {
-                rsdIntrinsicBlurHFU1_K(out, ((float *)buf) - cp->mIradius, cp->mFp,
+                rsdIntrinsicBlurHFU1_K(out, buf - cp->mIradius, cp->mFp,
                                        cp->mIradius * 2 + 1, x1, x1 + len);
                 out += len;
                 x1 += len;
@@ -417,21 +475,30 @@ void RsdCpuScriptIntrinsicBlur::kernelU1(const RsExpandKernelDriverInfo *info,
     }
 }
 
+template <int C>
+void RsdCpuScriptIntrinsicBlur::kernelBox(const RsExpandKernelDriverInfo *info,
+                                          uint32_t xstart, uint32_t xend,
+                                          uint32_t outstep) {
+    RsdCpuScriptIntrinsicBlur *cp = (RsdCpuScriptIntrinsicBlur *)info->usr;
+    if (!cp->mAlloc.get()) {
+        ALOGE("Blur executed without input, skipping");
+        return;
+    }
+    const uchar *pin = (const uchar *)cp->mAlloc->mHal.drvState.lod[0].mallocPtr;
+    const size_t stride = cp->mAlloc->mHal.drvState.lod[0].stride;
+    if (!rsdBlurBoxRow(&cp->mBox[info->lid], C, (uchar *)info->outPtr[0], pin, stride,
+                       info->dim.x, info->dim.y, cp->mBoxRadius,
+                       info->current.y, xstart, xend)) {
+        ALOGE("Blur failed to allocate box scratch, skipping");
+    }
+}
+
 RsdCpuScriptIntrinsicBlur::RsdCpuScriptIntrinsicBlur(RsdCpuReferenceImpl *ctx,
                                                      const Script *s, const Element *e)
             : RsdCpuScriptIntrinsic(ctx, s, e, RS_SCRIPT_INTRINSIC_ID_BLUR) {
 
-    mRootPtr = nullptr;
-    if (e->getType() == RS_TYPE_UNSIGNED_8) {
-        switch (e->getVectorSize()) {
-        case 1:
-            mRootPtr = &kernelU1;
-            break;
-        case 4:
-            mRootPtr = &kernelU4;
-            break;
-        }
-    }
+    mMode = RS_BLUR_MODE_GAUSSIAN;
+    selectKernel();
     rsAssert(mRootPtr);
     mRadius = 5;
 
@@ -440,7 +507,11 @@ RsdCpuScriptIntrinsicBlur::RsdCpuScriptIntrinsicBlur(RsdCpuReferenceImpl *ctx,
     memset(mScratch, 0, sizeof(void *) * mCtx->getThreadCount());
     memset(mScratchSize, 0, sizeof(size_t) * mCtx->getThreadCount());
 
+    mBox = new BlurBoxState[mCtx->getThreadCount()];
+    memset(mBox, 0, sizeof(BlurBoxState) * mCtx->getThreadCount());
+
     ComputeGaussianWeights();
+    rsdBlurBoxRadii(mRadius, mBoxRadius);
 }
 
 RsdCpuScriptIntrinsicBlur::~RsdCpuScriptIntrinsicBlur() {
@@ -456,10 +527,14 @@ RsdCpuScriptIntrinsicBlur::~RsdCpuScriptIntrinsicBlur() {
     if (mScratchSize) {
         delete []mScratchSize;
     }
+    for (size_t i = 0; i < threads; i++) {
+        free(mBox[i].mem);
+    }
+    delete []mBox;
 }
 
 void RsdCpuScriptIntrinsicBlur::populateScript(Script *s) {
-    s->mHal.info.exportedVariableCount = 2;
+    s->mHal.info.exportedVariableCount = 3;
 }
 
 void RsdCpuScriptIntrinsicBlur::invokeFreeChildren() {
@@ -32,6 +32,7 @@ public:
 
     void setGlobalVar(uint32_t slot, const void *data, size_t dataLength) override;
     void setGlobalObj(uint32_t slot, ObjectBase *data) override;
+    int getKernelInputHalo(uint32_t slot, uint32_t fieldSlot) const override;
 
     ~RsdCpuScriptIntrinsicConvolve3x3() override;
     RsdCpuScriptIntrinsicConvolve3x3(RsdCpuReferenceImpl *ctx, const Script *s, const Element *);
@@ -71,6 +72,10 @@ void RsdCpuScriptIntrinsicConvolve3x3::setGlobalObj(uint32_t slot, ObjectBase *d
     mAlloc.set(static_cast<Allocation *>(data));
 }
 
+int RsdCpuScriptIntrinsicConvolve3x3::getKernelInputHalo(uint32_t slot, uint32_t fieldSlot) const {
+    return fieldSlot == 1 ? 1 : -1;
+}
+
 void RsdCpuScriptIntrinsicConvolve3x3::setGlobalVar(uint32_t slot, const void *data,
                                                     size_t dataLength) {
     rsAssert(slot == 0);
@@ -32,6 +32,7 @@ public:
 
     void setGlobalVar(uint32_t slot, const void *data, size_t dataLength) override;
     void setGlobalObj(uint32_t slot, ObjectBase *data) override;
+    int getKernelInputHalo(uint32_t slot, uint32_t fieldSlot) const override;
 
     ~RsdCpuScriptIntrinsicConvolve5x5() override;
     RsdCpuScriptIntrinsicConvolve5x5(RsdCpuReferenceImpl *ctx, const Script *s, const Element *e);
@@ -72,6 +73,10 @@ void RsdCpuScriptIntrinsicConvolve5x5::setGlobalObj(uint32_t slot, ObjectBase *d
     alloc.set(static_cast<Allocation *>(data));
 }
 
+int RsdCpuScriptIntrinsicConvolve5x5::getKernelInputHalo(uint32_t slot, uint32_t fieldSlot) const {
+    return fieldSlot == 1 ? 2 : -1;
+}
+
 void RsdCpuScriptIntrinsicConvolve5x5::setGlobalVar(uint32_t slot,
                                                     const void *data, size_t dataLength) {
     rsAssert(slot == 0);
@@ -17,9 +17,20 @@
 #include "rsCpuIntrinsic.h"
 #include "rsCpuIntrinsicInlines.h"
 
+#include <malloc.h>
+
 using namespace android;
 using namespace android::renderscript;
 
+// Each thread counts into its own sub-histogram.  256 bins of up to four
+// channels make a whole number of cache lines, so with the array aligned
+// no two threads ever write the same line.
+static const uint32_t kThreadSums = 256 * 4;
+static const size_t kCacheLine = 64;
+
+// Bins merged per claim in postLaunch(), a few cache lines of each thread.
+static const uint32_t kMergeChunk = 64;
+
 namespace android {
 namespace renderscript {
 
@@ -49,6 +60,23 @@ protected:
     int *mSums;
     ObjectBaseRef<Allocation> mAllocOut;
 
+    // Set through slot 2.  When accumulating, every launch adds to
+    // mTotals, which is what gets written to the output; setting the slot
+    // again clears them.
+    bool mAccumulate;
+    uint32_t mTotals[256 * 4];
+    // Kernel slot and bin count mTotals was accumulated with, mTotalsBins
+    // is 0 while it holds nothing.
+    uint32_t mTotalsSlot;
+    uint32_t mTotalsBins;
+
+    // State of the merge running in postLaunch().
+    uint32_t mMergeBins;
+    volatile int mMergeNext;
+    unsigned int *mMergeOut;
+
+    static void mergeSums(void *usr, uint32_t idx);
+
     static void kernelP1U4(const RsExpandKernelDriverInfo *info,
                            uint32_t xstart, uint32_t xend,
                            uint32_t outstep);
@@ -86,6 +114,14 @@ void RsdCpuScriptIntrinsicHistogram::setGlobalObj(uint32_t slot, ObjectBase *dat
 }
 
 void RsdCpuScriptIntrinsicHistogram::setGlobalVar(uint32_t slot, const void *data, size_t dataLength) {
+    if (slot == 2) {
+        rsAssert(dataLength == 4);
+        mAccumulate = ((const int32_t *)data)[0] != 0;
+        memset(mTotals, 0, sizeof(mTotals));
+        mTotalsBins = 0;
+        return;
+    }
+
     rsAssert(slot == 0);
     rsAssert(dataLength == 16);
     memcpy(mDot, data, 16);
@@ -104,7 +140,6 @@ RsdCpuScriptIntrinsicHistogram::preLaunch(uint32_t slot,
                                           const void * usr, uint32_t usrLen,
                                           const RsScriptCall *sc) {
 
-    const uint32_t threads = mCtx->getThreadCount();
     uint32_t vSize = mAllocOut->getType()->getElement()->getVectorSize();
 
     switch (slot) {
@@ -140,9 +175,52 @@ RsdCpuScriptIntrinsicHistogram::preLaunch(uint32_t slot,
             mRootPtr = &kernelP1L4;
             break;
         }
+        vSize = 1;
         break;
     }
-    memset(mSums, 0, 256 * sizeof(int32_t) * threads * vSize);
+
+    // The sub-histograms are left cleared by the previous merge.
+    mMergeBins = 256 * vSize;
+
+    // forEach and forEach_dot lay the totals out differently, start over
+    // rather than add one layout into the other.
+    if (mAccumulate && (slot != mTotalsSlot || mMergeBins != mTotalsBins)) {
+        memset(mTotals, 0, sizeof(mTotals));
+        mTotalsSlot = slot;
+        mTotalsBins = mMergeBins;
+    }
+}
+
+// Each claim sums a chunk of bins over all the threads and clears them for
+// the next launch.
+void RsdCpuScriptIntrinsicHistogram::mergeSums(void *usr, uint32_t idx) {
+    RsdCpuScriptIntrinsicHistogram *cp = (RsdCpuScriptIntrinsicHistogram *)usr;
+    const uint32_t threads = cp->mCtx->getThreadCount();
+
+    while (1) {
+        uint32_t start = (uint32_t)__sync_fetch_and_add(&cp->mMergeNext, kMergeChunk);
+        if (start >= cp->mMergeBins) {
+            return;
+        }
+        uint32_t count = rsMin(kMergeChunk, cp->mMergeBins - start);
+        unsigned int *o = cp->mMergeOut + start;
+
+        if (cp->mAccumulate) {
+            memcpy(o, cp->mTotals + start, count * sizeof(uint32_t));
+        } else {
+            memset(o, 0, count * sizeof(uint32_t));
+        }
+        for (uint32_t t = 0; t < threads; t++) {
+            int *sums = &cp->mSums[start + kThreadSums * t];
+            for (uint32_t ct = 0; ct < count; ct++) {
+                o[ct] += sums[ct];
+                sums[ct] = 0;
+            }
+        }
+        if (cp->mAccumulate) {
+            memcpy(cp->mTotals + start, o, count * sizeof(uint32_t));
+        }
+    }
 }
 
 void
@@ -152,17 +230,13 @@ RsdCpuScriptIntrinsicHistogram::postLaunch(uint32_t slot,
                                            const void * usr, uint32_t usrLen,
                                            const RsScriptCall *sc) {
 
-    unsigned int *o = (unsigned int *)mAllocOut->mHal.drvState.lod[0].mallocPtr;
-    uint32_t threads = mCtx->getThreadCount();
-    uint32_t vSize = mAllocOut->getType()->getElement()->getVectorSize();
-
-    if (vSize == 3) vSize = 4;
+    mMergeOut = (unsigned int *)mAllocOut->mHal.drvState.lod[0].mallocPtr;
+    mMergeNext = 0;
 
-    for (uint32_t ct=0; ct < (256 * vSize); ct++) {
-        o[ct] = mSums[ct];
-        for (uint32_t t=1; t < threads; t++) {
-            o[ct] += mSums[ct + (256 * vSize * t)];
-        }
+    if (mCtx->getThreadCount() > 1 && !mCtx->getInForEach()) {
+        mCtx->launchThreads(mergeSums, this);
+    } else {
+        mergeSums(this, 0);
     }
 }
 
@@ -172,7 +246,7 @@ void RsdCpuScriptIntrinsicHistogram::kernelP1U4(const RsExpandKernelDriverInfo *
 
     RsdCpuScriptIntrinsicHistogram *cp = (RsdCpuScriptIntrinsicHistogram *)info->usr;
     uchar *in = (uchar *)info->inPtr[0];
-    int * sums = &cp->mSums[256 * 4 * info->lid];
+    int * sums = &cp->mSums[kThreadSums * info->lid];
 
     for (uint32_t x = xstart; x < xend; x++) {
         sums[(in[0] << 2)    ] ++;
@@ -189,7 +263,7 @@ void RsdCpuScriptIntrinsicHistogram::kernelP1U3(const RsExpandKernelDriverInfo *
 
     RsdCpuScriptIntrinsicHistogram *cp = (RsdCpuScriptIntrinsicHistogram *)info->usr;
     uchar *in = (uchar *)info->inPtr[0];
-    int * sums = &cp->mSums[256 * 4 * info->lid];
+    int * sums = &cp->mSums[kThreadSums * info->lid];
 
     for (uint32_t x = xstart; x < xend; x++) {
         sums[(in[0] << 2)    ] ++;
@@ -205,7 +279,7 @@ void RsdCpuScriptIntrinsicHistogram::kernelP1U2(const RsExpandKernelDriverInfo *
 
     RsdCpuScriptIntrinsicHistogram *cp = (RsdCpuScriptIntrinsicHistogram *)info->usr;
     uchar *in = (uchar *)info->inPtr[0];
-    int * sums = &cp->mSums[256 * 2 * info->lid];
+    int * sums = &cp->mSums[kThreadSums * info->lid];
 
     for (uint32_t x = xstart; x < xend; x++) {
         sums[(in[0] << 1)    ] ++;
@@ -220,7 +294,7 @@ void RsdCpuScriptIntrinsicHistogram::kernelP1L4(const RsExpandKernelDriverInfo *
 
     RsdCpuScriptIntrinsicHistogram *cp = (RsdCpuScriptIntrinsicHistogram *)info->usr;
     uchar *in = (uchar *)info->inPtr[0];
-    int * sums = &cp->mSums[256 * info->lid];
+    int * sums = &cp->mSums[kThreadSums * info->lid];
 
     for (uint32_t x = xstart; x < xend; x++) {
         int t = (cp->mDotI[0] * in[0]) +
@@ -238,7 +312,7 @@ void RsdCpuScriptIntrinsicHistogram::kernelP1L3(const RsExpandKernelDriverInfo *
 
     RsdCpuScriptIntrinsicHistogram *cp = (RsdCpuScriptIntrinsicHistogram *)info->usr;
     uchar *in = (uchar *)info->inPtr[0];
-    int * sums = &cp->mSums[256 * info->lid];
+    int * sums = &cp->mSums[kThreadSums * info->lid];
 
     for (uint32_t x = xstart; x < xend; x++) {
         int t = (cp->mDotI[0] * in[0]) +
@@ -255,7 +329,7 @@ void RsdCpuScriptIntrinsicHistogram::kernelP1L2(const RsExpandKernelDriverInfo *
 
     RsdCpuScriptIntrinsicHistogram *cp = (RsdCpuScriptIntrinsicHistogram *)info->usr;
     uchar *in = (uchar *)info->inPtr[0];
-    int * sums = &cp->mSums[256 * info->lid];
+    int * sums = &cp->mSums[kThreadSums * info->lid];
 
     for (uint32_t x = xstart; x < xend; x++) {
         int t = (cp->mDotI[0] * in[0]) +
@@ -271,7 +345,7 @@ void RsdCpuScriptIntrinsicHistogram::kernelP1L1(const RsExpandKernelDriverInfo *
 
     RsdCpuScriptIntrinsicHistogram *cp = (RsdCpuScriptIntrinsicHistogram *)info->usr;
     uchar *in = (uchar *)info->inPtr[0];
-    int * sums = &cp->mSums[256 * info->lid];
+    int * sums = &cp->mSums[kThreadSums * info->lid];
 
     for (uint32_t x = xstart; x < xend; x++) {
         int t = (cp->mDotI[0] * in[0]);
@@ -286,7 +360,7 @@ void RsdCpuScriptIntrinsicHistogram::kernelP1U1(const RsExpandKernelDriverInfo *
 
     RsdCpuScriptIntrinsicHistogram *cp = (RsdCpuScriptIntrinsicHistogram *)info->usr;
     uchar *in = (uchar *)info->inPtr[0];
-    int * sums = &cp->mSums[256 * info->lid];
+    int * sums = &cp->mSums[kThreadSums * info->lid];
 
     for (uint32_t x = xstart; x < xend; x++) {
         sums[in[0]] ++;
@@ -300,7 +374,16 @@ RsdCpuScriptIntrinsicHistogram::RsdCpuScriptIntrinsicHistogram(RsdCpuReferenceIm
             : RsdCpuScriptIntrinsic(ctx, s, e, RS_SCRIPT_INTRINSIC_ID_HISTOGRAM) {
 
     mRootPtr = nullptr;
-    mSums = new int[256 * 4 * mCtx->getThreadCount()];
+    size_t sumsSize = kThreadSums * sizeof(int) * mCtx->getThreadCount();
+    mSums = (int *)memalign(kCacheLine, sumsSize);
+    memset(mSums, 0, sumsSize);
+    mAccumulate = false;
+    memset(mTotals, 0, sizeof(mTotals));
+    mTotalsSlot = 0;
+    mTotalsBins = 0;
+    mMergeBins = 0;
+    mMergeNext = 0;
+    mMergeOut = nullptr;
     mDot[0] = 0.299f;
     mDot[1] = 0.587f;
     mDot[2] = 0.114f;
@@ -312,13 +395,11 @@ RsdCpuScriptIntrinsicHistogram::RsdCpuScriptIntrinsicHistogram(RsdCpuReferenceIm
 }
 
 RsdCpuScriptIntrinsicHistogram::~RsdCpuScriptIntrinsicHistogram() {
-    if (mSums) {
-        delete []mSums;
-    }
+    free(mSums);
 }
 
 void RsdCpuScriptIntrinsicHistogram::populateScript(Script *s) {
-    s->mHal.info.exportedVariableCount = 2;
+    s->mHal.info.exportedVariableCount = 3;
 }
 
 void RsdCpuScriptIntrinsicHistogram::invokeFreeChildren() {
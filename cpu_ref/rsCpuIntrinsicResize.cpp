@@ -18,6 +18,10 @@
 #include "rsCpuIntrinsic.h"
 #include "rsCpuIntrinsicInlines.h"
 
+#if defined(ARCH_X86_HAVE_SSSE3)
+#include "rsCpuIntrinsics_x86.h"
+#endif
+
 using namespace android;
 using namespace android::renderscript;
 
@@ -367,6 +371,12 @@ void RsdCpuScriptIntrinsicResize::kernelU4(const RsExpandKernelDriverInfo *info,
         out += len;
         x1 += len;
     }
+#elif defined(ARCH_X86_HAVE_SSSE3)
+    if (gArchUseSIMD && x2 > x1) {
+        rsdIntrinsicResizeU4_K(out, yp0, yp1, yp2, yp3, x1, x2, cp->scaleX, yf, srcWidth);
+        out += x2 - x1;
+        x1 = x2;
+    }
 #endif
 
     while(x1 < x2) {
@@ -434,6 +444,12 @@ void RsdCpuScriptIntrinsicResize::kernelU2(const RsExpandKernelDriverInfo *info,
         out += len;
         x1 += len;
     }
+#elif defined(ARCH_X86_HAVE_SSSE3)
+    if (gArchUseSIMD && x2 > x1) {
+        rsdIntrinsicResizeU2_K(out, yp0, yp1, yp2, yp3, x1, x2, cp->scaleX, yf, srcWidth);
+        out += x2 - x1;
+        x1 = x2;
+    }
 #endif
 
     while(x1 < x2) {
@@ -501,6 +517,12 @@ void RsdCpuScriptIntrinsicResize::kernelU1(const RsExpandKernelDriverInfo *info,
         out += len;
         x1 += len;
     }
+#elif defined(ARCH_X86_HAVE_SSSE3)
+    if (gArchUseSIMD && x2 > x1) {
+        rsdIntrinsicResizeU1_K(out, yp0, yp1, yp2, yp3, x1, x2, cp->scaleX, yf, srcWidth);
+        out += x2 - x1;
+        x1 = x2;
+    }
 #endif
 
     while(x1 < x2) {
@@ -38,17 +38,33 @@ public:
     void populateScript(Script *) override;
     void invokeFreeChildren() override;
 
+    void setGlobalVar(uint32_t slot, const void *data, size_t dataLength) override;
     void setGlobalObj(uint32_t slot, ObjectBase *data) override;
 
+    void preLaunch(uint32_t slot, const Allocation ** ains,
+                   uint32_t inLen, Allocation * aout, const void * usr,
+                   uint32_t usrLen, const RsScriptCall * sc) override;
+
     ~RsdCpuScriptIntrinsicYuvToRGB() override;
     RsdCpuScriptIntrinsicYuvToRGB(RsdCpuReferenceImpl *ctx, const Script *s, const Element *e);
 
 protected:
     ObjectBaseRef<Allocation> alloc;
 
+    RsYuvToRGBTransform mTransform;
+    // Set by preLaunch() when the launch needs more than a 1:1 conversion,
+    // along with the crop clamped to the input and the scale from output to
+    // input pixels in 16.16 fixed point.
+    bool mResample;
+    int32_t mCrop[4];
+    int32_t mScaleX;
+    int32_t mScaleY;
+
     static void kernel(const RsExpandKernelDriverInfo *info,
                        uint32_t xstart, uint32_t xend,
                        uint32_t outstep);
+    static void kernelResample(const RsExpandKernelDriverInfo *info,
+                               uint32_t xstart, uint32_t xend);
 };
 
 }
@@ -60,6 +76,51 @@ void RsdCpuScriptIntrinsicYuvToRGB::setGlobalObj(uint32_t slot, ObjectBase *data
     alloc.set(static_cast<Allocation *>(data));
 }
 
+void RsdCpuScriptIntrinsicYuvToRGB::setGlobalVar(uint32_t slot, const void *data,
+                                                 size_t dataLength) {
+    rsAssert(slot == 1);
+    rsAssert(dataLength == sizeof(RsYuvToRGBTransform));
+    memcpy(&mTransform, data, sizeof(mTransform));
+}
+
+void RsdCpuScriptIntrinsicYuvToRGB::preLaunch(uint32_t slot, const Allocation ** ains,
+                                              uint32_t inLen, Allocation * aout,
+                                              const void * usr, uint32_t usrLen,
+                                              const RsScriptCall *sc) {
+    mResample = false;
+    if (!alloc.get() || !aout) {
+        return;
+    }
+
+    // Legacy YUV allocations carry no height, so they only convert 1:1.
+    const int32_t inX = alloc->mHal.drvState.lod[0].dimX;
+    const int32_t inY = alloc->mHal.drvState.lod[0].dimY;
+    if (!inY || !alloc->mHal.drvState.lod[1].mallocPtr) {
+        return;
+    }
+
+    int32_t x = rsMin(mTransform.cropX, inX - 1);
+    int32_t y = rsMin(mTransform.cropY, inY - 1);
+    int32_t w = mTransform.cropWidth ? mTransform.cropWidth : inX;
+    int32_t h = mTransform.cropHeight ? mTransform.cropHeight : inY;
+    mCrop[0] = x;
+    mCrop[1] = y;
+    mCrop[2] = rsMin(w, inX - x);
+    mCrop[3] = rsMin(h, inY - y);
+
+    // Size of the output before the rotation.
+    const bool swap = mTransform.rotation == 90 || mTransform.rotation == 270;
+    const int32_t outX = aout->mHal.drvState.lod[0].dimX;
+    const int32_t outY = rsMax(aout->mHal.drvState.lod[0].dimY, 1U);
+    const int32_t uw = swap ? outY : outX;
+    const int32_t uh = swap ? outX : outY;
+
+    mResample = mTransform.rotation || mCrop[0] || mCrop[1] ||
+                mCrop[2] != uw || mCrop[3] != uh;
+    mScaleX = (int32_t)(((int64_t)mCrop[2] << 16) / uw);
+    mScaleY = (int32_t)(((int64_t)mCrop[3] << 16) / uh);
+}
+
 
 
 
@@ -97,6 +158,156 @@ static uchar4 rsYuvToRGBA_uchar4(uchar y, uchar u, uchar v) {
 }
 
 
+// The planes of a YUV input, with the chroma of the legacy layout filled in.
+struct YuvPlanes {
+    const uchar *y;
+    const uchar *u;
+    const uchar *v;
+    size_t strideY;
+    size_t strideU;
+    size_t strideV;
+    size_t cstep;
+    int32_t width;
+    int32_t height;
+};
+
+static void GetPlanes(const Allocation *alloc, YuvPlanes *p) {
+    p->y = (const uchar *)alloc->mHal.drvState.lod[0].mallocPtr;
+    p->u = (const uchar *)alloc->mHal.drvState.lod[1].mallocPtr;
+    p->v = (const uchar *)alloc->mHal.drvState.lod[2].mallocPtr;
+    p->strideY = alloc->mHal.drvState.lod[0].stride;
+    p->strideU = alloc->mHal.drvState.lod[1].stride;
+    p->strideV = alloc->mHal.drvState.lod[2].stride;
+    p->cstep = alloc->mHal.drvState.yuv.step;
+    p->width = alloc->mHal.drvState.lod[0].dimX;
+    p->height = alloc->mHal.drvState.lod[0].dimY;
+}
+
+// Bilinear sample at a 16.16 position in luma pixels.  The chroma planes
+// are sampled at the same point, with their samples centered between two
+// luma pixels, and the interpolated YUV is converted once.
+static uchar4 SampleBilinear(const YuvPlanes &p, int32_t sx, int32_t sy) {
+    const int32_t cw = (p.width + 1) >> 1;
+    const int32_t ch = (p.height + 1) >> 1;
+    int32_t cx = rsMin(rsMax((sx - 0x8000) >> 1, 0), (cw - 1) << 16);
+    int32_t cy = rsMin(rsMax((sy - 0x8000) >> 1, 0), (ch - 1) << 16);
+    sx = rsMin(rsMax(sx, 0), (p.width - 1) << 16);
+    sy = rsMin(rsMax(sy, 0), (p.height - 1) << 16);
+
+    int32_t x0 = sx >> 16;
+    int32_t y0 = sy >> 16;
+    int32_t x1 = rsMin(x0 + 1, p.width - 1);
+    int32_t y1 = rsMin(y0 + 1, p.height - 1);
+    int32_t fx = (sx >> 8) & 0xff;
+    int32_t fy = (sy >> 8) & 0xff;
+    const uchar *r0 = p.y + y0 * p.strideY;
+    const uchar *r1 = p.y + y1 * p.strideY;
+    int32_t t0 = r0[x0] * (256 - fx) + r0[x1] * fx;
+    int32_t t1 = r1[x0] * (256 - fx) + r1[x1] * fx;
+    uchar Y = (t0 * (256 - fy) + t1 * fy + 0x8000) >> 16;
+
+    x0 = cx >> 16;
+    y0 = cy >> 16;
+    x1 = rsMin(x0 + 1, cw - 1) * p.cstep;
+    y1 = rsMin(y0 + 1, ch - 1);
+    x0 *= p.cstep;
+    fx = (cx >> 8) & 0xff;
+    fy = (cy >> 8) & 0xff;
+    const uchar *u0 = p.u + y0 * p.strideU;
+    const uchar *u1 = p.u + y1 * p.strideU;
+    const uchar *v0 = p.v + y0 * p.strideV;
+    const uchar *v1 = p.v + y1 * p.strideV;
+    t0 = u0[x0] * (256 - fx) + u0[x1] * fx;
+    t1 = u1[x0] * (256 - fx) + u1[x1] * fx;
+    uchar U = (t0 * (256 - fy) + t1 * fy + 0x8000) >> 16;
+    t0 = v0[x0] * (256 - fx) + v0[x1] * fx;
+    t1 = v1[x0] * (256 - fx) + v1[x1] * fx;
+    uchar V = (t0 * (256 - fy) + t1 * fy + 0x8000) >> 16;
+
+    return rsYuvToRGBA_uchar4(Y, U, V);
+}
+
+// Average of the luma pixels in [x0, x1) x [y0, y1) and of the chroma
+// samples covering them.
+static uchar4 SampleBox(const YuvPlanes &p, int32_t x0, int32_t y0, int32_t x1, int32_t y1) {
+    uint32_t sum = 0;
+    for (int32_t y = y0; y < y1; y++) {
+        const uchar *row = p.y + y * p.strideY;
+        for (int32_t x = x0; x < x1; x++) {
+            sum += row[x];
+        }
+    }
+    uint32_t n = (x1 - x0) * (y1 - y0);
+    uchar Y = (sum + (n >> 1)) / n;
+
+    int32_t cx0 = x0 >> 1;
+    int32_t cx1 = ((x1 - 1) >> 1) + 1;
+    int32_t cy0 = y0 >> 1;
+    int32_t cy1 = ((y1 - 1) >> 1) + 1;
+    uint32_t sumU = 0;
+    uint32_t sumV = 0;
+    for (int32_t y = cy0; y < cy1; y++) {
+        const uchar *u = p.u + y * p.strideU;
+        const uchar *v = p.v + y * p.strideV;
+        for (int32_t x = cx0; x < cx1; x++) {
+            sumU += u[x * p.cstep];
+            sumV += v[x * p.cstep];
+        }
+    }
+    n = (cx1 - cx0) * (cy1 - cy0);
+    uchar U = (sumU + (n >> 1)) / n;
+    uchar V = (sumV + (n >> 1)) / n;
+
+    return rsYuvToRGBA_uchar4(Y, U, V);
+}
+
+// One output row of a cropped, rotated or scaled conversion.  Output pixel
+// x of the row comes from pixel (ux, uy) of the output before rotation,
+// with both coordinates linear in x.
+void RsdCpuScriptIntrinsicYuvToRGB::kernelResample(const RsExpandKernelDriverInfo *info,
+                                                   uint32_t xstart, uint32_t xend) {
+    RsdCpuScriptIntrinsicYuvToRGB *cp = (RsdCpuScriptIntrinsicYuvToRGB *)info->usr;
+    YuvPlanes p;
+    GetPlanes(cp->alloc.get(), &p);
+
+    const int32_t oy = info->current.y;
+    const bool swap = cp->mTransform.rotation == 90 || cp->mTransform.rotation == 270;
+    const int32_t uw = swap ? rsMax(info->dim.y, 1U) : info->dim.x;
+    const int32_t uh = swap ? info->dim.x : rsMax(info->dim.y, 1U);
+
+    int32_t ax = 1, bx = 0, ay = 0, by = oy;
+    switch (cp->mTransform.rotation) {
+    case 90:
+        ax = 0; bx = oy; ay = -1; by = uh - 1;
+        break;
+    case 180:
+        ax = -1; bx = uw - 1; ay = 0; by = uh - 1 - oy;
+        break;
+    case 270:
+        ax = 0; bx = uw - 1 - oy; ay = 1; by = 0;
+        break;
+    }
+
+    const int32_t *crop = cp->mCrop;
+    uchar4 *out = (uchar4 *)info->outPtr[0];
+    for (int32_t x = xstart; x < (int32_t)xend; x++) {
+        int32_t ux = ax * x + bx;
+        int32_t uy = ay * x + by;
+        if (cp->mTransform.filter == RS_YUV_FILTER_BOX) {
+            int32_t x0 = crop[0] + (int32_t)(((int64_t)ux * crop[2]) / uw);
+            int32_t x1 = crop[0] + (int32_t)(((int64_t)(ux + 1) * crop[2]) / uw);
+            int32_t y0 = crop[1] + (int32_t)(((int64_t)uy * crop[3]) / uh);
+            int32_t y1 = crop[1] + (int32_t)(((int64_t)(uy + 1) * crop[3]) / uh);
+            *out = SampleBox(p, x0, y0, rsMax(x1, x0 + 1), rsMax(y1, y0 + 1));
+        } else {
+            int32_t sx = (crop[0] << 16) + ux * cp->mScaleX + (cp->mScaleX >> 1) - 0x8000;
+            int32_t sy = (crop[1] << 16) + uy * cp->mScaleY + (cp->mScaleY >> 1) - 0x8000;
+            *out = SampleBilinear(p, sx, sy);
+        }
+        out++;
+    }
+}
+
 extern "C" void rsdIntrinsicYuv_K(void *dst, const uchar *Y, const uchar *uv, uint32_t xstart, size_t xend);
 extern "C" void rsdIntrinsicYuvR_K(void *dst, const uchar *Y, const uchar *uv, uint32_t xstart, size_t xend);
 extern "C" void rsdIntrinsicYuv2_K(void *dst, const uchar *Y, const uchar *u, const uchar *v, size_t xstart, size_t xend);
@@ -114,6 +325,10 @@ void RsdCpuScriptIntrinsicYuvToRGB::kernel(const RsExpandKernelDriverInfo *info,
         ALOGE("YuvToRGB executed without data, skipping");
         return;
     }
+    if (cp->mResample) {
+        kernelResample(info, xstart, xend);
+        return;
+    }
 
     size_t strideY = cp->alloc->mHal.drvState.lod[0].stride;
 
@@ -207,13 +422,15 @@ RsdCpuScriptIntrinsicYuvToRGB::RsdCpuScriptIntrinsicYuvToRGB(
             : RsdCpuScriptIntrinsic(ctx, s, e, RS_SCRIPT_INTRINSIC_ID_YUV_TO_RGB) {
 
     mRootPtr = &kernel;
+    memset(&mTransform, 0, sizeof(mTransform));
+    mResample = false;
 }
 
 RsdCpuScriptIntrinsicYuvToRGB::~RsdCpuScriptIntrinsicYuvToRGB() {
 }
 
 void RsdCpuScriptIntrinsicYuvToRGB::populateScript(Script *s) {
-    s->mHal.info.exportedVariableCount = 1;
+    s->mHal.info.exportedVariableCount = 2;
 }
 
 void RsdCpuScriptIntrinsicYuvToRGB::invokeFreeChildren() {
@@ -14,9 +14,14 @@
  * limitations under the License.
  */
 
+#include <math.h>
 #include <stdint.h>
 #include <x86intrin.h>
 
+#include "rsCpuIntrinsics_x86.h"
+
+using android::renderscript::gArchUseAVX2;
+
 /* Unsigned extend packed 8-bit integer (in LBS) into packed 32-bit integer */
 static inline __m128i cvtepu8_epi32(__m128i x) {
 #if defined(__SSE4_1__)
@@ -76,7 +81,7 @@ static inline __m128i blendv_epi8(__m128i x, __m128i y, __m128i mask) {
 #endif
 }
 
-extern "C" void rsdIntrinsicConvolve3x3_K(void *dst, const void *y0,
+extern "C" void rsdIntrinsicConvolve3x3_SSSE3_K(void *dst, const void *y0,
                                           const void *y1, const void *y2,
                                           const short *coef, uint32_t count) {
     __m128i x;
@@ -300,7 +305,7 @@ void rsdIntrinsicColorMatrixDot_K(void *dst, const void *src,
     }
 }
 
-void rsdIntrinsicBlurVFU4_K(void *dst,
+void rsdIntrinsicBlurVFU4_SSSE3_K(void *dst,
                           const void *pin, int stride, const void *gptr,
                           int rct, int x1, int x2) {
     const char *pi;
@@ -337,7 +342,7 @@ void rsdIntrinsicBlurVFU4_K(void *dst,
     }
 }
 
-void rsdIntrinsicBlurHFU4_K(void *dst,
+void rsdIntrinsicBlurHFU4_SSSE3_K(void *dst,
                           const void *pin, const void *gptr,
                           int rct, int x1, int x2) {
     const __m128i Mu8 = _mm_set_epi32(0xffffffff, 0xffffffff, 0xffffffff, 0x0c080400);
@@ -370,7 +375,7 @@ void rsdIntrinsicBlurHFU4_K(void *dst,
     }
 }
 
-void rsdIntrinsicBlurHFU1_K(void *dst,
+void rsdIntrinsicBlurHFU1_SSSE3_K(void *dst,
                           const void *pin, const void *gptr,
                           int rct, int x1, int x2) {
     const __m128i Mu8 = _mm_set_epi32(0xffffffff, 0xffffffff, 0xffffffff, 0x0c080400);
@@ -394,11 +399,11 @@ void rsdIntrinsicBlurHFU1_K(void *dst,
             g0 = _mm_shuffle_ps(gx, gx, _MM_SHUFFLE(0, 0, 0, 0));
             pf = _mm_add_ps(pf, _mm_mul_ps(g0, p0));
             g1 = _mm_shuffle_ps(gx, gx, _MM_SHUFFLE(1, 1, 1, 1));
-            pf = _mm_add_ps(pf, _mm_mul_ps(g1, _mm_alignr_epi8(p1, p0, 4)));
+            pf = _mm_add_ps(pf, _mm_mul_ps(g1, _mm_castsi128_ps(_mm_alignr_epi8(_mm_castps_si128(p1), _mm_castps_si128(p0), 4))));
             g2 = _mm_shuffle_ps(gx, gx, _MM_SHUFFLE(2, 2, 2, 2));
-            pf = _mm_add_ps(pf, _mm_mul_ps(g2, _mm_alignr_epi8(p1, p0, 8)));
+            pf = _mm_add_ps(pf, _mm_mul_ps(g2, _mm_castsi128_ps(_mm_alignr_epi8(_mm_castps_si128(p1), _mm_castps_si128(p0), 8))));
             g3 = _mm_shuffle_ps(gx, gx, _MM_SHUFFLE(3, 3, 3, 3));
-            pf = _mm_add_ps(pf, _mm_mul_ps(g3, _mm_alignr_epi8(p1, p0, 12)));
+            pf = _mm_add_ps(pf, _mm_mul_ps(g3, _mm_castsi128_ps(_mm_alignr_epi8(_mm_castps_si128(p1), _mm_castps_si128(p0), 12))));
         }
 
         o = _mm_cvtps_epi32(pf);
@@ -593,7 +598,7 @@ void rsdIntrinsicYuv2_K(void *dst,
     }
 }
 
-extern "C" void rsdIntrinsicConvolve5x5_K(void *dst, const void *y0,
+extern "C" void rsdIntrinsicConvolve5x5_SSSE3_K(void *dst, const void *y0,
                                           const void *y1, const void *y2,
                                           const void *y3, const void *y4,
                                           const short *coef, uint32_t count) {
@@ -757,7 +762,7 @@ extern "C" void rsdIntrinsicConvolve5x5_K(void *dst, const void *y0,
     }
 }
 
-void rsdIntrinsicBlendSrcOver_K(void *dst, const void *src, uint32_t count8) {
+void rsdIntrinsicBlendSrcOver_SSSE3_K(void *dst, const void *src, uint32_t count8) {
     __m128i all1s, ina, ins;
     __m128i in0, in1, out0, out1;
     __m128i t0, t1, t2, t3;
@@ -813,7 +818,7 @@ void rsdIntrinsicBlendSrcOver_K(void *dst, const void *src, uint32_t count8) {
     }
 }
 
-void rsdIntrinsicBlendDstOver_K(void *dst, const void *src, uint32_t count8) {
+void rsdIntrinsicBlendDstOver_SSSE3_K(void *dst, const void *src, uint32_t count8) {
     __m128i all1s, outa, outs;
     __m128i in0, in1, out0, out1;
     __m128i t0, t1, t2, t3;
@@ -870,7 +875,7 @@ void rsdIntrinsicBlendDstOver_K(void *dst, const void *src, uint32_t count8) {
     }
 }
 
-void rsdIntrinsicBlendSrcIn_K(void *dst, const void *src, uint32_t count8) {
+void rsdIntrinsicBlendSrcIn_SSSE3_K(void *dst, const void *src, uint32_t count8) {
     __m128i outa;
     __m128i in0, in1, out0, out1;
     __m128i t0, t1, t2, t3;
@@ -920,7 +925,7 @@ void rsdIntrinsicBlendSrcIn_K(void *dst, const void *src, uint32_t count8) {
     }
 }
 
-void rsdIntrinsicBlendDstIn_K(void *dst, const void *src, uint32_t count8) {
+void rsdIntrinsicBlendDstIn_SSSE3_K(void *dst, const void *src, uint32_t count8) {
     __m128i ina;
     __m128i in0, in1, out0, out1;
     __m128i t0, t1, t2, t3;
@@ -970,7 +975,7 @@ void rsdIntrinsicBlendDstIn_K(void *dst, const void *src, uint32_t count8) {
     }
 }
 
-void rsdIntrinsicBlendSrcOut_K(void *dst, const void *src, uint32_t count8) {
+void rsdIntrinsicBlendSrcOut_SSSE3_K(void *dst, const void *src, uint32_t count8) {
     __m128i all1s, outa;
     __m128i in0, in1, out0, out1;
     __m128i t0, t1, t2, t3;
@@ -1022,7 +1027,7 @@ void rsdIntrinsicBlendSrcOut_K(void *dst, const void *src, uint32_t count8) {
     }
 }
 
-void rsdIntrinsicBlendDstOut_K(void *dst, const void *src, uint32_t count8) {
+void rsdIntrinsicBlendDstOut_SSSE3_K(void *dst, const void *src, uint32_t count8) {
     __m128i all1s, ina;
     __m128i in0, in1, out0, out1;
     __m128i t0, t1, t2, t3;
@@ -1074,7 +1079,7 @@ void rsdIntrinsicBlendDstOut_K(void *dst, const void *src, uint32_t count8) {
     }
 }
 
-void rsdIntrinsicBlendSrcAtop_K(void *dst, const void *src, uint32_t count8) {
+void rsdIntrinsicBlendSrcAtop_SSSE3_K(void *dst, const void *src, uint32_t count8) {
     const __m128i M0001 = _mm_set_epi32(0xff000000, 0xff000000, 0xff000000, 0xff000000);
     __m128i all1s, ina, outa, ins, outs;
     __m128i in0, in1, out0, out1;
@@ -1145,7 +1150,7 @@ void rsdIntrinsicBlendSrcAtop_K(void *dst, const void *src, uint32_t count8) {
     }
 }
 
-void rsdIntrinsicBlendDstAtop_K(void *dst, const void *src, uint32_t count8) {
+void rsdIntrinsicBlendDstAtop_SSSE3_K(void *dst, const void *src, uint32_t count8) {
     const __m128i M0001 = _mm_set_epi32(0xff000000, 0xff000000, 0xff000000, 0xff000000);
     __m128i all1s, ina, ins, outa, outs;
     __m128i in0, in1, out0, out1;
@@ -1216,7 +1221,7 @@ void rsdIntrinsicBlendDstAtop_K(void *dst, const void *src, uint32_t count8) {
     }
 }
 
-void rsdIntrinsicBlendXor_K(void *dst, const void *src, uint32_t count8) {
+void rsdIntrinsicBlendXor_SSSE3_K(void *dst, const void *src, uint32_t count8) {
     __m128i in0, in1, out0, out1;
     uint32_t i;
 
@@ -1237,7 +1242,7 @@ void rsdIntrinsicBlendXor_K(void *dst, const void *src, uint32_t count8) {
     }
 }
 
-void rsdIntrinsicBlendMultiply_K(void *dst, const void *src, uint32_t count8) {
+void rsdIntrinsicBlendMultiply_SSSE3_K(void *dst, const void *src, uint32_t count8) {
     __m128i in0, in1, out0, out1;
     __m128i t0, t1, t2, t3;
     uint32_t i;
@@ -1274,7 +1279,7 @@ void rsdIntrinsicBlendMultiply_K(void *dst, const void *src, uint32_t count8) {
     }
 }
 
-void rsdIntrinsicBlendAdd_K(void *dst, const void *src, uint32_t count8) {
+void rsdIntrinsicBlendAdd_SSSE3_K(void *dst, const void *src, uint32_t count8) {
     __m128i in0, in1, out0, out1;
     uint32_t i;
 
@@ -1295,7 +1300,7 @@ void rsdIntrinsicBlendAdd_K(void *dst, const void *src, uint32_t count8) {
     }
 }
 
-void rsdIntrinsicBlendSub_K(void *dst, const void *src, uint32_t count8) {
+void rsdIntrinsicBlendSub_SSSE3_K(void *dst, const void *src, uint32_t count8) {
     __m128i in0, in1, out0, out1;
     uint32_t i;
 
@@ -1315,3 +1320,319 @@ void rsdIntrinsicBlendSub_K(void *dst, const void *src, uint32_t count8) {
         dst = (__m128i *)dst + 2;
     }
 }
+
+/* Trilinear 3D LUT lookup, computed exactly as the C path in
+ * rsCpuIntrinsic3DLUT.cpp.  dimx, dimy and dimz are the LUT dimensions
+ * minus one.
+ *
+ * The C code blends with weight1 = 0x8000 - weight2, which does not fit a
+ * signed 16-bit multiply; a * weight1 + b * weight2 is computed as
+ * (a << 15) + (b - a) * weight2 instead, which gives the same integers.
+ */
+extern "C" void rsdIntrinsic3DLUT_K(void *dst, void const *in, size_t count,
+                                    void const *lut,
+                                    int32_t pitchy, int32_t pitchz,
+                                    int dimx, int dimy, int dimz) {
+    const int mulx = (int)((1.f / 255.f) * (float)dimx * (float)0x8000);
+    const int muly = (int)((1.f / 255.f) * (float)dimy * (float)0x8000);
+    const int mulz = (int)((1.f / 255.f) * (float)dimz * (float)0x8000);
+    const __m128i R = _mm_set1_epi32(0x7f);
+    const __m128i Z = _mm_setzero_si128();
+    const uint32_t *src = (const uint32_t *)in;
+    uint32_t *out = (uint32_t *)dst;
+    const uint8_t *bp;
+    __m128i a, b, v0, v1, v0l, v0h, d0l, d0h;
+    __m128i wx, wy, wz;
+    __m128i yz00, yz10, yz01, yz11, z0, z1, v;
+    size_t i;
+
+    for (i = 0; i < count; ++i) {
+        uint32_t p = src[i];
+        int bx = (int)(p & 0xff) * mulx;
+        int by = (int)((p >> 8) & 0xff) * muly;
+        int bz = (int)((p >> 16) & 0xff) * mulz;
+
+        bp = (const uint8_t *)lut + (bx >> 15) * 4 + (by >> 15) * pitchy + (bz >> 15) * pitchz;
+
+        /* Only the low 16 bits are set, so madd_epi16 against (d, 0)
+         * pairs is a plain 32-bit d * weight. */
+        wx = _mm_set1_epi32(bx & 0x7fff);
+        wy = _mm_set1_epi32(by & 0x7fff);
+        wz = _mm_set1_epi32(bz & 0x7fff);
+
+        /* v000 v100 v010 v110 and v001 v101 v011 v111 */
+        a = _mm_unpacklo_epi64(_mm_loadl_epi64((const __m128i *)bp),
+                               _mm_loadl_epi64((const __m128i *)(bp + pitchy)));
+        b = _mm_unpacklo_epi64(_mm_loadl_epi64((const __m128i *)(bp + pitchz)),
+                               _mm_loadl_epi64((const __m128i *)(bp + pitchy + pitchz)));
+
+        /* v000 v010 v001 v011 and v100 v110 v101 v111 */
+        v0 = _mm_castps_si128(_mm_shuffle_ps(_mm_castsi128_ps(a), _mm_castsi128_ps(b),
+                                             _MM_SHUFFLE(2, 0, 2, 0)));
+        v1 = _mm_castps_si128(_mm_shuffle_ps(_mm_castsi128_ps(a), _mm_castsi128_ps(b),
+                                             _MM_SHUFFLE(3, 1, 3, 1)));
+
+        v0l = _mm_unpacklo_epi8(v0, Z);
+        v0h = _mm_unpackhi_epi8(v0, Z);
+        d0l = _mm_sub_epi16(_mm_unpacklo_epi8(v1, Z), v0l);
+        d0h = _mm_sub_epi16(_mm_unpackhi_epi8(v1, Z), v0h);
+
+        yz00 = _mm_add_epi32(_mm_slli_epi32(_mm_unpacklo_epi16(v0l, Z), 15),
+                             _mm_madd_epi16(_mm_unpacklo_epi16(d0l, Z), wx));
+        yz10 = _mm_add_epi32(_mm_slli_epi32(_mm_unpackhi_epi16(v0l, Z), 15),
+                             _mm_madd_epi16(_mm_unpackhi_epi16(d0l, Z), wx));
+        yz01 = _mm_add_epi32(_mm_slli_epi32(_mm_unpacklo_epi16(v0h, Z), 15),
+                             _mm_madd_epi16(_mm_unpacklo_epi16(d0h, Z), wx));
+        yz11 = _mm_add_epi32(_mm_slli_epi32(_mm_unpackhi_epi16(v0h, Z), 15),
+                             _mm_madd_epi16(_mm_unpackhi_epi16(d0h, Z), wx));
+        yz00 = _mm_srli_epi32(yz00, 7);
+        yz10 = _mm_srli_epi32(yz10, 7);
+        yz01 = _mm_srli_epi32(yz01, 7);
+        yz11 = _mm_srli_epi32(yz11, 7);
+
+        /* yz is at most 0xff00 here, the differences need 32 bits. */
+        z0 = _mm_add_epi32(_mm_slli_epi32(yz00, 15),
+                           mullo_epi32(_mm_sub_epi32(yz10, yz00), wy));
+        z1 = _mm_add_epi32(_mm_slli_epi32(yz01, 15),
+                           mullo_epi32(_mm_sub_epi32(yz11, yz01), wy));
+        z0 = _mm_srli_epi32(z0, 15);
+        z1 = _mm_srli_epi32(z1, 15);
+
+        v = _mm_add_epi32(_mm_slli_epi32(z0, 15),
+                          mullo_epi32(_mm_sub_epi32(z1, z0), wz));
+        v = _mm_srli_epi32(v, 15);
+        v = _mm_srli_epi32(_mm_add_epi32(v, R), 8);
+
+        v = packus_epi32(v, v);
+        v = _mm_packus_epi16(v, v);
+        out[i] = ((uint32_t)_mm_cvtsi128_si32(v) & 0x00ffffff) | (p & 0xff000000);
+    }
+}
+
+/*
+ * Bicubic resize of one output row, computed exactly as OneBiCubic() in
+ * rsCpuIntrinsicResize.cpp: the same float operations run in the same
+ * order, only several at a time.  The U4 kernel works on the four channels
+ * of a pixel, U2 on two pixels and U1 on four pixels at once.
+ */
+
+/* Source columns and fraction for output column x. */
+static inline float resizeTaps(uint32_t x, float scaleX, int width, int *xs) {
+    float xf = (x + 0.5f) * scaleX - 0.5f;
+    int startx = (int) floorf(xf - 1);
+    int maxx = width - 1;
+    xs[0] = startx + 0 > 0 ? startx + 0 : 0;
+    xs[1] = startx + 1 > 0 ? startx + 1 : 0;
+    xs[2] = startx + 2 < maxx ? startx + 2 : maxx;
+    xs[3] = startx + 3 < maxx ? startx + 3 : maxx;
+    return xf - floorf(xf);
+}
+
+static inline __m128 cubicInterpolate(__m128 p0, __m128 p1, __m128 p2, __m128 p3, __m128 x) {
+    const __m128 c05 = _mm_set1_ps(0.5f);
+    const __m128 c2 = _mm_set1_ps(2.f);
+    const __m128 c3 = _mm_set1_ps(3.f);
+    const __m128 c4 = _mm_set1_ps(4.f);
+    const __m128 c5 = _mm_set1_ps(5.f);
+    __m128 t;
+
+    /* p1 + 0.5f * x * (p2 - p0 + x * (2.f * p0 - 5.f * p1 + 4.f * p2 - p3
+     *         + x * (3.f * (p1 - p2) + p3 - p0))) */
+    t = _mm_sub_ps(_mm_add_ps(_mm_mul_ps(c3, _mm_sub_ps(p1, p2)), p3), p0);
+    t = _mm_add_ps(_mm_sub_ps(_mm_add_ps(_mm_sub_ps(_mm_mul_ps(c2, p0), _mm_mul_ps(c5, p1)),
+                                         _mm_mul_ps(c4, p2)), p3),
+                   _mm_mul_ps(x, t));
+    t = _mm_add_ps(_mm_sub_ps(p2, p0), _mm_mul_ps(x, t));
+    return _mm_add_ps(p1, _mm_mul_ps(_mm_mul_ps(c05, x), t));
+}
+
+/* clamp(p + 0.5f, 0.f, 255.f) and convert, four results in the low bytes. */
+static inline __m128i resizeToU8(__m128 p) {
+    __m128i o;
+    p = _mm_add_ps(p, _mm_set1_ps(0.5f));
+    p = _mm_min_ps(_mm_max_ps(p, _mm_setzero_ps()), _mm_set1_ps(255.f));
+    o = _mm_cvttps_epi32(p);
+    o = packus_epi32(o, o);
+    return _mm_packus_epi16(o, o);
+}
+
+static inline __m128 loadU4(const uint8_t *row, int x) {
+    return _mm_cvtepi32_ps(cvtepu8_epi32(_mm_cvtsi32_si128(*(const int32_t *)(row + x * 4))));
+}
+
+static inline __m128 resizeRowU4(const uint8_t *row, const int *xs, __m128 xf) {
+    return cubicInterpolate(loadU4(row, xs[0]), loadU4(row, xs[1]),
+                            loadU4(row, xs[2]), loadU4(row, xs[3]), xf);
+}
+
+extern "C" void rsdIntrinsicResizeU4_K(void *dst, const void *yp0, const void *yp1,
+                                       const void *yp2, const void *yp3,
+                                       uint32_t x1, uint32_t x2,
+                                       float scaleX, float yf, int width) {
+    const __m128 y = _mm_set1_ps(yf);
+    uint32_t *out = (uint32_t *)dst;
+    __m128 x, p0, p1, p2, p3;
+    int xs[4];
+
+    for (; x1 < x2; ++x1) {
+        x = _mm_set1_ps(resizeTaps(x1, scaleX, width, xs));
+
+        p0 = resizeRowU4((const uint8_t *)yp0, xs, x);
+        p1 = resizeRowU4((const uint8_t *)yp1, xs, x);
+        p2 = resizeRowU4((const uint8_t *)yp2, xs, x);
+        p3 = resizeRowU4((const uint8_t *)yp3, xs, x);
+
+        *out++ = _mm_cvtsi128_si32(resizeToU8(cubicInterpolate(p0, p1, p2, p3, y)));
+    }
+}
+
+/* Lanes are channel 0 and 1 of pixel a, then of pixel b. */
+static inline __m128 loadU2(const uint8_t *row, int a, int b) {
+    return _mm_set_ps(row[b * 2 + 1], row[b * 2], row[a * 2 + 1], row[a * 2]);
+}
+
+static inline __m128 resizeRowU2(const uint8_t *row, const int *xa, const int *xb, __m128 xf) {
+    return cubicInterpolate(loadU2(row, xa[0], xb[0]), loadU2(row, xa[1], xb[1]),
+                            loadU2(row, xa[2], xb[2]), loadU2(row, xa[3], xb[3]), xf);
+}
+
+extern "C" void rsdIntrinsicResizeU2_K(void *dst, const void *yp0, const void *yp1,
+                                       const void *yp2, const void *yp3,
+                                       uint32_t x1, uint32_t x2,
+                                       float scaleX, float yf, int width) {
+    const __m128 y = _mm_set1_ps(yf);
+    uint8_t *out = (uint8_t *)dst;
+    __m128 x, p0, p1, p2, p3;
+    float xfa, xfb;
+    int xa[4], xb[4];
+    uint32_t o;
+
+    for (; x1 < x2; x1 += 2) {
+        /* An odd last pixel is computed twice and stored once. */
+        xfa = resizeTaps(x1, scaleX, width, xa);
+        xfb = (x1 + 1 < x2) ? resizeTaps(x1 + 1, scaleX, width, xb)
+                            : resizeTaps(x1, scaleX, width, xb);
+        x = _mm_set_ps(xfb, xfb, xfa, xfa);
+
+        p0 = resizeRowU2((const uint8_t *)yp0, xa, xb, x);
+        p1 = resizeRowU2((const uint8_t *)yp1, xa, xb, x);
+        p2 = resizeRowU2((const uint8_t *)yp2, xa, xb, x);
+        p3 = resizeRowU2((const uint8_t *)yp3, xa, xb, x);
+
+        o = _mm_cvtsi128_si32(resizeToU8(cubicInterpolate(p0, p1, p2, p3, y)));
+        if (x1 + 1 < x2) {
+            *(uint32_t *)out = o;
+            out += 4;
+        } else {
+            *(uint16_t *)out = (uint16_t)o;
+            out += 2;
+        }
+    }
+}
+
+/* Lane i is the tap xs[i][t] of output pixel i. */
+static inline __m128 loadU1(const uint8_t *row, const int (*xs)[4], int t) {
+    return _mm_set_ps(row[xs[3][t]], row[xs[2][t]], row[xs[1][t]], row[xs[0][t]]);
+}
+
+static inline __m128 resizeRowU1(const uint8_t *row, const int (*xs)[4], __m128 xf) {
+    return cubicInterpolate(loadU1(row, xs, 0), loadU1(row, xs, 1),
+                            loadU1(row, xs, 2), loadU1(row, xs, 3), xf);
+}
+
+extern "C" void rsdIntrinsicResizeU1_K(void *dst, const void *yp0, const void *yp1,
+                                       const void *yp2, const void *yp3,
+                                       uint32_t x1, uint32_t x2,
+                                       float scaleX, float yf, int width) {
+    const __m128 y = _mm_set1_ps(yf);
+    uint8_t *out = (uint8_t *)dst;
+    __m128 x, p0, p1, p2, p3;
+    float xf[4];
+    int xs[4][4];
+    uint32_t n, i, o;
+
+    for (; x1 < x2; x1 += n) {
+        /* Lanes past the end of the row repeat the last pixel. */
+        n = (x2 - x1 < 4) ? x2 - x1 : 4;
+        for (i = 0; i < 4; i++) {
+            xf[i] = resizeTaps(x1 + (i < n ? i : n - 1), scaleX, width, xs[i]);
+        }
+        x = _mm_set_ps(xf[3], xf[2], xf[1], xf[0]);
+
+        p0 = resizeRowU1((const uint8_t *)yp0, xs, x);
+        p1 = resizeRowU1((const uint8_t *)yp1, xs, x);
+        p2 = resizeRowU1((const uint8_t *)yp2, xs, x);
+        p3 = resizeRowU1((const uint8_t *)yp3, xs, x);
+
+        o = _mm_cvtsi128_si32(resizeToU8(cubicInterpolate(p0, p1, p2, p3, y)));
+        for (i = 0; i < n; i++) {
+            out[i] = (uint8_t)(o >> (i * 8));
+        }
+        out += n;
+    }
+}
+
+/* Run time dispatch between the SSSE3 kernels above and the AVX2 ones in
+ * rsCpuIntrinsics_x86_avx2.cpp. */
+
+extern "C" void rsdIntrinsicConvolve3x3_K(void *dst, const void *y0,
+                                          const void *y1, const void *y2,
+                                          const short *coef, uint32_t count) {
+    if (gArchUseAVX2) {
+        rsdIntrinsicConvolve3x3_AVX2_K(dst, y0, y1, y2, coef, count);
+    } else {
+        rsdIntrinsicConvolve3x3_SSSE3_K(dst, y0, y1, y2, coef, count);
+    }
+}
+
+extern "C" void rsdIntrinsicConvolve5x5_K(void *dst, const void *y0,
+                                          const void *y1, const void *y2,
+                                          const void *y3, const void *y4,
+                                          const short *coef, uint32_t count) {
+    if (gArchUseAVX2) {
+        rsdIntrinsicConvolve5x5_AVX2_K(dst, y0, y1, y2, y3, y4, coef, count);
+    } else {
+        rsdIntrinsicConvolve5x5_SSSE3_K(dst, y0, y1, y2, y3, y4, coef, count);
+    }
+}
+
+void rsdIntrinsicBlurVFU4_K(void *dst,
+                          const void *pin, int stride, const void *gptr,
+                          int rct, int x1, int x2) {
+    if (gArchUseAVX2) {
+        rsdIntrinsicBlurVFU4_AVX2_K(dst, pin, stride, gptr, rct, x1, x2);
+    } else {
+        rsdIntrinsicBlurVFU4_SSSE3_K(dst, pin, stride, gptr, rct, x1, x2);
+    }
+}
+
+void rsdIntrinsicBlurHFU4_K(void *dst,
+                          const void *pin, const void *gptr,
+                          int rct, int x1, int x2) {
+    if (gArchUseAVX2) {
+        rsdIntrinsicBlurHFU4_AVX2_K(dst, pin, gptr, rct, x1, x2);
+    } else {
+        rsdIntrinsicBlurHFU4_SSSE3_K(dst, pin, gptr, rct, x1, x2);
+    }
+}
+
+void rsdIntrinsicBlurHFU1_K(void *dst,
+                          const void *pin, const void *gptr,
+                          int rct, int x1, int x2) {
+    if (gArchUseAVX2) {
+        rsdIntrinsicBlurHFU1_AVX2_K(dst, pin, gptr, rct, x1, x2);
+    } else {
+        rsdIntrinsicBlurHFU1_SSSE3_K(dst, pin, gptr, rct, x1, x2);
+    }
+}
+
+#define RS_X86_DISPATCH_BLEND(name)                                           \
+void rsdIntrinsicBlend##name##_K(void *dst, const void *src, uint32_t count8) { \
+    if (gArchUseAVX2) {                                                       \
+        rsdIntrinsicBlend##name##_AVX2_K(dst, src, count8);                   \
+    } else {                                                                  \
+        rsdIntrinsicBlend##name##_SSSE3_K(dst, src, count8);                  \
+    }                                                                         \
+}
+RS_X86_BLEND_KERNELS(RS_X86_DISPATCH_BLEND)
+#undef RS_X86_DISPATCH_BLEND
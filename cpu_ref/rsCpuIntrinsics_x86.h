@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef RSD_CPU_INTRINSICS_X86_H
+#define RSD_CPU_INTRINSICS_X86_H
+
+#include <stddef.h>
+#include <stdint.h>
+
+// The x86 intrinsic kernels come in two tiers.  The _K entry points the
+// intrinsics call dispatch at run time to the AVX2 version when the CPU and
+// OS support it, and to the SSSE3 version otherwise.  Both tiers produce
+// bit identical results; the AVX2 kernels hand any tail narrower than their
+// vector width to the SSSE3 ones.
+
+namespace android {
+namespace renderscript {
+
+extern bool gArchUseAVX2;
+
+}
+}
+
+extern "C" void rsdIntrinsicConvolve3x3_SSSE3_K(void *dst, const void *y0,
+                                                const void *y1, const void *y2,
+                                                const short *coef, uint32_t count);
+extern "C" void rsdIntrinsicConvolve3x3_AVX2_K(void *dst, const void *y0,
+                                               const void *y1, const void *y2,
+                                               const short *coef, uint32_t count);
+
+extern "C" void rsdIntrinsicConvolve5x5_SSSE3_K(void *dst, const void *y0,
+                                                const void *y1, const void *y2,
+                                                const void *y3, const void *y4,
+                                                const short *coef, uint32_t count);
+extern "C" void rsdIntrinsicConvolve5x5_AVX2_K(void *dst, const void *y0,
+                                               const void *y1, const void *y2,
+                                               const void *y3, const void *y4,
+                                               const short *coef, uint32_t count);
+
+void rsdIntrinsicBlurVFU4_SSSE3_K(void *dst, const void *pin, int stride,
+                                  const void *gptr, int rct, int x1, int x2);
+void rsdIntrinsicBlurVFU4_AVX2_K(void *dst, const void *pin, int stride,
+                                 const void *gptr, int rct, int x1, int x2);
+void rsdIntrinsicBlurHFU4_SSSE3_K(void *dst, const void *pin, const void *gptr,
+                                  int rct, int x1, int x2);
+void rsdIntrinsicBlurHFU4_AVX2_K(void *dst, const void *pin, const void *gptr,
+                                 int rct, int x1, int x2);
+void rsdIntrinsicBlurHFU1_SSSE3_K(void *dst, const void *pin, const void *gptr,
+                                  int rct, int x1, int x2);
+void rsdIntrinsicBlurHFU1_AVX2_K(void *dst, const void *pin, const void *gptr,
+                                 int rct, int x1, int x2);
+
+// SSSE3 only, matching the C paths of the 3DLUT and Resize intrinsics.
+extern "C" void rsdIntrinsic3DLUT_K(void *dst, void const *in, size_t count,
+                                    void const *lut,
+                                    int32_t pitchy, int32_t pitchz,
+                                    int dimx, int dimy, int dimz);
+
+// The Resize kernels take the same arguments as OneBiCubic() and match it
+// bit for bit.
+extern "C" void rsdIntrinsicResizeU4_K(void *dst, const void *yp0, const void *yp1,
+                                       const void *yp2, const void *yp3,
+                                       uint32_t x1, uint32_t x2,
+                                       float scaleX, float yf, int width);
+extern "C" void rsdIntrinsicResizeU2_K(void *dst, const void *yp0, const void *yp1,
+                                       const void *yp2, const void *yp3,
+                                       uint32_t x1, uint32_t x2,
+                                       float scaleX, float yf, int width);
+extern "C" void rsdIntrinsicResizeU1_K(void *dst, const void *yp0, const void *yp1,
+                                       const void *yp2, const void *yp3,
+                                       uint32_t x1, uint32_t x2,
+                                       float scaleX, float yf, int width);
+
+#define RS_X86_BLEND_KERNELS(K) \
+    K(SrcOver) K(DstOver) K(SrcIn) K(DstIn) K(SrcOut) K(DstOut) \
+    K(SrcAtop) K(DstAtop) K(Xor) K(Multiply) K(Add) K(Sub)
+
+#define RS_X86_DECLARE_BLEND(name) \
+    void rsdIntrinsicBlend##name##_SSSE3_K(void *dst, const void *src, uint32_t count8); \
+    void rsdIntrinsicBlend##name##_AVX2_K(void *dst, const void *src, uint32_t count8);
+RS_X86_BLEND_KERNELS(RS_X86_DECLARE_BLEND)
+#undef RS_X86_DECLARE_BLEND
+
+#endif
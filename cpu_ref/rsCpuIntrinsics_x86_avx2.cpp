@@ -0,0 +1,466 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include <stdint.h>
+#include <x86intrin.h>
+
+#include "rsCpuIntrinsics_x86.h"
+
+/*
+ * AVX2 versions of the SSSE3 kernels in rsCpuIntrinsics_x86.cpp.
+ *
+ * The rest of the library is built for the SSSE3 baseline, so only these
+ * functions are compiled for AVX2 and they are only called once
+ * GetCpuInfo() has found AVX2 support.  Each kernel performs the same
+ * operations per lane as its SSSE3 counterpart, so the results are bit
+ * identical.  FMA is deliberately not enabled to keep the float kernels
+ * from contracting mul + add.
+ */
+#define AVX2_K __attribute__((target("avx2")))
+
+static inline AVX2_K __m256i loadu256(const void *p) {
+    return _mm256_loadu_si256((const __m256i *)p);
+}
+
+static inline AVX2_K void storeu256(void *p, __m256i x) {
+    _mm256_storeu_si256((__m256i *)p, x);
+}
+
+/* Broadcast a pair of 16-bit coefficients to every 32-bit element. */
+static inline AVX2_K __m256i coefPair(const short *coef, int i) {
+    return _mm256_set1_epi32(*(const int32_t *)(coef + i));
+}
+
+/* Load 16 bytes of 4 pixels starting k pixels into a row, widened to 16 bits.
+ * Lane 0 holds pixels k and k + 1, lane 1 pixels k + 2 and k + 3. */
+static inline AVX2_K __m256i loadConvolve3x3(const void *y, int k) {
+    return _mm256_cvtepu8_epi16(_mm_loadu_si128((const __m128i *)((const int32_t *)y + k)));
+}
+
+/*
+ * Two iterations of the SSSE3 loop at a time.  With the rows loaded as
+ * above, unpacklo combines the pixels for output pixels 0 and 2, unpackhi
+ * those for output pixels 1 and 3.
+ */
+extern "C" AVX2_K void rsdIntrinsicConvolve3x3_AVX2_K(void *dst, const void *y0,
+                                                      const void *y1, const void *y2,
+                                                      const short *coef, uint32_t count) {
+    const __m256i c0 = coefPair(coef, 0);
+    const __m256i c2 = coefPair(coef, 2);
+    const __m256i c4 = coefPair(coef, 4);
+    const __m256i c6 = coefPair(coef, 6);
+    const __m256i c8 = coefPair(coef, 8);
+    const __m256i zero = _mm256_setzero_si256();
+    __m256i r00, r01, r02, r10, r11, r12, r20, r21, r22;
+    __m256i o0, o1;
+
+    for (; count >= 2; count -= 2) {
+        r00 = loadConvolve3x3(y0, 0);
+        r01 = loadConvolve3x3(y0, 1);
+        r02 = loadConvolve3x3(y0, 2);
+        r10 = loadConvolve3x3(y1, 0);
+        r11 = loadConvolve3x3(y1, 1);
+        r12 = loadConvolve3x3(y1, 2);
+        r20 = loadConvolve3x3(y2, 0);
+        r21 = loadConvolve3x3(y2, 1);
+        r22 = loadConvolve3x3(y2, 2);
+
+        o0 =                     _mm256_madd_epi16(_mm256_unpacklo_epi16(r00, r01), c0);
+        o0 = _mm256_add_epi32(o0, _mm256_madd_epi16(_mm256_unpacklo_epi16(r02, r10), c2));
+        o0 = _mm256_add_epi32(o0, _mm256_madd_epi16(_mm256_unpacklo_epi16(r11, r12), c4));
+        o0 = _mm256_add_epi32(o0, _mm256_madd_epi16(_mm256_unpacklo_epi16(r20, r21), c6));
+        o0 = _mm256_add_epi32(o0, _mm256_madd_epi16(_mm256_unpacklo_epi16(r22, zero), c8));
+
+        o1 =                     _mm256_madd_epi16(_mm256_unpackhi_epi16(r00, r01), c0);
+        o1 = _mm256_add_epi32(o1, _mm256_madd_epi16(_mm256_unpackhi_epi16(r02, r10), c2));
+        o1 = _mm256_add_epi32(o1, _mm256_madd_epi16(_mm256_unpackhi_epi16(r11, r12), c4));
+        o1 = _mm256_add_epi32(o1, _mm256_madd_epi16(_mm256_unpackhi_epi16(r20, r21), c6));
+        o1 = _mm256_add_epi32(o1, _mm256_madd_epi16(_mm256_unpackhi_epi16(r22, zero), c8));
+
+        o0 = _mm256_srai_epi32(o0, 8);
+        o1 = _mm256_srai_epi32(o1, 8);
+
+        /* Pixels 0 1 | 2 3 after packing to 16 bits, gather the low 8 bytes
+         * of each lane after packing to 8 bits. */
+        o0 = _mm256_packus_epi32(o0, o1);
+        o0 = _mm256_packus_epi16(o0, o0);
+        o0 = _mm256_permute4x64_epi64(o0, 0x08);
+        _mm_storeu_si128((__m128i *)dst, _mm256_castsi256_si128(o0));
+
+        y0 = (const char *)y0 + 16;
+        y1 = (const char *)y1 + 16;
+        y2 = (const char *)y2 + 16;
+        dst = (char *)dst + 16;
+    }
+
+    if (count) {
+        rsdIntrinsicConvolve3x3_SSSE3_K(dst, y0, y1, y2, coef, count);
+    }
+}
+
+/* Lane 0 holds pixels k and k + 1 of a row, lane 1 pixels k + 4 and k + 5,
+ * widened to 16 bits. */
+static inline AVX2_K __m256i loadConvolve5x5(const void *y, int k) {
+    const __m128i *p = (const __m128i *)((const int32_t *)y + k);
+    return _mm256_cvtepu8_epi16(_mm_unpacklo_epi64(_mm_loadl_epi64(p),
+                                                   _mm_loadl_epi64(p + 1)));
+}
+
+static inline AVX2_K void maddConvolve5x5(__m256i a, __m256i z, __m256i c,
+                                           __m256i *lo, __m256i *hi) {
+    *lo = _mm256_add_epi32(*lo, _mm256_madd_epi16(_mm256_unpacklo_epi16(a, z), c));
+    *hi = _mm256_add_epi32(*hi, _mm256_madd_epi16(_mm256_unpackhi_epi16(a, z), c));
+}
+
+/* Sum the 25 taps for the output pixels b and b + 4 into lo, b + 1 and
+ * b + 5 into hi.  The taps are paired as in the SSSE3 code. */
+static inline AVX2_K void sumConvolve5x5(const void * const *y, int b, const __m256i *c,
+                                         __m256i *lo, __m256i *hi) {
+    const __m256i zero = _mm256_setzero_si256();
+    *lo = zero;
+    *hi = zero;
+
+#define P(j, k) loadConvolve5x5(y[j], b + (k))
+    maddConvolve5x5(P(0, 0), P(0, 1), c[0], lo, hi);
+    maddConvolve5x5(P(0, 2), P(0, 3), c[1], lo, hi);
+    maddConvolve5x5(P(0, 4), P(1, 0), c[2], lo, hi);
+    maddConvolve5x5(P(1, 1), P(1, 2), c[3], lo, hi);
+    maddConvolve5x5(P(1, 3), P(1, 4), c[4], lo, hi);
+    maddConvolve5x5(P(2, 0), P(2, 1), c[5], lo, hi);
+    maddConvolve5x5(P(2, 2), P(2, 3), c[6], lo, hi);
+    maddConvolve5x5(P(2, 4), P(3, 0), c[7], lo, hi);
+    maddConvolve5x5(P(3, 1), P(3, 2), c[8], lo, hi);
+    maddConvolve5x5(P(3, 3), P(3, 4), c[9], lo, hi);
+    maddConvolve5x5(P(4, 0), P(4, 1), c[10], lo, hi);
+    maddConvolve5x5(P(4, 2), P(4, 3), c[11], lo, hi);
+    maddConvolve5x5(P(4, 4), zero, c[12], lo, hi);
+#undef P
+
+    *lo = _mm256_srai_epi32(*lo, 8);
+    *hi = _mm256_srai_epi32(*hi, 8);
+}
+
+/* Two iterations of the SSSE3 loop, eight output pixels, at a time. */
+extern "C" AVX2_K void rsdIntrinsicConvolve5x5_AVX2_K(void *dst, const void *y0,
+                                                      const void *y1, const void *y2,
+                                                      const void *y3, const void *y4,
+                                                      const short *coef, uint32_t count) {
+    const void *y[5] = {y0, y1, y2, y3, y4};
+    __m256i c[13];
+    __m256i o0, o1, o2, o3;
+
+    for (int i = 0; i < 13; i++) {
+        c[i] = coefPair(coef, i * 2);
+    }
+
+    for (; count >= 2; count -= 2) {
+        sumConvolve5x5(y, 0, c, &o0, &o1);
+        sumConvolve5x5(y, 2, c, &o2, &o3);
+
+        /* Pixels 0 1 4 5 and 2 3 6 7 at 16 bits, 0 1 2 3 | 4 5 6 7 at 8. */
+        o0 = _mm256_packus_epi32(o0, o1);
+        o2 = _mm256_packus_epi32(o2, o3);
+        storeu256(dst, _mm256_packus_epi16(o0, o2));
+
+        for (int j = 0; j < 5; j++) {
+            y[j] = (const char *)y[j] + 32;
+        }
+        dst = (char *)dst + 32;
+    }
+
+    if (count) {
+        rsdIntrinsicConvolve5x5_SSSE3_K(dst, y[0], y[1], y[2], y[3], y[4], coef, count);
+    }
+}
+
+void AVX2_K rsdIntrinsicBlurVFU4_AVX2_K(void *dst,
+                                        const void *pin, int stride, const void *gptr,
+                                        int rct, int x1, int x2) {
+    const char *pi;
+    __m128i p;
+    __m256 pf0, pf1;
+    __m256 bp0, bp1;
+    __m256 x;
+    int r;
+
+    for (; x1 + 4 <= x2; x1 += 4) {
+        pi = (const char *)pin + (x1 << 2);
+        bp0 = _mm256_setzero_ps();
+        bp1 = _mm256_setzero_ps();
+
+        for (r = 0; r < rct; ++r) {
+            x = _mm256_set1_ps(((const float *)gptr)[r]);
+
+            p = _mm_loadu_si128((const __m128i *)pi);
+            pf0 = _mm256_cvtepi32_ps(_mm256_cvtepu8_epi32(p));
+            pf1 = _mm256_cvtepi32_ps(_mm256_cvtepu8_epi32(_mm_srli_si128(p, 8)));
+
+            bp0 = _mm256_add_ps(bp0, _mm256_mul_ps(pf0, x));
+            bp1 = _mm256_add_ps(bp1, _mm256_mul_ps(pf1, x));
+
+            pi += stride;
+        }
+
+        _mm256_storeu_ps((float *)dst, bp0);
+        _mm256_storeu_ps((float *)dst + 8, bp1);
+        dst = (char *)dst + 64;
+    }
+
+    if (x1 < x2) {
+        rsdIntrinsicBlurVFU4_SSSE3_K(dst, pin, stride, gptr, rct, x1, x2);
+    }
+}
+
+void AVX2_K rsdIntrinsicBlurHFU4_AVX2_K(void *dst,
+                                        const void *pin, const void *gptr,
+                                        int rct, int x1, int x2) {
+    const __m256i Mu8 = _mm256_set_epi32(0xffffffff, 0xffffffff, 0xffffffff, 0x0c080400,
+                                         0xffffffff, 0xffffffff, 0xffffffff, 0x0c080400);
+    const float *g = (const float *)gptr;
+    const float *pi;
+    __m256 pf, x, y;
+    __m256i o;
+    int r;
+
+    for (; x1 + 2 <= x2; x1 += 2) {
+        /* rct is define as 2*r+1 by the caller */
+        x = _mm256_set1_ps(g[0]);
+
+        pi = (const float *)pin + (x1 << 2);
+        pf = _mm256_mul_ps(x, _mm256_loadu_ps(pi));
+
+        for (r = 1; r < rct; r += 2) {
+            x = _mm256_set1_ps(g[r]);
+            y = _mm256_set1_ps(g[r + 1]);
+
+            pf = _mm256_add_ps(pf, _mm256_mul_ps(x, _mm256_loadu_ps(pi + (r << 2))));
+            pf = _mm256_add_ps(pf, _mm256_mul_ps(y, _mm256_loadu_ps(pi + (r << 2) + 4)));
+        }
+
+        o = _mm256_shuffle_epi8(_mm256_cvtps_epi32(pf), Mu8);
+        *(int *)dst = _mm256_cvtsi256_si32(o);
+        *((int *)dst + 1) = _mm_cvtsi128_si32(_mm256_extracti128_si256(o, 1));
+        dst = (char *)dst + 8;
+    }
+
+    if (x1 < x2) {
+        rsdIntrinsicBlurHFU4_SSSE3_K(dst, pin, gptr, rct, x1, x2);
+    }
+}
+
+static inline AVX2_K __m256 alignr_ps(__m256 hi, __m256 lo, int n) {
+    switch (n) {
+    case 1:
+        return _mm256_castsi256_ps(_mm256_alignr_epi8(_mm256_castps_si256(hi),
+                                                      _mm256_castps_si256(lo), 4));
+    case 2:
+        return _mm256_castsi256_ps(_mm256_alignr_epi8(_mm256_castps_si256(hi),
+                                                      _mm256_castps_si256(lo), 8));
+    default:
+        return _mm256_castsi256_ps(_mm256_alignr_epi8(_mm256_castps_si256(hi),
+                                                      _mm256_castps_si256(lo), 12));
+    }
+}
+
+/* Eight pixels per iteration, each lane doing the work of one SSSE3
+ * iteration; alignr works within lanes so it lines up the same way. */
+void AVX2_K rsdIntrinsicBlurHFU1_AVX2_K(void *dst,
+                                        const void *pin, const void *gptr,
+                                        int rct, int x1, int x2) {
+    const __m256i Mu8 = _mm256_set_epi32(0xffffffff, 0xffffffff, 0xffffffff, 0x0c080400,
+                                         0xffffffff, 0xffffffff, 0xffffffff, 0x0c080400);
+    const float *pi;
+    __m256 pf, g0, g1, g2, g3, gx, p0, p1;
+    __m256i o;
+    int r;
+
+    for (; x1 + 8 <= x2; x1 += 8) {
+        g0 = _mm256_set1_ps(*(const float *)gptr);
+
+        pi = (const float *)pin + x1;
+        pf = _mm256_mul_ps(g0, _mm256_loadu_ps(pi));
+
+        for (r = 1; r < rct; r += 4) {
+            gx = _mm256_broadcast_ps((const __m128 *)((const float *)gptr + r));
+            p0 = _mm256_loadu_ps(pi + r);
+            p1 = _mm256_loadu_ps(pi + r + 4);
+
+            g0 = _mm256_shuffle_ps(gx, gx, _MM_SHUFFLE(0, 0, 0, 0));
+            pf = _mm256_add_ps(pf, _mm256_mul_ps(g0, p0));
+            g1 = _mm256_shuffle_ps(gx, gx, _MM_SHUFFLE(1, 1, 1, 1));
+            pf = _mm256_add_ps(pf, _mm256_mul_ps(g1, alignr_ps(p1, p0, 1)));
+            g2 = _mm256_shuffle_ps(gx, gx, _MM_SHUFFLE(2, 2, 2, 2));
+            pf = _mm256_add_ps(pf, _mm256_mul_ps(g2, alignr_ps(p1, p0, 2)));
+            g3 = _mm256_shuffle_ps(gx, gx, _MM_SHUFFLE(3, 3, 3, 3));
+            pf = _mm256_add_ps(pf, _mm256_mul_ps(g3, alignr_ps(p1, p0, 3)));
+        }
+
+        o = _mm256_shuffle_epi8(_mm256_cvtps_epi32(pf), Mu8);
+        *(int *)dst = _mm256_cvtsi256_si32(o);
+        *((int *)dst + 1) = _mm_cvtsi128_si32(_mm256_extracti128_si256(o, 1));
+        dst = (char *)dst + 8;
+    }
+
+    if (x1 < x2) {
+        rsdIntrinsicBlurHFU1_SSSE3_K(dst, pin, gptr, rct, x1, x2);
+    }
+}
+
+/*
+ * Blend kernels.  A 256-bit register holds the eight pixels of one count8
+ * step.  The blend functions below take four pixels of source and
+ * destination per lane widened to 16 bits, as unpacklo/unpackhi produce
+ * them, and return the result in the same layout.  Since unpack and pack
+ * both work within lanes the pixel order comes out unchanged.
+ */
+static inline AVX2_K __m256i alpha16(__m256i x) {
+    x = _mm256_shufflelo_epi16(x, 0xFF);
+    return _mm256_shufflehi_epi16(x, 0xFF);
+}
+
+static inline AVX2_K __m256i all1s16() {
+    return _mm256_set1_epi16(255);
+}
+
+static inline AVX2_K __m256i blendSrcOver(__m256i ins, __m256i outs) {
+    __m256i t = _mm256_mullo_epi16(outs, _mm256_sub_epi16(all1s16(), alpha16(ins)));
+    return _mm256_add_epi16(_mm256_srai_epi16(t, 8), ins);
+}
+
+static inline AVX2_K __m256i blendDstOver(__m256i ins, __m256i outs) {
+    __m256i t = _mm256_mullo_epi16(ins, _mm256_sub_epi16(all1s16(), alpha16(outs)));
+    return _mm256_add_epi16(_mm256_srai_epi16(t, 8), outs);
+}
+
+static inline AVX2_K __m256i blendSrcIn(__m256i ins, __m256i outs) {
+    return _mm256_srai_epi16(_mm256_mullo_epi16(ins, alpha16(outs)), 8);
+}
+
+static inline AVX2_K __m256i blendDstIn(__m256i ins, __m256i outs) {
+    return _mm256_srai_epi16(_mm256_mullo_epi16(outs, alpha16(ins)), 8);
+}
+
+static inline AVX2_K __m256i blendSrcOut(__m256i ins, __m256i outs) {
+    __m256i t = _mm256_mullo_epi16(ins, _mm256_sub_epi16(all1s16(), alpha16(outs)));
+    return _mm256_srai_epi16(t, 8);
+}
+
+static inline AVX2_K __m256i blendDstOut(__m256i ins, __m256i outs) {
+    __m256i t = _mm256_mullo_epi16(outs, _mm256_sub_epi16(all1s16(), alpha16(ins)));
+    return _mm256_srai_epi16(t, 8);
+}
+
+static inline AVX2_K __m256i blendSrcAtop(__m256i ins, __m256i outs) {
+    __m256i t = _mm256_mullo_epi16(_mm256_sub_epi16(all1s16(), alpha16(ins)), outs);
+    t = _mm256_adds_epu16(t, _mm256_mullo_epi16(alpha16(outs), ins));
+    return _mm256_srli_epi16(t, 8);
+}
+
+static inline AVX2_K __m256i blendDstAtop(__m256i ins, __m256i outs) {
+    __m256i t = _mm256_mullo_epi16(_mm256_sub_epi16(all1s16(), alpha16(outs)), ins);
+    t = _mm256_adds_epu16(t, _mm256_mullo_epi16(alpha16(ins), outs));
+    return _mm256_srli_epi16(t, 8);
+}
+
+static inline AVX2_K __m256i blendMultiply(__m256i ins, __m256i outs) {
+    return _mm256_srli_epi16(_mm256_mullo_epi16(ins, outs), 8);
+}
+
+/* keepDstAlpha copies the destination alpha into the result, as the Atop
+ * modes do. */
+template <__m256i (*blend)(__m256i, __m256i), bool keepDstAlpha>
+static inline AVX2_K void blend8(void *dst, const void *src, uint32_t count8) {
+    const __m256i M0001 = _mm256_set1_epi32(0xff000000);
+    const __m256i zero = _mm256_setzero_si256();
+    __m256i in, out, t0, t1;
+    uint32_t i;
+
+    for (i = 0; i < count8; ++i) {
+        in = loadu256(src);
+        out = loadu256(dst);
+
+        t0 = blend(_mm256_unpacklo_epi8(in, zero), _mm256_unpacklo_epi8(out, zero));
+        t1 = blend(_mm256_unpackhi_epi8(in, zero), _mm256_unpackhi_epi8(out, zero));
+        t0 = _mm256_packus_epi16(t0, t1);
+        if (keepDstAlpha) {
+            t0 = _mm256_blendv_epi8(t0, out, M0001);
+        }
+        storeu256(dst, t0);
+
+        src = (const __m256i *)src + 1;
+        dst = (__m256i *)dst + 1;
+    }
+}
+
+void AVX2_K rsdIntrinsicBlendSrcOver_AVX2_K(void *dst, const void *src, uint32_t count8) {
+    blend8<blendSrcOver, false>(dst, src, count8);
+}
+
+void AVX2_K rsdIntrinsicBlendDstOver_AVX2_K(void *dst, const void *src, uint32_t count8) {
+    blend8<blendDstOver, false>(dst, src, count8);
+}
+
+void AVX2_K rsdIntrinsicBlendSrcIn_AVX2_K(void *dst, const void *src, uint32_t count8) {
+    blend8<blendSrcIn, false>(dst, src, count8);
+}
+
+void AVX2_K rsdIntrinsicBlendDstIn_AVX2_K(void *dst, const void *src, uint32_t count8) {
+    blend8<blendDstIn, false>(dst, src, count8);
+}
+
+void AVX2_K rsdIntrinsicBlendSrcOut_AVX2_K(void *dst, const void *src, uint32_t count8) {
+    blend8<blendSrcOut, false>(dst, src, count8);
+}
+
+void AVX2_K rsdIntrinsicBlendDstOut_AVX2_K(void *dst, const void *src, uint32_t count8) {
+    blend8<blendDstOut, false>(dst, src, count8);
+}
+
+void AVX2_K rsdIntrinsicBlendSrcAtop_AVX2_K(void *dst, const void *src, uint32_t count8) {
+    blend8<blendSrcAtop, true>(dst, src, count8);
+}
+
+void AVX2_K rsdIntrinsicBlendDstAtop_AVX2_K(void *dst, const void *src, uint32_t count8) {
+    blend8<blendDstAtop, true>(dst, src, count8);
+}
+
+void AVX2_K rsdIntrinsicBlendMultiply_AVX2_K(void *dst, const void *src, uint32_t count8) {
+    blend8<blendMultiply, false>(dst, src, count8);
+}
+
+void AVX2_K rsdIntrinsicBlendXor_AVX2_K(void *dst, const void *src, uint32_t count8) {
+    for (uint32_t i = 0; i < count8; ++i) {
+        storeu256(dst, _mm256_xor_si256(loadu256(dst), loadu256(src)));
+        src = (const __m256i *)src + 1;
+        dst = (__m256i *)dst + 1;
+    }
+}
+
+void AVX2_K rsdIntrinsicBlendAdd_AVX2_K(void *dst, const void *src, uint32_t count8) {
+    for (uint32_t i = 0; i < count8; ++i) {
+        storeu256(dst, _mm256_adds_epu8(loadu256(dst), loadu256(src)));
+        src = (const __m256i *)src + 1;
+        dst = (__m256i *)dst + 1;
+    }
+}
+
+void AVX2_K rsdIntrinsicBlendSub_AVX2_K(void *dst, const void *src, uint32_t count8) {
+    for (uint32_t i = 0; i < count8; ++i) {
+        storeu256(dst, _mm256_subs_epu8(loadu256(dst), loadu256(src)));
+        src = (const __m256i *)src + 1;
+        dst = (__m256i *)dst + 1;
+    }
+}
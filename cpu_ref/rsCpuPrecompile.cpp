@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include "rsCpuPrecompile.h"
+#include "rsCpuCore.h"
+#include "rsCpuScript.h"
+
+#include <sys/resource.h>
+#include <unistd.h>
+
+#include <algorithm>
+
+using namespace android;
+using namespace android::renderscript;
+
+// bcc is mostly waited on, but each instance also wants a core and a few
+// hundred MB at peak, so the pool stays small.
+static const uint32_t kMaxPrecompileThreads = 4;
+
+// Run below the app's foreground threads, as ANDROID_PRIORITY_BACKGROUND.
+// The compiler processes inherit this.
+static const int kPrecompilePriority = 10;
+
+CpuPrecompiler::CpuPrecompiler(RsdCpuReferenceImpl *ctx) {
+    mCtx = ctx;
+    const char *plugin = ctx->getBccPluginName();
+    if (plugin) {
+        mBccPluginName = plugin;
+    }
+    pthread_mutex_init(&mLock, nullptr);
+    pthread_cond_init(&mCond, nullptr);
+    mExit = false;
+    mDone = 0;
+    mTotal = 0;
+}
+
+CpuPrecompiler::~CpuPrecompiler() {
+    pthread_mutex_lock(&mLock);
+    mExit = true;
+    std::deque<Job *> dropped;
+    dropped.swap(mQueue);
+    pthread_cond_broadcast(&mCond);
+    pthread_mutex_unlock(&mLock);
+
+    for (pthread_t t : mThreads) {
+        pthread_join(t, nullptr);
+    }
+
+    for (Job *job : dropped) {
+        for (const Request &r : job->requests) {
+            if (r.cb) {
+                r.cb(r.usr, job->resName.c_str(), false, 0, 0);
+            }
+        }
+        delete job;
+    }
+
+    pthread_cond_destroy(&mCond);
+    pthread_mutex_destroy(&mLock);
+}
+
+void CpuPrecompiler::add(char const *resName, char const *cacheDir,
+                         uint8_t const *bitcode, size_t bitcodeSize,
+                         RsdCpuReference::PrecompileCallback cb, void *usr) {
+    std::vector<uint8_t> copy(bitcode, bitcode + bitcodeSize);
+    Request request = { cb, usr };
+
+    pthread_mutex_lock(&mLock);
+    mTotal++;
+
+    // A queued build of the same script takes the latest bitcode and
+    // reports to both requests.
+    auto it = findQueued(resName, cacheDir);
+    if (it != mQueue.end()) {
+        (*it)->bitcode.swap(copy);
+        (*it)->requests.push_back(request);
+        pthread_mutex_unlock(&mLock);
+        return;
+    }
+
+    Job *job = new Job();
+    job->resName = resName;
+    job->cacheDir = cacheDir;
+    job->bitcode.swap(copy);
+    job->requests.push_back(request);
+    mQueue.push_back(job);
+
+    // Threads are started as the backlog grows and then stay around idle.
+    long cpus = sysconf(_SC_NPROCESSORS_ONLN);
+    size_t maxThreads = std::min<size_t>(std::max(cpus, 1L), kMaxPrecompileThreads);
+    if (mThreads.size() < maxThreads &&
+        mThreads.size() < mQueue.size() + mRunning.size()) {
+        pthread_t t;
+        if (pthread_create(&t, nullptr, threadProc, this) == 0) {
+            mThreads.push_back(t);
+        } else {
+            ALOGE("Failed to start precompile thread");
+        }
+    }
+    pthread_cond_signal(&mCond);
+    pthread_mutex_unlock(&mLock);
+}
+
+std::deque<CpuPrecompiler::Job *>::iterator CpuPrecompiler::findQueued(
+        char const *resName, char const *cacheDir) {
+    for (auto it = mQueue.begin(); it != mQueue.end(); ++it) {
+        if ((*it)->resName == resName && (*it)->cacheDir == cacheDir) {
+            return it;
+        }
+    }
+    return mQueue.end();
+}
+
+bool CpuPrecompiler::isRunning(std::string const &resName,
+                               std::string const &cacheDir) const {
+    for (Job *job : mRunning) {
+        if (job->resName == resName && job->cacheDir == cacheDir) {
+            return true;
+        }
+    }
+    return false;
+}
+
+void CpuPrecompiler::wait(char const *resName, char const *cacheDir) {
+    pthread_mutex_lock(&mLock);
+    Job *queued = nullptr;
+    auto it = findQueued(resName, cacheDir);
+    if (it != mQueue.end()) {
+        queued = *it;
+        mQueue.erase(it);
+    }
+
+    std::string name(resName);
+    std::string dir(cacheDir);
+    while (isRunning(name, dir)) {
+        pthread_cond_wait(&mCond, &mLock);
+    }
+    pthread_mutex_unlock(&mLock);
+
+    if (queued) {
+        finishJob(queued, true);
+    }
+}
+
+void CpuPrecompiler::finishJob(Job *job, bool success) {
+    pthread_mutex_lock(&mLock);
+    mRunning.erase(std::remove(mRunning.begin(), mRunning.end(), job), mRunning.end());
+    mDone += job->requests.size();
+    uint32_t done = mDone - job->requests.size();
+    uint32_t total = mTotal;
+    if (mQueue.empty() && mRunning.empty()) {
+        mDone = 0;
+        mTotal = 0;
+    }
+    pthread_cond_broadcast(&mCond);
+    pthread_mutex_unlock(&mLock);
+
+    for (const Request &r : job->requests) {
+        done++;
+        if (r.cb) {
+            r.cb(r.usr, job->resName.c_str(), success, done, total);
+        }
+    }
+    delete job;
+}
+
+void * CpuPrecompiler::threadProc(void *vp) {
+    CpuPrecompiler *p = (CpuPrecompiler *)vp;
+    setpriority(PRIO_PROCESS, 0, kPrecompilePriority);
+    p->run();
+    return nullptr;
+}
+
+void CpuPrecompiler::run() {
+    pthread_mutex_lock(&mLock);
+    while (!mExit) {
+        // Skip jobs whose script another thread is still building, they
+        // are started once it is done.
+        auto it = mQueue.begin();
+        while (it != mQueue.end() && isRunning((*it)->resName, (*it)->cacheDir)) {
+            ++it;
+        }
+        if (it == mQueue.end()) {
+            pthread_cond_wait(&mCond, &mLock);
+            continue;
+        }
+        Job *job = *it;
+        mQueue.erase(it);
+        mRunning.push_back(job);
+        pthread_mutex_unlock(&mLock);
+
+        bool success = RsdCpuScriptImpl::precompile(
+                mCtx, job->resName.c_str(), job->cacheDir.c_str(),
+                job->bitcode.data(), job->bitcode.size(),
+                mBccPluginName.empty() ? nullptr : mBccPluginName.c_str());
+        finishJob(job, success);
+
+        pthread_mutex_lock(&mLock);
+    }
+    pthread_mutex_unlock(&mLock);
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef RSD_CPU_PRECOMPILE_H
+#define RSD_CPU_PRECOMPILE_H
+
+#include "rsd_cpu.h"
+
+#include <pthread.h>
+
+#include <deque>
+#include <string>
+#include <vector>
+
+namespace android {
+namespace renderscript {
+
+class RsdCpuReferenceImpl;
+
+// Background pool building script shared objects ahead of createScript().
+//
+// Each job runs RsdCpuScriptImpl::precompile(), which leaves the result in
+// the cache dir where init() picks it up.  Most of the time of a job is
+// spent waiting for the bcc and linker processes, so a few threads keep
+// several cores busy.
+//
+// Requests for a script that is already queued are merged into the queued
+// job, and a job is not started while another one builds the same script,
+// so two builds never write the same output file.
+class CpuPrecompiler {
+public:
+    explicit CpuPrecompiler(RsdCpuReferenceImpl *ctx);
+    // Drops jobs that have not started, reporting them as dropped, and waits
+    // for the running ones.
+    ~CpuPrecompiler();
+
+    void add(char const *resName, char const *cacheDir,
+             uint8_t const *bitcode, size_t bitcodeSize,
+             RsdCpuReference::PrecompileCallback cb, void *usr);
+
+    // Make sure no job is building resName in cacheDir, so the caller can
+    // load or build it.  A running job is waited for, a queued one is
+    // dropped and reported as done since the caller is about to build the
+    // script anyway.
+    void wait(char const *resName, char const *cacheDir);
+
+private:
+    struct Request {
+        RsdCpuReference::PrecompileCallback cb;
+        void *usr;
+    };
+
+    struct Job {
+        std::string resName;
+        std::string cacheDir;
+        std::vector<uint8_t> bitcode;
+        // Every request merged into this job, in the order they were made.
+        std::vector<Request> requests;
+    };
+
+    static void * threadProc(void *vp);
+    void run();
+    void finishJob(Job *job, bool success);
+
+    // These expect mLock to be held.
+    std::deque<Job *>::iterator findQueued(char const *resName, char const *cacheDir);
+    bool isRunning(std::string const &resName, std::string const &cacheDir) const;
+
+    RsdCpuReferenceImpl *mCtx;
+    std::string mBccPluginName;
+
+    pthread_mutex_t mLock;
+    // Signalled when a job is queued or finished and on exit.
+    pthread_cond_t mCond;
+    std::deque<Job *> mQueue;
+    std::vector<Job *> mRunning;
+    std::vector<pthread_t> mThreads;
+    bool mExit;
+
+    // Progress since the queue last ran empty.
+    uint32_t mDone;
+    uint32_t mTotal;
+};
+
+}
+}
+
+#endif
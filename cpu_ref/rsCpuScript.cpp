@@ -32,10 +32,15 @@
     #include <cutils/properties.h>
 
     #include <zlib.h>
+    #include <limits.h>
+    #include <pthread.h>
+    #include <stdio.h>
     #include <sys/file.h>
+    #include <sys/stat.h>
     #include <sys/types.h>
     #include <unistd.h>
 
+    #include <map>
     #include <string>
     #include <vector>
 #endif
@@ -195,6 +200,188 @@ bool addFileToChecksum(const char *fileName, uint32_t &checksum) {
     return true;
 }
 
+// The build checksum covers the bcc binary and the core library, several
+// megabytes that rarely change.  The cache manifest remembers the adler32 of
+// each such file along with the size and mtime it was computed at, so they
+// are only read again after they change.  It also records the build checksum
+// each cached shared object was linked with, which lets background
+// precompilation tell that a script is up to date without loading it.
+//
+// The manifest is a text file in the cache dir, one "checksum size mtime
+// path" line per file.  Entries only ever save work, so a missing or damaged
+// manifest simply means everything is hashed again.
+static const char *kManifestName = "rs_cache.manifest";
+
+struct ManifestEntry {
+    uint32_t checksum;
+    uint64_t size;
+    int64_t mtime;
+};
+
+typedef std::map<std::string, ManifestEntry> Manifest;
+
+static pthread_mutex_t gManifestLock = PTHREAD_MUTEX_INITIALIZER;
+static std::map<std::string, Manifest> gManifests;
+
+static bool statFile(const char *fileName, uint64_t *size, int64_t *mtime) {
+    struct stat st;
+    if (stat(fileName, &st) != 0) {
+        return false;
+    }
+    *size = st.st_size;
+    *mtime = (int64_t)st.st_mtim.tv_sec * 1000000000 + st.st_mtim.tv_nsec;
+    return true;
+}
+
+// Must be called with gManifestLock held.
+static Manifest & getManifest(const char *cacheDir) {
+    auto it = gManifests.find(cacheDir);
+    if (it != gManifests.end()) {
+        return it->second;
+    }
+
+    Manifest &m = gManifests[cacheDir];
+    std::string name(cacheDir);
+    name.append("/");
+    name.append(kManifestName);
+    FILE *f = fopen(name.c_str(), "r");
+    if (f == nullptr) {
+        return m;
+    }
+    char path[PATH_MAX];
+    ManifestEntry e;
+    unsigned long long size;
+    long long mtime;
+    while (fscanf(f, "%x %llu %lld %4095s", &e.checksum, &size, &mtime, path) == 4) {
+        e.size = size;
+        e.mtime = mtime;
+        m[path] = e;
+    }
+    fclose(f);
+    return m;
+}
+
+// Must be called with gManifestLock held.  The manifest is written to a
+// temporary file and renamed so readers never see a partial one.
+static void saveManifest(const char *cacheDir, const Manifest &m) {
+    std::string name(cacheDir);
+    name.append("/");
+    name.append(kManifestName);
+    std::string tmpName(name);
+    tmpName.append(".tmp");
+
+    FILE *f = fopen(tmpName.c_str(), "w");
+    if (f == nullptr) {
+        return;
+    }
+    for (auto &it : m) {
+        fprintf(f, "%08x %llu %lld %s\n", it.second.checksum,
+                (unsigned long long)it.second.size, (long long)it.second.mtime,
+                it.first.c_str());
+    }
+    if (fclose(f) != 0 || rename(tmpName.c_str(), name.c_str()) != 0) {
+        unlink(tmpName.c_str());
+    }
+}
+
+// Look up the checksum recorded for fileName, if the file still has the size
+// and mtime it had when the checksum was recorded.
+static bool lookupManifest(const char *cacheDir, const char *fileName,
+                           uint64_t size, int64_t mtime, uint32_t *checksum) {
+    pthread_mutex_lock(&gManifestLock);
+    const Manifest &m = getManifest(cacheDir);
+    auto it = m.find(fileName);
+    bool found = it != m.end() && it->second.size == size && it->second.mtime == mtime;
+    if (found) {
+        *checksum = it->second.checksum;
+    }
+    pthread_mutex_unlock(&gManifestLock);
+    return found;
+}
+
+static void updateManifest(const char *cacheDir, const char *fileName,
+                           uint64_t size, int64_t mtime, uint32_t checksum) {
+    pthread_mutex_lock(&gManifestLock);
+    Manifest &m = getManifest(cacheDir);
+    ManifestEntry &e = m[fileName];
+    e.checksum = checksum;
+    e.size = size;
+    e.mtime = mtime;
+    saveManifest(cacheDir, m);
+    pthread_mutex_unlock(&gManifestLock);
+}
+
+// Same result as addFileToChecksum(), but reuses the checksum recorded in the
+// manifest when the file has not changed.  The file's own adler32 is folded
+// into the running checksum with adler32_combine(), which is equivalent to
+// streaming the file through it.
+bool addCachedFileToChecksum(const char *fileName, const char *cacheDir,
+                             uint32_t &checksum) {
+    // The manifest format cannot hold such names.
+    if (strpbrk(fileName, " \t\n") != nullptr) {
+        return addFileToChecksum(fileName, checksum);
+    }
+
+    uint64_t size;
+    int64_t mtime;
+    if (!statFile(fileName, &size, &mtime)) {
+        ALOGE("Cannot stat file \'%s\' to compute checksum", fileName);
+        return false;
+    }
+
+    uint32_t fileChecksum;
+    if (!lookupManifest(cacheDir, fileName, size, mtime, &fileChecksum)) {
+        // The stat from before the read is recorded, so a file that changes
+        // while being read is simply hashed again next time.
+        fileChecksum = adler32(0L, Z_NULL, 0);
+        if (!addFileToChecksum(fileName, fileChecksum)) {
+            return false;
+        }
+        updateManifest(cacheDir, fileName, size, mtime, fileChecksum);
+    }
+
+    checksum = adler32_combine(checksum, fileChecksum, size);
+    return true;
+}
+
+// Remember which build checksum the shared object for resName was linked
+// with.
+void recordSharedLibrary(const char *cacheDir, const char *resName,
+                         uint32_t buildChecksum) {
+    android::String8 soName =
+            android::renderscript::SharedLibraryUtils::getSharedLibraryPath(cacheDir, resName);
+    uint64_t size;
+    int64_t mtime;
+    uint32_t recorded;
+    if (!statFile(soName.string(), &size, &mtime) ||
+        (lookupManifest(cacheDir, soName.string(), size, mtime, &recorded) &&
+         recorded == buildChecksum)) {
+        return;
+    }
+    updateManifest(cacheDir, soName.string(), size, mtime, buildChecksum);
+}
+
+// Returns true if init() would load the cached shared object for resName
+// rather than compile it again.  Without checksum verification init() takes
+// any shared object it finds, otherwise the manifest must show it was built
+// with buildChecksum.
+bool isSharedLibraryCurrent(const char *cacheDir, const char *resName,
+                            uint32_t buildChecksum, bool checksumNeeded) {
+    android::String8 soName =
+            android::renderscript::SharedLibraryUtils::getSharedLibraryPath(cacheDir, resName);
+    uint64_t size;
+    int64_t mtime;
+    if (!statFile(soName.string(), &size, &mtime)) {
+        return false;
+    }
+    if (!checksumNeeded) {
+        return true;
+    }
+    uint32_t recorded;
+    return lookupManifest(cacheDir, soName.string(), size, mtime, &recorded) &&
+           recorded == buildChecksum;
+}
+
 #endif  // !defined(RS_COMPATIBILITY_LIB)
 }  // namespace
 
@@ -205,7 +392,8 @@ namespace renderscript {
 
 uint32_t constructBuildChecksum(uint8_t const *bitcode, size_t bitcodeSize,
                                 const char *commandLine,
-                                const char** bccFiles, size_t numFiles) {
+                                const char** bccFiles, size_t numFiles,
+                                const char *cacheDir) {
     uint32_t checksum = adler32(0L, Z_NULL, 0);
 
     // include checksum of bitcode
@@ -220,7 +408,12 @@ uint32_t constructBuildChecksum(uint8_t const *bitcode, size_t bitcodeSize,
     // include checksum of bccFiles
     for (size_t i = 0; i < numFiles; i++) {
         const char* bccFile = bccFiles[i];
-        if (bccFile[0] != 0 && !addFileToChecksum(bccFile, checksum)) {
+        if (bccFile[0] == 0) {
+            continue;
+        }
+        bool ok = cacheDir ? addCachedFileToChecksum(bccFile, cacheDir, checksum)
+                           : addFileToChecksum(bccFile, checksum);
+        if (!ok) {
             // return empty checksum instead of something partial/corrupt
             return 0;
         }
@@ -253,6 +446,7 @@ RsdCpuScriptImpl::RsdCpuScriptImpl(RsdCpuReferenceImpl *ctx, const Script *s) {
     mIsThreadable = true;
 
     mBuildChecksum = 0;
+    mBitcodeChecksum = 0;
     mChecksumNeeded = false;
 }
 
@@ -300,61 +494,38 @@ bool RsdCpuScriptImpl::storeRSInfoFromSO() {
     return true;
 }
 
-bool RsdCpuScriptImpl::init(char const *resName, char const *cacheDir,
-                            uint8_t const *bitcode, size_t bitcodeSize,
-                            uint32_t flags, char const *bccPluginName) {
-    //ALOGE("rsdScriptCreate %p %p %p %p %i %i %p", rsc, resName, cacheDir,
-    // bitcode, bitcodeSize, flags, lookupFunc);
-    //ALOGE("rsdScriptInit %p %p", rsc, script);
-
-    mCtx->lockMutex();
 #ifndef RS_COMPATIBILITY_LIB
-    bool useRSDebugContext = false;
-
-    mCompilerDriver = nullptr;
-
-    mCompilerDriver = new bcc::RSCompilerDriver();
-    if (mCompilerDriver == nullptr) {
-        ALOGE("bcc: FAILS to create compiler driver (out of memory)");
-        mCtx->unlockMutex();
-        return false;
-    }
-
-    // Run any compiler setup functions we have been provided with.
-    RSSetupCompilerCallback setupCompilerCallback =
-            mCtx->getSetupCompilerCallback();
-    if (setupCompilerCallback != nullptr) {
-        setupCompilerCallback(mCompilerDriver);
-    }
 
+bool RsdCpuScriptImpl::setupBuild(RsdCpuReferenceImpl *ctx, char const *resName,
+                                  char const *cacheDir, uint8_t const *bitcode,
+                                  size_t bitcodeSize, char const *bccPluginName,
+                                  BuildInfo *build) {
     bcinfo::MetadataExtractor bitcodeMetadata((const char *) bitcode, bitcodeSize);
     if (!bitcodeMetadata.extract()) {
         ALOGE("Could not extract metadata from bitcode");
-        mCtx->unlockMutex();
         return false;
     }
 
-    const char* core_lib = findCoreLib(bitcodeMetadata, (const char*)bitcode, bitcodeSize);
+    const char* core_lib = findCoreLib(ctx, bitcodeMetadata, (const char*)bitcode, bitcodeSize);
 
-    if (mCtx->getContext()->getContextType() == RS_CONTEXT_TYPE_DEBUG) {
-        mCompilerDriver->setDebugContext(true);
-        useRSDebugContext = true;
-    }
+    build->useRSDebugContext =
+            ctx->getContext()->getContextType() == RS_CONTEXT_TYPE_DEBUG;
 
-    std::string bcFileName(cacheDir);
-    bcFileName.append("/");
-    bcFileName.append(resName);
-    bcFileName.append(".bc");
+    build->bcFileName.assign(cacheDir);
+    build->bcFileName.append("/");
+    build->bcFileName.append(resName);
+    build->bcFileName.append(".bc");
 
-    std::vector<const char*> compileArguments;
-    bool emitGlobalInfo = mCtx->getEmbedGlobalInfo();
-    bool emitGlobalInfoSkipConstant = mCtx->getEmbedGlobalInfoSkipConstant();
-    setCompileArguments(&compileArguments, bcFileName, cacheDir, resName, core_lib,
-                        useRSDebugContext, bccPluginName, emitGlobalInfo,
+    std::vector<const char*> &compileArguments = build->compileArguments;
+    compileArguments.clear();
+    bool emitGlobalInfo = ctx->getEmbedGlobalInfo();
+    bool emitGlobalInfoSkipConstant = ctx->getEmbedGlobalInfoSkipConstant();
+    setCompileArguments(&compileArguments, build->bcFileName, cacheDir, resName, core_lib,
+                        build->useRSDebugContext, bccPluginName, emitGlobalInfo,
                         emitGlobalInfoSkipConstant);
 
-    mChecksumNeeded = isChecksumNeeded(cacheDir);
-    if (mChecksumNeeded) {
+    build->checksumNeeded = isChecksumNeeded(cacheDir);
+    if (build->checksumNeeded) {
         std::vector<const char *> bccFiles = { BCC_EXE_PATH,
                                                core_lib,
                                              };
@@ -364,19 +535,19 @@ bool RsdCpuScriptImpl::init(char const *resName, char const *cacheDir,
         std::unique_ptr<const char> compileCommandLine(
             rsuJoinStrings(compileArguments.size()-1, compileArguments.data()));
 
-        mBuildChecksum = constructBuildChecksum(bitcode, bitcodeSize,
-                                                compileCommandLine.get(),
-                                                bccFiles.data(), bccFiles.size());
+        build->checksum = constructBuildChecksum(bitcode, bitcodeSize,
+                                                 compileCommandLine.get(),
+                                                 bccFiles.data(), bccFiles.size(),
+                                                 cacheDir);
 
-        if (mBuildChecksum == 0) {
+        if (build->checksum == 0) {
             // cannot compute checksum but verification is enabled
-            mCtx->unlockMutex();
             return false;
         }
     }
     else {
         // add a dummy/constant as a checksum if verification is disabled
-        mBuildChecksum = 0xabadcafe;
+        build->checksum = 0xabadcafe;
     }
 
     // Append build checksum to commandline
@@ -384,11 +555,84 @@ bool RsdCpuScriptImpl::init(char const *resName, char const *cacheDir,
     compileArguments.pop_back();
     compileArguments.push_back("-build-checksum");
     std::stringstream ss;
-    ss << std::hex << mBuildChecksum;
-    compileArguments.push_back(ss.str().c_str());
+    ss << std::hex << build->checksum;
+    build->checksumStr = ss.str();
+    compileArguments.push_back(build->checksumStr.c_str());
     compileArguments.push_back(nullptr);
+    return true;
+}
+
+bool RsdCpuScriptImpl::precompile(RsdCpuReferenceImpl *ctx, char const *resName,
+                                  char const *cacheDir, uint8_t const *bitcode,
+                                  size_t bitcodeSize, char const *bccPluginName) {
+    // init() compiles these unconditionally, so there is nothing to gain.
+    if (is_force_recompile() ||
+        ctx->getContext()->getContextType() == RS_CONTEXT_TYPE_DEBUG) {
+        return true;
+    }
+
+    BuildInfo build;
+    if (!setupBuild(ctx, resName, cacheDir, bitcode, bitcodeSize, bccPluginName, &build)) {
+        return false;
+    }
+    if (isSharedLibraryCurrent(cacheDir, resName, build.checksum, build.checksumNeeded)) {
+        return true;
+    }
+
+    if (!compileBitcode(build.bcFileName, (const char*)bitcode, bitcodeSize,
+                        build.compileArguments)) {
+        ALOGE("bcc: FAILS to precompile '%s'", resName);
+        return false;
+    }
+    if (!SharedLibraryUtils::createSharedLibrary(ctx->getContext()->getDriverName(),
+                                                 cacheDir, resName)) {
+        ALOGE("Linker: Failed to link object file '%s'", resName);
+        return false;
+    }
+    recordSharedLibrary(cacheDir, resName, build.checksum);
+    return true;
+}
+
+#endif  // !RS_COMPATIBILITY_LIB
+
+bool RsdCpuScriptImpl::init(char const *resName, char const *cacheDir,
+                            uint8_t const *bitcode, size_t bitcodeSize,
+                            uint32_t flags, char const *bccPluginName) {
+    //ALOGE("rsdScriptCreate %p %p %p %p %i %i %p", rsc, resName, cacheDir,
+    // bitcode, bitcodeSize, flags, lookupFunc);
+    //ALOGE("rsdScriptInit %p %p", rsc, script);
+
+    mCtx->lockMutex();
+#ifndef RS_COMPATIBILITY_LIB
+    mCompilerDriver = nullptr;
+
+    mCompilerDriver = new bcc::RSCompilerDriver();
+    if (mCompilerDriver == nullptr) {
+        ALOGE("bcc: FAILS to create compiler driver (out of memory)");
+        mCtx->unlockMutex();
+        return false;
+    }
+
+    // Run any compiler setup functions we have been provided with.
+    RSSetupCompilerCallback setupCompilerCallback =
+            mCtx->getSetupCompilerCallback();
+    if (setupCompilerCallback != nullptr) {
+        setupCompilerCallback(mCompilerDriver);
+    }
+
+    BuildInfo build;
+    if (!setupBuild(mCtx, resName, cacheDir, bitcode, bitcodeSize, bccPluginName, &build)) {
+        mCtx->unlockMutex();
+        return false;
+    }
+
+    if (build.useRSDebugContext) {
+        mCompilerDriver->setDebugContext(true);
+    }
+    mChecksumNeeded = build.checksumNeeded;
+    mBuildChecksum = build.checksum;
 
-    if (!is_force_recompile() && !useRSDebugContext) {
+    if (!is_force_recompile() && !build.useRSDebugContext) {
         mScriptSO = SharedLibraryUtils::loadSharedLibrary(cacheDir, resName);
 
         // Read RS info from the shared object to detect checksum mismatch
@@ -401,8 +645,8 @@ bool RsdCpuScriptImpl::init(char const *resName, char const *cacheDir,
     // If we can't, it's either not there or out of date.  We compile the bit code and try loading
     // again.
     if (mScriptSO == nullptr) {
-        if (!compileBitcode(bcFileName, (const char*)bitcode, bitcodeSize,
-                            compileArguments))
+        if (!compileBitcode(build.bcFileName, (const char*)bitcode, bitcodeSize,
+                            build.compileArguments))
         {
             ALOGE("bcc: FAILS to compile '%s'", resName);
             mCtx->unlockMutex();
@@ -415,6 +659,7 @@ bool RsdCpuScriptImpl::init(char const *resName, char const *cacheDir,
             mCtx->unlockMutex();
             return false;
         }
+        recordSharedLibrary(cacheDir, resName, mBuildChecksum);
 
         mScriptSO = SharedLibraryUtils::loadSharedLibrary(cacheDir, resName);
         if (mScriptSO == nullptr) {
@@ -427,9 +672,16 @@ bool RsdCpuScriptImpl::init(char const *resName, char const *cacheDir,
         if (!storeRSInfoFromSO()) {
             goto error;
         }
+    } else if (mChecksumNeeded) {
+        // The checksum was verified on load, note it for precompile().
+        recordSharedLibrary(cacheDir, resName, mBuildChecksum);
     }
 
-    mBitcodeFilePath.setTo(bcFileName.c_str());
+    mBitcodeFilePath.setTo(build.bcFileName.c_str());
+    // Fused ScriptGroup2 objects are cached by the contents of their inputs.
+    // The bitcode is already in memory, so this is cheap next to hashing the
+    // .bc file on every group creation.
+    mBitcodeChecksum = adler32(adler32(0L, Z_NULL, 0), bitcode, bitcodeSize);
 
 #else  // RS_COMPATIBILITY_LIB is defined
     const char *nativeLibDir = mCtx->getContext()->getNativeLibDir();
@@ -458,17 +710,18 @@ error:
 
 #ifndef RS_COMPATIBILITY_LIB
 
-const char* RsdCpuScriptImpl::findCoreLib(const bcinfo::MetadataExtractor& ME, const char* bitcode,
+const char* RsdCpuScriptImpl::findCoreLib(RsdCpuReferenceImpl *ctx,
+                                          const bcinfo::MetadataExtractor& ME, const char* bitcode,
                                           size_t bitcodeSize) {
     const char* defaultLib = SYSLIBPATH"/libclcore.bc";
 
     // If we're debugging, use the debug library.
-    if (mCtx->getContext()->getContextType() == RS_CONTEXT_TYPE_DEBUG) {
+    if (ctx->getContext()->getContextType() == RS_CONTEXT_TYPE_DEBUG) {
         return SYSLIBPATH"/libclcore_debug.bc";
     }
 
     // If a callback has been registered to specify a library, use that.
-    RSSelectRTCallback selectRTCallback = mCtx->getSelectRTCallback();
+    RSSelectRTCallback selectRTCallback = ctx->getSelectRTCallback();
     if (selectRTCallback != nullptr) {
         return selectRTCallback((const char*)bitcode, bitcodeSize);
     }
@@ -21,7 +21,9 @@
 #include <rsRuntime.h>
 
 #ifndef RS_COMPATIBILITY_LIB
+#include <string>
 #include <utility>
+#include <vector>
 #endif
 
 #include "rsCpuCore.h"
@@ -57,6 +59,14 @@ public:
     bool init(char const *resName, char const *cacheDir,
               uint8_t const *bitcode, size_t bitcodeSize, uint32_t flags,
               char const *bccPluginName = nullptr);
+#ifndef RS_COMPATIBILITY_LIB
+    // Compile and link the shared object init() would use for this bitcode,
+    // unless an up to date one is already in cacheDir.  Does not take the
+    // context lock, so several scripts can be built in parallel.
+    static bool precompile(RsdCpuReferenceImpl *ctx, char const *resName,
+                           char const *cacheDir, uint8_t const *bitcode,
+                           size_t bitcodeSize, char const *bccPluginName);
+#endif
     void populateScript(Script *) override;
 
     void invokeFunction(uint32_t slot, const void *params, size_t paramLength) override;
@@ -101,6 +111,15 @@ public:
 
     virtual void forEachKernelSetup(uint32_t slot, MTLaunchStruct *mtls);
 
+    // How many rows above and below the one being written the kernel in slot
+    // reads from the allocation bound to global fieldSlot, or -1 if the reads
+    // are not confined to nearby rows.  ScriptGroup2 only runs a kernel tile
+    // by tile behind the kernel producing that allocation when this is known,
+    // so it must not depend on the values of other globals.
+    virtual int getKernelInputHalo(uint32_t slot, uint32_t fieldSlot) const {
+        return -1;
+    }
+
 
     const RsdCpuReference::CpuSymbol * lookupSymbolMath(const char *sym);
     static void * lookupRuntimeStub(void* pContext, char const* name);
@@ -121,8 +140,25 @@ protected:
 
 #ifndef RS_COMPATIBILITY_LIB
     // Returns the path to the core library we'll use.
-    const char* findCoreLib(const bcinfo::MetadataExtractor& bitCodeMetaData, const char* bitcode,
-                            size_t bitcodeSize);
+    static const char* findCoreLib(RsdCpuReferenceImpl *ctx,
+                                   const bcinfo::MetadataExtractor& bitCodeMetaData,
+                                   const char* bitcode, size_t bitcodeSize);
+
+    // The bcc command line for a script and the build checksum it embeds.
+    // compileArguments points into the strings held here.
+    struct BuildInfo {
+        std::string bcFileName;
+        std::string checksumStr;
+        std::vector<const char*> compileArguments;
+        uint32_t checksum;
+        bool checksumNeeded;
+        bool useRSDebugContext;
+    };
+
+    static bool setupBuild(RsdCpuReferenceImpl *ctx, char const *resName,
+                           char const *cacheDir, uint8_t const *bitcode,
+                           size_t bitcodeSize, char const *bccPluginName,
+                           BuildInfo *build);
 
     bcc::RSCompilerDriver *mCompilerDriver;
 #endif
@@ -140,9 +176,12 @@ protected:
 public:
     static const char* BCC_EXE_PATH;
     const char* getBitcodeFilePath() const { return mBitcodeFilePath.string(); }
+    // Checksum of the bitcode alone, independent of compile options.
+    uint32_t getBitcodeChecksum() const { return mBitcodeChecksum; }
 
 private:
     String8 mBitcodeFilePath;
+    uint32_t mBitcodeChecksum;
     uint32_t mBuildChecksum;
     bool mChecksumNeeded;
 };
@@ -152,9 +191,12 @@ Allocation * rsdScriptGetAllocationForPointer(
                         const Script *script,
                         const void *);
 
+// When cacheDir is given, the checksums of bccFiles are looked up in (and
+// added to) the cache manifest there instead of always reading the files.
 uint32_t constructBuildChecksum(uint8_t const *bitcode, size_t bitcodeSize,
                                 const char *commandLine,
-                                const char ** bccFiles, size_t numFiles);
+                                const char ** bccFiles, size_t numFiles,
+                                const char *cacheDir = nullptr);
 
 }
 
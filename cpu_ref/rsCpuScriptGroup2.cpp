@@ -5,6 +5,8 @@
 #include <stdlib.h>
 #include <unistd.h>
 
+#include <iomanip>
+#include <map>
 #include <set>
 #include <sstream>
 #include <string>
@@ -12,6 +14,8 @@
 
 #ifndef RS_COMPATIBILITY_LIB
 #include "bcc/Config/Config.h"
+#include <cutils/properties.h>
+#include <sys/stat.h>
 #endif
 
 #include "cpu_ref/rsCpuCore.h"
@@ -75,17 +79,406 @@ void groupRoot(const RsExpandKernelDriverInfo *kinfo, uint32_t xstart,
         rsAssert(kinfo->outLen <= 1);
         mutable_kinfo->outPtr[0] = const_cast<uint8_t*>(ptr);
 
+        mutable_kinfo->usr = cpuClosure->mUsr;
         cpuClosure->mFunc(kinfo, xstart, xend, ostep);
     }
 
     mutable_kinfo->inLen = oldInLen;
     memcpy(&mutable_kinfo->inStride, &oldInStride, sizeof(oldInStride));
+    mutable_kinfo->usr = &closures;
+}
+
+// Bytes of intermediate rows a tile of a TiledChain aims to keep in cache,
+// about one core's share of a typical L2.
+const size_t kTileCacheBytes = 256 * 1024;
+
+// Bands a TiledChain is split into per worker, so that a worker finishing
+// early can take over another band.
+const uint32_t kBandsPerThread = 4;
+
+const size_t kMaxTiledStages = 16;
+
+// Runs a launch set up by Batch::setupLaunch over rows [start, end), or over
+// x in [start, end) if the launch is 1D, as walk_2d and walk_1d would.
+void runSlice(const MTLaunchStruct* mtls, uint32_t lid, uint32_t start, uint32_t end) {
+    RsExpandKernelDriverInfo fep = mtls->fep;
+    fep.lid = lid;
+    ExpandFuncTy fn = (ExpandFuncTy)mtls->kernel;
+
+    const bool is2D = fep.dim.y > 1;
+    const uint32_t xStart = is2D ? mtls->start.x : start;
+    const uint32_t xEnd = is2D ? mtls->end.x : end;
+    const uint32_t yStart = is2D ? start : 0;
+    const uint32_t yEnd = is2D ? end : 1;
+
+    for (fep.current.y = yStart; fep.current.y < yEnd; fep.current.y++) {
+        for (uint32_t i = 0; i < fep.inLen; i++) {
+            fep.inPtr[i] = (const uint8_t *)mtls->ains[i]->getPointerUnchecked(
+                    xStart, fep.current.y);
+        }
+        if (mtls->aout[0] != nullptr) {
+            fep.outPtr[0] = (uint8_t *)mtls->aout[0]->getPointerUnchecked(
+                    xStart, fep.current.y);
+        }
+        fn(&fep, xStart, xEnd, fep.outStride[0]);
+    }
+}
+
+// Slices of the launches of several batches, handed out to the workers from
+// a single launch.  The slices of launch k are numbered from sliceBase[k] to
+// sliceBase[k + 1].
+struct SharedLaunch {
+    const MTLaunchStruct* launches;
+    const uint32_t* sliceBase;
+    const uint32_t* sliceSize;
+    uint32_t count;
+    volatile int next;
+};
+
+void sharedWorker(void* usr, uint32_t idx) {
+    SharedLaunch* sl = (SharedLaunch*)usr;
+    uint32_t k = 0;
+
+    while (1) {
+        const uint32_t slice = (uint32_t)__sync_fetch_and_add(&sl->next, 1);
+        if (slice >= sl->sliceBase[sl->count]) {
+            return;
+        }
+        // A worker's slices only ever increase.
+        while (slice >= sl->sliceBase[k + 1]) {
+            k++;
+        }
+
+        const MTLaunchStruct* mtls = &sl->launches[k];
+        const bool is2D = mtls->fep.dim.y > 1;
+        const uint32_t end = is2D ? mtls->end.y : mtls->end.x;
+        const uint32_t start = (is2D ? mtls->start.y : mtls->start.x) +
+                (slice - sl->sliceBase[k]) * sl->sliceSize[k];
+        runSlice(mtls, idx, start, rsMin(start + sl->sliceSize[k], end));
+    }
+}
+
+// Whether a launch walks more than x and y, which the shared launch of a
+// wave does not slice.
+bool hasOuterDims(const MTLaunchStruct& mtls) {
+    return (mtls.start.z != mtls.end.z) ||
+           (mtls.start.face != mtls.end.face) ||
+           (mtls.start.lod != mtls.end.lod) ||
+           (mtls.start.array[0] != mtls.end.array[0]) ||
+           (mtls.start.array[1] != mtls.end.array[1]) ||
+           (mtls.start.array[2] != mtls.end.array[2]) ||
+           (mtls.start.array[3] != mtls.end.array[3]);
 }
 
 }  // namespace
 
+// Consecutive kernel batches where each reads what the previous ones wrote,
+// run tile by tile instead of as one full launch per batch.  The rows a tile
+// of the last batch needs are produced by running every batch over them in
+// turn, so the intermediate rows are read back while still in cache.
+//
+// Stage k, the k-th batch, runs mExt[k] rows past the tile, enough for the
+// halos of all later stages reading it.  The image is split into bands that
+// the workers claim one at a time and walk tile by tile.  The rows within
+// mExt[k] of a band boundary are needed by the bands on both sides, so a
+// first pass computes them for every boundary and the band pass leaves them
+// out.  That way each row of each stage is written once, by one thread.
+class TiledChain {
+public:
+    explicit TiledChain(CpuScriptGroup2Impl* group) :
+        mGroup(group), mDimX(0), mDimY(0) {}
+
+    // Adds batch as the next stage.  Returns false, leaving the chain as it
+    // is, if the batch cannot run tile by tile behind the current stages.
+    bool append(Batch* batch);
+    // Called once all stages are added.
+    void finish();
+    void run();
+
+    size_t size() const { return mBatches.size(); }
+    Batch* front() const { return mBatches.front(); }
+
+private:
+    // A stage reading the return value of an earlier one.
+    struct Link {
+        uint32_t producer;
+        uint32_t consumer;
+        uint32_t halo;
+        const Allocation* alloc;
+    };
+
+    int findStage(const Closure* closure) const;
+    uint32_t bandStart(uint32_t band) const {
+        return (uint32_t)((uint64_t)mDimY * band / mBandCount);
+    }
+    static void seamWorker(void* usr, uint32_t idx);
+    static void bandWorker(void* usr, uint32_t idx);
+
+    CpuScriptGroup2Impl* mGroup;
+    std::vector<Batch*> mBatches;
+    std::vector<Link> mLinks;
+    std::vector<uint32_t> mExt;
+    uint32_t mDimX;
+    uint32_t mDimY;
+
+    // Per run.
+    MTLaunchStruct mStages[kMaxTiledStages];
+    uint32_t mTileRows;
+    uint32_t mBandCount;
+    volatile int mNextSeam;
+    volatile int mNextBand;
+};
+
+int TiledChain::findStage(const Closure* closure) const {
+    for (size_t i = 0; i < mBatches.size(); i++) {
+        for (CPUClosure* cc : mBatches[i]->mClosures) {
+            if (cc->mClosure == closure) {
+                return (int)i;
+            }
+        }
+    }
+    return -1;
+}
+
+bool TiledChain::append(Batch* batch) {
+    if (mBatches.size() == kMaxTiledStages) {
+        return false;
+    }
+
+    uint32_t dimX = mDimX;
+    uint32_t dimY = mDimY;
+    for (CPUClosure* cc : batch->mClosures) {
+        const Closure* closure = cc->mClosure;
+        if (!closure->mIsKernel || closure->mReturnValue == nullptr) {
+            return false;
+        }
+        const Type* t = closure->mReturnValue->getType();
+        if (t->getDimY() <= 1 || t->getDimZ() > 1 || t->getDimLOD() ||
+            t->getDimFaces() || t->mHal.state.arrayCount != 0) {
+            return false;
+        }
+        if (dimY == 0) {
+            dimX = t->getDimX();
+            dimY = t->getDimY();
+        } else if (t->getDimX() != dimX || t->getDimY() != dimY) {
+            return false;
+        }
+    }
+
+    if (mBatches.empty()) {
+        mDimX = dimX;
+        mDimY = dimY;
+        mBatches.push_back(batch);
+        return true;
+    }
+
+    // All stages have their globals set before the first one runs, so they
+    // must not share a script.
+    for (CPUClosure* cc : batch->mClosures) {
+        for (Batch* b : mBatches) {
+            for (CPUClosure* other : b->mClosures) {
+                if (other->mSi == cc->mSi) {
+                    return false;
+                }
+            }
+        }
+    }
+
+    // The batch has to read the earlier stages only through their return
+    // values, either as kernel arguments (the same row) or through globals
+    // the kernel declares a halo for.
+    const uint32_t stage = mBatches.size();
+    std::vector<Link> links;
+    for (CPUClosure* cc : batch->mClosures) {
+        const Closure* closure = cc->mClosure;
+        const uint32_t slot = closure->mFunctionID.get()->mSlot;
+
+        for (const auto& p : closure->mArgDeps) {
+            const int producer = findStage(p.first);
+            if (producer < 0) {
+                continue;
+            }
+            for (const auto& p1 : *p.second) {
+                if (p1.second.get() != nullptr) {
+                    return false;
+                }
+            }
+            links.push_back({(uint32_t)producer, stage, 0, p.first->mReturnValue});
+        }
+
+        for (const auto& p : closure->mGlobalDeps) {
+            const int producer = findStage(p.first);
+            if (producer < 0) {
+                continue;
+            }
+            for (const auto& p1 : *p.second) {
+                if (p1.second.get() != nullptr) {
+                    return false;
+                }
+                const int halo = cc->mSi->getKernelInputHalo(slot, p1.first->mSlot);
+                if (halo < 0) {
+                    return false;
+                }
+                links.push_back({(uint32_t)producer, stage, (uint32_t)halo,
+                                 p.first->mReturnValue});
+            }
+        }
+    }
+
+    if (links.empty()) {
+        // Independent of the chain, nothing to keep in cache.
+        return false;
+    }
+
+    mBatches.push_back(batch);
+    mLinks.insert(mLinks.end(), links.begin(), links.end());
+    return true;
+}
+
+void TiledChain::finish() {
+    // A stage reading stage k with a halo needs stage k to run that much
+    // further past the tile than the stage itself does.  Links only point
+    // backwards, so one backwards sweep settles every extension.
+    mExt.assign(mBatches.size(), 0);
+    for (size_t k = mBatches.size(); k-- > 0;) {
+        for (const Link& link : mLinks) {
+            if (link.producer == k) {
+                mExt[k] = rsMax(mExt[k], mExt[link.consumer] + link.halo);
+            }
+        }
+    }
+
+    for (Batch* batch : mBatches) {
+        batch->mChain = this;
+    }
+}
+
+void TiledChain::seamWorker(void* usr, uint32_t idx) {
+    TiledChain* chain = (TiledChain*)usr;
+    const uint32_t count = chain->mBatches.size();
+
+    while (1) {
+        const uint32_t seam = (uint32_t)__sync_fetch_and_add(&chain->mNextSeam, 1);
+        if (seam >= chain->mBandCount) {
+            return;
+        }
+        const uint32_t y = chain->bandStart(seam);
+        for (uint32_t k = 0; k < count; k++) {
+            runSlice(&chain->mStages[k], idx, y - chain->mExt[k], y + chain->mExt[k]);
+        }
+    }
+}
+
+void TiledChain::bandWorker(void* usr, uint32_t idx) {
+    TiledChain* chain = (TiledChain*)usr;
+    const uint32_t count = chain->mBatches.size();
+    uint32_t next[kMaxTiledStages];
+    uint32_t end[kMaxTiledStages];
+
+    while (1) {
+        const uint32_t band = (uint32_t)__sync_fetch_and_add(&chain->mNextBand, 1);
+        if (band >= chain->mBandCount) {
+            return;
+        }
+        const uint32_t y0 = chain->bandStart(band);
+        const uint32_t y1 = chain->bandStart(band + 1);
+
+        // Leave out the rows the seam pass already wrote.
+        for (uint32_t k = 0; k < count; k++) {
+            next[k] = band == 0 ? 0 : y0 + chain->mExt[k];
+            end[k] = band + 1 == chain->mBandCount ? chain->mDimY : y1 - chain->mExt[k];
+        }
+
+        for (uint32_t y = y0; y < y1; y += chain->mTileRows) {
+            const uint32_t tileEnd = rsMin(y + chain->mTileRows, y1);
+            for (uint32_t k = 0; k < count; k++) {
+                const uint32_t rowEnd = rsMin(tileEnd + chain->mExt[k], end[k]);
+                if (rowEnd > next[k]) {
+                    runSlice(&chain->mStages[k], idx, next[k], rowEnd);
+                    next[k] = rowEnd;
+                }
+            }
+        }
+    }
+}
+
+void TiledChain::run() {
+    RsdCpuReferenceImpl* ctx = mGroup->getCpuRefImpl();
+    const Context* rsc = ctx->getContext();
+
+    if (rsc->props.mDebugNoTiling) {
+        for (Batch* batch : mBatches) {
+            batch->setGlobalsForBatch();
+            batch->run();
+        }
+        return;
+    }
+
+    const uint32_t count = mBatches.size();
+    for (Batch* batch : mBatches) {
+        batch->setGlobalsForBatch();
+    }
+    for (Batch* batch : mBatches) {
+        batch->preLaunch();
+    }
+
+    bool launch = true;
+    bool threadable = true;
+    size_t rowBytes = 0;
+    for (uint32_t k = 0; k < count && launch; k++) {
+        launch = mBatches[k]->setupLaunch(&mStages[k]);
+        threadable = threadable && mStages[k].isThreadable;
+        for (CPUClosure* cc : mBatches[k]->mClosures) {
+            rowBytes += cc->mClosure->mReturnValue->mHal.drvState.lod[0].stride;
+        }
+    }
+
+    if (launch) {
+        const size_t tileBytes = rsc->props.mDebugTileKb ?
+                rsc->props.mDebugTileKb * 1024 : kTileCacheBytes;
+        mTileRows = rsMax(tileBytes / rowBytes, (size_t)1);
+        mTileRows = rsMin(mTileRows, mDimY);
+
+        const bool parallel = threadable && ctx->getThreadCount() > 1 &&
+                !ctx->getInForEach();
+        mBandCount = parallel ? ctx->getThreadCount() * kBandsPerThread : 1;
+        // Bands must be taller than the seams between them.
+        mBandCount = rsMin(mBandCount, mDimY / (2 * mExt[0] + 1));
+        mBandCount = rsMax(mBandCount, (uint32_t)1);
+
+        mNextSeam = 1;
+        mNextBand = 0;
+        if (mBandCount > 1) {
+            ctx->setInForEach(true);
+            ctx->launchThreads(seamWorker, this);
+            ctx->launchThreads(bandWorker, this);
+            ctx->setInForEach(false);
+        } else {
+            bandWorker(this, 0);
+        }
+
+        if (rsc->props.mLogScheduler) {
+            // Every link would otherwise read its intermediate back from
+            // memory in full.  Only the seam rows still are.
+            size_t saved = 0;
+            for (const Link& link : mLinks) {
+                const uint32_t seamRows = (mBandCount - 1) * 2 * mExt[link.producer];
+                saved += (size_t)link.alloc->mHal.drvState.lod[0].stride *
+                        (mDimY - seamRows);
+            }
+            ALOGD("ScriptGroup2 %s: %u batches tiled, %u rows per tile, %u bands, "
+                  "%zu bytes of intermediate reads kept in cache",
+                  mBatches.front()->mName, count, mTileRows, mBandCount, saved);
+        }
+    }
+
+    for (Batch* batch : mBatches) {
+        batch->postLaunch();
+    }
+}
+
 Batch::Batch(CpuScriptGroup2Impl* group, const char* name) :
-    mGroup(group), mFunc(nullptr) {
+    mGroup(group), mFunc(nullptr), mChain(nullptr) {
     mName = strndup(name, strlen(name));
 }
 
@@ -166,8 +559,9 @@ CpuScriptGroup2Impl::CpuScriptGroup2Impl(RsdCpuReferenceImpl *cpuRefImpl,
                 (RsdCpuScriptImpl *)mCpuRefImpl->lookupScript(funcID->mScript);
         if (closure->mIsKernel) {
             MTLaunchStruct mtls;
+            memset(&mtls, 0, sizeof(mtls));
             si->forEachKernelSetup(funcID->mSlot, &mtls);
-            cc = new CPUClosure(closure, si, (ExpandFuncTy)mtls.kernel);
+            cc = new CPUClosure(closure, si, (ExpandFuncTy)mtls.kernel, mtls.fep.usr);
         } else {
             cc = new CPUClosure(closure, si);
         }
@@ -193,9 +587,35 @@ CpuScriptGroup2Impl::CpuScriptGroup2Impl(RsdCpuReferenceImpl *cpuRefImpl,
         }
     }
 #endif  // RS_COMPATIBILITY_LIB
+    buildTiledChains();
+    buildWaves();
     mCpuRefImpl->unlockMutex();
 }
 
+void CpuScriptGroup2Impl::buildTiledChains() {
+    TiledChain* chain = new TiledChain(this);
+    for (Batch* batch : mBatches) {
+        if (chain->append(batch)) {
+            continue;
+        }
+        if (chain->size() > 1) {
+            chain->finish();
+            mChains.push_back(chain);
+        } else {
+            delete chain;
+        }
+        chain = new TiledChain(this);
+        chain->append(batch);
+    }
+
+    if (chain->size() > 1) {
+        chain->finish();
+        mChains.push_back(chain);
+    } else {
+        delete chain;
+    }
+}
+
 void Batch::resolveFuncPtr(void* sharedObj) {
     std::string funcName(mName);
     if (mClosures.front()->mClosure->mIsKernel) {
@@ -205,7 +625,130 @@ void Batch::resolveFuncPtr(void* sharedObj) {
     rsAssert (mFunc != nullptr);
 }
 
+namespace {
+
+// Whether a batch can touch allocations its dependencies do not show, and
+// so must run in a wave of its own, after every earlier batch and before
+// every later one.  An invoke may touch anything.  A kernel may write
+// through an rs_allocation global, which the closures only track when it is
+// bound to another closure's result: a global bound to a value, or any
+// object its script was given outside the group, is not ordered otherwise.
+bool isWaveBarrier(const Batch* batch) {
+    for (CPUClosure* cc : batch->mClosures) {
+        const Closure* closure = cc->mClosure;
+        if (!closure->mIsKernel || closure->mFunctionID.get()->mScript->hasObjectSlots()) {
+            return true;
+        }
+        for (const auto& p : closure->mGlobals) {
+            if (p.second.second >= 0) {
+                continue;
+            }
+            bool future = false;
+            for (const auto& dep : closure->mGlobalDeps) {
+                if (dep.second->find(p.first) != dep.second->end()) {
+                    future = true;
+                }
+            }
+            if (!future) {
+                return true;
+            }
+        }
+    }
+    return false;
+}
+
+}  // namespace
+
+void CpuScriptGroup2Impl::buildWaves() {
+    std::vector<Batch*> batches;
+    for (Batch* batch : mBatches) {
+        batches.push_back(batch);
+    }
+    const size_t count = batches.size();
+
+    std::map<const Closure*, size_t> batchOf;
+    for (size_t i = 0; i < count; i++) {
+        for (CPUClosure* cc : batches[i]->mClosures) {
+            batchOf[cc->mClosure] = i;
+        }
+    }
+
+    // A tiled chain runs as one unit, named by its first batch.
+    std::vector<size_t> unit(count);
+    for (size_t i = 0; i < count; i++) {
+        TiledChain* chain = batches[i]->mChain;
+        unit[i] = (chain != nullptr && chain->front() != batches[i]) ? unit[i - 1] : i;
+    }
+
+    // Checked before the group first runs, since running it sets the object
+    // globals bound to closure results on the scripts.
+    std::vector<bool> barrier(count);
+    for (size_t i = 0; i < count; i++) {
+        barrier[i] = isWaveBarrier(batches[i]);
+    }
+
+    // Batch i depends on batch j before it when it reads one of j's
+    // closures, as a kernel argument or through a global, when they share a
+    // script, whose globals each sets before it runs, or when either is a
+    // barrier.
+    std::vector<size_t> wave(count, 0);
+    size_t waveCount = 0;
+    for (size_t i = 0; i < count; i++) {
+        const size_t u = unit[i];
+        std::vector<bool> deps(i, false);
+
+        for (CPUClosure* cc : batches[i]->mClosures) {
+            for (const auto& p : cc->mClosure->mArgDeps) {
+                const size_t j = batchOf[p.first];
+                if (j < i) {
+                    deps[j] = true;
+                }
+            }
+            for (const auto& p : cc->mClosure->mGlobalDeps) {
+                const size_t j = batchOf[p.first];
+                if (j < i) {
+                    deps[j] = true;
+                }
+            }
+        }
+        for (size_t j = 0; j < i; j++) {
+            if (barrier[i] || barrier[j]) {
+                deps[j] = true;
+                continue;
+            }
+            for (CPUClosure* cc : batches[i]->mClosures) {
+                for (CPUClosure* other : batches[j]->mClosures) {
+                    if (cc->mSi == other->mSi) {
+                        deps[j] = true;
+                    }
+                }
+            }
+        }
+
+        for (size_t j = 0; j < i; j++) {
+            if (deps[j] && unit[j] != u) {
+                wave[u] = rsMax(wave[u], wave[unit[j]] + 1);
+            }
+        }
+        waveCount = rsMax(waveCount, wave[u] + 1);
+    }
+
+    mWaves.resize(waveCount);
+    for (size_t i = 0; i < count; i++) {
+        if (unit[i] == i) {
+            mWaves[wave[i]].push_back(batches[i]);
+        }
+    }
+
+    if (mCpuRefImpl->getContext()->props.mLogScheduler) {
+        ALOGD("ScriptGroup2 with %zu batches runs in %zu waves", count, waveCount);
+    }
+}
+
 CpuScriptGroup2Impl::~CpuScriptGroup2Impl() {
+    for (TiledChain* chain : mChains) {
+        delete chain;
+    }
     for (Batch* batch : mBatches) {
         delete batch;
     }
@@ -220,6 +763,82 @@ namespace {
 
 #ifndef RS_COMPATIBILITY_LIB
 
+// Fused group libraries are named kFusedPrefix followed by their cache key.
+const char kFusedPrefix[] = "sg2_";
+
+// Default total size of the fused group libraries kept in a cache dir.
+const size_t kFusedCacheLimit = 32 * 1024 * 1024;
+
+size_t getFusedCacheLimit() {
+#ifdef RS_SERVER
+    return kFusedCacheLimit;
+#else
+    char buf[PROPERTY_VALUE_MAX];
+    property_get("debug.rs.sg2-cache-kb", buf, "0");
+    size_t kb = atoi(buf);
+    return kb ? kb * 1024 : kFusedCacheLimit;
+#endif
+}
+
+// Identify a tool or library by size and modification time rather than by
+// hashing its contents, which would cost more than loading a cached group.
+void appendFileStamp(std::stringstream& ss, const char* path) {
+    struct stat st;
+    ss << path << ":";
+    if (path[0] != 0 && stat(path, &st) == 0) {
+        ss << st.st_size << ":" << st.st_mtime;
+    }
+    ss << ";";
+}
+
+// The full cache key is stored next to the fused library, in a file with the
+// same name ending in ".key".  The library name and its embedded checksum are
+// only hashes of the key, so a cached library is used only when the stored
+// key is the one being built.
+string getKeyFilePath(const char* cacheDir, const char* resName) {
+    string path(SharedLibraryUtils::getSharedLibraryPath(cacheDir, resName).string());
+    path.replace(path.length() - 3, 3, ".key");
+    return path;
+}
+
+bool hasCacheKey(const string& path, const string& key) {
+    FILE* f = fopen(path.c_str(), "rb");
+    if (f == nullptr) {
+        return false;
+    }
+    string stored(key.length() + 1, '\0');
+    size_t len = fread(&stored[0], 1, stored.length(), f);
+    fclose(f);
+    return len == key.length() && stored.compare(0, len, key) == 0;
+}
+
+// Written to a temporary file first, so that a reader never sees a partial
+// key.
+void writeCacheKey(const string& path, const string& key) {
+    string tmpPath(path);
+    tmpPath.append("#");
+    tmpPath.append(SharedLibraryUtils::getRandomString(6).string());
+    FILE* f = fopen(tmpPath.c_str(), "wb");
+    if (f == nullptr) {
+        return;
+    }
+    bool written = fwrite(key.data(), 1, key.length(), f) == key.length();
+    if (fclose(f) != 0 || !written || rename(tmpPath.c_str(), path.c_str()) != 0) {
+        ALOGE("Unable to write '%s'", path.c_str());
+        unlink(tmpPath.c_str());
+    }
+}
+
+// 64-bit FNV-1a.
+uint64_t hashString(const string& str) {
+    uint64_t h = 0xcbf29ce484222325ULL;
+    for (unsigned char c : str) {
+        h ^= c;
+        h *= 0x100000001b3ULL;
+    }
+    return h;
+}
+
 string getCoreLibPath(Context* context, string* coreLibRelaxedPath) {
     *coreLibRelaxedPath = "";
 
@@ -321,6 +940,8 @@ void CpuScriptGroup2Impl::compile(const char* cacheDir) {
         return strcmp(str1, str2) < 0;
     };
     std::set<const char*, decltype(comparator)> inputSet(comparator);
+    std::map<const char*, uint32_t, decltype(comparator)> bitcodeChecksums(comparator);
+    std::map<const char*, size_t, decltype(comparator)> bitcodeSizes(comparator);
 
     for (Closure* closure : mGroup->mClosures) {
         const Script* script = closure->mFunctionID.get()->mScript;
@@ -335,6 +956,9 @@ void CpuScriptGroup2Impl::compile(const char* cacheDir) {
 
         const char* bitcodeFilename = cpuScript->getBitcodeFilePath();
         inputSet.insert(bitcodeFilename);
+        bitcodeChecksums[bitcodeFilename] = cpuScript->getBitcodeChecksum();
+        struct stat st;
+        bitcodeSizes[bitcodeFilename] = stat(bitcodeFilename, &st) == 0 ? st.st_size : 0;
     }
 
     std::vector<const char*> inputs(inputSet.begin(), inputSet.end());
@@ -362,40 +986,68 @@ void CpuScriptGroup2Impl::compile(const char* cacheDir) {
     }
 
     rsAssert(cacheDir != nullptr);
-    string objFilePath(cacheDir);
-    objFilePath.append("/");
-    objFilePath.append(mGroup->mName);
-    objFilePath.append(".o");
 
-    const char* resName = mGroup->mName;
     string coreLibRelaxedPath;
     const string& coreLibPath = getCoreLibPath(getCpuRefImpl()->getContext(),
                                                &coreLibRelaxedPath);
-
-    vector<const char*> arguments;
     bool emitGlobalInfo = getCpuRefImpl()->getEmbedGlobalInfo();
     bool emitGlobalInfoSkipConstant = getCpuRefImpl()->getEmbedGlobalInfoSkipConstant();
-    setupCompileArguments(inputs, kernelBatches, invokeBatches, cacheDir,
-                          resName, coreLibPath.c_str(), coreLibRelaxedPath.c_str(),
-                          emitGlobalInfo, emitGlobalInfoSkipConstant,
-                          &arguments);
 
-    std::unique_ptr<const char> cmdLine(rsuJoinStrings(arguments.size() - 1,
-                                                       arguments.data()));
+    //===--------------------------------------------------------------------===//
+    // Compute the cache key
+    //===--------------------------------------------------------------------===//
 
-    inputs.push_back(coreLibPath.c_str());
-    inputs.push_back(coreLibRelaxedPath.c_str());
+    // The fused library is named after everything that goes into building it:
+    // the batches (closure topology and kernel slots), the contents of every
+    // input script, the compile flags and the toolchain.  Identical groups
+    // then share one cached library, whatever they are named and whichever
+    // process built them first.
+    std::stringstream keyStream;
+    keyStream << DEFAULT_TARGET_TRIPLE_STRING << ";"
+              << getCpuRefImpl()->getContext()->getDriverName() << ";"
+              << emitGlobalInfo << emitGlobalInfoSkipConstant << ";";
+    appendFileStamp(keyStream, RsdCpuScriptImpl::BCC_EXE_PATH);
+    appendFileStamp(keyStream, coreLibPath.c_str());
+    appendFileStamp(keyStream, coreLibRelaxedPath.c_str());
+    for (const char* input : inputs) {
+        keyStream << std::hex << bitcodeChecksums[input] << ":"
+                  << std::dec << bitcodeSizes[input] << ";";
+    }
+    for (const string& batch : kernelBatches) {
+        keyStream << "-merge " << batch << ";";
+    }
+    for (const string& batch : invokeBatches) {
+        keyStream << "-invoke " << batch << ";";
+    }
+    const string keyStr = keyStream.str();
+    const uint64_t key = hashString(keyStr);
 
-    uint32_t checksum = constructBuildChecksum(nullptr, 0, cmdLine.get(),
-                                               inputs.data(), inputs.size());
+    std::stringstream nameStream;
+    nameStream << kFusedPrefix << std::hex << std::setw(16) << std::setfill('0') << key;
+    const string resNameStr = nameStream.str();
+    const char* resName = resNameStr.c_str();
 
+    // Embedded in the library and checked when it is loaded, so a truncated
+    // file is rebuilt.  Zero would disable the check.
+    uint32_t checksum = (uint32_t)(key ^ (key >> 32));
     if (checksum == 0) {
-        return;
+        checksum = 1;
     }
-
     std::stringstream ss;
     ss << std::hex << checksum;
-    const char* checksumStr = ss.str().c_str();
+    const string checksumStr = ss.str();
+
+    string objFilePath(cacheDir);
+    objFilePath.append("/");
+    objFilePath.append(resName);
+    objFilePath.append(".o");
+    const string keyFilePath = getKeyFilePath(cacheDir, resName);
+
+    vector<const char*> arguments;
+    setupCompileArguments(inputs, kernelBatches, invokeBatches, cacheDir,
+                          resName, coreLibPath.c_str(), coreLibRelaxedPath.c_str(),
+                          emitGlobalInfo, emitGlobalInfoSkipConstant,
+                          &arguments);
 
     //===--------------------------------------------------------------------===//
     // Try to load a shared lib from code cache matching filename and checksum
@@ -410,17 +1062,20 @@ void CpuScriptGroup2Impl::compile(const char* cacheDir) {
         // A shared library named resName is found in code cache directory
         // cacheDir, and loaded with the handle stored in mScriptObj.
 
-        mExecutable = ScriptExecutable::createFromSharedObject(
-            getCpuRefImpl()->getContext(), mScriptObj, checksum);
+        if (hasCacheKey(keyFilePath, keyStr)) {
+            mExecutable = ScriptExecutable::createFromSharedObject(
+                getCpuRefImpl()->getContext(), mScriptObj, checksum);
+        }
 
         if (mExecutable != nullptr) {
-            // The loaded shared library in mScriptObj has a matching checksum.
-            // An executable object has been created.
+            // The loaded shared library in mScriptObj has a matching key and
+            // checksum.  An executable object has been created.
+            SharedLibraryUtils::touchSharedLibrary(cacheDir, resName);
             return;
         }
 
         ALOGV("Failed to create an executable object from so file due to "
-              "mismatching checksum");
+              "mismatching key or checksum");
 
         if (alreadyLoaded) {
             // The shared object found in code cache has already been loaded.
@@ -445,7 +1100,7 @@ void CpuScriptGroup2Impl::compile(const char* cacheDir) {
     //===--------------------------------------------------------------------===//
 
     arguments.push_back("-build-checksum");
-    arguments.push_back(checksumStr);
+    arguments.push_back(checksumStr.c_str());
     arguments.push_back(nullptr);
 
     bool compiled = rsuExecuteCommand(RsdCpuScriptImpl::BCC_EXE_PATH,
@@ -487,14 +1142,121 @@ void CpuScriptGroup2Impl::compile(const char* cacheDir) {
     mExecutable = ScriptExecutable::createFromSharedObject(
         getCpuRefImpl()->getContext(),
         mScriptObj);
+    if (mExecutable != nullptr) {
+        writeCacheKey(keyFilePath, keyStr);
+    }
+
+    SharedLibraryUtils::trimSharedLibraries(cacheDir, kFusedPrefix,
+                                            getFusedCacheLimit(), resName);
 
 #endif  // RS_COMPATIBILITY_LIB
 }
 
 void CpuScriptGroup2Impl::execute() {
-    for (auto batch : mBatches) {
+    if (mCpuRefImpl->getContext()->props.mDebugSerialGroups) {
+        for (auto batch : mBatches) {
+            TiledChain* chain = batch->mChain;
+            if (chain == nullptr) {
+                batch->setGlobalsForBatch();
+                batch->run();
+            } else if (batch == chain->front()) {
+                chain->run();
+            }
+        }
+        return;
+    }
+
+    for (const auto& wave : mWaves) {
+        runWave(wave);
+    }
+}
+
+void CpuScriptGroup2Impl::runWave(const std::vector<Batch*>& wave) {
+    // Tiled chains and invokes run on their own.  The other kernel batches
+    // share one launch, so the workers move on to another batch instead of
+    // waiting for the slowest slice of each.
+    std::vector<Batch*> shared;
+    for (Batch* batch : wave) {
+        if (batch->mChain != nullptr) {
+            batch->mChain->run();
+        } else if (!batch->mClosures.front()->mClosure->mIsKernel) {
+            batch->setGlobalsForBatch();
+            batch->run();
+        } else {
+            shared.push_back(batch);
+        }
+    }
+
+    if (shared.size() < 2 || mCpuRefImpl->getThreadCount() < 2 ||
+        mCpuRefImpl->getInForEach()) {
+        for (Batch* batch : shared) {
+            batch->setGlobalsForBatch();
+            batch->run();
+        }
+        return;
+    }
+
+    for (Batch* batch : shared) {
         batch->setGlobalsForBatch();
-        batch->run();
+    }
+    for (Batch* batch : shared) {
+        batch->preLaunch();
+    }
+
+    // Slices follow the sizing of launchThreads: about 16KB of output each,
+    // and at least four per worker.
+    const size_t targetByteChunk = 16 * 1024;
+    const uint32_t threads = mCpuRefImpl->getThreadCount();
+
+    std::vector<MTLaunchStruct> launches(shared.size());
+    std::vector<uint32_t> sliceBase(shared.size() + 1);
+    std::vector<uint32_t> sliceSize(shared.size());
+    uint32_t count = 0;
+    uint32_t total = 0;
+    for (Batch* batch : shared) {
+        MTLaunchStruct* mtls = &launches[count];
+        if (!batch->setupLaunch(mtls)) {
+            continue;
+        }
+        if (!mtls->isThreadable || hasOuterDims(*mtls)) {
+            mCpuRefImpl->launchThreads(nullptr, 0, nullptr, nullptr, mtls);
+            continue;
+        }
+
+        const bool is2D = mtls->fep.dim.y > 1;
+        const uint32_t length = is2D ? mtls->end.y - mtls->start.y :
+                mtls->end.x - mtls->start.x;
+        uint32_t size = length / (threads * 4);
+        if (mtls->aout[0] != nullptr) {
+            const size_t bytes = is2D ? mtls->aout[0]->mHal.drvState.lod[0].stride :
+                    mtls->aout[0]->getType()->getElementSizeBytes();
+            if (bytes) {
+                size = rsMin(size, (uint32_t)(targetByteChunk / bytes));
+            }
+        }
+        size = rsMax(size, (uint32_t)1);
+
+        sliceBase[count] = total;
+        sliceSize[count] = size;
+        total += (length + size - 1) / size;
+        count++;
+    }
+    sliceBase[count] = total;
+
+    if (count > 0) {
+        SharedLaunch sl;
+        sl.launches = launches.data();
+        sl.sliceBase = sliceBase.data();
+        sl.sliceSize = sliceSize.data();
+        sl.count = count;
+        sl.next = 0;
+        mCpuRefImpl->setInForEach(true);
+        mCpuRefImpl->launchThreads(sharedWorker, &sl);
+        mCpuRefImpl->setInForEach(false);
+    }
+
+    for (Batch* batch : shared) {
+        batch->postLaunch();
     }
 }
 
@@ -562,27 +1324,18 @@ void Batch::run() {
         return;
     }
 
-    if (mFunc != nullptr) {
-        MTLaunchStruct mtls;
-        const CPUClosure* firstCpuClosure = mClosures.front();
-        const CPUClosure* lastCpuClosure = mClosures.back();
-
-        firstCpuClosure->mSi->forEachMtlsSetup(
-                (const Allocation**)firstCpuClosure->mClosure->mArgs,
-                firstCpuClosure->mClosure->mNumArg,
-                lastCpuClosure->mClosure->mReturnValue,
-                nullptr, 0, nullptr, &mtls);
-
-        mtls.script = nullptr;
-        mtls.fep.usr = nullptr;
-        mtls.kernel = (ForEachFunc_t)mFunc;
+    MTLaunchStruct mtls;
 
-        mGroup->getCpuRefImpl()->launchThreads(
-                (const Allocation**)firstCpuClosure->mClosure->mArgs,
-                firstCpuClosure->mClosure->mNumArg,
-                lastCpuClosure->mClosure->mReturnValue,
-                nullptr, &mtls);
+    preLaunch();
+    if (setupLaunch(&mtls)) {
+        mGroup->getCpuRefImpl()->launchThreads(nullptr, 0, nullptr, nullptr, &mtls);
+    }
+    postLaunch();
+}
 
+void Batch::preLaunch() {
+    // A fused batch is made of compiled scripts, which have no launch hooks.
+    if (mFunc != nullptr) {
         return;
     }
 
@@ -595,21 +1348,45 @@ void Batch::run() {
                                    closure->mNumArg, closure->mReturnValue,
                                    nullptr, 0, nullptr);
     }
+}
 
-    const CPUClosure* cpuClosure = mClosures.front();
-    const Closure* closure = cpuClosure->mClosure;
-    MTLaunchStruct mtls;
+bool Batch::setupLaunch(MTLaunchStruct* mtls) {
+    const CPUClosure* firstCpuClosure = mClosures.front();
+
+    if (mFunc != nullptr) {
+        const CPUClosure* lastCpuClosure = mClosures.back();
+
+        if (!firstCpuClosure->mSi->forEachMtlsSetup(
+                (const Allocation**)firstCpuClosure->mClosure->mArgs,
+                firstCpuClosure->mClosure->mNumArg,
+                lastCpuClosure->mClosure->mReturnValue,
+                nullptr, 0, nullptr, mtls)) {
+            return false;
+        }
+
+        mtls->script = nullptr;
+        mtls->fep.usr = nullptr;
+        mtls->kernel = (ForEachFunc_t)mFunc;
+        return true;
+    }
 
-    if (cpuClosure->mSi->forEachMtlsSetup((const Allocation**)closure->mArgs,
-                                          closure->mNumArg,
-                                          closure->mReturnValue,
-                                          nullptr, 0, nullptr, &mtls)) {
+    const Closure* closure = firstCpuClosure->mClosure;
+    if (!firstCpuClosure->mSi->forEachMtlsSetup((const Allocation**)closure->mArgs,
+                                                closure->mNumArg,
+                                                closure->mReturnValue,
+                                                nullptr, 0, nullptr, mtls)) {
+        return false;
+    }
 
-        mtls.script = nullptr;
-        mtls.kernel = (void (*)())&groupRoot;
-        mtls.fep.usr = &mClosures;
+    mtls->script = nullptr;
+    mtls->kernel = (void (*)())&groupRoot;
+    mtls->fep.usr = &mClosures;
+    return true;
+}
 
-        mGroup->getCpuRefImpl()->launchThreads(nullptr, 0, nullptr, nullptr, &mtls);
+void Batch::postLaunch() {
+    if (mFunc != nullptr) {
+        return;
     }
 
     for (CPUClosure* cpuClosure : mClosures) {
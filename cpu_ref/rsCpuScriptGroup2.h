@@ -4,6 +4,8 @@
 #include "rsd_cpu.h"
 #include "rsList.h"
 
+#include <vector>
+
 struct RsExpandKernelDriverInfo;
 
 namespace android {
@@ -14,6 +16,8 @@ class RsdCpuScriptImpl;
 class RsdCpuReferenceImpl;
 class ScriptExecutable;
 class ScriptGroup2;
+class TiledChain;
+struct MTLaunchStruct;
 
 typedef void (*ExpandFuncTy)(const RsExpandKernelDriverInfo*, uint32_t, uint32_t,
                              uint32_t);
@@ -21,17 +25,21 @@ typedef void (*InvokeFuncTy)(const void*, uint32_t);
 
 class CPUClosure {
 public:
-    CPUClosure(const Closure* closure, RsdCpuScriptImpl* si, ExpandFuncTy func) :
-        mClosure(closure), mSi(si), mFunc(func) {}
+    CPUClosure(const Closure* closure, RsdCpuScriptImpl* si, ExpandFuncTy func,
+               const void* usr) :
+        mClosure(closure), mSi(si), mFunc(func), mUsr(usr) {}
 
     CPUClosure(const Closure* closure, RsdCpuScriptImpl* si) :
-        mClosure(closure), mSi(si), mFunc(nullptr) {}
+        mClosure(closure), mSi(si), mFunc(nullptr), mUsr(nullptr) {}
 
     // It's important to do forwarding here than inheritance for unbound value
     // binding to work.
     const Closure* mClosure;
     RsdCpuScriptImpl* mSi;
     const ExpandFuncTy mFunc;
+    // The usr pointer mFunc expects in its driver info; intrinsics find
+    // themselves through it.
+    const void* const mUsr;
 };
 
 class CpuScriptGroup2Impl;
@@ -49,12 +57,20 @@ public:
     void setGlobalsForBatch();
     void run();
 
+    // The pieces of run() for a kernel batch, for callers that walk the rows
+    // themselves.  setupLaunch() returns false if the batch cannot launch.
+    void preLaunch();
+    bool setupLaunch(MTLaunchStruct* mtls);
+    void postLaunch();
+
     size_t size() const { return mClosures.size(); }
 
     CpuScriptGroup2Impl* mGroup;
     List<CPUClosure*> mClosures;
     char* mName;
     void* mFunc;
+    // The tiled chain this batch runs in, if any.
+    TiledChain* mChain;
 };
 
 class CpuScriptGroup2Impl : public RsdCpuReference::CpuScriptGroup2 {
@@ -71,9 +87,17 @@ public:
     void compile(const char* cacheDir);
 
 private:
+    void buildTiledChains();
+    void buildWaves();
+    void runWave(const std::vector<Batch*>& wave);
+
     RsdCpuReferenceImpl* mCpuRefImpl;
     const ScriptGroup2* mGroup;
     List<Batch*> mBatches;
+    List<TiledChain*> mChains;
+    // The batches grouped into waves that only depend on earlier waves.  A
+    // tiled chain is listed by its first batch.
+    std::vector<std::vector<Batch*>> mWaves;
     ScriptExecutable* mExecutable;
     void* mScriptObj;
 };
@@ -142,6 +142,22 @@ public:
     virtual void* createScriptGroup(const ScriptGroupBase *sg) = 0;
     virtual bool getInForEach() = 0;
 
+    // Called from a background thread as each precompileScript() request
+    // finishes.  done and total count the requests made since the queue
+    // last ran empty.  Requests still queued when the context is destroyed
+    // are reported with success false and a total of 0; only usr should be
+    // released then.
+    typedef void (*PrecompileCallback)(void *usr, char const *resName, bool success,
+                                       uint32_t done, uint32_t total);
+
+    // Build the script for bitcode into cacheDir on a background thread, so
+    // that a later createScript() with the same resName and cacheDir only
+    // has to load it.  The bitcode is copied.  Returns false if scripts
+    // cannot be precompiled, in which case cb is never called.
+    virtual bool precompileScript(char const *resName, char const *cacheDir,
+                                  uint8_t const *bitcode, size_t bitcodeSize,
+                                  PrecompileCallback cb, void *usr) = 0;
+
 #ifndef RS_COMPATIBILITY_LIB
     virtual void setSetupCompilerCallback(
             RSSetupCompilerCallback pSetupCompilerCallback) = 0;
@@ -371,6 +371,27 @@ static uint8_t* allocAlignedMemory(size_t allocSize, bool forceZero) {
     return ptr;
 }
 
+// A user-provided buffer whose rows the kernels can't address directly is
+// mirrored in driver memory, laid out tightly on the user side.  The user's
+// data is copied in at creation and by syncAll() from USAGE_SHARED.  Nothing
+// is ever copied back: syncAll() from USAGE_SCRIPT, which the runtime also
+// issues for its own purposes, must not write over the user's buffer.
+static void CopyFromUserProvidedPtr(const Context *rsc, const Allocation *alloc) {
+    const Type *type = alloc->getType();
+    void *user = alloc->mHal.state.userProvidedPtr;
+    uint32_t dimX = type->getDimX();
+    uint32_t dimY = rsMax(type->getDimY(), 1u);
+    size_t size = type->getPackedSizeBytes();
+
+    if (type->getDimZ() > 1) {
+        rsdAllocationData3D(rsc, alloc, 0, 0, 0, 0, dimX, dimY, type->getDimZ(),
+                            user, size, 0);
+    } else {
+        rsdAllocationData2D(rsc, alloc, 0, 0, 0, RS_ALLOCATION_CUBEMAP_FACE_POSITIVE_X,
+                            dimX, dimY, user, size, 0);
+    }
+}
+
 bool rsdAllocationInit(const Context *rsc, Allocation *alloc, bool forceZero) {
     DrvAllocation *drv = (DrvAllocation *)calloc(1, sizeof(DrvAllocation));
     if (!drv) {
@@ -463,7 +484,7 @@ bool rsdAllocationInit(const Context *rsc, Allocation *alloc, bool forceZero) {
 
     // fill out the initial state of the buffer if we couldn't use the user-provided ptr and USAGE_SHARED was accepted
     if ((alloc->mHal.state.userProvidedPtr != 0) && (drv->useUserProvidedPtr == false)) {
-        rsdAllocationData2D(rsc, alloc, 0, 0, 0, RS_ALLOCATION_CUBEMAP_FACE_POSITIVE_X, alloc->getType()->getDimX(), alloc->getType()->getDimY(), alloc->mHal.state.userProvidedPtr, allocSize, 0);
+        CopyFromUserProvidedPtr(rsc, alloc);
     }
 
 
@@ -667,7 +688,11 @@ void rsdAllocationSyncAll(const Context *rsc, const Allocation *alloc,
 
     if (alloc->mHal.state.usageFlags & RS_ALLOCATION_USAGE_SHARED) {
 
-        if (src == RS_ALLOCATION_USAGE_SHARED) {
+        if (src != RS_ALLOCATION_USAGE_SHARED) {
+            // Nothing to do.
+        } else if (alloc->mHal.state.userProvidedPtr && !drv->useUserProvidedPtr) {
+            CopyFromUserProvidedPtr(rsc, alloc);
+        } else {
             // just a memory fence for the CPU driver
             // vendor drivers probably want to flush any dirty cachelines for
             // this particular Allocation
@@ -54,6 +54,44 @@ bool rsdScriptInit(const Context *rsc,
     return true;
 }
 
+struct PrecompileRequest {
+    const Context *rsc;
+    uint32_t msgId;
+};
+
+static void rsdScriptPrecompileDone(void *usr, char const *resName, bool success,
+                                    uint32_t done, uint32_t total) {
+    PrecompileRequest *req = (PrecompileRequest *)usr;
+    // A total of 0 means the request was dropped as the context shuts down.
+    if (total != 0) {
+        RsPrecompileProgress p;
+        p.done = done;
+        p.total = total;
+        p.success = success;
+        req->rsc->sendMessageToClient(&p, RS_MESSAGE_TO_CLIENT_USER, req->msgId,
+                                      sizeof(p), true);
+    }
+    delete req;
+}
+
+bool rsdScriptPrecompile(const Context *rsc,
+                         char const *resName,
+                         char const *cacheDir,
+                         uint8_t const *bitcode,
+                         size_t bitcodeSize,
+                         uint32_t msgId) {
+    RsdHal *dc = (RsdHal *)rsc->mHal.drv;
+    PrecompileRequest *req = new PrecompileRequest;
+    req->rsc = rsc;
+    req->msgId = msgId;
+    if (!dc->mCpuRef->precompileScript(resName, cacheDir, bitcode, bitcodeSize,
+                                       rsdScriptPrecompileDone, req)) {
+        delete req;
+        return false;
+    }
+    return true;
+}
+
 bool rsdInitIntrinsic(const Context *rsc, Script *s, RsScriptIntrinsicID iid,
                       Element *e) {
     RsdHal *dc = (RsdHal *)rsc->mHal.drv;
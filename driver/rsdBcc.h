@@ -23,6 +23,10 @@
 bool rsdScriptInit(const android::renderscript::Context *, android::renderscript::ScriptC *,
                    char const *resName, char const *cacheDir,
                    uint8_t const *bitcode, size_t bitcodeSize, uint32_t flags);
+bool rsdScriptPrecompile(const android::renderscript::Context *rsc,
+                         char const *resName, char const *cacheDir,
+                         uint8_t const *bitcode, size_t bitcodeSize,
+                         uint32_t msgId);
 bool rsdInitIntrinsic(const android::renderscript::Context *rsc,
                       android::renderscript::Script *s,
                       RsScriptIntrinsicID iid,
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.rs.benchmark;
+
+import java.util.Arrays;
+
+/**
+ * Collects per-iteration timings and summarizes them.
+ *
+ * Each sample is the wall time of one iteration, measured with nanoTime().
+ * Callers drain the RenderScript queue with finish() before stop() so that
+ * asynchronous kernel work is attributed to the iteration that queued it.
+ * <p>
+ * Shared by the benchmark apps, which include this source directory in
+ * their builds.  It does not depend on RenderScript so that it works with
+ * both the framework and the support library versions.  The summary includes a 95%
+ * confidence interval for the mean, which is what regression checks should
+ * compare against a baseline instead of a single average.
+ */
+public class Sampler {
+    // Two sided 95% Student t critical values for 1..30 degrees of freedom.
+    private static final double T95[] = {
+        12.706, 4.303, 3.182, 2.776, 2.571, 2.447, 2.365, 2.306, 2.262, 2.228,
+        2.201, 2.179, 2.160, 2.145, 2.131, 2.120, 2.110, 2.101, 2.093, 2.086,
+        2.080, 2.074, 2.069, 2.064, 2.060, 2.056, 2.052, 2.048, 2.045, 2.042,
+    };
+
+    private long mSamples[] = new long[256];
+    private int mCount;
+    private long mTotal;
+    private long mStart;
+
+    // Begin timing one iteration.
+    public void start() {
+        mStart = System.nanoTime();
+    }
+
+    // Record the iteration started by start().  Call RenderScript.finish()
+    // first so that the kernels it queued are included.
+    public void stop() {
+        add(System.nanoTime() - mStart);
+    }
+
+    public void add(long nanos) {
+        if (mCount == mSamples.length) {
+            mSamples = Arrays.copyOf(mSamples, mCount * 2);
+        }
+        mSamples[mCount++] = nanos;
+        mTotal += nanos;
+    }
+
+    public void reset() {
+        mCount = 0;
+        mTotal = 0;
+    }
+
+    public int getCount() {
+        return mCount;
+    }
+
+    // Total of all samples in seconds.  Kept as samples are added, so
+    // timing loops can test it every iteration.
+    public float getTotalTime() {
+        return (float)(mTotal / 1e9);
+    }
+
+    // All of the statistics below are in milliseconds.
+    public double getMean() {
+        if (mCount == 0) {
+            return 0;
+        }
+        double total = 0;
+        for (int ct = 0; ct < mCount; ct++) {
+            total += mSamples[ct];
+        }
+        return total / mCount / 1e6;
+    }
+
+    public double getStdDev() {
+        if (mCount < 2) {
+            return 0;
+        }
+        double mean = getMean();
+        double sum = 0;
+        for (int ct = 0; ct < mCount; ct++) {
+            double d = mSamples[ct] / 1e6 - mean;
+            sum += d * d;
+        }
+        return Math.sqrt(sum / (mCount - 1));
+    }
+
+    // Half width of the 95% confidence interval of the mean.
+    public double getConfidence() {
+        if (mCount < 2) {
+            return 0;
+        }
+        int df = mCount - 1;
+        double t = (df <= T95.length) ? T95[df - 1] : 1.96;
+        return t * getStdDev() / Math.sqrt(mCount);
+    }
+
+    public double getLowerBound() {
+        return getMean() - getConfidence();
+    }
+
+    public double getUpperBound() {
+        return getMean() + getConfidence();
+    }
+
+    // Nearest rank percentile, p in [0, 100].
+    public double getPercentile(double p) {
+        if (mCount == 0) {
+            return 0;
+        }
+        long sorted[] = Arrays.copyOf(mSamples, mCount);
+        Arrays.sort(sorted);
+        int rank = (int)Math.ceil(p / 100.0 * mCount);
+        rank = Math.min(Math.max(rank, 1), mCount);
+        return sorted[rank - 1] / 1e6;
+    }
+
+    // A run only counts as a regression when the whole confidence interval
+    // is slower than the baseline.  scale converts the measured time to the
+    // units of the baseline, for example to account for image resolution.
+    public static boolean isRegressed(double lowerBound, float scale, float baseline) {
+        return lowerBound * scale > baseline;
+    }
+
+    public boolean isRegressed(float scale, float baseline) {
+        return isRegressed(getLowerBound(), scale, baseline);
+    }
+}
@@ -20,6 +20,7 @@ include $(CLEAR_VARS)
 LOCAL_MODULE_TAGS := tests
 
 LOCAL_SRC_FILES := $(call all-java-files-under, src) \
+                   $(call all-java-files-under, ../BenchmarkCommon/src) \
                    $(call all-renderscript-files-under, src)
 
 LOCAL_STATIC_JAVA_LIBRARIES := android-support-v8-renderscript
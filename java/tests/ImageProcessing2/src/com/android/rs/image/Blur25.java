@@ -24,7 +24,11 @@ import android.widget.SeekBar;
 import android.widget.TextView;
 
 public class Blur25 extends TestBase {
+    // RS_BLUR_MODE_BOX, the intrinsic's variable slot 2 selects the algorithm.
+    static final int BLUR_MODE_BOX = 1;
+
     private boolean mUseIntrinsic = false;
+    private boolean mBoxMode = false;
     private ScriptIntrinsicBlur mIntrinsic;
 
     private int MAX_RADIUS = 25;
@@ -39,6 +43,11 @@ public class Blur25 extends TestBase {
         mUseIntrinsic = useIntrinsic;
     }
 
+    public Blur25(boolean useIntrinsic, boolean boxMode) {
+        mUseIntrinsic = useIntrinsic;
+        mBoxMode = boxMode;
+    }
+
     public boolean onBar1Setup(SeekBar b, TextView t) {
         t.setText("Radius");
         b.setProgress(100);
@@ -67,6 +76,9 @@ public class Blur25 extends TestBase {
             mIntrinsic = ScriptIntrinsicBlur.create(mRS, Element.U8_4(mRS));
             mIntrinsic.setRadius(MAX_RADIUS);
             mIntrinsic.setInput(mInPixelsAllocation);
+            if (mBoxMode) {
+                mIntrinsic.setVar(2, BLUR_MODE_BOX);
+            }
         } else {
 
             Type.Builder tb = new Type.Builder(mRS, Element.F32_4(mRS));
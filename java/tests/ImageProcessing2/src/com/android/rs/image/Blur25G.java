@@ -29,6 +29,7 @@ public class Blur25G extends TestBase {
     private float mRadius = MAX_RADIUS;
 
     private ScriptIntrinsicBlur mIntrinsic;
+    private boolean mBoxMode = false;
 
     private ScriptC_greyscale mScript;
     private Allocation mScratchPixelsAllocation1;
@@ -38,6 +39,10 @@ public class Blur25G extends TestBase {
     public Blur25G() {
     }
 
+    public Blur25G(boolean boxMode) {
+        mBoxMode = boxMode;
+    }
+
     public boolean onBar1Setup(SeekBar b, TextView t) {
         t.setText("Radius");
         b.setProgress(100);
@@ -70,6 +75,9 @@ public class Blur25G extends TestBase {
         mIntrinsic = ScriptIntrinsicBlur.create(mRS, Element.U8(mRS));
         mIntrinsic.setRadius(MAX_RADIUS);
         mIntrinsic.setInput(mScratchPixelsAllocation1);
+        if (mBoxMode) {
+            mIntrinsic.setVar(2, Blur25.BLUR_MODE_BOX);
+        }
     }
 
     public void runTest() {
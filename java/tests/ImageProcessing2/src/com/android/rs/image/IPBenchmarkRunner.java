@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.rs.image2;
+
+import android.app.Activity;
+import android.app.Instrumentation;
+import android.os.Bundle;
+import android.os.Environment;
+import android.support.v8.renderscript.*;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Random;
+import com.android.rs.benchmark.Sampler;
+
+/**
+ * Headless benchmark runner for the IPTestList filters.
+ *
+ * Unlike ImageProcessingActivity2 this needs no activity, display or
+ * TextureView.  Every test is built against synthetic input allocations and
+ * timed one iteration at a time; the per-test latency distribution is
+ * written out as JSON.  To run all tests, use
+ *
+ * adb shell am instrument -w com.android.rs.image2/.IPBenchmarkRunner
+ *
+ * Optional arguments (-e name value):
+ *   tests       comma separated TestName enum names, default is all tests
+ *   width       input width, default 1920
+ *   height      input height, default 1080
+ *   warmup      iterations run and discarded before timing, default 10
+ *   iterations  timed iterations per test, default 100
+ *   output      result file name on external storage,
+ *               default image_processing_result.json
+ */
+public class IPBenchmarkRunner extends Instrumentation {
+    private final String TAG = "Img";
+    public final String RESULT_FILE = "image_processing_result.json";
+
+    private IPTestList.TestName mTests[];
+    private int mWidth = 1920;
+    private int mHeight = 1080;
+    private int mWarmup = 10;
+    private int mIterations = 100;
+    private String mOutput = RESULT_FILE;
+
+    private RenderScript mRS;
+    private Allocation mInPixelsAllocation;
+    private Allocation mInPixelsAllocation2;
+    private Allocation mOutPixelsAllocation;
+
+    private static int getInt(Bundle args, String key, int def) {
+        String s = args.getString(key);
+        if (s == null) {
+            return def;
+        }
+        return Integer.parseInt(s);
+    }
+
+    @Override
+    public void onCreate(Bundle arguments) {
+        super.onCreate(arguments);
+
+        mTests = IPTestList.TestName.values();
+        if (arguments != null) {
+            String tests = arguments.getString("tests");
+            if (tests != null) {
+                String names[] = tests.split(",");
+                mTests = new IPTestList.TestName[names.length];
+                for (int ct = 0; ct < names.length; ct++) {
+                    mTests[ct] = IPTestList.TestName.valueOf(names[ct].trim());
+                }
+            }
+            mWidth = getInt(arguments, "width", mWidth);
+            mHeight = getInt(arguments, "height", mHeight);
+            mWarmup = getInt(arguments, "warmup", mWarmup);
+            mIterations = getInt(arguments, "iterations", mIterations);
+            if (arguments.getString("output") != null) {
+                mOutput = arguments.getString("output");
+            }
+        }
+        start();
+    }
+
+    // Fill an allocation with reproducible noise so that data dependent
+    // kernels do not hit a degenerate fast path.
+    private Allocation createSyntheticInput(long seed) {
+        Type t = Type.createXY(mRS, Element.RGBA_8888(mRS), mWidth, mHeight);
+        Allocation a = Allocation.createTyped(mRS, t);
+        byte data[] = new byte[mWidth * mHeight * 4];
+        new Random(seed).nextBytes(data);
+        for (int ct = 3; ct < data.length; ct += 4) {
+            data[ct] = (byte)0xff;
+        }
+        a.copyFromUnchecked(data);
+        return a;
+    }
+
+    private Sampler runTest(TestBase test) {
+        for (int ct = 0; ct < mWarmup; ct++) {
+            test.runTest();
+        }
+        mRS.finish();
+
+        Sampler r = new Sampler();
+        for (int ct = 0; ct < mIterations; ct++) {
+            r.start();
+            test.runTest();
+            mRS.finish();
+            r.stop();
+        }
+        return r;
+    }
+
+    private JSONObject buildResult(IPTestList.TestName t, Sampler s) throws JSONException {
+        // Baselines are expressed for a 1080p frame.
+        float scale = (1920.f / mWidth) * (1080.f / mHeight);
+
+        JSONObject r = new JSONObject();
+        r.put("name", t.name());
+        r.put("description", t.toString());
+        r.put("group", t.group);
+        r.put("baseline_ms", t.baseline);
+        r.put("warmup", mWarmup);
+        r.put("iterations", s.getCount());
+        r.put("mean_ms", s.getMean());
+        r.put("stddev_ms", s.getStdDev());
+        r.put("ci95_low_ms", s.getLowerBound());
+        r.put("ci95_high_ms", s.getUpperBound());
+        r.put("min_ms", s.getPercentile(0));
+        r.put("p50_ms", s.getPercentile(50));
+        r.put("p99_ms", s.getPercentile(99));
+        r.put("max_ms", s.getPercentile(100));
+        r.put("regressed", s.isRegressed(scale, t.baseline));
+        return r;
+    }
+
+    private void writeResults(String json) {
+        File externalStorage = Environment.getExternalStorageDirectory();
+        if (!externalStorage.canWrite()) {
+            Log.v(TAG, "sdcard is not writable");
+            return;
+        }
+        File resultFile = new File(externalStorage, mOutput);
+        resultFile.setWritable(true, false);
+        try {
+            FileWriter w = new FileWriter(resultFile);
+            w.write(json);
+            w.close();
+            Log.v(TAG, "Saved results in: " + resultFile.getAbsolutePath());
+        } catch (IOException e) {
+            Log.v(TAG, "Unable to write result file " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void onStart() {
+        super.onStart();
+        Bundle status = new Bundle();
+
+        try {
+            mRS = RenderScript.create(getTargetContext());
+            mInPixelsAllocation = createSyntheticInput(1);
+            mInPixelsAllocation2 = createSyntheticInput(2);
+            mOutPixelsAllocation = Allocation.createTyped(mRS, mInPixelsAllocation.getType());
+
+            JSONArray tests = new JSONArray();
+            for (IPTestList.TestName t : mTests) {
+                TestBase test = IPTestList.newTest(t);
+                test.createBaseTest(mRS, mInPixelsAllocation, mInPixelsAllocation2,
+                                    mOutPixelsAllocation, getTargetContext().getResources());
+                Sampler samples = runTest(test);
+                test.destroy();
+
+                JSONObject r = buildResult(t, samples);
+                Log.v(TAG, "Headless: " + r.toString());
+                tests.put(r);
+            }
+
+            JSONObject result = new JSONObject();
+            result.put("width", mWidth);
+            result.put("height", mHeight);
+            result.put("tests", tests);
+            String json = result.toString(2);
+            writeResults(json);
+            status.putString("results", json);
+        } catch (JSONException e) {
+            status.putString("error", e.toString());
+            finish(Activity.RESULT_CANCELED, status);
+            return;
+        } finally {
+            if (mRS != null) {
+                if (mInPixelsAllocation != null) {
+                    mInPixelsAllocation.destroy();
+                }
+                if (mInPixelsAllocation2 != null) {
+                    mInPixelsAllocation2.destroy();
+                }
+                if (mOutPixelsAllocation != null) {
+                    mOutPixelsAllocation.destroy();
+                }
+                mRS.destroy();
+                mRS = null;
+            }
+        }
+        finish(Activity.RESULT_OK, status);
+    }
+}
@@ -45,6 +45,7 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import com.android.rs.benchmark.Sampler;
 
 public class IPControls extends Activity {
     private final String TAG = "Img";
@@ -65,6 +66,8 @@ public class IPControls extends Activity {
     private static final int SETTING_USAGE_IO = 4;
 
     private float mResults[];
+    private float mLowerBounds[];
+    private float mUpperBounds[];
 
     public enum Resolutions {
         RES_1080P(1920, 1080, "1080p (1920x1080)"),
@@ -238,8 +241,22 @@ public class IPControls extends Activity {
         if (v > 0.001) {
             v = t.baseline / v;
         }
-        float pr = (1920.f / mResolution.width) * (1080.f / mResolution.height);
-        return v / pr;
+        return v / resolutionScale();
+    }
+
+    // Factor that converts a time measured at the current resolution into
+    // the 1080p units the baselines are expressed in.
+    float resolutionScale() {
+        return (1920.f / mResolution.width) * (1080.f / mResolution.height);
+    }
+
+    // Only flag a test when its whole confidence interval is slower than
+    // the baseline, so that noisy runs do not report false regressions.
+    boolean isRegressed(int ct, IPTestList.TestName t) {
+        if (mResults[ct] <= 0.001) {
+            return false;
+        }
+        return Sampler.isRegressed(mLowerBounds[ct], resolutionScale(), t.baseline);
     }
 
     private void writeResults() {
@@ -260,7 +277,10 @@ public class IPControls extends Activity {
                 IPTestList.TestName t = IPTestList.TestName.values()[ct];
                 final float r = mResults[ct];
                 float r2 = rebase(r, t);
-                String s = new String("" + t.toString() + ", " + df.format(r) + ", " + df.format(r2));
+                String s = new String("" + t.toString() + ", " + df.format(r) + ", " + df.format(r2) +
+                                      ", " + df.format(mLowerBounds[ct]) +
+                                      ", " + df.format(mUpperBounds[ct]) +
+                                      ", " + (isRegressed(ct, t) ? "REGRESSED" : "ok"));
                 rsWriter.write(s + "\n");
             }
             rsWriter.close();
@@ -274,18 +294,30 @@ public class IPControls extends Activity {
             if (resultCode == RESULT_OK) {
                 java.text.DecimalFormat df = new java.text.DecimalFormat("######.#");
                 mResults = new float[IPTestList.TestName.values().length];
+                mLowerBounds = new float[IPTestList.TestName.values().length];
+                mUpperBounds = new float[IPTestList.TestName.values().length];
 
                 float r[] = data.getFloatArrayExtra("results");
+                float lo[] = data.getFloatArrayExtra("lower bounds");
+                float hi[] = data.getFloatArrayExtra("upper bounds");
                 int id[] = data.getIntArrayExtra("tests");
 
+                int regressed = 0;
                 for (int ct=0; ct < id.length; ct++) {
                     IPTestList.TestName t = IPTestList.TestName.values()[id[ct]];
+                    mResults[id[ct]] = r[ct];
+                    mLowerBounds[id[ct]] = lo[ct];
+                    mUpperBounds[id[ct]] = hi[ct];
 
                     String s = t.toString() + "   " + df.format(rebase(r[ct], t)) +
-                            "X,   " + df.format(r[ct]) + "ms";
+                            "X,   " + df.format(r[ct]) + "ms +/- " +
+                            df.format((hi[ct] - lo[ct]) / 2);
+                    if (isRegressed(id[ct], t)) {
+                        s += "   REGRESSED";
+                        regressed++;
+                    }
                     mTestList.set(id[ct], s);
                     mTestListAdapter.notifyDataSetChanged();
-                    mResults[id[ct]] = r[ct];
                 }
 
                 double geometricMean[] = {1.0, 1.0, 1.0};
@@ -301,7 +333,8 @@ public class IPControls extends Activity {
 
                 String s = "Results:  fp full=" + df.format(geometricMean[0]) +
                         ",  fp relaxed=" +df.format(geometricMean[1]) +
-                        ",  intrinsics=" + df.format(geometricMean[2]);
+                        ",  intrinsics=" + df.format(geometricMean[2]) +
+                        ",  regressed=" + regressed;
                 mResultView.setText(s);
                 writeResults();
             }
@@ -75,7 +75,9 @@ public class IPTestList {
         RESIZE_BI_SCRIPT ("Resize BiCubic Script", RELAXED_FP, 253.f),
         RESIZE_BI_INTRINSIC ("Resize BiCubic Intrinsic", INTRINSIC, 255.f),
         POSTERIZE_INVOKE ("Posterize with invoke", RELAXED_FP, 215.f),
-        POSTERIZE_SET ("Posterize with set", INTRINSIC, 221.f);
+        POSTERIZE_SET ("Posterize with set", INTRINSIC, 221.f),
+        INTRINSIC_BLUR_RADIUS_25_BOX ("Intrinsic Blur radius 25 box", INTRINSIC),
+        INTRINSICS_BLUR_25G_BOX ("Intrinsics Blur 25 uchar box", INTRINSIC);
 
 
         private final String name;
@@ -189,6 +191,10 @@ public class IPTestList {
             return new Posterize(true);
         case POSTERIZE_SET:
             return new Posterize(false);
+        case INTRINSIC_BLUR_RADIUS_25_BOX:
+            return new Blur25(true, true);
+        case INTRINSICS_BLUR_25G_BOX:
+            return new Blur25G(true);
         }
         return null;
     }
@@ -39,6 +39,7 @@ import android.graphics.SurfaceTexture;
 import android.graphics.Point;
 
 import android.util.Log;
+import com.android.rs.benchmark.Sampler;
 
 
 public class ImageProcessingActivity2 extends Activity
@@ -66,6 +67,8 @@ public class ImageProcessingActivity2 extends Activity
 
     private int mTestList[];
     private float mTestResults[];
+    private float mTestLowerBounds[];
+    private float mTestUpperBounds[];
 
     private boolean mToggleLong;
     private boolean mTogglePause;
@@ -274,18 +277,15 @@ public class ImageProcessingActivity2 extends Activity
             start();
         }
 
-        class Result {
-            float totalTime;
-            int iterations;
-        }
-
         // Run one loop of kernels for at least the specified minimum time.
-        // The function returns the average time in ms for the test run
-        private Result runBenchmarkLoop(float minTime) {
+        // Every iteration is timed on its own and bounded by RS.finish(),
+        // the returned sampler holds the per-iteration times.
+        private Sampler runBenchmarkLoop(float minTime) {
             mUpdatesPending = 0;
-            Result r = new Result();
+            Sampler r = new Sampler();
 
-            long t = java.lang.System.currentTimeMillis();
+            long t = java.lang.System.nanoTime();
+            float elapsed = 0.f;
             do {
                 synchronized(this) {
                     // Shows pending is used to track the number of kernels in the RS pipeline
@@ -303,7 +303,7 @@ public class ImageProcessingActivity2 extends Activity
 
                 // If animations are enabled update the test state.
                 if (mToggleAnimate) {
-                    mTest.animateBars(r.totalTime);
+                    mTest.animateBars(elapsed);
                 }
 
                 // Run the kernel
@@ -317,8 +317,10 @@ public class ImageProcessingActivity2 extends Activity
                     mTest.mOutPixelsAllocation = mOutDisplayAllocationIO;
                 }
 
+                r.start();
                 mTest.runTest();
-                r.iterations ++;
+                mRS.finish();
+                r.stop();
 
                 if (!mToggleIO) {
                     if (mToggleDisplay) {
@@ -334,13 +336,10 @@ public class ImageProcessingActivity2 extends Activity
                 mScriptUtils.invoke_utilSendMessage(mActiveBitmap);
                 mActiveBitmap ^= 1;
 
-                long t2 = java.lang.System.currentTimeMillis();
-                r.totalTime = (t2 - t) / 1000.f;
-            } while (r.totalTime < minTime);
+                elapsed = (java.lang.System.nanoTime() - t) / 1e9f;
+            } while (elapsed < minTime);
 
             mRS.finish();
-            long t2 = java.lang.System.currentTimeMillis();
-            r.totalTime = (t2 - t) / 1000.f;
 
             // Even if we are not displaying as we go, show the final output
             if (!mToggleIO) {
@@ -352,7 +351,7 @@ public class ImageProcessingActivity2 extends Activity
 
 
         // Get a benchmark result for a specific test
-        private float getBenchmark() {
+        private Sampler getBenchmark() {
             mDoingBenchmark = true;
             mUpdatesPending = 0;
 
@@ -367,13 +366,14 @@ public class ImageProcessingActivity2 extends Activity
             runBenchmarkLoop(0.3f);
 
             // Run the actual benchmark
-            Result r = runBenchmarkLoop(runtime);
+            Sampler r = runBenchmarkLoop(runtime);
 
-            Log.v("rs", "Test: time=" + r.totalTime +"s,  frames=" + r.iterations +
-                  ", avg=" + r.totalTime / r.iterations * 1000.f);
+            Log.v("rs", "Test: time=" + r.getTotalTime() +"s,  frames=" + r.getCount() +
+                  ", avg=" + r.getMean() + ", 95% ci=[" + r.getLowerBound() +
+                  ", " + r.getUpperBound() + "]");
 
             mDoingBenchmark = false;
-            return r.totalTime / r.iterations * 1000.f;
+            return r;
         }
 
         private int mDisplayedBitmap;
@@ -464,7 +464,10 @@ public class ImageProcessingActivity2 extends Activity
                         }
 
                         // Run the test
-                        mTestResults[ct] = getBenchmark();
+                        Sampler r = getBenchmark();
+                        mTestResults[ct] = (float)r.getMean();
+                        mTestLowerBounds[ct] = (float)r.getLowerBound();
+                        mTestUpperBounds[ct] = (float)r.getUpperBound();
                     }
                     onBenchmarkFinish(mRun);
                     return;
@@ -701,6 +704,8 @@ public class ImageProcessingActivity2 extends Activity
             Intent intent = new Intent();
             intent.putExtra("tests", mTestList);
             intent.putExtra("results", mTestResults);
+            intent.putExtra("lower bounds", mTestLowerBounds);
+            intent.putExtra("upper bounds", mTestUpperBounds);
             setResult(RESULT_OK, intent);
         } else {
             setResult(RESULT_CANCELED);
@@ -766,6 +771,8 @@ public class ImageProcessingActivity2 extends Activity
         mBitmapHeight = i.getIntExtra("resolution Y", 0);
         mDemoMode = i.getBooleanExtra("demo", false);
         mTestResults = new float[mTestList.length];
+        mTestLowerBounds = new float[mTestList.length];
+        mTestUpperBounds = new float[mTestList.length];
 
         startProcessor();
     }
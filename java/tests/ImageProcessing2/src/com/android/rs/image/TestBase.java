@@ -85,17 +85,28 @@ public class TestBase  {
 
     public final void createBaseTest(ImageProcessingActivity2 ipact) {
         act = ipact;
-        mRS = ipact.mProcessor.mRS;
 
-        mInPixelsAllocation = ipact.mProcessor.mInPixelsAllocation;
-        mInPixelsAllocation2 = ipact.mProcessor.mInPixelsAllocation2;
+        Allocation out;
         if (ipact.mProcessor.mOutDisplayAllocation1 == null) {
-            mOutPixelsAllocation = ipact.mProcessor.mOutDisplayAllocationIO;
+            out = ipact.mProcessor.mOutDisplayAllocationIO;
         } else {
-            mOutPixelsAllocation = ipact.mProcessor.mOutDisplayAllocation1;
+            out = ipact.mProcessor.mOutDisplayAllocation1;
         }
 
-        createTest(act.getResources());
+        createBaseTest(ipact.mProcessor.mRS, ipact.mProcessor.mInPixelsAllocation,
+                       ipact.mProcessor.mInPixelsAllocation2, out, act.getResources());
+    }
+
+    // Used by the headless runner, which has no activity.  act stays null,
+    // so tests must not touch it outside of the UI setup callbacks.
+    final void createBaseTest(RenderScript rs, Allocation in, Allocation in2, Allocation out,
+                              android.content.res.Resources res) {
+        mRS = rs;
+        mInPixelsAllocation = in;
+        mInPixelsAllocation2 = in2;
+        mOutPixelsAllocation = out;
+
+        createTest(res);
     }
 
     // Must override
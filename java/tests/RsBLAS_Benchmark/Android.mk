@@ -22,6 +22,7 @@ LOCAL_JAVA_LIBRARIES := android.test.runner
 LOCAL_MODULE_TAGS := tests
 
 LOCAL_SRC_FILES := $(call all-java-files-under, src) \
+		   $(call all-java-files-under, ../BenchmarkCommon/src) \
 		   $(call all-renderscript-files-under, src)
 
 LOCAL_PACKAGE_NAME := RsBlasBenchmark
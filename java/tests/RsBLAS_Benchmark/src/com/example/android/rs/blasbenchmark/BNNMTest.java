@@ -364,6 +364,11 @@ public class BNNMTest extends TestBase {
         mBLAS.BNNM(matA, a_offset, matB, b_offset, matC, c_offset, c_mult_int);
     }
 
+    // One multiply and one add per inner product term, in 8 bit integers.
+    public double getOpCount() {
+        return 2.0 * m * n * k;
+    }
+
     public String getTestInfo() {
         return "8Bit GEMM Test: m=" + m + ", n=" + n + ", k=" + k;
     }
@@ -37,6 +37,7 @@ import android.renderscript.Type;
 import android.renderscript.Allocation;
 import android.renderscript.Element;
 import android.renderscript.Script;
+import com.android.rs.benchmark.Sampler;
 
 public class BlasBenchmark extends Activity {
 
@@ -46,6 +47,8 @@ public class BlasBenchmark extends Activity {
 
     private int mTestList[];
     private float mTestResults[];
+    private float mTestLowerBounds[];
+    private float mTestUpperBounds[];
     private String mTestInfo[];
 
     private TextView mTextView;
@@ -95,35 +98,29 @@ public class BlasBenchmark extends Activity {
         }
 
         class Result {
-            float totalTime;
-            int iterations;
+            Sampler samples = new Sampler();
             String testInfo;
         }
 
         // Run one loop of kernels for at least the specified minimum time.
-        // The function returns the average time in ms for the test run
+        // Every iteration is timed on its own and bounded by RS.finish(),
+        // the result holds the per-iteration times.
         private Result runBenchmarkLoop(float minTime) {
             Result r = new Result();
-            long t = java.lang.System.currentTimeMillis();
 
             r.testInfo = mTest.getTestInfo();
             do {
                 // Run the kernel
+                r.samples.start();
                 mTest.runTest();
-                r.iterations ++;
+                mRS.finish();
+                r.samples.stop();
                 // Send our RS message handler a message so we know when this work has completed
                 mRS.sendMessage(0, null);
+            } while (r.samples.getTotalTime() < minTime);
 
-                long t2 = java.lang.System.currentTimeMillis();
-                r.totalTime += (t2 - t) / 1000.f;
-                t = t2;
-            } while (r.totalTime < minTime);
-
-            // Wait for any stray operations to complete and update the final time
+            // Wait for any stray operations to complete
             mRS.finish();
-            long t2 = java.lang.System.currentTimeMillis();
-            r.totalTime += (t2 - t) / 1000.f;
-            t = t2;
             return r;
         }
 
@@ -145,8 +142,10 @@ public class BlasBenchmark extends Activity {
             // Run the actual benchmark
             Result r = runBenchmarkLoop(runtime);
 
-            Log.v("rs", "Test: time=" + r.totalTime +"s,  iterations=" + r.iterations +
-                  ", avg=" + r.totalTime / r.iterations * 1000.f);
+            Log.v("rs", "Test: time=" + r.samples.getTotalTime() +"s,  iterations=" +
+                  r.samples.getCount() + ", avg=" + r.samples.getMean() +
+                  ", 95% ci=[" + r.samples.getLowerBound() + ", " +
+                  r.samples.getUpperBound() + "]");
 
             mDoingBenchmark = false;
             return r;
@@ -192,7 +191,9 @@ public class BlasBenchmark extends Activity {
 
                         // Run the test
                         Result r = getBenchmark();
-                        mTestResults[ct] = r.totalTime / r.iterations * 1000.f;
+                        mTestResults[ct] = (float)r.samples.getMean();
+                        mTestLowerBounds[ct] = (float)r.samples.getLowerBound();
+                        mTestUpperBounds[ct] = (float)r.samples.getUpperBound();
                         mTestInfo[ct] = r.testInfo;
                     }
                     onBenchmarkFinish(mRun);
@@ -262,6 +263,8 @@ public class BlasBenchmark extends Activity {
             Intent intent = new Intent();
             intent.putExtra("tests", mTestList);
             intent.putExtra("results", mTestResults);
+            intent.putExtra("lower bounds", mTestLowerBounds);
+            intent.putExtra("upper bounds", mTestUpperBounds);
             intent.putExtra("testinfo", mTestInfo);
             setResult(RESULT_OK, intent);
         } else {
@@ -289,6 +292,8 @@ public class BlasBenchmark extends Activity {
         mDemoMode = i.getBooleanExtra("demo", false);
 
         mTestResults = new float[mTestList.length];
+        mTestLowerBounds = new float[mTestList.length];
+        mTestUpperBounds = new float[mTestList.length];
         mTestInfo = new String[mTestList.length];
 
         startProcessor();
@@ -171,14 +171,17 @@ public class BlasControls extends Activity {
                 mInfo = new String[BlasTestList.TestName.values().length];
 
                 float r[] = data.getFloatArrayExtra("results");
+                float lo[] = data.getFloatArrayExtra("lower bounds");
+                float hi[] = data.getFloatArrayExtra("upper bounds");
                 String inf[] = data.getStringArrayExtra("testinfo");
                 int id[] = data.getIntArrayExtra("tests");
 
                 String mOutResult = "";
                 for (int ct=0; ct < id.length; ct++) {
                     String t = inf[ct];
-                    String sl = BlasTestList.TestName.values()[id[ct]].toString() + ":   " + df.format(r[ct]) + "ms";
-                    String s = t + ":   " + df.format(r[ct]) + "ms";
+                    String ci = " +/- " + df.format((hi[ct] - lo[ct]) / 2) + "ms";
+                    String sl = BlasTestList.TestName.values()[id[ct]].toString() + ":   " + df.format(r[ct]) + "ms" + ci;
+                    String s = t + ":   " + df.format(r[ct]) + "ms" + ci;
                     mTestList.set(id[ct], sl);
                     mTestListAdapter.notifyDataSetChanged();
                     mOutResult += s + '\n';
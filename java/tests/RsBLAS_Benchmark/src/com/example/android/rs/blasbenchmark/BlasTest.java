@@ -18,13 +18,15 @@ package com.example.android.rs.blasbenchmark;
 
 
 import android.os.Bundle;
+import android.renderscript.RenderScript;
 import android.util.Log;
 
 import com.example.android.rs.blasbenchmark.BlasTestList.TestName;
 import com.example.android.rs.blasbenchmark.BlasTestRunner;
 
-import android.test.ActivityInstrumentationTestCase2;
+import android.test.InstrumentationTestCase;
 import android.test.suitebuilder.annotation.LargeTest;
+import com.android.rs.benchmark.Sampler;
 
 /**
  * BLAS benchmark test.
@@ -32,84 +34,106 @@ import android.test.suitebuilder.annotation.LargeTest;
  *
  * adb shell am instrument -e iteration <n> -w com.example.android.rs.blasbenchmark/.BlasTestRunner
  *
+ * The tests are timed directly on the instrumentation thread with their own
+ * RenderScript context, independently of the BlasBenchmark activity.  Each
+ * status bundle reports the throughput (GFLOP/s for SGEMM, GOP/s for BNNM)
+ * and the mean latency of one call.
  */
-public class BlasTest extends ActivityInstrumentationTestCase2<BlasBenchmark> {
+public class BlasTest extends InstrumentationTestCase {
     private final String TAG = "BLAS Test";
     private final String TEST_NAME = "Testname";
+    private final String TEST_INFO = "Testinfo";
     private final String ITERATIONS = "Iterations";
     private final String BENCHMARK = "Benchmark";
+    private final String UNIT = "Unit";
+    private final String LATENCY = "Latency";
     private static int INSTRUMENTATION_IN_PROGRESS = 2;
-    private int mIteration;
-    private BlasBenchmark mActivity;
 
-    public BlasTest() {
-        super(BlasBenchmark.class);
-    }
+    // Minimum time in seconds spent warming up and measuring each iteration.
+    private static final float WARMUP_TIME = 0.3f;
+    private static final float RUN_TIME = 1.f;
+
+    private int mIteration;
+    private RenderScript mRS;
 
     @Override
     public void setUp() throws Exception {
         super.setUp();
-        setActivityInitialTouchMode(false);
-        mActivity = getActivity();
         BlasTestRunner mRunner = (BlasTestRunner) getInstrumentation();
         mIteration = mRunner.mIteration;
         assertTrue("please enter a valid iteration value", mIteration > 0);
+        mRS = RenderScript.create(getInstrumentation().getTargetContext());
    }
 
     @Override
     public void tearDown() throws Exception {
+        mRS.destroy();
+        mRS = null;
         super.tearDown();
     }
 
-    class TestAction implements Runnable {
+    class TestAction {
         TestName mTestName;
-        float mResult;
+        TestBase mTest;
+        float mLatency;
+        float mThroughput;
+
         public TestAction(TestName testName) {
             mTestName = testName;
         }
-        public void run() {
-            mActivity.changeTest(mTestName, false);
-            //mResult = mActivity.getBenchmark();
-            Log.v(TAG, "Benchmark for test \"" + mTestName.toString() + "\" is: " + mResult);
-            synchronized(this) {
-                this.notify();
-            }
-        }
-        public float getBenchmark() {
-            return mResult;
+
+        private Sampler runLoop(float minTime) {
+            Sampler s = new Sampler();
+            do {
+                s.start();
+                mTest.runTest();
+                mRS.finish();
+                s.stop();
+            } while (s.getTotalTime() < minTime);
+            return s;
         }
-    }
 
-    // Set the benchmark thread to run on ui thread
-    // Synchronized the thread such that the test will wait for the benchmark thread to finish
-    public void runOnUiThread(Runnable action) {
-        synchronized(action) {
-            mActivity.runOnUiThread(action);
-            try {
-                action.wait();
-            } catch (InterruptedException e) {
-                Log.v(TAG, "waiting for action running on UI thread is interrupted: " +
-                        e.toString());
+        public void run() {
+            Sampler s = runLoop(RUN_TIME);
+            mLatency = (float)s.getMean();
+            mThroughput = 0.f;
+            if (mLatency > 0.f) {
+                // ops per ms * 1e-6 = Gops per second
+                mThroughput = (float)(mTest.getOpCount() / mLatency / 1e6);
             }
+            Log.v(TAG, "Benchmark for test \"" + mTestName.toString() + "\" is: " +
+                  mThroughput + " " + mTest.getThroughputUnit() + ", " + mLatency + "ms");
         }
     }
 
     public void runTest(TestAction ta, String testName) {
-        float sum = 0;
+        ta.mTest = BlasTestList.newTest(ta.mTestName);
+        ta.mTest.createBaseTest(mRS);
+
+        // Let power management settle before measuring.
+        ta.runLoop(WARMUP_TIME);
+
+        float throughput = 0;
+        float latency = 0;
         for (int i = 0; i < mIteration; i++) {
-            runOnUiThread(ta);
-            float bmValue = ta.getBenchmark();
-            Log.v(TAG, "results for iteration " + i + " is " + bmValue);
-            sum += bmValue;
+            ta.run();
+            Log.v(TAG, "results for iteration " + i + " is " + ta.mThroughput + " " +
+                  ta.mTest.getThroughputUnit());
+            throughput += ta.mThroughput;
+            latency += ta.mLatency;
         }
-        float avgResult = sum/mIteration;
 
         // post result to INSTRUMENTATION_STATUS
         Bundle results = new Bundle();
         results.putString(TEST_NAME, testName);
+        results.putString(TEST_INFO, ta.mTest.getTestInfo());
         results.putInt(ITERATIONS, mIteration);
-        results.putFloat(BENCHMARK, avgResult);
+        results.putFloat(BENCHMARK, throughput / mIteration);
+        results.putString(UNIT, ta.mTest.getThroughputUnit());
+        results.putFloat(LATENCY, latency / mIteration);
         getInstrumentation().sendStatus(INSTRUMENTATION_IN_PROGRESS, results);
+
+        ta.mTest.destroy();
     }
 
     // Test case 0: SGEMM Test Small
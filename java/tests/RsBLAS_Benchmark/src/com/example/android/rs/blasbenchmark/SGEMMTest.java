@@ -274,6 +274,15 @@ public class SGEMMTest extends TestBase {
                     1.0f, matA, matB, 0.f, matC);
     }
 
+    // One multiply and one add per inner product term.
+    public double getOpCount() {
+        return 2.0 * m * n * k;
+    }
+
+    public String getThroughputUnit() {
+        return "GFLOP/s";
+    }
+
     public String getTestInfo() {
         return "SGEMM Test: m=" + m + ", n=" + n + ", k=" + k;
     }
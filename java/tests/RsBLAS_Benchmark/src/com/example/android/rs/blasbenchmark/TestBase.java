@@ -37,7 +37,12 @@ public class TestBase  {
     protected TextView mText;
     public final void createBaseTest(BlasBenchmark ipact) {
         act = ipact;
-        mRS = ipact.mProcessor.mRS;
+        createBaseTest(ipact.mProcessor.mRS);
+    }
+
+    // Used when running without the benchmark activity.
+    public final void createBaseTest(RenderScript rs) {
+        mRS = rs;
         createTest();
     }
 
@@ -46,6 +51,17 @@ public class TestBase  {
         return "BLAS BenchMark";
     }
 
+    // Override to report the number of arithmetic operations done by one
+    // call to runTest(), used to compute throughput.
+    public double getOpCount() {
+        return 0;
+    }
+
+    // Unit of the throughput derived from getOpCount().
+    public String getThroughputUnit() {
+        return "GOP/s";
+    }
+
     // Must override
     public void createTest() {
     }
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.rs.test;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.renderscript.*;
+import android.util.Log;
+import java.util.Arrays;
+import java.util.Random;
+
+// Runs a convolve 3x3 -> convolve 5x5 -> convolve 3x3 chain, which the CPU
+// driver runs tile by tile, and checks that the result is bit identical to
+// launching the three intrinsics one by one, which is what
+// debug.rs.sg2-serial does.  The heights are primes so that neither the
+// bands nor the tiles divide them evenly, and the rows are wide enough that
+// a band takes several tiles.
+public class UT_script_group2_tiled extends UnitTest {
+    private Resources mRes;
+
+    private static final int WIDTH = 1031;
+    private static final int[] HEIGHTS = {2, 5, 37, 257, 509, 1021};
+
+    private static final String TAG = "ScritGroup2 (tiled)";
+
+    protected UT_script_group2_tiled(RSTestCore rstc, Resources res, Context ctx) {
+        super(rstc, TAG, ctx);
+        mRes = res;
+    }
+
+    private static float[] randomKernel(Random rand, int size) {
+        float[] k = new float[size];
+        float sum = 0.f;
+        for (int i = 0; i < size; i++) {
+            k[i] = rand.nextFloat();
+            sum += k[i];
+        }
+        for (int i = 0; i < size; i++) {
+            k[i] /= sum;
+        }
+        return k;
+    }
+
+    private boolean checkChain(RenderScript pRS, Element e, int height, Random rand) {
+        ScriptIntrinsicConvolve3x3 conv0 = ScriptIntrinsicConvolve3x3.create(pRS, e);
+        ScriptIntrinsicConvolve5x5 conv1 = ScriptIntrinsicConvolve5x5.create(pRS, e);
+        ScriptIntrinsicConvolve3x3 conv2 = ScriptIntrinsicConvolve3x3.create(pRS, e);
+        conv0.setCoefficients(randomKernel(rand, 9));
+        conv1.setCoefficients(randomKernel(rand, 25));
+        conv2.setCoefficients(randomKernel(rand, 9));
+
+        Type type = Type.createXY(pRS, e, WIDTH, height);
+        Allocation input = Allocation.createTyped(pRS, type);
+        byte[] data = new byte[WIDTH * height * e.getVectorSize()];
+        rand.nextBytes(data);
+        input.copyFromUnchecked(data);
+
+        ScriptGroup.Builder2 builder = new ScriptGroup.Builder2(pRS);
+        ScriptGroup.Input unbound = builder.addInput();
+        ScriptGroup.Closure c0 = builder.addKernel(
+                conv0.getKernelID(), type,
+                new ScriptGroup.Binding(conv0.getFieldID_Input(), unbound));
+        ScriptGroup.Closure c1 = builder.addKernel(
+                conv1.getKernelID(), type,
+                new ScriptGroup.Binding(conv1.getFieldID_Input(), c0.getReturn()));
+        ScriptGroup.Closure c2 = builder.addKernel(
+                conv2.getKernelID(), type,
+                new ScriptGroup.Binding(conv2.getFieldID_Input(), c1.getReturn()));
+        ScriptGroup group = builder.create("Tiled", c2.getReturn());
+
+        byte[] got = new byte[data.length];
+        ((Allocation)group.execute(input)[0]).copyTo(got);
+
+        Allocation t0 = Allocation.createTyped(pRS, type);
+        Allocation t1 = Allocation.createTyped(pRS, type);
+        Allocation ref = Allocation.createTyped(pRS, type);
+        conv0.setInput(input);
+        conv0.forEach(t0);
+        conv1.setInput(t0);
+        conv1.forEach(t1);
+        conv2.setInput(t1);
+        conv2.forEach(ref);
+        byte[] expected = new byte[data.length];
+        ref.copyTo(expected);
+
+        if (!Arrays.equals(got, expected)) {
+            Log.e(TAG, "U8_" + e.getVectorSize() + " " + WIDTH + "x" + height +
+                  ": tiled chain differs from the intrinsics run one by one");
+            return false;
+        }
+        return true;
+    }
+
+    public void run() {
+        RenderScript pRS = RenderScript.create(mCtx);
+        pRS.setMessageHandler(mRsMessage);
+
+        Random rand = new Random(1);
+        boolean failed = false;
+        Element[] elements = {Element.U8(pRS), Element.U8_4(pRS)};
+        for (Element e : elements) {
+            for (int height : HEIGHTS) {
+                if (!checkChain(pRS, e, height, rand)) {
+                    failed = true;
+                }
+            }
+        }
+
+        pRS.finish();
+        pRS.destroy();
+
+        if (failed) {
+            failTest();
+            return;
+        }
+        passTest();
+    }
+}
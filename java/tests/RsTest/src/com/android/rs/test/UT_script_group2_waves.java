@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.rs.test;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.renderscript.*;
+import android.util.Log;
+import java.util.Arrays;
+import java.util.Random;
+
+// Runs a group whose kernels have no dependencies between them except
+// through an allocation one of them writes via a value-bound rs_allocation
+// global, and compares its results with launching the same kernels one by
+// one in order, which is what debug.rs.sg2-serial does.
+public class UT_script_group2_waves extends UnitTest {
+    private Resources mRes;
+
+    // Large enough that the kernels take several slices each.
+    private static final int ARRAY_SIZE = 64 * 1024;
+    private static final int ROUNDS = 8;
+
+    private static final String TAG = "ScritGroup2 (waves)";
+
+    protected UT_script_group2_waves(RSTestCore rstc, Resources res, Context ctx) {
+        super(rstc, TAG, ctx);
+        mRes = res;
+    }
+
+    public void run() {
+        RenderScript pRS = RenderScript.create(mCtx);
+        ScriptC_increment s_inc = new ScriptC_increment(pRS);
+        ScriptC_increment2 s_inc2 = new ScriptC_increment2(pRS);
+        ScriptC_double s_double = new ScriptC_double(pRS);
+        ScriptC_double s_double2 = new ScriptC_double(pRS);
+        pRS.setMessageHandler(mRsMessage);
+
+        Type type = Type.createX(pRS, Element.I32_4(pRS), ARRAY_SIZE);
+        Allocation input = Allocation.createTyped(pRS, type);
+        Allocation side = Allocation.createTyped(pRS, type);
+        Allocation sideRef = Allocation.createTyped(pRS, type);
+        Allocation out0 = Allocation.createTyped(pRS, type);
+        Allocation out2 = Allocation.createTyped(pRS, type);
+        Allocation out3 = Allocation.createTyped(pRS, type);
+
+        ScriptGroup.Builder2 builder = new ScriptGroup.Builder2(pRS);
+        ScriptGroup.Input unbound = builder.addInput();
+
+        // c1 writes side through its global a, which c2 then reads as its
+        // input.  Nothing else orders the two.
+        ScriptGroup.Closure c0 =
+                builder.addKernel(s_inc.getKernelID_increment(), type, unbound);
+        ScriptGroup.Closure c1 =
+                builder.addKernel(s_inc2.getKernelID_increment2(), type, unbound,
+                                  new ScriptGroup.Binding(s_inc2.getFieldID_a(), side));
+        ScriptGroup.Closure c2 =
+                builder.addKernel(s_double.getKernelID_doubleKernel(), type, side);
+        ScriptGroup.Closure c3 =
+                builder.addKernel(s_double2.getKernelID_doubleKernel(), type, c0.getReturn());
+
+        ScriptGroup group = builder.create("Waves", c0.getReturn(), c2.getReturn(),
+                                           c3.getReturn());
+
+        int[] data = new int[ARRAY_SIZE * 4];
+        int[] got = new int[ARRAY_SIZE * 4];
+        int[] expected = new int[ARRAY_SIZE * 4];
+        Random rand = new Random(1);
+        boolean failed = false;
+
+        for (int round = 0; round < ROUNDS && !failed; round++) {
+            for (int i = 0; i < data.length; i++) {
+                data[i] = rand.nextInt(1 << 20);
+            }
+            input.copyFrom(data);
+            side.copyFrom(data);
+            sideRef.copyFrom(data);
+
+            Object[] results = group.execute(input);
+
+            s_inc.forEach_increment(input, out0);
+            s_inc2.set_a(sideRef);
+            s_inc2.forEach_increment2(input);
+            s_double.forEach_doubleKernel(sideRef, out2);
+            s_double2.forEach_doubleKernel(out0, out3);
+
+            Allocation[] refs = {out0, out2, out3};
+            for (int k = 0; k < refs.length; k++) {
+                ((Allocation)results[k]).copyTo(got);
+                refs[k].copyTo(expected);
+                if (!Arrays.equals(got, expected)) {
+                    Log.e(TAG, "round " + round + ": result " + k +
+                          " differs from the kernels run one by one");
+                    failed = true;
+                }
+            }
+            side.copyTo(got);
+            sideRef.copyTo(expected);
+            if (!Arrays.equals(got, expected)) {
+                Log.e(TAG, "round " + round + ": side allocation differs");
+                failed = true;
+            }
+        }
+
+        pRS.finish();
+        pRS.destroy();
+
+        if (failed) {
+            failTest();
+            return;
+        }
+        passTest();
+    }
+}
@@ -72,8 +72,10 @@ public class VrActivity extends Activity {
     class VrSetupTask extends AsyncTask<String, Integer, Volume> {
         ProgressDialog progressDialog;
         String message;
+        long startTime;
         protected void onPreExecute() {
             super.onPreExecute();
+            startTime = System.nanoTime();
             progressDialog = new ProgressDialog(VrActivity.this);
             progressDialog.setMessage(message= "Loading Volume");
             progressDialog.setIndeterminate(true);
@@ -102,7 +104,9 @@ public class VrActivity extends Activity {
 
         @Override
         protected void onProgressUpdate(Integer... progress) {
-            progressDialog.setMessage(message+progress[0]+"/"+progress[1]);
+            float seconds = (System.nanoTime() - startTime) * 1E-9f;
+            int rate = (int) (progress[0] / seconds);
+            progressDialog.setMessage(message+progress[0]+"/"+progress[1]+" ("+rate+"/s)");
             progressDialog.setMax(progress[1]);
             progressDialog.setProgress(progress[0]);
             Log.v(LOGTAG,"Loading "+ progress[0]+"/"+progress[1]);
@@ -57,6 +57,11 @@ public class VrView extends TextureView {
     ///private Size mImageViewSize;
     private int refresh = 0;  // 0 is no refresh else refresh = downsample
     int mPreviousMode = -1;
+    // Downsample used while interacting, adapted to hold the frame rate.
+    private int mInteractiveSample = 4;
+    private static final float TARGET_FRAME_MS = 33;
+    private static final int MIN_SAMPLE = 2;
+    private static final int MAX_SAMPLE = 8;
     int last_look = 0;
 
     //    int mDownSample = 4;
@@ -337,7 +342,7 @@ public class VrView extends TextureView {
     public void setLook(String look) {
         int[][] color = mState1.mVolume.getLookColor(look);
         int[][] opacity = mState1.mVolume.getLookOpactiy(look);
-        mState1.mMaterial.setup(opacity, color);
+        mState1.mMaterial.update(opacity, color);
         if (mBinGridTask == null) {
             mBinGridTask = new VrBinGridTask();
             mBinGridTask.execute(mState1.mVolume);
@@ -362,10 +367,11 @@ public class VrView extends TextureView {
         protected Long doInBackground(Integer... down) {
             if (mState1.mRs == null) return 0L;
             if (mSurfaceTexture == null) return 0L;
-            int sample = 4;
+            int sample = mInteractiveSample;
             VrState state = mStateLow;
             if (down[0] == 1) {
-                if (mPreviousMode == 4) {
+                // mLastDrawn only holds a frame once a low res one finished.
+                if (mPreviousMode > 1 && mLastDrawn.mVolume != null) {
                     mState1.copyData(mLastDrawn);
                 } else {
                     mState1.copyData(mStateLow);
@@ -393,6 +399,7 @@ public class VrView extends TextureView {
             int img_width = getWidth() / sample;
             int img_height = getHeight() / sample;
             state.createOutputAllocation(mSurface, img_width, img_height);
+            state.mProgressive = (sample == 1);
 
             mPipline.initBuffers(state);
 
@@ -421,10 +428,22 @@ public class VrView extends TextureView {
             state.mScrAllocation.ioSend();
 
             long time = System.nanoTime();
-            addLine("vr(" + img_width + "," + img_height + "): " + (time - start) / 1E6f + " ms");
+            float ms = (time - start) / 1E6f;
+            addLine("vr(" + img_width + "," + img_height + "): " + ms + " ms");
+            if (sample != 1) {
+                adaptSample(ms);
+            }
             return 0L;
         }
 
+        private void adaptSample(float ms) {
+            if (ms > TARGET_FRAME_MS * 1.25f && mInteractiveSample < MAX_SAMPLE) {
+                mInteractiveSample++;
+            } else if (ms < TARGET_FRAME_MS * 0.5f && mInteractiveSample > MIN_SAMPLE) {
+                mInteractiveSample--;
+            }
+        }
+
         private void addTimeLine(String line) {
             if (line == null) {
                 m_last_time = System.nanoTime();
@@ -460,7 +479,12 @@ public class VrView extends TextureView {
 
         @Override
         protected Long doInBackground(Volume... v) {
-            mState1.mRsMask = new RsBrickedBitMask(mState1);
+            RsBrickedBitMask mask = mState1.mRsMask;
+            if (mask != null && mask.getVolume() == mState1.mVolume) {
+                mask.update(mState1);
+            } else {
+                mState1.mRsMask = new RsBrickedBitMask(mState1);
+            }
             mState1.mRs.finish();
             return 0L;
         }
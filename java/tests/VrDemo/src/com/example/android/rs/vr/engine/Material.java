@@ -36,6 +36,12 @@ public class Material {
     public byte[] mOpacityTable = new byte[SIZE];
     MaterialProp[] mMaterialProp = new MaterialProp[0];
     public byte[] mColor = new byte[SIZE * STRIDE]; // table contain r, g, b, A, S, D
+    // Signed intensities changed since the last upload, empty when lo > hi.
+    private int mOpacityDirtyLo = Short.MIN_VALUE;
+    private int mOpacityDirtyHi = Short.MAX_VALUE;
+    private int mColorDirtyLo = Short.MIN_VALUE;
+    private int mColorDirtyHi = Short.MAX_VALUE;
+    private byte[] mUploadBuffer = new byte[0];
     public static final int RED = 0;
     public static final int GREEN = 1;
     public static final int BLUE = 2;
@@ -79,7 +85,7 @@ public class Material {
         simpleSetup(1150, 1300);
     }
 
-    public void simpleSetup(int start, int end) {
+    public synchronized void simpleSetup(int start, int end) {
         float diffuse = .7f;
         float specular = .0f;
         float ambient = .3f;
@@ -95,9 +101,13 @@ public class Material {
             mColor[p + AMB] = (byte) (255 * ambient);
             mOpacityTable[off] = v;
         }
+        mOpacityDirtyLo = Short.MIN_VALUE;
+        mOpacityDirtyHi = Short.MAX_VALUE;
+        mColorDirtyLo = Short.MIN_VALUE;
+        mColorDirtyHi = Short.MAX_VALUE;
     }
 
-    public void setup(int[] means, int start, int end) {
+    public synchronized void setup(int[] means, int start, int end) {
         int[] pos = new int[means.length - 1];
         int[] red = new int[means.length - 1];
         int[] green = new int[means.length - 1];
@@ -144,15 +154,15 @@ public class Material {
         buildMaterialProp();
     }
 
-    public void setup(int[][] opacity, int[][] material) {
+    public synchronized void setup(int[][] opacity, int[][] material) {
         mMaterialProp = new MaterialProp[material.length];
 
         for (int i = 0; i < material.length; i++) {
             int rgb = material[i][1] & 0xFFFFFF;
 
-            float ambient = (material[i].length > 2) ? material[i][2] / 100.f : .2f;
-            float diffuse = (material[i].length > 3) ? material[i][3] / 100.f : .6f;
-            float specular = (material[i].length > 4) ? material[i][4] / 100.f : .2f;
+            float ambient = lighting(material[i], 2, .2f);
+            float diffuse = lighting(material[i], 3, .6f);
+            float specular = lighting(material[i], 4, .2f);
 
             mMaterialProp[i] = new MaterialProp();
             mMaterialProp[i].mAmbient = ambient;
@@ -175,7 +185,72 @@ public class Material {
         buildMaterialProp();
     }
 
-    public void setup(int start, int end) {
+    private static float lighting(int[] material, int index, float fallback) {
+        return (material.length > index) ? material[index] / 100.f : fallback;
+    }
+
+    /**
+     * Switches to the control points of another look.  When it has as many
+     * points with the same lighting as the current one, only the points that
+     * differ are moved, otherwise the tables are rebuilt by
+     * {@link #setup(int[][], int[][])}.
+     */
+    public synchronized void update(int[][] opacity, int[][] material) {
+        if (opacity.length == 0 || opacity.length != mOpacity.length
+                || material.length == 0 || material.length != mMaterialProp.length) {
+            setup(opacity, material);
+            return;
+        }
+        for (int i = 0; i < material.length; i++) {
+            MaterialProp mp = mMaterialProp[i];
+            if (mp.mAmbient != lighting(material[i], 2, .2f)
+                    || mp.mDiffuse != lighting(material[i], 3, .6f)
+                    || mp.mSpecular != lighting(material[i], 4, .2f)) {
+                setup(opacity, material);
+                return;
+            }
+        }
+        // A point is kept between its neighbours, so the points moving down
+        // go first, lowest first, then the others, highest first.  Either
+        // way the neighbours are already in place or out of the way.
+        for (int i = 0; i < opacity.length; i++) {
+            if (opacity[i][0] <= mOpacity[i].mPos) {
+                updateOpacityPoint(i, opacity[i]);
+            }
+        }
+        for (int i = opacity.length - 1; i >= 0; i--) {
+            if (opacity[i][0] > mOpacity[i].mPos) {
+                updateOpacityPoint(i, opacity[i]);
+            }
+        }
+        for (int i = 0; i < material.length; i++) {
+            if (material[i][0] <= mMaterialProp[i].mPos) {
+                updateMaterialPoint(i, material[i]);
+            }
+        }
+        for (int i = material.length - 1; i >= 0; i--) {
+            if (material[i][0] > mMaterialProp[i].mPos) {
+                updateMaterialPoint(i, material[i]);
+            }
+        }
+    }
+
+    private void updateOpacityPoint(int i, int[] opacity) {
+        float value = opacity[1] / 255.f;
+        if (opacity[0] != mOpacity[i].mPos || value != mOpacity[i].mValue) {
+            setOpacityPoint(i, opacity[0], value);
+        }
+    }
+
+    private void updateMaterialPoint(int i, int[] material) {
+        MaterialProp mp = mMaterialProp[i];
+        int rgb = material[1] & 0xFFFFFF;
+        if (material[0] != mp.mPos || rgb != ((mp.mRed << 16) | (mp.mGreen << 8) | mp.mBlue)) {
+            setMaterialPoint(i, material[0], rgb);
+        }
+    }
+
+    public synchronized void setup(int start, int end) {
         int[] pos = {1050, 1140, 1200, 1210, 1231};
 
         mMaterialProp = new MaterialProp[pos.length];
@@ -208,115 +283,222 @@ public class Material {
         buildMaterialProp();
     }
 
+    /**
+     * Moves opacity control point i, kept between its neighbours, and
+     * recomputes only the two segments it bounds.
+     */
+    public synchronized void setOpacityPoint(int i, int pos, float value) {
+        Opactiy[] o = mOpacity;
+        int lo = (i > 0) ? o[i - 1].mPos : Short.MIN_VALUE;
+        int hi = (i < o.length - 1) ? o[i + 1].mPos : Short.MAX_VALUE;
+        o[i].mPos = Math.max(lo, Math.min(hi, pos));
+        o[i].mValue = value;
+        fillOpacity(lo, hi);
+        mOpacityDirtyLo = Math.min(mOpacityDirtyLo, lo);
+        mOpacityDirtyHi = Math.max(mOpacityDirtyHi, hi);
+    }
+
+    /**
+     * Moves material control point i, kept between its neighbours, and
+     * recomputes only the two segments it bounds.
+     */
+    public synchronized void setMaterialPoint(int i, int pos, int rgb) {
+        MaterialProp[] m = mMaterialProp;
+        int lo = (i > 0) ? m[i - 1].mPos : Short.MIN_VALUE;
+        int hi = (i < m.length - 1) ? m[i + 1].mPos : Short.MAX_VALUE;
+        m[i].mPos = Math.max(lo, Math.min(hi, pos));
+        m[i].mRed = (rgb >> 16) & 0xff;
+        m[i].mGreen = (rgb >> 8) & 0xff;
+        m[i].mBlue = (rgb >> 0) & 0xff;
+        fillColor(lo, hi);
+        mColorDirtyLo = Math.min(mColorDirtyLo, lo);
+        mColorDirtyHi = Math.max(mColorDirtyHi, hi);
+    }
+
     void buildOpacityTable() {
         if (mOpacity.length == 0) {
             return;
         }
-        for (int i = Short.MIN_VALUE; i <= mOpacity[0].mPos; i++) {
-            int p = i & 0xFFFF;
-            mOpacityTable[p] = (byte) (mOpacity[0].mValue * 255);
+        fillParallel(true);
+        mOpacityDirtyLo = Short.MIN_VALUE;
+        mOpacityDirtyHi = Short.MAX_VALUE;
+    }
+
+    public void buildMaterialProp() {
+        if (mMaterialProp.length == 0) {
+            return;
+        }
+        fillParallel(false);
+        mColorDirtyLo = Short.MIN_VALUE;
+        mColorDirtyHi = Short.MAX_VALUE;
+    }
+
+    /**
+     * Fills the whole opacity or color table, a slice of the intensities
+     * per thread.
+     */
+    private void fillParallel(final boolean opacity) {
+        int number_of_threads = Runtime.getRuntime().availableProcessors();
+        Thread[] t = new Thread[number_of_threads];
+        for (int i = 0; i < number_of_threads; i++) {
+            final int lo = Short.MIN_VALUE + (int) ((long) SIZE * i / number_of_threads);
+            final int hi = Short.MIN_VALUE + (int) ((long) SIZE * (i + 1) / number_of_threads) - 1;
+            t[i] = new Thread() {
+                public void run() {
+                    if (opacity) {
+                        fillOpacity(lo, hi);
+                    } else {
+                        fillColor(lo, hi);
+                    }
+                }
+            };
+            t[i].start();
         }
-        for (int k = 0; k < mOpacity.length - 1; k++) {
-            for (int i = mOpacity[k].mPos; i < mOpacity[k + 1].mPos; i++) {
-                int p = i & 0xFFFF;
-                float dist = mOpacity[k + 1].mPos - mOpacity[k].mPos;
-                float t = (i - mOpacity[k].mPos) / dist;
-                float v = mOpacity[k].mValue * (1 - t) + t * mOpacity[k + 1].mValue;
-                mOpacityTable[p] = (byte) (v * 255);
+        for (int i = 0; i < number_of_threads; i++) {
+            try {
+                t[i].join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
             }
         }
-        int last = mOpacity.length - 1;
-        for (int i = mOpacity[last].mPos; i <= Short.MAX_VALUE; i++) {
-            int p = i & 0xFFFF;
-            mOpacityTable[p] = (byte) (mOpacity[last].mValue * 255);
+    }
 
+    /**
+     * Computes the opacity of the intensities lo to hi.  Below the first
+     * control point and above the last the value is held, in between it is
+     * interpolated within the segment.
+     */
+    private void fillOpacity(int lo, int hi) {
+        Opactiy[] o = mOpacity;
+        int last = o.length - 1;
+        int k = 0;
+        for (int i = lo; i <= hi; i++) {
+            while (k < last && i >= o[k + 1].mPos) {
+                k++;
+            }
+            float v;
+            if (i < o[0].mPos) {
+                v = o[0].mValue;
+            } else if (k == last) {
+                v = o[last].mValue;
+            } else {
+                float dist = o[k + 1].mPos - o[k].mPos;
+                float t = (i - o[k].mPos) / dist;
+                v = o[k].mValue * (1 - t) + t * o[k + 1].mValue;
+            }
+            mOpacityTable[i & 0xFFFF] = (byte) (v * 255);
         }
     }
 
-    public void buildMaterialProp() {
+    /**
+     * Computes the color and lighting of the intensities lo to hi, the same
+     * way as {@link #fillOpacity}.
+     */
+    private void fillColor(int lo, int hi) {
         MaterialProp[] m = mMaterialProp;
-        if (m.length == 0) {
-            return;
-        }
-        {
-            MaterialProp mp = m[0];
-            int red = m[0].mRed;
-            int green = m[0].mGreen;
-            int blue = m[0].mBlue;
-
-            for (int i = Short.MIN_VALUE; i <= m[0].mPos; i++) {
-                int p = STRIDE * (i & 0xFFFF);
-                mColor[p + RED] = (byte) red;
-                mColor[p + GREEN] = (byte) green;
-                mColor[p + BLUE] = (byte) blue;
+        int last = m.length - 1;
+        int k = 0;
+        for (int i = lo; i <= hi; i++) {
+            while (k < last && i >= m[k + 1].mPos) {
+                k++;
+            }
+            MaterialProp mp = null;
+            if (i < m[0].mPos) {
+                mp = m[0];
+            } else if (k == last) {
+                mp = m[last];
+            }
+            int p = STRIDE * (i & 0xFFFF);
+            if (mp != null) {
+                mColor[p + RED] = (byte) mp.mRed;
+                mColor[p + GREEN] = (byte) mp.mGreen;
+                mColor[p + BLUE] = (byte) mp.mBlue;
 
                 mColor[p + DIFF] = (byte) (255 * mp.mDiffuse);
                 mColor[p + SPEC] = (byte) (255 * mp.mSpecular);
                 mColor[p + AMB] = (byte) (255 * mp.mAmbient);
+                continue;
             }
-        }
-        for (int k = 0; k < m.length - 1; k++) {
-            for (int i = m[k].mPos; i < m[k + 1].mPos; i++) {
-                int p = STRIDE * (i & 0xFFFF);
-                float dist = m[k + 1].mPos - m[k].mPos;
-                float t2 = (i - m[k].mPos) / dist;
-                float t1 = 1 - t2;
-
-
-                int red = (int) (m[k].mRed * t1 + m[k + 1].mRed * t2);
-                int green = (int) (m[k].mGreen * t1 + m[k + 1].mGreen * t2);
-                int blue = (int) (m[k].mBlue * t1 + m[k + 1].mBlue * t2);
+            float dist = m[k + 1].mPos - m[k].mPos;
+            float t2 = (i - m[k].mPos) / dist;
+            float t1 = 1 - t2;
 
-                float diffuse = m[k].mDiffuse * t1 + m[k + 1].mDiffuse * t2;
-                float specular = m[k].mSpecular * t1 + m[k + 1].mSpecular * t2;
-                float ambient = m[k].mAmbient * t1 + m[k + 1].mAmbient * t2;
+            int red = (int) (m[k].mRed * t1 + m[k + 1].mRed * t2);
+            int green = (int) (m[k].mGreen * t1 + m[k + 1].mGreen * t2);
+            int blue = (int) (m[k].mBlue * t1 + m[k + 1].mBlue * t2);
 
+            float diffuse = m[k].mDiffuse * t1 + m[k + 1].mDiffuse * t2;
+            float specular = m[k].mSpecular * t1 + m[k + 1].mSpecular * t2;
+            float ambient = m[k].mAmbient * t1 + m[k + 1].mAmbient * t2;
 
-                mColor[p + RED] = (byte) red;
-                mColor[p + GREEN] = (byte) green;
-                mColor[p + BLUE] = (byte) blue;
+            mColor[p + RED] = (byte) red;
+            mColor[p + GREEN] = (byte) green;
+            mColor[p + BLUE] = (byte) blue;
 
-                mColor[p + DIFF] = (byte) (255 * diffuse);
-                mColor[p + SPEC] = (byte) (255 * specular);
-                mColor[p + AMB] = (byte) (255 * ambient);
-            }
-        }
-        {
-            int last = m.length - 1;
-            MaterialProp mp = m[last];
-            int red = mp.mRed;
-            int green = mp.mGreen;
-            int blue = mp.mBlue;
-            for (int i = mp.mPos; i <= Short.MAX_VALUE; i++) {
-                int p = STRIDE * (i & 0xFFFF);
-                mColor[p + RED] = (byte) red;
-                mColor[p + GREEN] = (byte) green;
-                mColor[p + BLUE] = (byte) blue;
-
-                mColor[p + DIFF] = (byte) (255 * mp.mDiffuse);
-                mColor[p + SPEC] = (byte) (255 * mp.mSpecular);
-                mColor[p + AMB] = (byte) (255 * mp.mAmbient);
-            }
+            mColor[p + DIFF] = (byte) (255 * diffuse);
+            mColor[p + SPEC] = (byte) (255 * specular);
+            mColor[p + AMB] = (byte) (255 * ambient);
         }
     }
 
-    public Allocation getOpacityAllocation(RenderScript rs) {
+    public synchronized Allocation getOpacityAllocation(RenderScript rs) {
         if (mOpacityAllocation == null) {
             Type.Builder b = new Type.Builder(rs, Element.U8(rs));
             b.setX(mOpacityTable.length);
             mOpacityAllocation = Allocation.createTyped(rs, b.create());
+            mOpacityDirtyLo = Short.MIN_VALUE;
+            mOpacityDirtyHi = Short.MAX_VALUE;
         }
-        mOpacityAllocation.copyFromUnchecked(mOpacityTable);
+        upload(mOpacityAllocation, mOpacityTable, 1, mOpacityDirtyLo, mOpacityDirtyHi);
+        mOpacityDirtyLo = Integer.MAX_VALUE;
+        mOpacityDirtyHi = Integer.MIN_VALUE;
         return mOpacityAllocation;
     }
 
-    public Allocation getColorMapAllocation(RenderScript rs) {
+    public synchronized Allocation getColorMapAllocation(RenderScript rs) {
         if (mColorMapAllocation == null) {
             Type.Builder b = new Type.Builder(rs, Element.U8_4(rs));
             b.setX(mColor.length / 4);
             mColorMapAllocation = Allocation.createTyped(rs, b.create());
+            mColorDirtyLo = Short.MIN_VALUE;
+            mColorDirtyHi = Short.MAX_VALUE;
         }
-        mColorMapAllocation.copyFromUnchecked(mColor);
+        upload(mColorMapAllocation, mColor, 4, mColorDirtyLo, mColorDirtyHi);
+        mColorDirtyLo = Integer.MAX_VALUE;
+        mColorDirtyHi = Integer.MIN_VALUE;
         return mColorMapAllocation;
     }
+
+    /**
+     * Copies the entries of the intensities lo to hi of table to a.  The
+     * table is indexed by the intensity as unsigned, so a range across zero
+     * is copied in two pieces.
+     */
+    private void upload(Allocation a, byte[] table, int elementBytes, int lo, int hi) {
+        if (lo > hi) {
+            return;
+        }
+        if (lo < 0 && hi >= 0) {
+            uploadRange(a, table, elementBytes, lo & 0xFFFF, SIZE - 1);
+            uploadRange(a, table, elementBytes, 0, hi);
+        } else {
+            uploadRange(a, table, elementBytes, lo & 0xFFFF, hi & 0xFFFF);
+        }
+    }
+
+    private void uploadRange(Allocation a, byte[] table, int elementBytes, int from, int to) {
+        int entryBytes = table.length / SIZE;
+        int count = (to - from + 1) * entryBytes;
+        if (count == table.length) {
+            a.copyFromUnchecked(table);
+            return;
+        }
+        // The range copy reads from the start of the array.
+        if (mUploadBuffer.length < count) {
+            mUploadBuffer = new byte[count];
+        }
+        System.arraycopy(table, from * entryBytes, mUploadBuffer, 0, count);
+        a.copy1DRangeFromUnchecked(from * entryBytes / elementBytes, count / elementBytes,
+                mUploadBuffer);
+    }
 }
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.rs.vr.engine;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+/**
+ * Checks that the opacity and color tables updated point by point match the
+ * tables rebuilt from scratch.  It does not touch RenderScript, so it runs on
+ * a host JVM as well as with
+ *
+ * adb shell am instrument -w rsexample.google.com.vrdemo/android.test.InstrumentationTestRunner
+ */
+public class MaterialTest extends TestCase {
+    private static final int ROUNDS = 50;
+
+    private final Random mRandom = new Random(42);
+
+    /**
+     * Returns n sorted control points, {position, value, ambient, diffuse,
+     * specular}; opacity only uses the first two.
+     */
+    private int[][] points(int n) {
+        int[][] p = new int[n][];
+        int pos = -2000 + mRandom.nextInt(500);
+        for (int i = 0; i < n; i++) {
+            // Equal positions are allowed and make an empty segment.
+            pos += mRandom.nextInt(400);
+            p[i] = new int[]{pos, mRandom.nextInt(0x1000000), 20, 60, 20};
+        }
+        return p;
+    }
+
+    private int[][] opacity(int n) {
+        int[][] p = points(n);
+        for (int[] o : p) {
+            o[1] &= 0xFF;
+        }
+        return p;
+    }
+
+    private static void assertSameTables(Material expected, Material actual) {
+        assertEquals("opacity differs at " + mismatch(expected.mOpacityTable, actual.mOpacityTable),
+                -1, mismatch(expected.mOpacityTable, actual.mOpacityTable));
+        assertEquals("color differs at " + mismatch(expected.mColor, actual.mColor),
+                -1, mismatch(expected.mColor, actual.mColor));
+    }
+
+    private static int mismatch(byte[] a, byte[] b) {
+        for (int i = 0; i < a.length; i++) {
+            if (a[i] != b[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public void testUpdateMatchesSetup() {
+        for (int r = 0; r < ROUNDS; r++) {
+            int n = 1 + mRandom.nextInt(6);
+            int m = 1 + mRandom.nextInt(6);
+            int[][] opacity = opacity(n);
+            int[][] material = points(m);
+            // Keep some points in place, the rest moves either way.
+            int[][] nextOpacity = (r % 3 == 0) ? opacity : opacity(n);
+            int[][] nextMaterial = points(m);
+
+            Material incremental = new Material();
+            incremental.setup(opacity, material);
+            incremental.update(nextOpacity, nextMaterial);
+            Material full = new Material();
+            full.setup(nextOpacity, nextMaterial);
+            assertSameTables(full, incremental);
+        }
+    }
+
+    public void testUpdateFallsBackToSetup() {
+        // A different number of points.
+        Material incremental = new Material();
+        incremental.setup(opacity(3), points(4));
+        int[][] opacity = opacity(5);
+        int[][] material = points(2);
+        incremental.update(opacity, material);
+        Material full = new Material();
+        full.setup(opacity, material);
+        assertSameTables(full, incremental);
+
+        // A different lighting.
+        material = points(2);
+        material[1][3] = 90;
+        incremental.update(opacity, material);
+        full.setup(opacity, material);
+        assertSameTables(full, incremental);
+    }
+
+    public void testPointMovesMatchRebuild() {
+        for (int r = 0; r < ROUNDS; r++) {
+            int n = 1 + mRandom.nextInt(6);
+            Material incremental = new Material();
+            incremental.setup(opacity(n), points(n));
+            for (int k = 0; k < 10; k++) {
+                int i = mRandom.nextInt(n);
+                int pos = -3000 + mRandom.nextInt(6000);
+                incremental.setOpacityPoint(i, pos, mRandom.nextInt(256) / 255.f);
+                incremental.setMaterialPoint(mRandom.nextInt(n), pos, mRandom.nextInt(0x1000000));
+            }
+
+            int[][] opacity = new int[n][];
+            int[][] material = new int[n][];
+            for (int i = 0; i < n; i++) {
+                Material.Opactiy o = incremental.mOpacity[i];
+                opacity[i] = new int[]{o.mPos, Math.round(o.mValue * 255)};
+                Material.MaterialProp mp = incremental.mMaterialProp[i];
+                material[i] = new int[]{mp.mPos, (mp.mRed << 16) | (mp.mGreen << 8) | mp.mBlue,
+                        20, 60, 20};
+            }
+            Material full = new Material();
+            full.setup(opacity, material);
+            assertSameTables(full, incremental);
+        }
+    }
+}
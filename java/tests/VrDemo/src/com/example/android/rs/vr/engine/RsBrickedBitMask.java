@@ -22,6 +22,11 @@ import android.util.Log;
 
 /**
  * create bricked binary representation of the non transparent voxels
+ * <p>
+ * Next to the bits it keeps, per brick, the range of intensities the brick
+ * depends on and the distance in bricks to the nearest brick that is not
+ * empty.  The raycaster uses the distance to jump over empty space, and the
+ * ranges let an opacity change repack only the bricks it can affect.
  */
 public class RsBrickedBitMask {
     private static final String LOGTAG = "BrickedBitMask";
@@ -37,6 +42,19 @@ public class RsBrickedBitMask {
     int mBrickCnt = 0;
 
     Allocation mBrick_allocation;
+    // The bits before dilation and the buffer pack_chunk writes next.
+    Allocation mRawBits;
+    Allocation mRawScratch;
+    // Smallest and largest intensity of each brick, and its distance to
+    // the nearest brick that is not empty.
+    Allocation mBrickRange;
+    Allocation mBrickDistance;
+    Allocation mDistanceScratch;
+    // Number of opaque intensities below each intensity.
+    Allocation mOpaqueCountAllocation;
+    int[] mOpaqueCount = new int[Material.SIZE + 1];
+    // Opacity table the bits were packed from, null before the first pack.
+    byte[] mPackedOpacity;
 
     public final static int BSIZE = 32;
 
@@ -55,28 +73,102 @@ public class RsBrickedBitMask {
         m_bricks_dimz = (mDimZ + 31) / 32;
         int maxBrick = m_bricks_dimx * m_bricks_dimy * m_bricks_dimz;
         int size = maxBrick * 32 * 32; // divide by 4 because we will try U32_4
+        RenderScript rs = state.mRs;
 
-        Type.Builder b = new Type.Builder(state.mRs, android.renderscript.Element.U32(state.mRs));
+        Type.Builder b = new Type.Builder(rs, android.renderscript.Element.U32(rs));
         b.setX(size);
-        mBrick_allocation = Allocation.createTyped(state.mRs, b.create(), Allocation.USAGE_SCRIPT);
+        mBrick_allocation = Allocation.createTyped(rs, b.create(), Allocation.USAGE_SCRIPT);
+        mRawBits = Allocation.createTyped(rs, b.create(), Allocation.USAGE_SCRIPT);
+        mRawScratch = Allocation.createTyped(rs, b.create(), Allocation.USAGE_SCRIPT);
+
+        b = new Type.Builder(rs, android.renderscript.Element.I32_2(rs));
+        b.setX(m_bricks_dimx).setY(m_bricks_dimy).setZ(m_bricks_dimz);
+        mBrickRange = Allocation.createTyped(rs, b.create(), Allocation.USAGE_SCRIPT);
+
+        b = new Type.Builder(rs, android.renderscript.Element.U8(rs));
+        b.setX(m_bricks_dimx).setY(m_bricks_dimy).setZ(m_bricks_dimz);
+        mBrickDistance = Allocation.createTyped(rs, b.create(), Allocation.USAGE_SCRIPT);
+        mDistanceScratch = Allocation.createTyped(rs, b.create(), Allocation.USAGE_SCRIPT);
 
-        scriptC_bricked = new ScriptC_bricked(state.mRs);
+        b = new Type.Builder(rs, android.renderscript.Element.I32(rs));
+        b.setX(mOpaqueCount.length);
+        mOpaqueCountAllocation = Allocation.createTyped(rs, b.create(), Allocation.USAGE_SCRIPT);
+
+        scriptC_bricked = new ScriptC_bricked(rs);
 
         scriptC_bricked.set_volume(mVolume.mVolumeAllocation);
         scriptC_bricked.set_brick_dimx(m_bricks_dimx);
         scriptC_bricked.set_brick_dimy(m_bricks_dimy);
         scriptC_bricked.set_brick_dimz(m_bricks_dimz);
-        scriptC_bricked.set_opacity(state.mMaterial.getOpacityAllocation(state.mRs));
-        state.mRs.finish();
+        scriptC_bricked.set_brick_ranges(mBrickRange);
+        scriptC_bricked.set_opaque_count(mOpaqueCountAllocation);
 
-        scriptC_bricked.forEach_pack_chunk(mBrick_allocation);
+        // The ranges only depend on the volume, material changes reuse them.
+        scriptC_bricked.forEach_brick_range(mBrickRange);
+        update(state);
+    }
 
-        Allocation tmp = Allocation.createTyped(state.mRs, b.create(), Allocation.USAGE_SCRIPT);
-        scriptC_bricked.set_bricks(mBrick_allocation);
-        scriptC_bricked.forEach_dilate(mBrick_allocation, tmp);
+    public Volume getVolume() {
+        return mVolume;
+    }
 
-        mBrick_allocation.destroy();
-        mBrick_allocation = tmp;
+    /**
+     * Brings the bits and the distances up to date with the opacity of the
+     * material.  Only the bricks holding an intensity that turned opaque or
+     * transparent are packed again.
+     */
+    public void update(VrState state) {
+        long start = System.nanoTime();
+        byte[] opacity = state.mMaterial.mOpacityTable;
+        int dirtyLo = Integer.MAX_VALUE;
+        int dirtyHi = -1;
+        int count = 0;
+        for (int i = 0; i < opacity.length; i++) {
+            boolean opaque = opacity[i] != 0;
+            if (mPackedOpacity == null || opaque != (mPackedOpacity[i] != 0)) {
+                dirtyLo = Math.min(dirtyLo, i);
+                dirtyHi = i;
+            }
+            mOpaqueCount[i] = count;
+            if (opaque) {
+                count++;
+            }
+        }
+        mOpaqueCount[opacity.length] = count;
+        if (dirtyHi == -1) {
+            return;
+        }
+        mPackedOpacity = opacity.clone();
+
+        mOpaqueCountAllocation.copyFrom(mOpaqueCount);
+        scriptC_bricked.set_opacity(state.mMaterial.getOpacityAllocation(state.mRs));
+        scriptC_bricked.set_dirty_lo(dirtyLo);
+        scriptC_bricked.set_dirty_hi(dirtyHi);
+
+        scriptC_bricked.forEach_pack_chunk(mRawBits, mRawScratch);
+        Allocation tmp = mRawBits;
+        mRawBits = mRawScratch;
+        mRawScratch = tmp;
+
+        scriptC_bricked.set_bricks(mRawBits);
+        scriptC_bricked.forEach_dilate(mRawBits, mBrick_allocation);
+
+        // Chebyshev distance transform, one pass per axis ending in
+        // mBrickDistance.
+        scriptC_bricked.forEach_brick_seed(mBrickRange, mDistanceScratch);
+        Allocation src = mDistanceScratch;
+        Allocation dst = mBrickDistance;
+        for (int axis = 0; axis < 3; axis++) {
+            scriptC_bricked.set_axis(axis);
+            scriptC_bricked.set_dist_in(src);
+            scriptC_bricked.forEach_distance_pass(dst);
+            tmp = src;
+            src = dst;
+            dst = tmp;
+        }
+        state.mRs.finish();
+        Log.v(LOGTAG, "intensities " + dirtyLo + "-" + dirtyHi + " repacked in "
+                + (System.nanoTime() - start) / 1E6f + " ms");
     }
 
     Allocation createChunkAllocation(RenderScript rs) {
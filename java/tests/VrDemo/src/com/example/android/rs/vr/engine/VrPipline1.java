@@ -16,21 +16,29 @@
 
 package com.example.android.rs.vr.engine;
 
+import android.renderscript.Allocation;
+import android.renderscript.Element;
 import android.renderscript.Matrix3f;
 import android.renderscript.Matrix4f;
 import android.renderscript.Script;
 import android.renderscript.ScriptIntrinsicResize;
+import android.renderscript.Type;
 import android.util.Log;
 
 import java.text.DecimalFormat;
 
 public class VrPipline1 extends BasicPipeline {
     private static final String LOGTAG = "VrPipline1";
+    // Pixels per side covered by one ray of the coarse pass.
+    private static final int COARSE_BLOCK = 4;
 
     float[] mMatrixBuffer = new float[16];
     ScriptC_vr scriptC_vr;
     ScriptIntrinsicResize script_resize;
     Script.LaunchOptions options = new Script.LaunchOptions();
+    Allocation mVolumeMip;
+    Volume mMipSource;
+    Allocation mCoarseAllocation;
 
     @Override
     public void initBuffers(VrState state) {
@@ -97,6 +105,8 @@ public class VrPipline1 extends BasicPipeline {
         scriptC_vr.set_bricks(state.mRsMask.mBrick_allocation);
         scriptC_vr.set_brick_dimx(state.mRsMask.m_bricks_dimx);
         scriptC_vr.set_brick_dimy(state.mRsMask.m_bricks_dimy);
+        scriptC_vr.set_brick_dimz(state.mRsMask.m_bricks_dimz);
+        scriptC_vr.set_brick_dist(state.mRsMask.mBrickDistance);
         if (mCancel){
             return;
         }
@@ -104,7 +114,18 @@ public class VrPipline1 extends BasicPipeline {
         if (mCancel){
             return;
         }
-        if (state.mImgWidth*state.mImgHeight < 512*512) {
+        boolean small = state.mImgWidth*state.mImgHeight < 512*512;
+        if (state.mProgressive && !small) {
+            drawCoarse(state);
+            if (mCancel){
+                return;
+            }
+            // Two levels only: the coarse frame, then the full one.  The
+            // refinement below rewrites every pixel of the next buffer, so a
+            // cancelled refinement leaves this frame on screen.
+            state.mScrAllocation.ioSend();
+        }
+        if (small) {
             scriptC_vr.forEach_draw_z_buffer(state.mzRangeFullAllocation, state.mScrAllocation);
         } else {
             int blocks = state.mImgWidth*state.mImgHeight/(256*256);
@@ -124,4 +145,50 @@ public class VrPipline1 extends BasicPipeline {
 
     }
 
+    /**
+     * Builds the half resolution copy of the volume the coarse pass samples,
+     * once per volume.
+     */
+    private void buildMip(VrState state) {
+        Volume v = state.mVolume;
+        if (mMipSource == v) {
+            return;
+        }
+        if (mVolumeMip != null) {
+            mVolumeMip.destroy();
+        }
+        Type.Builder b = new Type.Builder(state.mRs, Element.I16(state.mRs));
+        b.setX((v.mDimx + 1) / 2).setY((v.mDimy + 1) / 2).setZ((v.mDimz + 1) / 2);
+        mVolumeMip = Allocation.createTyped(state.mRs, b.create(), Allocation.USAGE_SCRIPT);
+        scriptC_vr.forEach_downsample(mVolumeMip);
+        scriptC_vr.set_volume_mip(mVolumeMip);
+        mMipSource = v;
+    }
+
+    /**
+     * Fills the whole screen from one ray per block, cast through the mip
+     * and scaled up.  Only queued, the ioSend that follows is ordered after
+     * it.
+     */
+    private void drawCoarse(VrState state) {
+        buildMip(state);
+        int w = (state.mImgWidth + COARSE_BLOCK - 1) / COARSE_BLOCK;
+        int h = (state.mImgHeight + COARSE_BLOCK - 1) / COARSE_BLOCK;
+        if (mCoarseAllocation == null
+                || mCoarseAllocation.getType().getX() != w
+                || mCoarseAllocation.getType().getY() != h) {
+            if (mCoarseAllocation != null) {
+                mCoarseAllocation.destroy();
+            }
+            Type.Builder b = new Type.Builder(state.mRs, Element.RGBA_8888(state.mRs));
+            b.setX(w).setY(h);
+            mCoarseAllocation = Allocation.createTyped(state.mRs, b.create(),
+                    Allocation.USAGE_SCRIPT);
+        }
+        scriptC_vr.set_coarse_block(COARSE_BLOCK);
+        scriptC_vr.forEach_draw_coarse(mCoarseAllocation);
+        script_resize.setInput(mCoarseAllocation);
+        script_resize.forEach_bicubic(state.mScrAllocation);
+    }
+
 }
@@ -36,6 +36,8 @@ public class VrState {
     public int mImgHeight;
     Allocation mzRangeFullAllocation;
     public Allocation mScrAllocation; // the RGB data out
+    // Present a coarse frame from the volume mip before the full one
+    public boolean mProgressive;
     public Transform mTransform = new Transform();
 
     public void clone(VrState src) {
@@ -24,9 +24,43 @@ int brick_dimz;
 rs_allocation volume;
 rs_allocation opacity;
 int z_offset;
+rs_allocation brick_ranges;
+rs_allocation opaque_count;
+int dirty_lo;
+int dirty_hi;
+
+#define MAX_DISTANCE 255
+
+// Whether any intensity of range has a non zero opacity.
+static bool isOpaque(int2 range) {
+    return rsGetElementAt_int(opaque_count, range.y + 1) > rsGetElementAt_int(opaque_count, range.x);
+}
+
+// Smallest and largest intensity of a brick and of the voxels around it
+// that dilate into it.
+int2 __attribute__((kernel)) brick_range(uint32_t x, uint32_t y, uint32_t z) {
+    int3 b = (int3) {x, y, z};
+    int3 lo = max(b * 32 - 1, (int3) {0, 0, 0});
+    int3 hi = min(b * 32 + 33, (int3) {rsAllocationGetDimX(volume), rsAllocationGetDimY(volume),
+            rsAllocationGetDimZ(volume)});
+    int2 range = (int2) {0xFFFF, 0};
+    for (int pz = lo.z; pz < hi.z; pz++) {
+        for (int py = lo.y; py < hi.y; py++) {
+            for (int px = lo.x; px < hi.x; px++) {
+                int intensity = 0xFFFF & rsGetElementAt_short(volume, px, py, pz);
+                range.x = min(range.x, intensity);
+                range.y = max(range.y, intensity);
+            }
+        }
+    }
+    return range;
+}
+
 // output a single bit per pixel volume based on opacity
+// in holds the bits packed for the previous opacity, kept for the bricks
+// with no intensity between dirty_lo and dirty_hi.
 
-uint __attribute__((kernel)) pack_chunk(uint32_t x) {
+uint __attribute__((kernel)) pack_chunk(uint in, uint32_t x) {
 
     int brick = x / (32 * 32);
     int bx = brick % brick_dimx;
@@ -34,6 +68,14 @@ uint __attribute__((kernel)) pack_chunk(uint32_t x) {
     int by = yz % brick_dimy;
     int bz = yz / brick_dimy;
 
+    int2 range = rsGetElementAt_int2(brick_ranges, bx, by, bz);
+    if (range.y < dirty_lo || range.x > dirty_hi) {
+        return in;
+    }
+    if (!isOpaque(range)) {
+        return 0;
+    }
+
     int in_brick = x % (32 * 32);
     int in_br_y = in_brick % 32;
     int in_br_z = in_brick / 32;
@@ -142,9 +184,47 @@ uint __attribute__((kernel)) dilate(uint in, uint32_t x) {
 
 
 
+}
+
+// Seeds the distance field, 0 for the bricks whose dilated bits may be set.
+uchar __attribute__((kernel)) brick_seed(int2 range) {
+    return isOpaque(range) ? 0 : MAX_DISTANCE;
+}
+
+int axis;
+rs_allocation dist_in;
+
+// One axis of the Chebyshev distance transform over the bricks, run once
+// along each axis.
+uchar __attribute__((kernel)) distance_pass(uint32_t x, uint32_t y, uint32_t z) {
+    int3 b = (int3) {x, y, z};
+    int c = (axis == 0) ? b.x : (axis == 1) ? b.y : b.z;
+    int n = (axis == 0) ? brick_dimx : (axis == 1) ? brick_dimy : brick_dimz;
+    int best = MAX_DISTANCE;
+    for (int t = 0; t < n; t++) {
+        int3 q = b;
+        if (axis == 0) {
+            q.x = t;
+        } else if (axis == 1) {
+            q.y = t;
+        } else {
+            q.z = t;
+        }
+        int d = max(max(t - c, c - t), (int) rsGetElementAt_uchar(dist_in, q.x, q.y, q.z));
+        best = min(best, d);
+    }
+    return best;
 }
 int z;
 
 void __attribute__((kernel)) copy(short in, uint32_t x, uint32_t y) {
     rsSetElementAt_short(volume, in, x, y, z);
 }
+
+rs_allocation slice_in;
+
+// Launched over the volume restricted to one z, the slice index comes from
+// the launch rather than from a global.
+short __attribute__((kernel)) copy_slice(uint32_t x, uint32_t y) {
+    return rsGetElementAt_short(slice_in, x, y);
+}
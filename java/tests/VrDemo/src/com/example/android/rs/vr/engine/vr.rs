@@ -93,6 +93,37 @@ static int isInBrick(int3 p) {
     return slice & (1 << (p.x & 0x1F));
 }
 
+// Distance in bricks from each brick to the nearest one that is not empty.
+rs_allocation brick_dist;
+
+// Number of steps from p that stay within the empty bricks around it, or 0
+// if the brick of p may hold a visible voxel.
+static int emptySteps(float3 p, float3 step) {
+    int3 b = convert_int3(p) >> 5;
+    if (b.x < 0 || b.y < 0 || b.z < 0
+            || b.x >= brick_dimx || b.y >= brick_dimy || b.z >= brick_dimz) {
+        return 0;
+    }
+    int d = rsGetElementAt_uchar(brick_dist, b.x, b.y, b.z);
+    if (d == 0) {
+        return 0;
+    }
+    // Every brick within d - 1 of b is empty, find where the ray leaves them.
+    float3 lo = convert_float3((b - (d - 1)) * 32);
+    float3 hi = convert_float3((b + d) * 32);
+    float t = FLOAT_MAX;
+    if (step.x != 0.f) {
+        t = min(t, ((step.x > 0.f ? hi.x : lo.x) - p.x) / step.x);
+    }
+    if (step.y != 0.f) {
+        t = min(t, ((step.y > 0.f ? hi.y : lo.y) - p.y) / step.y);
+    }
+    if (step.z != 0.f) {
+        t = min(t, ((step.z > 0.f ? hi.z : lo.z) - p.z) / step.z);
+    }
+    return (int) clamp(ceil(t), 1.f, 65536.f);
+}
+
 rs_allocation volume;
 rs_allocation zbuff;
 bool debug = true;
@@ -180,6 +211,12 @@ uchar4 __attribute__ ((kernel)) draw_z_buffer(float2 in, uint32_t x, uint32_t y)
 
     if (light > 0) {
         for (int k = 0; k < izlen - 1; k++) {
+            int skip = emptySteps(p, dz);
+            if (skip > 0) {
+                k += skip - 1;
+                p += dz * skip;
+                continue;
+            }
 
             int3 ip = convert_int3(p);
             if (isInBrick(ip)) {
@@ -291,3 +328,106 @@ uchar4 __attribute__ ((kernel)) draw_z_buffer(float2 in, uint32_t x, uint32_t y)
 
     return out;
 }
+
+rs_allocation volume_mip;
+int coarse_block;
+
+// Half resolution copy of volume, every voxel the mean of the 2x2x2 it covers.
+short __attribute__((kernel)) downsample(uint32_t x, uint32_t y, uint32_t z) {
+    int3 last = (int3) {rsAllocationGetDimX(volume) - 1, rsAllocationGetDimY(volume) - 1,
+            rsAllocationGetDimZ(volume) - 1};
+    int sum = 0;
+    for (int k = 0; k < 8; k++) {
+        int3 p = (int3) {2 * x + (k & 1), 2 * y + ((k >> 1) & 1), 2 * z + (k >> 2)};
+        p = min(p, last);
+        sum += rsGetElementAt_short(volume, p.x, p.y, p.z);
+    }
+    return (short) (sum / 8);
+}
+
+// Coarse pass of the progressive rendering.  One ray is cast per
+// coarse_block x coarse_block pixels, through volume_mip and two voxels at a
+// time, with the gradient taken from the nearest mip voxels.
+uchar4 __attribute__((kernel)) draw_coarse(uint32_t x, uint32_t y) {
+    uchar4 out = base_color;
+    uint32_t px = min(x * coarse_block + coarse_block / 2, rsAllocationGetDimX(zbuff) - 1);
+    uint32_t py = min(y * coarse_block + coarse_block / 2, rsAllocationGetDimY(zbuff) - 1);
+    float2 in = rsGetElementAt_float2(zbuff, px, py);
+
+    float zstart = in.x + .5f;
+    float zend = in.y - 2.f;
+    float zlen = zend - zstart;
+
+    if (zstart == FLOAT_MAX || zlen < 0) {
+        return out;
+    }
+
+    int3 last = (int3) {rsAllocationGetDimX(volume_mip) - 2, rsAllocationGetDimY(volume_mip) - 2,
+            rsAllocationGetDimZ(volume_mip) - 2};
+    float3 p = s + px * dx + py * dy + dz * zstart;
+    float3 step = dz * 2.f;
+    float light = 1;
+    float4 total_color = (float4) {0.f, 0.f, 0.f, 0.f};
+
+    for (float k = 0; k < zlen; k += 2.f) {
+        int skip = emptySteps(p, step);
+        if (skip > 0) {
+            k += 2.f * skip - 2.f;
+            p += step * skip;
+            continue;
+        }
+        if (isInBrick(convert_int3(p))) {
+            float3 q = p * .5f;
+            int3 iq = min(max(convert_int3(q), (int3) {1, 1, 1}), last);
+            float3 delta = q - convert_float3(iq);
+
+            float v_0_0_0 = (float) rsGetElementAt_short(volume_mip, iq.x + 0, iq.y + 0, iq.z + 0);
+            float v_0_0_1 = (float) rsGetElementAt_short(volume_mip, iq.x + 1, iq.y + 0, iq.z + 0);
+            float v_0_1_0 = (float) rsGetElementAt_short(volume_mip, iq.x + 0, iq.y + 1, iq.z + 0);
+            float v_0_1_1 = (float) rsGetElementAt_short(volume_mip, iq.x + 1, iq.y + 1, iq.z + 0);
+            float v_1_0_0 = (float) rsGetElementAt_short(volume_mip, iq.x + 0, iq.y + 0, iq.z + 1);
+            float v_1_0_1 = (float) rsGetElementAt_short(volume_mip, iq.x + 1, iq.y + 0, iq.z + 1);
+            float v_1_1_0 = (float) rsGetElementAt_short(volume_mip, iq.x + 0, iq.y + 1, iq.z + 1);
+            float v_1_1_1 = (float) rsGetElementAt_short(volume_mip, iq.x + 1, iq.y + 1, iq.z + 1);
+            float v = triLinear(v_0_0_0, v_0_0_1, v_0_1_0, v_0_1_1,
+                    v_1_0_0, v_1_0_1, v_1_1_0, v_1_1_1,
+                    delta);
+            int intensity = (((short) v) & 0xFFFF);
+            uchar op = rsGetElementAt_uchar(opacity, intensity);
+
+            if (op != 0) {
+                float3 grad;
+                grad.x = v_0_0_1 - rsGetElementAt_short(volume_mip, iq.x - 1, iq.y, iq.z);
+                grad.y = v_0_1_0 - rsGetElementAt_short(volume_mip, iq.x, iq.y - 1, iq.z);
+                grad.z = v_1_0_0 - rsGetElementAt_short(volume_mip, iq.x, iq.y, iq.z - 1);
+                float dot_prod = 0.f;
+                if (grad.x != 0.f || grad.y != 0.f || grad.z != 0.f) {
+                    dot_prod = dot(normalize(grad), dz);
+                }
+
+                // The opacity of two voxels of the full volume.
+                float opf = op * (1/255.f);
+                opf = 1.f - (1.f - opf) * (1.f - opf);
+
+                uchar4 color = rsGetElementAt_uchar4(color_map, intensity * 2);
+                uchar4 mat = rsGetElementAt_uchar4(color_map, intensity * 2 + 1);
+                float4 fcolor = convert_float4(color);
+
+                float ambient = mat.x * (1/255.f);
+                float diffuse = mat.z * (1/255.f);
+                float lop = (ambient + diffuse * dot_prod) * light * opf;
+                light -= opf;
+                total_color += fcolor * lop;
+                if (light <= 0) {
+                    break;
+                }
+            }
+        }
+        p += step;
+    }
+
+    out = convert_uchar4(clamp(total_color, 0.f, 255.f));
+    out.a = 0xFF;
+
+    return out;
+}
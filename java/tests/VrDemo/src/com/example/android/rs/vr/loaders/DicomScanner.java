@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.rs.vr.loaders;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Arrays;
+
+/**
+ * Walks the elements of a DICOM file and records where the values of a
+ * fixed set of tags are, without allocating anything per element.
+ * <p>
+ * A scanner is meant to be kept by one thread and reused across files.  The
+ * tag table is refilled in place by every scan and values are only read
+ * from the mapping on request, the pixel data as a view rather than a copy.
+ * Elements are parsed the same way as by {@link LoaderDicom#read}.
+ */
+class DicomScanner {
+    private static final int PIXEL_DATA = LoaderDicom.tagInt(0x7fe0, 0x10);
+    private static final int ITEM = LoaderDicom.tagInt(0xFFFE, 0xE000);
+    // The preamble and the "DICM" prefix.
+    private static final int PREAMBLE_SIZE = 132;
+
+    // Sorted, the other arrays are indexed the same way.
+    private final int[] mTags;
+    private final int[] mOffsets;
+    private final int[] mLengths;
+    private final byte[] mStringBuff = new byte[200];
+
+    private MappedByteBuffer mBuffer;
+    private ByteOrder mByteOrder;
+    // Value length of the element readTag() last read.
+    private int mLength;
+
+    DicomScanner(int[] tags) {
+        mTags = tags.clone();
+        Arrays.sort(mTags);
+        mOffsets = new int[mTags.length];
+        mLengths = new int[mTags.length];
+    }
+
+    /**
+     * Maps file and records the requested tags, up to the pixel data.
+     */
+    void scan(File file) throws IOException {
+        Arrays.fill(mOffsets, -1);
+        RandomAccessFile f = new RandomAccessFile(file, "r");
+        try {
+            mBuffer = f.getChannel().map(MapMode.READ_ONLY, 0, f.length());
+        } finally {
+            f.close();
+        }
+        mBuffer.position(PREAMBLE_SIZE);
+        setOrder(ByteOrder.LITTLE_ENDIAN);
+        boolean early = true;
+
+        while (mBuffer.remaining() >= 8) {
+            int start = mBuffer.position();
+            int tag = readTag();
+
+            // The group numbers of the meta header are small, a large one
+            // means the data set is in the other byte order.
+            if (early) {
+                if ((tag >>> 16) > 255) {
+                    setOrder(LoaderDicom.reverse(mByteOrder));
+                    mBuffer.position(start);
+                    tag = readTag();
+                }
+                if ((tag >>> 16) >= 8) {
+                    early = false;
+                }
+            }
+
+            int i = Arrays.binarySearch(mTags, tag);
+            if (i >= 0) {
+                mOffsets[i] = mBuffer.position();
+                mLengths[i] = mLength;
+            }
+            if (tag == PIXEL_DATA) {
+                return;
+            }
+            mBuffer.position(mBuffer.position() + mLength);
+        }
+    }
+
+    private int readTag() {
+        int group = mBuffer.getShort() & 0xFFFF;
+        int element = mBuffer.getShort() & 0xFFFF;
+        int tag = LoaderDicom.tagInt(group, element);
+
+        if (tag == ITEM) {
+            mLength = mBuffer.getInt();
+            if (mLength == -1) {
+                mLength = 0;
+            }
+            return tag;
+        }
+
+        short vr = mBuffer.getShort();
+        if (LoaderDicom.big(vr)) {
+            mBuffer.getShort();
+            mLength = mBuffer.getInt();
+        } else {
+            mLength = mBuffer.getShort() & 0xFFFF;
+        }
+        if (mLength == -1 || mLength == 65535) {
+            mLength = 0;
+        }
+        return tag;
+    }
+
+    private void setOrder(ByteOrder order) {
+        mByteOrder = order;
+        mBuffer.order(order);
+    }
+
+    private int find(int tag) throws IOException {
+        int i = Arrays.binarySearch(mTags, tag);
+        if (i < 0 || mOffsets[i] < 0) {
+            throw new IOException("Missing tag " + Integer.toHexString(tag));
+        }
+        return i;
+    }
+
+    int getShort(int tag) throws IOException {
+        return mBuffer.getShort(mOffsets[find(tag)]);
+    }
+
+    String getString(int tag) throws IOException {
+        int i = find(tag);
+        int length = Math.min(mLengths[i], mStringBuff.length);
+        mBuffer.position(mOffsets[i]);
+        mBuffer.get(mStringBuff, 0, length);
+        return new String(mStringBuff, 0, length);
+    }
+
+    /**
+     * Returns a view of the value of tag in the mapped file, valid until
+     * the next scan.
+     */
+    ShortBuffer getShorts(int tag) throws IOException {
+        int i = find(tag);
+        ByteBuffer view = mBuffer.duplicate();
+        view.position(mOffsets[i]);
+        view.limit(mOffsets[i] + (mLengths[i] & ~1));
+        return view.slice().order(mByteOrder).asShortBuffer();
+    }
+}
@@ -18,6 +18,7 @@ package com.example.android.rs.vr.loaders;
 
 import android.renderscript.Allocation;
 import android.renderscript.RenderScript;
+import android.renderscript.Script;
 import android.renderscript.Type;
 import android.util.Log;
 
@@ -25,15 +26,20 @@ import com.example.android.rs.vr.engine.ScriptC_bricked;
 import com.example.android.rs.vr.engine.Volume;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteOrder;
 import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
 import java.nio.channels.FileChannel.MapMode;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Vector;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * The simplest possible DICOM Reader.
@@ -52,6 +58,8 @@ public class LoaderDicom {
     MappedByteBuffer mMappedByteBuffer;
     long mFileLen;
     private static final int MIN_VOLUME_SIZE = 20;
+    // Decoded slices waiting for upload, at most.
+    private static final int PARSE_QUEUE_SIZE = 16;
     class Element {
         int mGroup;
         int mElement;
@@ -116,10 +124,21 @@ public class LoaderDicom {
         return strVRs.contains(vr);
     }
 
-    boolean big(short vr) {
+    static boolean big(short vr) {
         return OB == vr || OW == vr || OF == vr || SQ == vr || UT == vr || UN == vr;
     }
 
+    private static class Slice {
+        final int mZ;
+        short[] mData;
+        int mDimx;
+        int mDimy;
+
+        Slice(int z) {
+            mZ = z;
+        }
+    }
+
     class TagSet extends HashMap<Integer, Element> {
         Element get(int group, int element) {
             return get(tagInt(group, element));
@@ -326,7 +345,8 @@ public class LoaderDicom {
 
     /**
      * This is a multi threaded volume loaded
-     * It creates 2xthe number of cores
+     * It parses the files on one thread per core and uploads the slices
+     * to the volume on the calling thread
      * @param rs The renderscript context
      * @param dir The directory containing the DICOM files
      * @param listener The Listener to provide feedback to the UI on loading
@@ -357,7 +377,6 @@ public class LoaderDicom {
 
 
         final Vector<File> toRun = new Vector<File>();
-        final HashMap<File, Integer> fileMap = new HashMap<File, Integer>();
         for (File file : files) {
             if (file.isDirectory()) {
                 continue;
@@ -366,100 +385,176 @@ public class LoaderDicom {
                 continue;
             }
             toRun.add(file);
-            fileMap.put(file, count);
             count++;
         }
         if (count < MIN_VOLUME_SIZE) {
             return null;
         }
+        long stamp = VolumeCache.stamp(toRun);
+        Volume cached = VolumeCache.load(rs, dir, stamp, listener);
+        if (cached != null) {
+            return cached;
+        }
+        final VolumeCache cache = VolumeCache.create(dir, stamp, count);
         v.mDimz = count;
         if (listener != null) {
-            listener.progress(0, v.mDimx);
+            listener.progress(0, v.mDimz);
         }
         v.mVolumeAllocation = null;
         final String []pixel_spacing = new String[count];
         final String []slice_pos = new String[count];
 
         final ScriptC_bricked scriptC_bricked = new ScriptC_bricked(rs);
-        int number_of_threads = 2 * Runtime.getRuntime().availableProcessors();
+        final File[] work = toRun.toArray(new File[count]);
+        final AtomicInteger next = new AtomicInteger();
+        final BlockingQueue<Slice> parsed = new ArrayBlockingQueue<Slice>(PARSE_QUEUE_SIZE);
+        int number_of_threads = Runtime.getRuntime().availableProcessors();
+        // Slice arrays the upload stage is done with, for the parsers to
+        // fill again.
+        final BlockingQueue<short[]> free = new ArrayBlockingQueue<short[]>(
+                PARSE_QUEUE_SIZE + number_of_threads + 1);
+
+        // Parse stage: every thread claims the next file and hands the
+        // decoded slice to the upload stage below.  A thread always queues a
+        // slice with a negative z as it exits, even when it dies on an
+        // Error, so the upload stage knows when no more slices can come.
         Thread[] t = new Thread[number_of_threads];
         for (int i = 0; i < number_of_threads; i++) {
 
             t[i] = new Thread() {
-                LoaderDicom d = new LoaderDicom();
+                DicomScanner d = new DicomScanner(tags);
 
+                public void run() {
+                    try {
+                        parse();
+                    } finally {
+                        queue(new Slice(-1));
+                    }
+                }
 
-                private File getOne() {
-                    synchronized (toRun) {
-                        if (toRun.isEmpty()) {
-                            return null;
+                void queue(Slice s) {
+                    while (true) {
+                        try {
+                            parsed.put(s);
+                            return;
+                        } catch (InterruptedException e) {
+                            e.printStackTrace();
                         }
-                        return toRun.remove(0);
                     }
                 }
 
-                public void run() {
-                    File file;
-
-                    Allocation alloc_slice = null;
-
-                    while ((file = getOne()) != null) {
-                        int z = fileMap.get(file);
+                void parse() {
+                    int z;
+                    while ((z = next.getAndIncrement()) < work.length) {
+                        Slice s = new Slice(z);
                         try {
-                            TagSet data = d.read(file, tags);
-                            short[] slice = (short[]) data.get(0x7fe0, 0x10).mValue;
-                            short dimX = (Short) data.get(0x28, 0x10).mValue;
-                            short dimY = (Short) data.get(0x28, 0x11).mValue;
-                            String val;
-                            val = (String) data.get(0x28,0x30).mValue;
-                            pixel_spacing[z] = val;
-
-                            val = (String) data.get(0x20,0x32).mValue;
-                            slice_pos[z] = val;
-
-                            if (v.mDimx == -1) {
-                                v.mDimy = dimY;
-                                v.mDimx = dimX;
-                            }
-                            synchronized (v) {
-                                if (v.mVolumeAllocation == null) {
-                                    Type.Builder b = new Type.Builder(rs,
-                                            android.renderscript.Element.I16(rs));
-                                    b.setX(v.mDimx).setY(v.mDimy);
-                                    b.setZ(v.mDimz);
-                                    v.mVolumeAllocation = Allocation.createTyped(rs, b.create(),
-                                            Allocation.USAGE_SCRIPT);
-                                    scriptC_bricked.set_volume(v.mVolumeAllocation);
-                                }
-                            }
-
-                            if (alloc_slice == null) {
-                                Type.Builder b = new Type.Builder(rs,
-                                        android.renderscript.Element.I16(rs));
-                                b.setX(v.mDimx).setY(v.mDimy);
-                                alloc_slice = Allocation.createTyped(rs, b.create(),
-                                        Allocation.USAGE_SCRIPT);
+                            d.scan(work[z]);
+                            s.mDimx = d.getShort(tagInt(0x28, 0x10));
+                            s.mDimy = d.getShort(tagInt(0x28, 0x11));
+                            pixel_spacing[z] = d.getString(tagInt(0x28, 0x30));
+                            slice_pos[z] = d.getString(tagInt(0x20, 0x32));
+                            ShortBuffer pixels = d.getShorts(tagInt(0x7fe0, 0x10));
+                            if (pixels.remaining() != s.mDimx * s.mDimy) {
+                                throw new IOException(work[z].getName() + " has "
+                                        + pixels.remaining() + " pixels");
                             }
-                            if (listener != null) {
-                                listener.progress(z, v.mDimx);
+                            short[] data = free.poll();
+                            if (data == null || data.length != pixels.remaining()) {
+                                data = new short[pixels.remaining()];
                             }
-                            int size = v.mDimy * v.mDimx;
-                            alloc_slice.copyFromUnchecked(slice);
-                            synchronized (v) {
-                                scriptC_bricked.set_z(z);
-                                scriptC_bricked.forEach_copy(alloc_slice);
+                            pixels.get(data);
+                            s.mData = data;
+                            if (cache != null) {
+                                cache.writeSlice(z, s.mDimx, s.mDimy, s.mData);
                             }
-
                         } catch (Exception e) {
                             e.printStackTrace();
+                            s.mData = null;
                         }
+                        // Failed slices are queued too, for the progress.
+                        queue(s);
                     }
-                    alloc_slice.destroy();
                 }
             };
             t[i].start();
         }
 
+        // Upload stage: a single thread, the z of each slice is given by the
+        // launch range of the copy, so the parsers never wait on each other.
+        Allocation alloc_slice = null;
+        // Full size of a slice, and the sampling of a volume too large for
+        // memory, known once the first slice is in.
+        int dimx = 0;
+        int dimy = 0;
+        int step = 1;
+        short[] sampled = null;
+        long start = System.nanoTime();
+        int n = 0;
+        int parsers = number_of_threads;
+        while (parsers > 0) {
+            Slice s;
+            try {
+                s = parsed.take();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+                continue;
+            }
+            if (s.mZ < 0) {
+                parsers--;
+                continue;
+            }
+            n++;
+            if (s.mData != null) {
+                if (v.mVolumeAllocation == null) {
+                    dimx = s.mDimx;
+                    dimy = s.mDimy;
+                    step = VolumeBudget.step(dimx, dimy, count);
+                    v.mDimx = VolumeBudget.dim(dimx, step);
+                    v.mDimy = VolumeBudget.dim(dimy, step);
+                    v.mDimz = VolumeBudget.dim(count, step);
+                    if (step > 1) {
+                        sampled = new short[v.mDimx * v.mDimy];
+                    }
+                    Type.Builder b = new Type.Builder(rs, android.renderscript.Element.I16(rs));
+                    b.setX(v.mDimx).setY(v.mDimy);
+                    alloc_slice = Allocation.createTyped(rs, b.create(), Allocation.USAGE_SCRIPT);
+                    b.setZ(v.mDimz);
+                    v.mVolumeAllocation = Allocation.createTyped(rs, b.create(),
+                            Allocation.USAGE_SCRIPT);
+                    scriptC_bricked.set_slice_in(alloc_slice);
+                }
+                if (s.mDimx != dimx || s.mDimy != dimy) {
+                    Log.e(LOGTAG, "slice " + s.mZ + " is " + s.mDimx + "x" + s.mDimy);
+                } else if (s.mZ % step != 0) {
+                    // Still cached at full resolution, just not uploaded.
+                    free.offer(s.mData);
+                } else {
+                    if (step > 1) {
+                        VolumeBudget.sample(s.mData, dimx, dimy, step, sampled);
+                        alloc_slice.copyFromUnchecked(sampled);
+                    } else {
+                        alloc_slice.copyFromUnchecked(s.mData);
+                    }
+                    Script.LaunchOptions lo = new Script.LaunchOptions();
+                    lo.setZ(s.mZ / step, s.mZ / step + 1);
+                    scriptC_bricked.forEach_copy_slice(v.mVolumeAllocation, lo);
+                    free.offer(s.mData);
+                }
+            }
+            if (listener != null) {
+                listener.progress(n, count);
+            }
+        }
+        if (n != count) {
+            Log.e(LOGTAG, "Parsing stopped after " + n + " of " + count + " slices");
+        }
+        rs.finish();
+        float seconds = (System.nanoTime() - start) * 1E-9f;
+        Log.v(LOGTAG, "Loaded " + count + " slices at " + (count / seconds) + " slices/s");
+        if (alloc_slice != null) {
+            alloc_slice.destroy();
+        }
+
         for (int i = 0; i < number_of_threads; i++) {
             try {
                 t[i].join();
@@ -480,6 +575,9 @@ public class LoaderDicom {
         v.mVoxelDim[0] = sx/min;
         v.mVoxelDim[1] = sy/min;
         v.mVoxelDim[2] = sz/min;
+        if (cache != null) {
+            cache.commit(v);
+        }
         Log.v(LOGTAG,"LOADING DONE ....");
         scriptC_bricked.destroy();
         return v;
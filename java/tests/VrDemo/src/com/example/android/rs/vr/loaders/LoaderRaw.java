@@ -94,7 +94,13 @@ public class LoaderRaw {
             count++;
         }
 
-        v.mDimz = count;
+        // A volume too large for memory is loaded at a lower resolution.
+        int dimx = v.mDimx;
+        int dimy = v.mDimy;
+        int step = VolumeBudget.step(dimx, dimy, count);
+        v.mDimx = VolumeBudget.dim(dimx, step);
+        v.mDimy = VolumeBudget.dim(dimy, step);
+        v.mDimz = VolumeBudget.dim(count, step);
         if (listener != null) {
             listener.progress(0, v.mDimz);
         }
@@ -108,15 +114,21 @@ public class LoaderRaw {
         String slice2_pos = null;
         boolean slice_spacing_set = false;
         int z = 0;
-        for (File file : toRun) {
+        for (int i = 0; i < toRun.size(); i += step) {
+            File file = toRun.get(i);
             try {
                 inputStream = new FileInputStream(file);
                 MappedByteBuffer mbb = inputStream.getChannel().map(FileChannel.MapMode.READ_ONLY,
-                        0, v.mDimy * v.mDimx * 2);
-                short[] slice = new short[v.mDimy * v.mDimx];
+                        0, dimy * dimx * 2);
+                short[] slice = new short[dimy * dimx];
                 mbb.asShortBuffer().get(slice);
                 inputStream.close();
                 mbb = null;
+                if (step > 1) {
+                    short[] sampled = new short[v.mDimy * v.mDimx];
+                    VolumeBudget.sample(slice, dimx, dimy, step, sampled);
+                    slice = sampled;
+                }
                 if (v.mVolumeAllocation == null) {
                     Log.v(LOGTAG, "make Volume " + z);
                     Type.Builder b = new Type.Builder(rs, android.renderscript.Element.I16(rs));
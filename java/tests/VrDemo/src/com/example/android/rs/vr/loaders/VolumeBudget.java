@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.rs.vr.loaders;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+
+/**
+ * Picks the resolution a volume is loaded at.
+ * <p>
+ * The raycaster samples the whole volume every frame, so it has to sit in a
+ * single script Allocation, and the framework can not back one with a mapped
+ * file.  A dataset that does not fit in memory is therefore loaded at a
+ * lower resolution, keeping every step-th voxel along each axis, rather than
+ * failing to allocate.
+ */
+class VolumeBudget {
+    private static final String LOGTAG = "VolumeBudget";
+    // The volume takes 2 bytes a voxel and the bricked bit mask built from it
+    // another 3/8, so a quarter of the free memory leaves room for the rest.
+    private static final int SHARE = 4;
+
+    /**
+     * Returns the step to sample a volume of the given size with, 1 if it
+     * fits in memory as it is.
+     */
+    static int step(int dimx, int dimy, int dimz) {
+        long budget = availableMemory() / SHARE;
+        if (budget <= 0) {
+            return 1;
+        }
+        int step = 1;
+        while ((long) dim(dimx, step) * dim(dimy, step) * dim(dimz, step) * 2 > budget) {
+            step++;
+        }
+        if (step > 1) {
+            Log.w(LOGTAG, dimx + "x" + dimy + "x" + dimz + " does not fit in "
+                    + budget + " bytes, loading every " + step + "th voxel");
+        }
+        return step;
+    }
+
+    /**
+     * Returns the size of an axis of dim voxels sampled every step voxels.
+     */
+    static int dim(int dim, int step) {
+        return (dim + step - 1) / step;
+    }
+
+    /**
+     * Samples every step-th voxel of every step-th row of a slice into dst.
+     */
+    static void sample(short[] src, int dimx, int dimy, int step, short[] dst) {
+        int dx = dim(dimx, step);
+        int k = 0;
+        for (int y = 0; y < dimy; y += step) {
+            int row = y * dimx;
+            for (int x = 0; x < dx; x++) {
+                dst[k++] = src[row + x * step];
+            }
+        }
+    }
+
+    /**
+     * Returns the memory the kernel reports as available, or 0 if it can not
+     * be read.
+     */
+    private static long availableMemory() {
+        BufferedReader in = null;
+        long total = 0;
+        try {
+            in = new BufferedReader(new FileReader("/proc/meminfo"));
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] f = line.trim().split("\\s+");
+                if (f.length < 2) {
+                    continue;
+                }
+                if (f[0].equals("MemAvailable:")) {
+                    return Long.parseLong(f[1]) * 1024;
+                }
+                // Older kernels do not report MemAvailable.
+                if (f[0].equals("MemTotal:")) {
+                    total = Long.parseLong(f[1]) * 1024 / 2;
+                }
+            }
+        } catch (Exception e) {
+            Log.w(LOGTAG, "Can not read /proc/meminfo: " + e.getMessage());
+        } finally {
+            try {
+                if (in != null) {
+                    in.close();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return total;
+    }
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.rs.vr.loaders;
+
+import android.renderscript.Allocation;
+import android.renderscript.RenderScript;
+import android.renderscript.Type;
+import android.util.Log;
+
+import com.example.android.rs.vr.engine.ScriptC_bricked;
+import com.example.android.rs.vr.engine.Volume;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+/**
+ * Converted copy of a volume kept next to its dataset, so that reopening it
+ * maps one file instead of parsing every DICOM slice again.
+ * <p>
+ * The file is a small header followed by the slices in order, as shorts in
+ * the native byte order.  It is written while the series loads and only
+ * renamed into place once every slice made it, so an interrupted or failed
+ * load never leaves a partial cache behind.
+ * <p>
+ * The cache always holds the full resolution; a volume that does not fit in
+ * memory is sampled down as it is read back, see {@link VolumeBudget}.
+ */
+public class VolumeCache {
+    private static final String LOGTAG = "VolumeCache";
+    private static final String SUFFIX = ".vrcache";
+    // Read back in the wrong byte order this does not match, which also
+    // rejects a cache copied from a machine of the other endianness.
+    private static final int MAGIC = 0x56524331;
+    private static final int HEADER_SIZE = 64;
+
+    private final File mFile;
+    private final File mTmpFile;
+    private final long mStamp;
+    private RandomAccessFile mRaf;
+    private FileChannel mChannel;
+    private int mDimx = -1;
+    private int mDimy = -1;
+    private int mDimz;
+    private int mWritten;
+
+    private VolumeCache(File file, long stamp, int dimz) throws IOException {
+        mFile = file;
+        mTmpFile = new File(file.getPath() + ".tmp");
+        mStamp = stamp;
+        mDimz = dimz;
+        mRaf = new RandomAccessFile(mTmpFile, "rw");
+        mRaf.setLength(0);
+        mChannel = mRaf.getChannel();
+    }
+
+    static File cacheFile(File dir) {
+        return new File(dir.getParentFile(), dir.getName() + SUFFIX);
+    }
+
+    /**
+     * Summarizes the source files so that a changed dataset invalidates its cache.
+     */
+    static long stamp(List<File> files) {
+        long stamp = files.size();
+        for (File f : files) {
+            stamp = stamp * 31 + f.length();
+            stamp = stamp * 31 + f.lastModified();
+        }
+        return stamp;
+    }
+
+    /**
+     * Starts writing the cache of a dataset, or returns null if its
+     * directory can not be written.
+     */
+    static VolumeCache create(File dir, long stamp, int dimz) {
+        try {
+            return new VolumeCache(cacheFile(dir), stamp, dimz);
+        } catch (IOException e) {
+            Log.w(LOGTAG, "Can not cache " + dir.getPath() + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Stores slice z.  Safe to call from several loader threads at once.
+     */
+    void writeSlice(int z, int dimx, int dimy, short[] slice) {
+        FileChannel channel;
+        synchronized (this) {
+            channel = mChannel;
+            if (channel == null) {
+                return;
+            }
+            if (mDimx == -1) {
+                mDimx = dimx;
+                mDimy = dimy;
+            } else if (mDimx != dimx || mDimy != dimy) {
+                Log.w(LOGTAG, "Slice " + z + " is " + dimx + "x" + dimy + ", not caching");
+                abort();
+                return;
+            }
+        }
+        ByteBuffer buf = ByteBuffer.allocate(slice.length * 2).order(ByteOrder.nativeOrder());
+        buf.asShortBuffer().put(slice);
+        long pos = HEADER_SIZE + (long) z * slice.length * 2;
+        try {
+            while (buf.hasRemaining()) {
+                pos += channel.write(buf, pos);
+            }
+            synchronized (this) {
+                mWritten++;
+            }
+        } catch (IOException e) {
+            Log.w(LOGTAG, "Writing " + mTmpFile.getPath() + " failed: " + e.getMessage());
+            synchronized (this) {
+                abort();
+            }
+        }
+    }
+
+    /**
+     * Publishes the cache if all slices were written, otherwise drops it.
+     */
+    synchronized void commit(Volume v) {
+        if (mChannel == null) {
+            return;
+        }
+        if (mWritten != mDimz) {
+            Log.w(LOGTAG, "Only " + mWritten + " of " + mDimz + " slices loaded, not caching");
+            abort();
+            return;
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.nativeOrder());
+        header.putInt(MAGIC);
+        header.putLong(mStamp);
+        header.putInt(mDimx).putInt(mDimy).putInt(mDimz);
+        header.putFloat(v.mVoxelDim[0]).putFloat(v.mVoxelDim[1]).putFloat(v.mVoxelDim[2]);
+        header.clear();
+        try {
+            mChannel.write(header, 0);
+            mChannel.force(false);
+            mRaf.close();
+            mChannel = null;
+            if (!mTmpFile.renameTo(mFile)) {
+                throw new IOException("rename failed");
+            }
+            Log.v(LOGTAG, "Cached volume in " + mFile.getPath());
+        } catch (IOException e) {
+            Log.w(LOGTAG, "Writing " + mFile.getPath() + " failed: " + e.getMessage());
+            abort();
+        }
+    }
+
+    private void abort() {
+        try {
+            if (mRaf != null) {
+                mRaf.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        mRaf = null;
+        mChannel = null;
+        mTmpFile.delete();
+    }
+
+    /**
+     * Builds the volume of a dataset from its cache.
+     *
+     * @param rs       The renderscript context
+     * @param dir      The directory of the dataset
+     * @param stamp    The stamp of the current source files
+     * @param listener To provide feedback
+     * @return The volume, or null if there is no valid cache
+     */
+    static Volume load(RenderScript rs, File dir, long stamp,
+                       VolumeLoader.ProgressListener listener) {
+        File file = cacheFile(dir);
+        if (!file.exists()) {
+            return null;
+        }
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            FileChannel channel = raf.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.nativeOrder());
+            channel.read(header, 0);
+            header.flip();
+            if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC
+                    || header.getLong() != stamp) {
+                Log.v(LOGTAG, "Stale cache " + file.getPath());
+                return null;
+            }
+            Volume v = new Volume();
+            v.mDimx = header.getInt();
+            v.mDimy = header.getInt();
+            v.mDimz = header.getInt();
+            v.mVoxelDim[0] = header.getFloat();
+            v.mVoxelDim[1] = header.getFloat();
+            v.mVoxelDim[2] = header.getFloat();
+            int size = v.mDimx * v.mDimy;
+            if (channel.size() < HEADER_SIZE + (long) size * 2 * v.mDimz) {
+                Log.v(LOGTAG, "Truncated cache " + file.getPath());
+                return null;
+            }
+
+            // A volume too large for memory is loaded at a lower resolution,
+            // only the slices it keeps are ever paged in.
+            int dimx = v.mDimx;
+            int dimy = v.mDimy;
+            int step = VolumeBudget.step(dimx, dimy, v.mDimz);
+            v.mDimx = VolumeBudget.dim(dimx, step);
+            v.mDimy = VolumeBudget.dim(dimy, step);
+            v.mDimz = VolumeBudget.dim(v.mDimz, step);
+
+            Type.Builder b = new Type.Builder(rs, android.renderscript.Element.I16(rs));
+            b.setX(v.mDimx).setY(v.mDimy);
+            Allocation alloc_slice = Allocation.createTyped(rs, b.create(),
+                    Allocation.USAGE_SCRIPT);
+            b.setZ(v.mDimz);
+            v.mVolumeAllocation = Allocation.createTyped(rs, b.create(),
+                    Allocation.USAGE_SCRIPT);
+            ScriptC_bricked scriptC_bricked = new ScriptC_bricked(rs);
+            scriptC_bricked.set_volume(v.mVolumeAllocation);
+
+            // Slices are mapped one at a time, so volumes past the 2GB
+            // limit of a single mapping load as well.
+            short[] slice = new short[size];
+            short[] sampled = step > 1 ? new short[v.mDimx * v.mDimy] : slice;
+            for (int z = 0; z < v.mDimz; z++) {
+                MappedByteBuffer mbb = channel.map(FileChannel.MapMode.READ_ONLY,
+                        HEADER_SIZE + (long) z * step * size * 2, size * 2);
+                mbb.order(ByteOrder.nativeOrder()).asShortBuffer().get(slice);
+                if (step > 1) {
+                    VolumeBudget.sample(slice, dimx, dimy, step, sampled);
+                }
+                alloc_slice.copyFromUnchecked(sampled);
+                scriptC_bricked.set_z(z);
+                scriptC_bricked.forEach_copy(alloc_slice);
+                if (listener != null) {
+                    listener.progress(z + 1, v.mDimz);
+                }
+            }
+            rs.finish();
+            alloc_slice.destroy();
+            scriptC_bricked.destroy();
+            Log.v(LOGTAG, "Loaded " + v + " from " + file.getPath());
+            return v;
+        } catch (IOException e) {
+            Log.w(LOGTAG, "Reading " + file.getPath() + " failed: " + e.getMessage());
+            return null;
+        } finally {
+            try {
+                if (raf != null) {
+                    raf.close();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
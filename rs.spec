@@ -450,6 +450,10 @@ ScriptSetVarVE {
     param const uint32_t * dims
     }
 
+ScriptBatchExecute {
+    param const void * data
+    }
+
 
 ScriptCCreate {
         param const char * resName
@@ -458,6 +462,13 @@ ScriptCCreate {
     ret RsScript
     }
 
+ScriptCPrecompile {
+    param const char * resName
+    param const char * cacheDir
+    param const char * text
+    param uint32_t msgId
+    }
+
 ScriptIntrinsicCreate {
     param uint32_t id
     param RsElement eid
@@ -636,6 +636,109 @@ bool Allocation::hasSameDims(const Allocation *other) const {
 }
 
 
+// Enough for a few full HD RGBA intermediates.
+static const size_t kDefaultPoolBytes = 16 * 1024 * 1024;
+
+AllocationPool::AllocationPool() {
+    pthread_mutex_init(&mLock, nullptr);
+    mBytesHeld = 0;
+    mHits = 0;
+    mMisses = 0;
+    mEnabled = true;
+}
+
+AllocationPool::~AllocationPool() {
+    pthread_mutex_destroy(&mLock);
+}
+
+size_t AllocationPool::getLimit(const Context *rsc) const {
+    if (rsc->props.mDebugAllocPoolKb) {
+        return (size_t)rsc->props.mDebugAllocPoolKb * 1024;
+    }
+    return kDefaultPoolBytes;
+}
+
+void AllocationPool::acquire(Context *rsc, const Type *type, uint32_t usages,
+                             ObjectBaseRef<Allocation> *alloc) {
+    pthread_mutex_lock(&mLock);
+    // Most recently returned first, it is the most likely to still be cached.
+    for (size_t ct = mIdle.size(); ct > 0; ct--) {
+        Allocation *a = mIdle[ct - 1].get();
+        if (a->getType() == type && a->mHal.state.usageFlags == usages) {
+            alloc->set(a);
+            mIdle.erase(mIdle.begin() + (ct - 1));
+            mBytesHeld -= type->getPackedSizeBytes();
+            mHits++;
+            pthread_mutex_unlock(&mLock);
+            return;
+        }
+    }
+    mMisses++;
+    pthread_mutex_unlock(&mLock);
+
+    alloc->set(Allocation::createAllocation(rsc, type, usages));
+}
+
+void AllocationPool::release(Context *rsc, ObjectBaseRef<Allocation> *alloc) {
+    Allocation *a = alloc->get();
+    if (a == nullptr) {
+        return;
+    }
+    size_t size = a->getType()->getPackedSizeBytes();
+    size_t limit = getLimit(rsc);
+
+    pthread_mutex_lock(&mLock);
+    bool held = false;
+    for (size_t ct = 0; ct < mIdle.size(); ct++) {
+        if (mIdle[ct].get() == a) {
+            held = true;
+            break;
+        }
+    }
+    if (mEnabled && !held && size <= limit) {
+        mIdle.push_back(*alloc);
+        mBytesHeld += size;
+        trimLocked(limit);
+    }
+    pthread_mutex_unlock(&mLock);
+
+    alloc->clear();
+}
+
+void AllocationPool::trimLocked(size_t limit) {
+    size_t drop = 0;
+    while (mBytesHeld > limit && drop < mIdle.size()) {
+        mBytesHeld -= mIdle[drop].get()->getType()->getPackedSizeBytes();
+        drop++;
+    }
+    mIdle.erase(mIdle.begin(), mIdle.begin() + drop);
+}
+
+void AllocationPool::deinit(Context *rsc) {
+    pthread_mutex_lock(&mLock);
+    if (rsc->props.mLogScripts) {
+        ALOGD("Allocation pool: %llu hits, %llu misses, %zu allocations of %zu bytes idle",
+              (unsigned long long)mHits, (unsigned long long)mMisses,
+              mIdle.size(), mBytesHeld);
+    }
+    mEnabled = false;
+    mIdle.clear();
+    mBytesHeld = 0;
+    pthread_mutex_unlock(&mLock);
+}
+
+AllocationPool::Stats AllocationPool::getStats() {
+    pthread_mutex_lock(&mLock);
+    Stats s;
+    s.hits = mHits;
+    s.misses = mMisses;
+    s.bytesHeld = mBytesHeld;
+    s.count = mIdle.size();
+    pthread_mutex_unlock(&mLock);
+    return s;
+}
+
+
 /////////////////
 //
 
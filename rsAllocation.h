@@ -19,6 +19,8 @@
 
 #include "rsType.h"
 
+#include <vector>
+
 #if !defined(RS_SERVER) && !defined(RS_COMPATIBILITY_LIB)
 #include <ui/GraphicBuffer.h>
 #include "rsGrallocConsumer.h"
@@ -236,6 +238,50 @@ private:
     void packVec3Allocation(Context *rsc, OStream *stream) const;
 };
 
+// Idle allocations kept for reuse as the links inside script groups.
+//
+// Groups are often torn down and rebuilt with the same shapes, for example
+// each time an app changes a parameter of a camera pipeline.  A destroyed
+// group hands its link allocations back here and the next group asking for
+// the same type and usage takes one over instead of going to the driver.
+// The idle allocations are bounded in total size, the ones returned the
+// longest ago are freed first.
+class AllocationPool {
+public:
+    AllocationPool();
+    ~AllocationPool();
+
+    // Points alloc at an allocation of type with usages, reusing an idle
+    // one when there is one.  Leaves alloc empty if the driver fails.
+    void acquire(Context *rsc, const Type *type, uint32_t usages,
+                 ObjectBaseRef<Allocation> *alloc);
+    // Takes over the reference held by alloc.  The caller must be the only
+    // user of the allocation left.
+    void release(Context *rsc, ObjectBaseRef<Allocation> *alloc);
+    // Frees the idle allocations and stops pooling.
+    void deinit(Context *rsc);
+
+    struct Stats {
+        uint64_t hits;
+        uint64_t misses;
+        size_t bytesHeld;
+        size_t count;
+    };
+    Stats getStats();
+
+private:
+    size_t getLimit(const Context *rsc) const;
+    void trimLocked(size_t limit);
+
+    pthread_mutex_t mLock;
+    // Oldest first.
+    std::vector<ObjectBaseRef<Allocation>> mIdle;
+    size_t mBytesHeld;
+    uint64_t mHits;
+    uint64_t mMisses;
+    bool mEnabled;
+};
+
 }
 }
 #endif
@@ -260,6 +260,12 @@ void * Context::threadProc(void *vrsc) {
     rsc->props.mLogShadersUniforms = getProp("debug.rs.shader.uniforms") != 0;
     rsc->props.mLogVisual = getProp("debug.rs.visual") != 0;
     rsc->props.mDebugMaxThreads = getProp("debug.rs.max-threads");
+    rsc->props.mDebugStaticSlices = getProp("debug.rs.static-slices") != 0;
+    rsc->props.mLogScheduler = getProp("debug.rs.scheduler") != 0;
+    rsc->props.mDebugNoTiling = getProp("debug.rs.sg2-no-tiling") != 0;
+    rsc->props.mDebugSerialGroups = getProp("debug.rs.sg2-serial") != 0;
+    rsc->props.mDebugTileKb = getProp("debug.rs.sg2-tile-kb");
+    rsc->props.mDebugAllocPoolKb = getProp("debug.rs.alloc-pool-kb");
 
     if (getProp("debug.rs.debug") != 0) {
         ALOGD("Forcing debug context due to debug.rs.debug.");
@@ -402,6 +408,7 @@ void Context::destroyWorkerThreadResources() {
          mFBOCache.deinit(this);
     }
 #endif
+    mAllocationPool.deinit(this);
     ObjectBase::freeAllChildren(this);
     mExit = true;
     //ALOGV("destroyWorkerThreadResources 2");
@@ -520,7 +527,11 @@ Context * Context::createContextLite() {
 bool Context::initContext(Device *dev, const RsSurfaceConfig *sc) {
     pthread_mutex_lock(&gInitMutex);
 
-    mIO.init();
+    // The command ring cannot be polled together with the display event
+    // fd, so graphics contexts always use the socket.
+    bool useRing = (mHal.flags & RS_CONTEXT_RING_FIFO) != 0 ||
+                   getProp("debug.rs.ring-fifo") != 0;
+    mIO.init(useRing && sc == nullptr);
     mIO.setTimeoutCallback(printWatchdogInfo, this, 2e9);
 
     dev->addContext(this);
@@ -122,6 +122,7 @@ public:
     ElementState mStateElement;
     TypeState mStateType;
     SamplerState mStateSampler;
+    AllocationPool mAllocationPool;
 
     bool isSynchronous() {return mSynchronous;}
     bool setupCheck();
@@ -228,6 +229,12 @@ public:
         bool mLogShadersUniforms;
         bool mLogVisual;
         uint32_t mDebugMaxThreads;
+        bool mDebugStaticSlices;
+        bool mLogScheduler;
+        bool mDebugNoTiling;
+        bool mDebugSerialGroups;
+        uint32_t mDebugTileKb;
+        uint32_t mDebugAllocPoolKb;
     } props;
 
     mutable struct {
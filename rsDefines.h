@@ -249,13 +249,73 @@ typedef struct {
 
 } RsScriptCall;
 
+// Payload of the RS_MESSAGE_TO_CLIENT_USER message, with the msgId given to
+// rsScriptCPrecompile as its id, sent as each precompile request finishes.
+// done and total count the requests made since all earlier ones finished.
+// If the driver cannot precompile, a single message with total == 0 is sent
+// instead, and the scripts are compiled on creation as usual.
+typedef struct {
+    uint32_t done;
+    uint32_t total;
+    int32_t success;
+} RsPrecompileProgress;
+
+enum RsBatchCommandType {
+    RS_BATCH_SET_VAR = 1,
+    RS_BATCH_SET_VAR_OBJ = 2,
+    RS_BATCH_INVOKE = 3,
+    RS_BATCH_FOR_EACH = 4
+};
+
+// One recorded command in the buffer passed to ScriptBatchExecute.  The
+// value, invoke arguments or forEach usr data follow the header, and each
+// record is padded to a multiple of 8 bytes.
+typedef struct {
+    uint32_t type;
+    uint32_t bytes;     // Size of the whole record, header included.
+    RsScript script;
+    uint32_t slot;
+    uint32_t dataLen;
+    RsObjectBase obj;   // Object for SET_VAR_OBJ, input for FOR_EACH.
+    RsAllocation aout;
+} RsBatchCommand;
+
 enum RsContextFlags {
     RS_CONTEXT_SYNCHRONOUS      = 0x0001,
     RS_CONTEXT_LOW_LATENCY      = 0x0002,
     RS_CONTEXT_LOW_POWER        = 0x0004,
-    RS_CONTEXT_WAIT_FOR_ATTACH  = 0x0008
+    RS_CONTEXT_WAIT_FOR_ATTACH  = 0x0008,
+    RS_CONTEXT_SPIN_WAIT        = 0x0010,
+    RS_CONTEXT_RING_FIFO        = 0x0020
 };
 
+// Algorithm of the blur intrinsic, set through its variable slot 2.
+enum RsBlurMode {
+    RS_BLUR_MODE_GAUSSIAN = 0,
+    // Three stacked box filters approximating the Gaussian, with a cost per
+    // pixel that does not depend on the radius.
+    RS_BLUR_MODE_BOX = 1
+};
+
+enum RsYuvFilter {
+    RS_YUV_FILTER_BILINEAR = 0,
+    // Average of the input pixels covered by each output pixel.
+    RS_YUV_FILTER_BOX = 1
+};
+
+// Crop, rotation and resampling of the YuvToRGB intrinsic, set through its
+// variable slot 1.  The crop rectangle of the input is rotated clockwise
+// and resampled to the size of the output in the same pass as the color
+// conversion.
+typedef struct {
+    int32_t cropX;
+    int32_t cropY;
+    int32_t cropWidth;      // 0 for the whole input
+    int32_t cropHeight;
+    int32_t rotation;       // 0, 90, 180 or 270 degrees
+    int32_t filter;         // RsYuvFilter
+} RsYuvToRGBTransform;
+
 enum RsBlasTranspose {
     RsBlasNoTrans=111,
     RsBlasTrans=112,
@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include "rsFifoRing.h"
+
+#include <errno.h>
+#include <limits.h>
+#include <string.h>
+#include <time.h>
+#include <unistd.h>
+#include <linux/futex.h>
+#include <sys/mman.h>
+#include <sys/syscall.h>
+
+using namespace android;
+using namespace android::renderscript;
+
+// Number of polls the reader makes on an empty ring before sleeping in the
+// kernel.  Back to back API calls usually arrive well within this window.
+static const int kReadSpinCount = 2000;
+
+// Size of the ring carrying return values back to the client.  Returns are
+// at most a few words and only one is ever outstanding.
+static const size_t kReturnRingSize = 4096;
+
+static inline void cpuRelax() {
+#if defined(__i386__) || defined(__x86_64__)
+    __asm__ __volatile__("pause" ::: "memory");
+#elif defined(__arm__) || defined(__aarch64__)
+    __asm__ __volatile__("yield" ::: "memory");
+#else
+    __asm__ __volatile__("" ::: "memory");
+#endif
+}
+
+// Returns false if the wait timed out.
+static bool futexWait(volatile uint32_t *addr, uint32_t val, int timeoutMs) {
+    struct timespec ts;
+    struct timespec *pts = nullptr;
+    if (timeoutMs >= 0) {
+        ts.tv_sec = timeoutMs / 1000;
+        ts.tv_nsec = (timeoutMs % 1000) * 1000000;
+        pts = &ts;
+    }
+    int r = syscall(__NR_futex, addr, FUTEX_WAIT_PRIVATE, val, pts, nullptr, 0);
+    return !(r < 0 && errno == ETIMEDOUT);
+}
+
+static void futexWake(volatile uint32_t *addr) {
+    syscall(__NR_futex, addr, FUTEX_WAKE_PRIVATE, INT_MAX, nullptr, nullptr, 0);
+}
+
+// Bump a futex sequence word and wake anyone sleeping on it.  Sleepers
+// sample the word before checking the ring, so a bump between the check and
+// the futex call makes the futex return at once instead of losing the wake.
+static void bumpAndWake(volatile uint32_t *seq) {
+    __atomic_fetch_add(seq, 1, __ATOMIC_SEQ_CST);
+    futexWake(seq);
+}
+
+FifoRing::FifoRing() {
+    mToCore = nullptr;
+    mReturn = nullptr;
+    mSpinCount = 0;
+    mShutdown = false;
+}
+
+FifoRing::~FifoRing() {
+    destroyRing(mToCore);
+    destroyRing(mReturn);
+}
+
+FifoRing::Ring * FifoRing::createRing(size_t size) {
+    // The capacity must be a power of two so the free running indices can
+    // simply be masked.
+    size_t cap = 1;
+    while (cap < size) {
+        cap <<= 1;
+    }
+
+    const size_t pageSize = sysconf(_SC_PAGESIZE);
+    const size_t header = (sizeof(Ring) + pageSize - 1) & ~(pageSize - 1);
+    void *mem = mmap(nullptr, header + cap, PROT_READ | PROT_WRITE,
+                     MAP_SHARED | MAP_ANONYMOUS, -1, 0);
+    if (mem == MAP_FAILED) {
+        ALOGE("FifoRing: failed to map %zu bytes", header + cap);
+        return nullptr;
+    }
+
+    // Anonymous mappings are zero filled, which is an empty ring.
+    Ring *r = (Ring *)mem;
+    r->mData = (uint8_t *)mem + header;
+    r->mMask = cap - 1;
+    return r;
+}
+
+void FifoRing::destroyRing(Ring *r) {
+    if (r == nullptr) {
+        return;
+    }
+    const size_t pageSize = sysconf(_SC_PAGESIZE);
+    const size_t header = (sizeof(Ring) + pageSize - 1) & ~(pageSize - 1);
+    munmap(r, header + r->mMask + 1);
+}
+
+bool FifoRing::init(size_t size) {
+    // Spinning only helps when the writer can run at the same time.
+    mSpinCount = sysconf(_SC_NPROCESSORS_ONLN) > 1 ? kReadSpinCount : 0;
+    mToCore = createRing(size);
+    mReturn = createRing(kReturnRingSize);
+    return mToCore != nullptr && mReturn != nullptr;
+}
+
+void FifoRing::shutdown() {
+    mShutdown = true;
+    __atomic_thread_fence(__ATOMIC_SEQ_CST);
+    Ring *rings[2] = {mToCore, mReturn};
+    for (int ct = 0; ct < 2; ct++) {
+        if (rings[ct]) {
+            bumpAndWake(&rings[ct]->mDataSeq);
+            bumpAndWake(&rings[ct]->mSpaceSeq);
+        }
+    }
+}
+
+bool FifoRing::writeRing(Ring *r, const uint8_t *data, size_t bytes, bool waitForSpace) {
+    const uint32_t cap = r->mMask + 1;
+
+    while (bytes) {
+        const uint32_t head = r->mHead;
+        const uint32_t tail = __atomic_load_n(&r->mTail, __ATOMIC_ACQUIRE);
+        const uint32_t space = cap - (head - tail);
+
+        if (space == 0) {
+            if (!waitForSpace || mShutdown) {
+                return false;
+            }
+            const uint32_t seq = __atomic_load_n(&r->mSpaceSeq, __ATOMIC_SEQ_CST);
+            __atomic_store_n(&r->mWriterWaiting, 1, __ATOMIC_SEQ_CST);
+            if (__atomic_load_n(&r->mTail, __ATOMIC_SEQ_CST) == tail && !mShutdown) {
+                futexWait(&r->mSpaceSeq, seq, -1);
+            }
+            continue;
+        }
+
+        // Commands larger than the free space are streamed through in
+        // pieces, the reader blocks until it has the whole thing.
+        const uint32_t n = bytes < space ? bytes : space;
+        const uint32_t off = head & r->mMask;
+        const uint32_t first = (n < cap - off) ? n : cap - off;
+        memcpy(r->mData + off, data, first);
+        memcpy(r->mData, data + first, n - first);
+
+        __atomic_store_n(&r->mHead, head + n, __ATOMIC_SEQ_CST);
+        if (__atomic_load_n(&r->mReaderWaiting, __ATOMIC_SEQ_CST) &&
+            __atomic_exchange_n(&r->mReaderWaiting, 0, __ATOMIC_SEQ_CST)) {
+            bumpAndWake(&r->mDataSeq);
+        }
+
+        data += n;
+        bytes -= n;
+    }
+    return true;
+}
+
+bool FifoRing::waitRing(Ring *r, int timeoutMs) {
+    if (__atomic_load_n(&r->mHead, __ATOMIC_ACQUIRE) != r->mTail) {
+        return true;
+    }
+    if (timeoutMs == 0 || mShutdown) {
+        return false;
+    }
+
+    for (int ct = 0; ct < mSpinCount; ct++) {
+        cpuRelax();
+        if (__atomic_load_n(&r->mHead, __ATOMIC_ACQUIRE) != r->mTail) {
+            return true;
+        }
+    }
+
+    while (!mShutdown) {
+        const uint32_t seq = __atomic_load_n(&r->mDataSeq, __ATOMIC_SEQ_CST);
+        __atomic_store_n(&r->mReaderWaiting, 1, __ATOMIC_SEQ_CST);
+        if (__atomic_load_n(&r->mHead, __ATOMIC_SEQ_CST) != r->mTail || mShutdown) {
+            break;
+        }
+        if (!futexWait(&r->mDataSeq, seq, timeoutMs)) {
+            break;
+        }
+    }
+    __atomic_store_n(&r->mReaderWaiting, 0, __ATOMIC_RELAXED);
+    return __atomic_load_n(&r->mHead, __ATOMIC_ACQUIRE) != r->mTail;
+}
+
+size_t FifoRing::readRing(Ring *r, uint8_t *data, size_t bytes) {
+    const uint32_t cap = r->mMask + 1;
+    size_t total = 0;
+
+    while (total < bytes) {
+        if (!waitRing(r, -1)) {
+            // Shutdown.
+            return 0;
+        }
+
+        const uint32_t tail = r->mTail;
+        const uint32_t avail = __atomic_load_n(&r->mHead, __ATOMIC_ACQUIRE) - tail;
+        const uint32_t want = bytes - total;
+        const uint32_t n = want < avail ? want : avail;
+        const uint32_t off = tail & r->mMask;
+        const uint32_t first = (n < cap - off) ? n : cap - off;
+        memcpy(data + total, r->mData + off, first);
+        memcpy(data + total + first, r->mData, n - first);
+
+        __atomic_store_n(&r->mTail, tail + n, __ATOMIC_SEQ_CST);
+        if (__atomic_load_n(&r->mWriterWaiting, __ATOMIC_SEQ_CST) &&
+            __atomic_exchange_n(&r->mWriterWaiting, 0, __ATOMIC_SEQ_CST)) {
+            bumpAndWake(&r->mSpaceSeq);
+        }
+
+        total += n;
+    }
+    return total;
+}
+
+bool FifoRing::writeAsync(const void *data, size_t bytes, bool waitForSpace) {
+    if (bytes == 0) {
+        return true;
+    }
+    bool ret = writeRing(mToCore, (const uint8_t *)data, bytes, waitForSpace);
+    rsAssert(ret || mShutdown || !waitForSpace);
+    return ret;
+}
+
+void FifoRing::writeWaitReturn(void *retData, size_t retBytes) {
+    if (mShutdown) {
+        return;
+    }
+    size_t ret = readRing(mReturn, (uint8_t *)retData, retBytes);
+    rsAssert(ret == retBytes || mShutdown);
+}
+
+size_t FifoRing::read(void *data, size_t bytes) {
+    if (mShutdown || bytes == 0) {
+        return 0;
+    }
+    size_t ret = readRing(mToCore, (uint8_t *)data, bytes);
+    rsAssert(ret == bytes || mShutdown);
+    return ret;
+}
+
+void FifoRing::readReturn(const void *data, size_t bytes) {
+    writeRing(mReturn, (const uint8_t *)data, bytes, true);
+}
+
+bool FifoRing::isEmpty() {
+    return __atomic_load_n(&mToCore->mHead, __ATOMIC_ACQUIRE) == mToCore->mTail;
+}
+
+bool FifoRing::waitForData(int timeoutMs) {
+    return waitRing(mToCore, timeoutMs);
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef ANDROID_RS_FIFO_RING_H
+#define ANDROID_RS_FIFO_RING_H
+
+
+#include "rsUtils.h"
+
+namespace android {
+namespace renderscript {
+
+
+// Single producer / single consumer FIFO over a shared memory ring.
+//
+// This is a drop in alternative to FifoSocket for the client to core
+// command stream.  Commands are copied into the ring and published with an
+// atomic store, so the common case costs no system calls.  The reader only
+// enters the kernel (futex) when the ring is empty after a short spin, and
+// the writer only when the ring is full.  Return values travel back through
+// a second, smaller ring.
+//
+// As with FifoSocket there must be exactly one writer and one reader.
+
+class FifoRing {
+public:
+    FifoRing();
+    virtual ~FifoRing();
+
+    bool init(size_t size = 64 * 1024);
+    void shutdown();
+
+    bool writeAsync(const void *data, size_t bytes, bool waitForSpace = true);
+    void writeWaitReturn(void *ret, size_t retSize);
+    size_t read(void *data, size_t bytes);
+    void readReturn(const void *data, size_t bytes);
+    bool isEmpty();
+
+    // Wait for data to become readable.  timeoutMs of -1 waits forever and
+    // 0 only checks.  Returns false on timeout or shutdown.
+    bool waitForData(int timeoutMs);
+
+protected:
+    struct Ring {
+        // Written by the producer.
+        volatile uint32_t mHead __attribute__((aligned(64)));
+        volatile uint32_t mSpaceSeq;
+        volatile uint32_t mWriterWaiting;
+
+        // Written by the consumer.
+        volatile uint32_t mTail __attribute__((aligned(64)));
+        volatile uint32_t mDataSeq;
+        volatile uint32_t mReaderWaiting;
+
+        uint8_t *mData __attribute__((aligned(64)));
+        uint32_t mMask;
+    };
+
+    Ring * createRing(size_t size);
+    void destroyRing(Ring *r);
+
+    bool writeRing(Ring *r, const uint8_t *data, size_t bytes, bool waitForSpace);
+    size_t readRing(Ring *r, uint8_t *data, size_t bytes);
+    bool waitRing(Ring *r, int timeoutMs);
+
+    Ring *mToCore;
+    Ring *mReturn;
+    int mSpinCount;
+    volatile bool mShutdown;
+};
+
+}
+}
+
+#endif
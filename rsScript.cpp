@@ -284,5 +284,43 @@ void rsi_ScriptSetVarVE(Context *rsc, RsScript vs, uint32_t slot,
     s->setVar(slot, data, len, e, dims, dimLen);
 }
 
+void rsi_ScriptBatchExecute(Context *rsc, const void *data, size_t len) {
+    const uint8_t *p = static_cast<const uint8_t *>(data);
+    const uint8_t *end = p + len;
+
+    while (p < end) {
+        const RsBatchCommand *cmd = reinterpret_cast<const RsBatchCommand *>(p);
+        if ((size_t)(end - p) < sizeof(RsBatchCommand) ||
+            cmd->bytes < sizeof(RsBatchCommand) + cmd->dataLen ||
+            cmd->bytes > (size_t)(end - p)) {
+            rsc->setError(RS_ERROR_BAD_VALUE, "Malformed script batch");
+            return;
+        }
+        const void *payload = &cmd[1];
+
+        switch (cmd->type) {
+        case RS_BATCH_SET_VAR:
+            rsi_ScriptSetVarV(rsc, cmd->script, cmd->slot, payload, cmd->dataLen);
+            break;
+        case RS_BATCH_SET_VAR_OBJ:
+            rsi_ScriptSetVarObj(rsc, cmd->script, cmd->slot, cmd->obj);
+            break;
+        case RS_BATCH_INVOKE:
+            rsi_ScriptInvokeV(rsc, cmd->script, cmd->slot, payload, cmd->dataLen);
+            break;
+        case RS_BATCH_FOR_EACH:
+            rsi_ScriptForEach(rsc, cmd->script, cmd->slot, (RsAllocation)cmd->obj,
+                              cmd->aout, cmd->dataLen ? payload : nullptr,
+                              cmd->dataLen, nullptr, 0);
+            break;
+        default:
+            rsc->setError(RS_ERROR_BAD_VALUE, "Unknown script batch command");
+            return;
+        }
+
+        p += cmd->bytes;
+    }
+}
+
 }
 }
@@ -460,5 +460,25 @@ RsScript rsi_ScriptCCreate(Context *rsc,
     return s;
 }
 
+void rsi_ScriptCPrecompile(Context *rsc,
+                           const char *resName, size_t resName_length,
+                           const char *cacheDir, size_t cacheDir_length,
+                           const char *text, size_t text_length,
+                           uint32_t msgId)
+{
+    if (rsc->mHal.funcs.script.precompile &&
+        rsc->mHal.funcs.script.precompile(rsc, resName, cacheDir,
+                                          (const uint8_t *)text, text_length, msgId)) {
+        return;
+    }
+
+    // Let the client know not to wait, the script is compiled on creation.
+    RsPrecompileProgress p;
+    p.done = 0;
+    p.total = 0;
+    p.success = 0;
+    rsc->sendMessageToClient(&p, RS_MESSAGE_TO_CLIENT_USER, msgId, sizeof(p), true);
+}
+
 }
 }
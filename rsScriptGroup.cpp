@@ -34,6 +34,25 @@ ScriptGroup::~ScriptGroup() {
         mRSC->mHal.funcs.scriptgroup.destroy(mRSC, this);
     }
 
+    // Hand the link allocations back for the next group.  Links from the
+    // same kernel share one, only the last of them returns it.  One bound to
+    // a script global stays referenced by the script, so it is not reused.
+    for (size_t ct=0; ct < mLinks.size(); ct++) {
+        bool skip = false;
+        for (size_t ct2=0; ct2 < mLinks.size(); ct2++) {
+            if (mLinks[ct2]->mAlloc.get() == mLinks[ct]->mAlloc.get() &&
+                (ct2 > ct || mLinks[ct2]->mDstField.get())) {
+                skip = true;
+                break;
+            }
+        }
+        if (skip) {
+            mLinks[ct]->mAlloc.clear();
+        } else {
+            mRSC->mAllocationPool.release(mRSC, &mLinks[ct]->mAlloc);
+        }
+    }
+
     for (size_t ct=0; ct < mLinks.size(); ct++) {
         delete mLinks[ct];
     }
@@ -251,9 +270,9 @@ ScriptGroup * ScriptGroup::create(Context *rsc,
             }
             const ScriptKernelID *k = l->mSource.get();
 
-            Allocation * alloc = Allocation::createAllocation(rsc,
-                    l->mType.get(), RS_ALLOCATION_USAGE_SCRIPT);
-            l->mAlloc = alloc;
+            rsc->mAllocationPool.acquire(rsc, l->mType.get(),
+                    RS_ALLOCATION_USAGE_SCRIPT, &l->mAlloc);
+            Allocation * alloc = l->mAlloc.get();
 
             for (size_t ct3=ct2+1; ct3 < n->mOutputs.size(); ct3++) {
                 if (n->mOutputs[ct3]->mSource.get() == l->mSource.get()) {
@@ -32,20 +32,32 @@ using namespace android::renderscript;
 ThreadIO::ThreadIO() {
     mRunning = true;
     mPureFifo = false;
+    mUseRing = false;
     mMaxInlineSize = 1024;
 }
 
 ThreadIO::~ThreadIO() {
 }
 
-void ThreadIO::init() {
+void ThreadIO::init(bool useRing) {
     mToClient.init();
-    mToCore.init();
+    if (useRing && mToCoreRing.init()) {
+        mUseRing = true;
+    } else {
+        if (useRing) {
+            ALOGE("Unable to create command ring, falling back to socket");
+        }
+        mToCore.init();
+    }
 }
 
 void ThreadIO::shutdown() {
     mRunning = false;
-    mToCore.shutdown();
+    if (mUseRing) {
+        mToCoreRing.shutdown();
+    } else {
+        mToCore.shutdown();
+    }
 }
 
 void * ThreadIO::coreHeader(uint32_t cmdID, size_t dataLen) {
@@ -60,6 +72,10 @@ void * ThreadIO::coreHeader(uint32_t cmdID, size_t dataLen) {
 }
 
 void ThreadIO::coreCommit() {
+    if (mUseRing) {
+        mToCoreRing.writeAsync(&mSendBuffer, mSendLen);
+        return;
+    }
     mToCore.writeAsync(&mSendBuffer, mSendLen);
 }
 
@@ -69,11 +85,19 @@ void ThreadIO::clientShutdown() {
 
 void ThreadIO::coreWrite(const void *data, size_t len) {
     //ALOGV("core write %p %i", data, (int)len);
+    if (mUseRing) {
+        mToCoreRing.writeAsync(data, len, true);
+        return;
+    }
     mToCore.writeAsync(data, len, true);
 }
 
 void ThreadIO::coreRead(void *data, size_t len) {
     //ALOGV("core read %p %i", data, (int)len);
+    if (mUseRing) {
+        mToCoreRing.read(data, len);
+        return;
+    }
     mToCore.read(data, len);
 }
 
@@ -84,6 +108,10 @@ void ThreadIO::coreSetReturn(const void *data, size_t dataLen) {
         dataLen = sizeof(buf);
     }
 
+    if (mUseRing) {
+        mToCoreRing.readReturn(data, dataLen);
+        return;
+    }
     mToCore.readReturn(data, dataLen);
 }
 
@@ -94,6 +122,10 @@ void ThreadIO::coreGetReturn(void *data, size_t dataLen) {
         dataLen = sizeof(buf);
     }
 
+    if (mUseRing) {
+        mToCoreRing.writeWaitReturn(data, dataLen);
+        return;
+    }
     mToCore.writeWaitReturn(data, dataLen);
 }
 
@@ -101,7 +133,69 @@ void ThreadIO::setTimeoutCallback(void (*cb)(void *), void *dat, uint64_t timeou
     //mToCore.setTimeoutCallback(cb, dat, timeout);
 }
 
+void ThreadIO::playCommand(Context *con, const CoreCmdHeader *cmd, const void *data) {
+    if (con->props.mLogTimes) {
+        con->timerSet(Context::RS_TIMER_INTERNAL);
+    }
+    //ALOGV("playCoreCommands 3 %i %i", cmd->cmdID, cmd->bytes);
+
+    if (cmd->cmdID >= (sizeof(gPlaybackFuncs) / sizeof(void *))) {
+        rsAssert(cmd->cmdID < (sizeof(gPlaybackFuncs) / sizeof(void *)));
+        ALOGE("playCoreCommands error con %p, cmd %i", con, cmd->cmdID);
+    }
+
+    if (!isPureFifo()) {
+        gPlaybackFuncs[cmd->cmdID](con, data, cmd->bytes);
+    } else {
+        gPlaybackRemoteFuncs[cmd->cmdID](con, this);
+    }
+
+    if (con->props.mLogTimes) {
+        con->timerSet(Context::RS_TIMER_IDLE);
+    }
+}
+
+// The ring has no file descriptor to poll, so it is only used for contexts
+// without a display to wait on.  Commands are drained without any system
+// calls while they keep arriving; the thread only sleeps once the ring has
+// stayed empty.
+bool ThreadIO::playRingCommands(Context *con) {
+    bool ret = false;
+
+    uint8_t buf[2 * 1024];
+    const CoreCmdHeader *cmd = (const CoreCmdHeader *)&buf[0];
+    const void * data = (const void *)&buf[sizeof(CoreCmdHeader)];
+
+    rsAssert(!isPureFifo());
+
+    if (con->props.mLogTimes) {
+        con->timerSet(Context::RS_TIMER_IDLE);
+    }
+
+    int waitTime = -1;
+    while (mRunning && mToCoreRing.waitForData(waitTime)) {
+        size_t r = mToCoreRing.read(&buf[0], sizeof(CoreCmdHeader));
+        if (r != sizeof(CoreCmdHeader)) {
+            // Shutdown occurred.
+            break;
+        }
+        mToCoreRing.read(&buf[sizeof(CoreCmdHeader)], cmd->bytes);
+
+        ret = true;
+        playCommand(con, cmd, data);
+
+        // Stop blocking now that at least one command has been processed.
+        waitTime = 0;
+    }
+    return ret;
+}
+
 bool ThreadIO::playCoreCommands(Context *con, int waitFd) {
+    if (mUseRing) {
+        rsAssert(waitFd < 0);
+        return playRingCommands(con);
+    }
+
     bool ret = false;
     const bool isLocal = !isPureFifo();
 
@@ -147,25 +241,7 @@ bool ThreadIO::playCoreCommands(Context *con, int waitFd) {
 
 
             ret = true;
-            if (con->props.mLogTimes) {
-                con->timerSet(Context::RS_TIMER_INTERNAL);
-            }
-            //ALOGV("playCoreCommands 3 %i %i", cmd->cmdID, cmd->bytes);
-
-            if (cmd->cmdID >= (sizeof(gPlaybackFuncs) / sizeof(void *))) {
-                rsAssert(cmd->cmdID < (sizeof(gPlaybackFuncs) / sizeof(void *)));
-                ALOGE("playCoreCommands error con %p, cmd %i", con, cmd->cmdID);
-            }
-
-            if (isLocal) {
-                gPlaybackFuncs[cmd->cmdID](con, data, cmd->bytes);
-            } else {
-                gPlaybackRemoteFuncs[cmd->cmdID](con, this);
-            }
-
-            if (con->props.mLogTimes) {
-                con->timerSet(Context::RS_TIMER_IDLE);
-            }
+            playCommand(con, cmd, data);
 
             if (waitFd < 0) {
                 // If we don't have a secondary wait object we should stop blocking now
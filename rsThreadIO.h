@@ -19,6 +19,7 @@
 
 #include "rsUtils.h"
 #include "rsFifoSocket.h"
+#include "rsFifoRing.h"
 
 // ---------------------------------------------------------------------------
 namespace android {
@@ -31,7 +32,9 @@ public:
     ThreadIO();
     ~ThreadIO();
 
-    void init();
+    // useRing selects the shared memory ring instead of the socket for the
+    // client to core command stream.
+    void init(bool useRing = false);
     void shutdown();
 
     size_t getMaxInlineSize() {
@@ -40,6 +43,9 @@ public:
     bool isPureFifo() {
         return mPureFifo;
     }
+    bool isRing() {
+        return mUseRing;
+    }
 
     // Plays back commands from the client.
     // Returns true if any commands were processed.
@@ -79,12 +85,17 @@ protected:
     } ClientCmdHeader;
     ClientCmdHeader mLastClientHeader;
 
+    bool playRingCommands(Context *con);
+    void playCommand(Context *con, const CoreCmdHeader *cmd, const void *data);
+
     bool mRunning;
     bool mPureFifo;
+    bool mUseRing;
     size_t mMaxInlineSize;
 
     FifoSocket mToClient;
     FifoSocket mToCore;
+    FifoRing mToCoreRing;
 
     intptr_t mToCoreRet;
 
@@ -186,6 +186,15 @@ typedef struct {
                                    size_t usrLen,
                                    const RsScriptCall *sc);
         void (*updateCachedObject)(const Context *rsc, const Script *, rs_script *obj);
+
+        // Optional.  Build a script into cacheDir in the background and send
+        // an RsPrecompileProgress message with id msgId when done.
+        bool (*precompile)(const Context *rsc,
+                           char const *resName,
+                           char const *cacheDir,
+                           uint8_t const *bitcode,
+                           size_t bitcodeSize,
+                           uint32_t msgId);
     } script;
 
     struct {
@@ -378,6 +387,7 @@ enum RsHalInitEnums {
     RS_HAL_SCRIPT_DESTROY                                   = 1012,
     RS_HAL_SCRIPT_INVOKE_FOR_EACH_MULTI                     = 1013,
     RS_HAL_SCRIPT_UPDATE_CACHED_OBJECT                      = 1014,
+    RS_HAL_SCRIPT_PRECOMPILE                                = 1015,
 
     RS_HAL_ALLOCATION_INIT                                  = 2000,
     RS_HAL_ALLOCATION_INIT_ADAPTER                          = 2001,
@@ -0,0 +1,22 @@
+LOCAL_PATH:= $(call my-dir)
+include $(CLEAR_VARS)
+
+# Builds the box mode of the Blur intrinsic straight from cpu_ref so that it
+# can be compared with a plain three-box blur without going through
+# libRSCpuRef.
+
+LOCAL_SRC_FILES:= \
+	../../cpu_ref/rsCpuBlurBox.cpp \
+	blur_box.cpp
+
+LOCAL_CFLAGS := -std=c++11
+
+LOCAL_MODULE:= rstest-blur-box
+
+LOCAL_MODULE_TAGS := tests
+
+LOCAL_C_INCLUDES += frameworks/rs/cpu_ref
+
+LOCAL_CLANG := true
+
+include $(BUILD_EXECUTABLE)
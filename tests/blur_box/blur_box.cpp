@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Checks the box mode (RS_BLUR_MODE_BOX) of the Blur intrinsic against a
+// plain three-box blur: each pass sums a clamped box vertically, then
+// horizontally, and the total is scaled once at the end.
+//
+// U1 and U4 images are checked with widths above 8192, blur radii up to 25,
+// heights both smaller and larger than the boxes, and rows padded in the
+// input.  The rows are split between several states the way the worker
+// threads split them, visited in runs that skip ahead, and some rows are
+// written in two halves.  Every output must match the reference byte for
+// byte.
+//
+// usage: rstest-blur-box [rounds]
+
+#include <stdint.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+
+#include <algorithm>
+#include <vector>
+
+#include "rsCpuBlurBox.h"
+
+using android::renderscript::BlurBoxState;
+using android::renderscript::rsdBlurBoxRadii;
+using android::renderscript::rsdBlurBoxRow;
+
+static const int kStates = 3;
+
+static const int kChannels[] = {1, 4};
+static const int kWidths[] = {1, 2, 37, 8193, 9001};
+static const int kHeights[] = {1, 3, 64};
+static const float kRadii[] = {1.f, 2.5f, 10.f, 25.f};
+
+static inline int clampIndex(int i, int n) {
+    return std::min(std::max(i, 0), n - 1);
+}
+
+// One box pass of radius r along an axis of n elements, step apart.
+static void referencePass(uint64_t *dst, const uint64_t *src, int n, size_t step,
+                          int r) {
+    for (int i = 0; i < n; i++) {
+        uint64_t s = 0;
+        for (int k = -r; k <= r; k++) {
+            s += src[clampIndex(i + k, n) * step];
+        }
+        dst[i * step] = s;
+    }
+}
+
+static void referenceBlur(uint8_t *out, const uint8_t *in, size_t stride,
+                          int w, int h, int c, const int *r) {
+    const size_t n = (size_t)w * c;
+    std::vector<uint64_t> a(n * h);
+    std::vector<uint64_t> b(n * h);
+    for (int y = 0; y < h; y++) {
+        for (size_t i = 0; i < n; i++) {
+            a[y * n + i] = in[y * stride + i];
+        }
+    }
+
+    float scale = 1.f;
+    for (int p = 0; p < 3; p++) {
+        for (size_t i = 0; i < n; i++) {
+            referencePass(&b[i], &a[i], h, n, r[p]);
+        }
+        for (int y = 0; y < h; y++) {
+            for (int ch = 0; ch < c; ch++) {
+                referencePass(&a[y * n + ch], &b[y * n + ch], w, c, r[p]);
+            }
+        }
+        scale *= (float)(2 * r[p] + 1);
+    }
+    scale = 1.f / (scale * scale);
+
+    for (size_t i = 0; i < n * h; i++) {
+        out[i] = (uint8_t)((float)a[i] * scale + 0.5f);
+    }
+}
+
+// Rows go to the states in runs of a few rows, round robin, and every
+// fourth run jumps back to the start so the states also see rows out of
+// order.
+static bool runBox(BlurBoxState *states, uint8_t *out, const uint8_t *in, size_t stride,
+                   int w, int h, int c, const int *r) {
+    for (int s = 0; s < kStates; s++) {
+        states[s].ready = false;
+    }
+    const int run = 1 + rand() % 5;
+    std::vector<int> rows;
+    for (int y = 0; y < h; y += run) {
+        rows.push_back(y);
+    }
+    for (size_t i = 0; i + 1 < rows.size(); i += 4) {
+        std::swap(rows[i], rows[i + 1]);
+    }
+
+    for (size_t i = 0; i < rows.size(); i++) {
+        BlurBoxState *s = &states[i % kStates];
+        for (int y = rows[i]; y < std::min(rows[i] + run, h); y++) {
+            uint8_t *row = out + (size_t)y * w * c;
+            int split = (y & 1) ? w / 2 : 0;
+            if (!rsdBlurBoxRow(s, c, row, in, stride, w, h, r, y, 0, split) ||
+                !rsdBlurBoxRow(s, c, row + split * c, in, stride, w, h, r, y, split, w)) {
+                return false;
+            }
+        }
+    }
+    return true;
+}
+
+int main(int argc, char **argv) {
+    int rounds = (argc > 1) ? atoi(argv[1]) : 1;
+    int failed = 0;
+    int checked = 0;
+
+    BlurBoxState states[kStates];
+    memset(states, 0, sizeof(states));
+
+    srand(1);
+    for (int round = 0; round < rounds; round++) {
+        for (int c : kChannels) {
+            for (int w : kWidths) {
+                for (int h : kHeights) {
+                    for (float radius : kRadii) {
+                        int r[3];
+                        rsdBlurBoxRadii(radius, r);
+
+                        const size_t stride = (size_t)w * c + rand() % 9;
+                        const size_t len = (size_t)w * c * h;
+                        std::vector<uint8_t> in(stride * h);
+                        for (size_t i = 0; i < in.size(); i++) {
+                            in[i] = (uint8_t)rand();
+                        }
+                        std::vector<uint8_t> ref(len);
+                        std::vector<uint8_t> out(len);
+                        referenceBlur(ref.data(), in.data(), stride, w, h, c, r);
+                        for (size_t i = 0; i < len; i++) {
+                            out[i] = ~ref[i];
+                        }
+
+                        if (!runBox(states, out.data(), in.data(), stride, w, h, c, r) ||
+                            memcmp(out.data(), ref.data(), len)) {
+                            printf("FAIL U%i w %i h %i radius %.1f\n", c, w, h, radius);
+                            failed++;
+                        }
+                        checked++;
+                    }
+                }
+            }
+        }
+    }
+
+    for (int s = 0; s < kStates; s++) {
+        free(states[s].mem);
+    }
+
+    printf("%i of %i images match the reference\n", checked - failed, checked);
+    return failed ? 1 : 0;
+}
@@ -0,0 +1,21 @@
+LOCAL_PATH:= $(call my-dir)
+include $(CLEAR_VARS)
+
+# Builds the tiled BNNM kernel straight from cpu_ref so that it can be
+# compared with the reference loop without going through libRSCpuRef.
+
+LOCAL_SRC_FILES:= \
+	../../cpu_ref/rsCpuBNNM.cpp \
+	bnnm.cpp
+
+LOCAL_CFLAGS := -std=c++11
+
+LOCAL_MODULE:= rstest-bnnm
+
+LOCAL_MODULE_TAGS := tests
+
+LOCAL_C_INCLUDES += frameworks/rs/cpu_ref
+
+LOCAL_CLANG := true
+
+include $(BUILD_EXECUTABLE)
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Checks the tiled BNNM kernel of the BLAS intrinsic against the reference
+// triple loop it replaced.
+//
+// Shapes include M, N and K that are not multiples of the tile or block
+// sizes, leading dimensions larger than the rows, and random offsets and
+// multipliers.  Every shape is run on one thread and on several threads
+// claiming tiles concurrently, and both outputs must match the reference
+// byte for byte, including the padding between rows of C.
+//
+// usage: rstest-bnnm [rounds]
+
+#include <pthread.h>
+#include <stdint.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+
+#include "rsCpuBNNM.h"
+
+using android::renderscript::BNNMLaunchStruct;
+using android::renderscript::rsdBNNMSetup;
+using android::renderscript::rsdBNNMWalk;
+
+static const int kThreads = 4;
+
+// Values around the 4 wide blocks, the 32 wide tiles and the 256 deep K
+// slices of the kernel.
+static const size_t kSizes[] = {1, 3, 4, 5, 31, 32, 33, 67, 100};
+static const size_t kDepths[] = {1, 7, 255, 256, 257, 600};
+
+// The loop kernelBNNM used before tiling.
+static void referenceBNNM(size_t m, size_t n, size_t k,
+                          const uint8_t* a, uint8_t a_offset, size_t lda,
+                          const uint8_t* b, uint8_t b_offset, size_t ldb,
+                          uint8_t* c, int32_t c_offset, size_t ldc,
+                          int32_t c_mult_int) {
+    const int c_shift = 21;
+    for (size_t j = 0; j < n; j++) {
+        for (size_t i = 0; i < m; i++) {
+            int32_t total = 0;
+            for (size_t l = 0; l < k; l++) {
+                const int32_t a_as_int = ((int32_t)a[i * lda + l]) - a_offset;
+                const int32_t b_as_int = ((int32_t)b[j * ldb + l]) - b_offset;
+                total += a_as_int * b_as_int;
+            }
+            int32_t output =
+                ((((total + c_offset) * c_mult_int) + (1 << (c_shift - 1)))
+                 >> c_shift);
+            if (output > 255) {
+                output = 255;
+            }
+            if (output < 0) {
+                output = 0;
+            }
+            c[ldc * i + j] = (uint8_t)(output);
+        }
+    }
+}
+
+static void *walkThread(void *usr) {
+    rsdBNNMWalk(usr, 0);
+    return nullptr;
+}
+
+static void runTiled(BNNMLaunchStruct *bl, int threads) {
+    rsdBNNMSetup(bl);
+    pthread_t t[kThreads];
+    for (int ct = 0; ct < threads; ct++) {
+        pthread_create(&t[ct], nullptr, walkThread, bl);
+    }
+    for (int ct = 0; ct < threads; ct++) {
+        pthread_join(t[ct], nullptr);
+    }
+}
+
+static void fillRandom(uint8_t *p, size_t len) {
+    for (size_t ct = 0; ct < len; ct++) {
+        p[ct] = (uint8_t)rand();
+    }
+}
+
+static bool checkShape(size_t m, size_t n, size_t k) {
+    const size_t lda = k + rand() % 5;
+    const size_t ldb = k + rand() % 5;
+    const size_t ldc = n + rand() % 5;
+    const size_t cLen = m * ldc;
+
+    uint8_t *a = (uint8_t *)malloc(m * lda);
+    uint8_t *b = (uint8_t *)malloc(n * ldb);
+    uint8_t *ref = (uint8_t *)malloc(cLen);
+    uint8_t *out = (uint8_t *)malloc(cLen);
+    fillRandom(a, m * lda);
+    fillRandom(b, n * ldb);
+
+    BNNMLaunchStruct bl;
+    memset(&bl, 0, sizeof(bl));
+    bl.m = m;
+    bl.n = n;
+    bl.k = k;
+    bl.a = a;
+    bl.lda = lda;
+    bl.b = b;
+    bl.ldb = ldb;
+    bl.c = out;
+    bl.ldc = ldc;
+    bl.a_offset = rand() & 0xff;
+    bl.b_offset = rand() & 0xff;
+    bl.c_offset = rand() % 4096;
+    // Large enough that the outputs are not all clamped to 0 or 255.
+    bl.c_mult_int = (1 << 21) / (int32_t)(k * 64) + rand() % 256;
+
+    // The padding of C must be left alone, start both copies equal.
+    fillRandom(ref, cLen);
+    referenceBNNM(m, n, k, a, bl.a_offset, lda, b, bl.b_offset, ldb,
+                  ref, bl.c_offset, ldc, bl.c_mult_int);
+
+    bool ok = true;
+    for (int threads = 1; threads <= kThreads && ok; threads += kThreads - 1) {
+        for (size_t ct = 0; ct < cLen; ct++) {
+            out[ct] = ref[ct];
+        }
+        // Scramble the computed entries so a skipped tile shows up.
+        for (size_t i = 0; i < m; i++) {
+            for (size_t j = 0; j < n; j++) {
+                out[i * ldc + j] = ~ref[i * ldc + j];
+            }
+        }
+        runTiled(&bl, threads);
+        if (memcmp(out, ref, cLen)) {
+            printf("FAIL m %zu n %zu k %zu lda %zu ldb %zu ldc %zu, %i threads\n",
+                   m, n, k, lda, ldb, ldc, threads);
+            ok = false;
+        }
+    }
+
+    free(a);
+    free(b);
+    free(ref);
+    free(out);
+    return ok;
+}
+
+int main(int argc, char **argv) {
+    int rounds = (argc > 1) ? atoi(argv[1]) : 2;
+    int failed = 0;
+    int checked = 0;
+
+    srand(1);
+    for (int r = 0; r < rounds; r++) {
+        for (size_t m : kSizes) {
+            for (size_t n : kSizes) {
+                for (size_t k : kDepths) {
+                    if (!checkShape(m, n, k)) {
+                        failed++;
+                    }
+                    checked++;
+                }
+            }
+        }
+    }
+
+    printf("%i of %i shapes match the reference\n", checked - failed, checked);
+    return failed ? 1 : 0;
+}
@@ -53,6 +53,48 @@ int main(int argc, char** argv)
         }
     }
 
+    // Run the same kernel over caller memory.  The buffers are used in place
+    // when their rows are 16-byte aligned, which here means numElems is a
+    // multiple of 4, whatever the alignment of their start.  Otherwise the
+    // driver works on a copy: syncAll(USAGE_SHARED) copies the input in, and
+    // the results are read back with a copy, never written over the caller's
+    // buffer.
+    const bool inPlace = (numElems % 4) == 0;
+    uint32_t* shared = new uint32_t[numElems * 2 + 8];
+    uint32_t* sharedIn = (uint32_t*)(((uintptr_t)shared + 15) & ~(uintptr_t)15);
+    uint32_t* sharedOut = sharedIn + numElems + 4 - (numElems & 3);
+    for (int misalign = 0; misalign < 2; misalign++) {
+        uint32_t* in = sharedIn + misalign;
+        for (uint32_t ct=0; ct < numElems; ct++) {
+            sharedOut[ct] = 0xdeadbeef;
+        }
+        sp<Allocation> uin = Allocation::createTyped(rs, t, RS_ALLOCATION_MIPMAP_NONE,
+                RS_ALLOCATION_USAGE_SCRIPT | RS_ALLOCATION_USAGE_SHARED, in);
+        sp<Allocation> uout = Allocation::createTyped(rs, t, RS_ALLOCATION_MIPMAP_NONE,
+                RS_ALLOCATION_USAGE_SCRIPT | RS_ALLOCATION_USAGE_SHARED, sharedOut);
+
+        for (uint32_t ct=0; ct < numElems; ct++) {
+            in[ct] = ct + 7;
+        }
+        uin->syncAll(RS_ALLOCATION_USAGE_SHARED);
+        sc->forEach_multiply(uin, uout);
+        uout->syncAll(RS_ALLOCATION_USAGE_SCRIPT);
+        uout->copy1DRangeTo(0, numElems, buf);
+
+        for (uint32_t ct=0; ct < numElems; ct++) {
+            if (buf[ct] != (ct + 7) * 2) {
+                printf("Shared mismatch at location %d: %u\n", ct, buf[ct]);
+                return 1;
+            }
+            uint32_t expected = inPlace ? (ct + 7) * 2 : 0xdeadbeef;
+            if (sharedOut[ct] != expected) {
+                printf("Caller buffer mismatch at location %d: %u\n", ct, sharedOut[ct]);
+                return 1;
+            }
+        }
+    }
+    delete [] shared;
+
     printf("Test successful with %u elems!\n", numElems);
 
     sc.clear();
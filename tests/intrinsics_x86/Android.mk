@@ -0,0 +1,24 @@
+LOCAL_PATH:= $(call my-dir)
+include $(CLEAR_VARS)
+
+# Builds the x86 intrinsic kernels straight from cpu_ref so that both tiers
+# can be called side by side, without going through libRSCpuRef.
+
+LOCAL_SRC_FILES:= \
+	../../cpu_ref/rsCpuIntrinsics_x86.cpp \
+	../../cpu_ref/rsCpuIntrinsics_x86_avx2.cpp \
+	intrinsics_x86.cpp
+
+LOCAL_MODULE_TARGET_ARCH := x86 x86_64
+
+LOCAL_CFLAGS := -std=c++11 -mssse3 -DARCH_X86_HAVE_SSSE3
+
+LOCAL_MODULE:= rstest-intrinsics-x86
+
+LOCAL_MODULE_TAGS := tests
+
+LOCAL_C_INCLUDES += frameworks/rs/cpu_ref
+
+LOCAL_CLANG := true
+
+include $(BUILD_EXECUTABLE)
@@ -0,0 +1,454 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Microbenchmark for the x86 intrinsic kernels.
+//
+// Every kernel is run through two tiers on the same random input for a
+// range of lengths, including the ones that leave a tail for the narrower
+// code, and the outputs are compared byte for byte.  The kernels with an
+// AVX2 version are compared against SSSE3; the 3DLUT and Resize kernels,
+// which have no AVX2 version, against a copy of the C path of the
+// intrinsic.  This is repeated for a few rounds of random input, LUT sizes
+// and scale factors.  Then each tier is timed on one row of the given width.
+//
+// usage: rstest-intrinsics-x86 [width] [iterations]
+
+#include <math.h>
+#include <stdint.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+
+#include <algorithm>
+
+#include "rsCpuIntrinsics_x86.h"
+
+bool android::renderscript::gArchUseAVX2 = false;
+
+enum Tier {
+    TIER_C,
+    TIER_SSSE3,
+    TIER_AVX2
+};
+
+static const char * const kTierNames[] = {"c", "ssse3", "avx2"};
+
+// Rounds of random input the kernels are checked against.
+static const int kRounds = 8;
+
+// Blur radius used for the blur kernels, rct is 2 * radius + 1.
+static const int kBlurRadius = 12;
+static const int kBlurTaps = 2 * kBlurRadius + 1;
+
+// Room left after the end of a row for kernels that read or write past the
+// requested length, as the intrinsics allow for.
+static const int kSlack = 64;
+
+struct Inputs {
+    int width;
+    int stride;
+    uint8_t *rows;      // 5 rows of uchar4
+    uint8_t *blendDst;  // initial destination for the blends
+    float *f4;          // float4 row for BlurHFU4, 16 byte aligned
+    float *f1;          // float row for BlurHFU1
+    float gauss[kBlurTaps + 8];
+    short coef[32];
+
+    uint8_t *lut;       // uchar4 3D LUT
+    int lutDim[3];
+    int lutPitchY;
+    int lutPitchZ;
+
+    float scaleX;       // Resize source pixels per destination pixel
+    float yf;
+};
+
+typedef void (*RunFn)(const Inputs &in, void *dst, Tier tier, int len);
+
+static const uint8_t *row(const Inputs &in, int r) {
+    return in.rows + r * in.stride;
+}
+
+static void runConvolve3x3(const Inputs &in, void *dst, Tier tier, int len) {
+    uint32_t count = (len + 1) / 2;
+    if (tier == TIER_AVX2) {
+        rsdIntrinsicConvolve3x3_AVX2_K(dst, row(in, 0), row(in, 1), row(in, 2), in.coef, count);
+    } else {
+        rsdIntrinsicConvolve3x3_SSSE3_K(dst, row(in, 0), row(in, 1), row(in, 2), in.coef, count);
+    }
+}
+
+static void runConvolve5x5(const Inputs &in, void *dst, Tier tier, int len) {
+    uint32_t count = (len + 3) / 4;
+    if (tier == TIER_AVX2) {
+        rsdIntrinsicConvolve5x5_AVX2_K(dst, row(in, 0), row(in, 1), row(in, 2),
+                                       row(in, 3), row(in, 4), in.coef, count);
+    } else {
+        rsdIntrinsicConvolve5x5_SSSE3_K(dst, row(in, 0), row(in, 1), row(in, 2),
+                                        row(in, 3), row(in, 4), in.coef, count);
+    }
+}
+
+static void runBlurVFU4(const Inputs &in, void *dst, Tier tier, int len) {
+    if (tier == TIER_AVX2) {
+        rsdIntrinsicBlurVFU4_AVX2_K(dst, in.rows, in.stride, in.gauss, kBlurTaps, 0, len);
+    } else {
+        rsdIntrinsicBlurVFU4_SSSE3_K(dst, in.rows, in.stride, in.gauss, kBlurTaps, 0, len);
+    }
+}
+
+static void runBlurHFU4(const Inputs &in, void *dst, Tier tier, int len) {
+    if (tier == TIER_AVX2) {
+        rsdIntrinsicBlurHFU4_AVX2_K(dst, in.f4, in.gauss, kBlurTaps, 0, len);
+    } else {
+        rsdIntrinsicBlurHFU4_SSSE3_K(dst, in.f4, in.gauss, kBlurTaps, 0, len);
+    }
+}
+
+static void runBlurHFU1(const Inputs &in, void *dst, Tier tier, int len) {
+    if (tier == TIER_AVX2) {
+        rsdIntrinsicBlurHFU1_AVX2_K(dst, in.f1, in.gauss, kBlurTaps, 0, len);
+    } else {
+        rsdIntrinsicBlurHFU1_SSSE3_K(dst, in.f1, in.gauss, kBlurTaps, 0, len);
+    }
+}
+
+// The C path of the 3DLUT intrinsic, one channel at a time.
+static void ref3DLUT(uint8_t *dst, const uint8_t *src, int count, const uint8_t *lut,
+                     int pitchy, int pitchz, const int *dims) {
+    int coordMul[3];
+    for (int c = 0; c < 3; c++) {
+        coordMul[c] = (int)((1.f / 255.f) * (float)dims[c] * (float)0x8000);
+    }
+
+    for (int i = 0; i < count; i++, src += 4, dst += 4) {
+        int coord1[3];
+        uint32_t weight1[3];
+        uint32_t weight2[3];
+        for (int c = 0; c < 3; c++) {
+            int baseCoord = src[c] * coordMul[c];
+            coord1[c] = baseCoord >> 15;
+            weight2[c] = baseCoord & 0x7fff;
+            weight1[c] = 0x8000 - weight2[c];
+        }
+
+        const uint8_t *bp = lut + coord1[0] * 4 + coord1[1] * pitchy + coord1[2] * pitchz;
+        const uint8_t *pt00 = bp;
+        const uint8_t *pt10 = bp + pitchy;
+        const uint8_t *pt01 = bp + pitchz;
+        const uint8_t *pt11 = bp + pitchy + pitchz;
+
+        for (int c = 0; c < 3; c++) {
+            uint32_t yz00 = (pt00[c] * weight1[0] + pt00[4 + c] * weight2[0]) >> 7;
+            uint32_t yz10 = (pt10[c] * weight1[0] + pt10[4 + c] * weight2[0]) >> 7;
+            uint32_t yz01 = (pt01[c] * weight1[0] + pt01[4 + c] * weight2[0]) >> 7;
+            uint32_t yz11 = (pt11[c] * weight1[0] + pt11[4 + c] * weight2[0]) >> 7;
+
+            uint32_t z0 = (yz00 * weight1[1] + yz10 * weight2[1]) >> 15;
+            uint32_t z1 = (yz01 * weight1[1] + yz11 * weight2[1]) >> 15;
+
+            uint32_t v = (z0 * weight1[2] + z1 * weight2[2]) >> 15;
+            dst[c] = (v + 0x7f) >> 8;
+        }
+        dst[3] = src[3];
+    }
+}
+
+static void run3DLUT(const Inputs &in, void *dst, Tier tier, int len) {
+    if (tier == TIER_SSSE3) {
+        rsdIntrinsic3DLUT_K(dst, row(in, 0), len, in.lut, in.lutPitchY, in.lutPitchZ,
+                            in.lutDim[0] - 1, in.lutDim[1] - 1, in.lutDim[2] - 1);
+    } else {
+        int dims[3] = {in.lutDim[0] - 1, in.lutDim[1] - 1, in.lutDim[2] - 1};
+        ref3DLUT((uint8_t *)dst, row(in, 0), len, in.lut, in.lutPitchY, in.lutPitchZ, dims);
+    }
+}
+
+// The C path of the Resize intrinsic, OneBiCubic() one channel at a time.
+static float refCubic(float p0, float p1, float p2, float p3, float x) {
+    return p1 + 0.5f * x * (p2 - p0 + x * (2.f * p0 - 5.f * p1 + 4.f * p2 - p3
+            + x * (3.f * (p1 - p2) + p3 - p0)));
+}
+
+static void refResize(const Inputs &in, uint8_t *dst, int channels, int len) {
+    const uint8_t *yp[4] = {row(in, 0), row(in, 1), row(in, 2), row(in, 3)};
+
+    for (uint32_t x = 0; x < (uint32_t)len; x++) {
+        float xf = (x + 0.5f) * in.scaleX - 0.5f;
+        int startx = (int)floor(xf - 1);
+        xf = xf - floor(xf);
+        int maxx = in.width - 1;
+        int xs[4] = {
+            std::max(0, startx + 0), std::max(0, startx + 1),
+            std::min(maxx, startx + 2), std::min(maxx, startx + 3)
+        };
+
+        for (int c = 0; c < channels; c++) {
+            float p[4];
+            for (int r = 0; r < 4; r++) {
+                p[r] = refCubic(yp[r][xs[0] * channels + c], yp[r][xs[1] * channels + c],
+                                yp[r][xs[2] * channels + c], yp[r][xs[3] * channels + c], xf);
+            }
+            float v = refCubic(p[0], p[1], p[2], p[3], in.yf);
+            v = std::min(std::max(v + 0.5f, 0.f), 255.f);
+            dst[x * channels + c] = (uint8_t)v;
+        }
+    }
+}
+
+#define RUN_RESIZE(n)                                                                \
+static void runResizeU##n(const Inputs &in, void *dst, Tier tier, int len) {         \
+    if (tier == TIER_SSSE3) {                                                        \
+        rsdIntrinsicResizeU##n##_K(dst, row(in, 0), row(in, 1), row(in, 2),          \
+                                   row(in, 3), 0, len, in.scaleX, in.yf, in.width);  \
+    } else {                                                                         \
+        refResize(in, (uint8_t *)dst, n, len);                                       \
+    }                                                                                \
+}
+RUN_RESIZE(4)
+RUN_RESIZE(2)
+RUN_RESIZE(1)
+#undef RUN_RESIZE
+
+#define RUN_BLEND(name)                                                              \
+static void runBlend##name(const Inputs &in, void *dst, Tier tier, int len) {       \
+    uint32_t count8 = (len + 7) / 8;                                                 \
+    if (tier == TIER_AVX2) {                                                         \
+        rsdIntrinsicBlend##name##_AVX2_K(dst, row(in, 0), count8);                   \
+    } else {                                                                         \
+        rsdIntrinsicBlend##name##_SSSE3_K(dst, row(in, 0), count8);                  \
+    }                                                                                \
+}
+RS_X86_BLEND_KERNELS(RUN_BLEND)
+#undef RUN_BLEND
+
+struct Kernel {
+    const char *name;
+    RunFn run;
+    Tier base;      // the tier the other one is checked against
+    Tier simd;
+    bool inPlace;   // dst starts out as the blend destination
+};
+
+static const Kernel gKernels[] = {
+    {"Convolve3x3", runConvolve3x3, TIER_SSSE3, TIER_AVX2, false},
+    {"Convolve5x5", runConvolve5x5, TIER_SSSE3, TIER_AVX2, false},
+    {"BlurVFU4", runBlurVFU4, TIER_SSSE3, TIER_AVX2, false},
+    {"BlurHFU4", runBlurHFU4, TIER_SSSE3, TIER_AVX2, false},
+    {"BlurHFU1", runBlurHFU1, TIER_SSSE3, TIER_AVX2, false},
+    {"3DLUT", run3DLUT, TIER_C, TIER_SSSE3, false},
+    {"ResizeU4", runResizeU4, TIER_C, TIER_SSSE3, false},
+    {"ResizeU2", runResizeU2, TIER_C, TIER_SSSE3, false},
+    {"ResizeU1", runResizeU1, TIER_C, TIER_SSSE3, false},
+#define KERNEL_BLEND(name) {"Blend" #name, runBlend##name, TIER_SSSE3, TIER_AVX2, true},
+    RS_X86_BLEND_KERNELS(KERNEL_BLEND)
+#undef KERNEL_BLEND
+};
+
+static double now() {
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return ts.tv_sec + ts.tv_nsec * 1e-9;
+}
+
+static float randFloat() {
+    return (rand() & 0xffff) / 65536.f;
+}
+
+// Round 0 keeps to a typical LUT size and an upscale; the later rounds pick
+// them at random.
+static void initInputs(Inputs &in, int width, int round) {
+    in.width = width;
+    in.stride = (width + kSlack) * 4;
+
+    // The vertical blur walks kBlurTaps rows down from the first one.
+    size_t rowBytes = (size_t)in.stride * (kBlurTaps + 5);
+    in.rows = (uint8_t *)malloc(rowBytes);
+    in.blendDst = (uint8_t *)malloc(in.stride);
+    for (size_t i = 0; i < rowBytes; i++) {
+        in.rows[i] = rand();
+    }
+    for (int i = 0; i < in.stride; i++) {
+        in.blendDst[i] = rand();
+    }
+
+    size_t floats = (size_t)(width + kBlurTaps + kSlack) * 4;
+    in.f4 = (float *)aligned_alloc(16, floats * sizeof(float));
+    in.f1 = (float *)malloc(floats * sizeof(float));
+    for (size_t i = 0; i < floats; i++) {
+        in.f4[i] = (rand() & 0xffff) / 256.f;
+        in.f1[i] = (rand() & 0xffff) / 256.f;
+    }
+
+    float sum = 0.f;
+    for (int i = 0; i < kBlurTaps + 8; i++) {
+        in.gauss[i] = (i < kBlurTaps) ? (float)(rand() & 0xff) + 1.f : 0.f;
+        sum += in.gauss[i];
+    }
+    for (int i = 0; i < kBlurTaps; i++) {
+        in.gauss[i] /= sum;
+    }
+
+    // Random taps, some negative, so the results saturate both ways.
+    for (int i = 0; i < 32; i++) {
+        in.coef[i] = (rand() % 96) - 32;
+    }
+
+    // The kernels read the next entry along x even at the last one, so
+    // leave a little room at the end.
+    for (int c = 0; c < 3; c++) {
+        in.lutDim[c] = round ? 2 + rand() % 32 : 17;
+    }
+    in.lutPitchY = (in.lutDim[0] + (round ? rand() % 4 : 0)) * 4;
+    in.lutPitchZ = in.lutPitchY * in.lutDim[1];
+    size_t lutBytes = (size_t)in.lutPitchZ * in.lutDim[2] + 16;
+    in.lut = (uint8_t *)malloc(lutBytes);
+    for (size_t i = 0; i < lutBytes; i++) {
+        in.lut[i] = rand();
+    }
+
+    // Down to 1/8 and up to 4x.
+    in.scaleX = round ? 0.25f + randFloat() * 7.75f : 0.75f;
+    in.yf = randFloat();
+}
+
+static void freeInputs(Inputs &in) {
+    free(in.rows);
+    free(in.blendDst);
+    free(in.f4);
+    free(in.f1);
+    free(in.lut);
+}
+
+static void resetDst(const Inputs &in, const Kernel &k, uint8_t *dst, size_t bytes) {
+    memset(dst, 0, bytes);
+    if (k.inPlace) {
+        memcpy(dst, in.blendDst, in.stride);
+    }
+}
+
+// Returns false if the tiers disagree for any length.
+static bool checkKernel(const Inputs &in, const Kernel &k, uint8_t *a, uint8_t *b,
+                        size_t bytes) {
+    static const int kShortest = 1;
+    static const int kLongest = 40;
+
+    for (int len = kShortest; len <= kLongest + 1; len++) {
+        // The last pass covers the whole row.
+        int l = (len <= kLongest) ? len : in.width;
+        resetDst(in, k, a, bytes);
+        resetDst(in, k, b, bytes);
+        k.run(in, a, k.base, l);
+        k.run(in, b, k.simd, l);
+        if (memcmp(a, b, bytes)) {
+            printf("%-16s MISMATCH at length %i, scale %f, LUT %ix%ix%i\n", k.name, l,
+                   in.scaleX, in.lutDim[0], in.lutDim[1], in.lutDim[2]);
+            return false;
+        }
+    }
+    return true;
+}
+
+// Returns the time per call in microseconds.
+static double timeKernel(const Inputs &in, const Kernel &k, Tier tier, uint8_t *dst,
+                         size_t bytes, int iters) {
+    resetDst(in, k, dst, bytes);
+    k.run(in, dst, tier, in.width);
+
+    double start = now();
+    for (int i = 0; i < iters; i++) {
+        k.run(in, dst, tier, in.width);
+    }
+    return (now() - start) * 1e6 / iters;
+}
+
+int main(int argc, char** argv)
+{
+    int width = 1920;
+    int iters = 2000;
+
+    if (argc >= 2) {
+        width = atoi(argv[1]);
+        if (width < 1) {
+            width = 1920;
+        }
+    }
+    if (argc >= 3) {
+        iters = atoi(argv[2]);
+        if (iters < 1) {
+            iters = 2000;
+        }
+    }
+
+    __builtin_cpu_init();
+    bool haveAVX2 = __builtin_cpu_supports("avx2");
+    if (!haveAVX2) {
+        printf("AVX2 not supported, only checking the SSSE3 kernels\n");
+    }
+
+    // Large enough for float4 output, the widest of the kernels.
+    size_t bytes = (size_t)(width + kSlack) * 16;
+    uint8_t *a = (uint8_t *)malloc(bytes);
+    uint8_t *b = (uint8_t *)malloc(bytes);
+    bool failed[sizeof(gKernels) / sizeof(gKernels[0])] = {};
+
+    Inputs in;
+    for (int round = kRounds - 1; round >= 0; round--) {
+        srand(round + 1);
+        initInputs(in, width, round);
+        for (size_t i = 0; i < sizeof(gKernels) / sizeof(gKernels[0]); i++) {
+            const Kernel &k = gKernels[i];
+            if ((k.simd != TIER_AVX2 || haveAVX2) && !failed[i]) {
+                failed[i] = !checkKernel(in, k, a, b, bytes);
+            }
+        }
+        // Round 0 is kept for the timing.
+        if (round) {
+            freeInputs(in);
+        }
+    }
+
+    printf("width %i, %i iterations, time per row:\n", width, iters);
+    printf("%-16s %6s %12s %6s %12s %8s\n", "kernel", "base", "(us)", "simd", "(us)", "speedup");
+
+    int failures = 0;
+    for (size_t i = 0; i < sizeof(gKernels) / sizeof(gKernels[0]); i++) {
+        const Kernel &k = gKernels[i];
+        if (failed[i]) {
+            failures++;
+            continue;
+        }
+        if (k.simd == TIER_AVX2 && !haveAVX2) {
+            continue;
+        }
+        double base = timeKernel(in, k, k.base, a, bytes, iters);
+        double simd = timeKernel(in, k, k.simd, b, bytes, iters);
+        printf("%-16s %6s %12.3f %6s %12.3f %7.2fx\n", k.name, kTierNames[k.base], base,
+               kTierNames[k.simd], simd, base / simd);
+    }
+
+    free(a);
+    free(b);
+    freeInputs(in);
+
+    if (failures) {
+        printf("%i kernels differ between tiers\n", failures);
+        return 1;
+    }
+    printf("All kernels match\n");
+    return 0;
+}
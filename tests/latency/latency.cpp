@@ -6,57 +6,13 @@
 using namespace android;
 using namespace RSC;
 
-int main(int argc, char** argv)
+// Returns the time per launch in microseconds.
+static double runLatency(uint32_t flags, int iters, int numElems, const char *mode)
 {
-    int iters = 100;
-    int numElems = 1000;
-    bool forceCpu = false;
-    bool synchronous = false;
-
-    if (argc >= 2) {
-        iters = atoi(argv[1]);
-        if (iters <= 0) {
-            printf("iters must be positive\n");
-            return 1;
-        }
-    }
-
-    printf("iters = %d\n", iters);
-
-    if (argc >= 3) {
-        numElems = atoi(argv[2]);
-        if (numElems <= 0) {
-            printf("numElems must be positive\n");
-            return 1;
-        }
-    }
-
-    if (argc >= 4) {
-        int temp = atoi(argv[3]);
-        if (temp != 0)
-            forceCpu = true;
-    }
-
-    if (argc >= 5) {
-        int temp = atoi(argv[4]);
-        if (temp != 0)
-            synchronous = true;
-    }
-
-    if (forceCpu)
-        printf("forcing CPU\n");
-
-    if (synchronous)
-        printf("forcing synchronous\n");
-
-    printf("numElems = %d\n", numElems);
+    printf("%s:\n", mode);
 
     sp<RS> rs = new RS();
 
-    uint32_t flags = 0;
-    if (forceCpu) flags |= RS_INIT_LOW_LATENCY;
-    if (synchronous) flags |= RS_INIT_SYNCHRONOUS;
-
     bool r = rs->init("/system/bin", flags);
 
     sp<const Element> e = Element::U32(rs);
@@ -85,8 +41,9 @@ int main(int argc, char** argv)
     gettimeofday(&stop, nullptr);
 
     long long elapsed = (stop.tv_sec * 1000000) - (start.tv_sec * 1000000) + (stop.tv_usec - start.tv_usec);
+    double perLaunch = (double)elapsed / iters;
     printf("elapsed time : %lld microseconds\n", elapsed);
-    printf("time per iter: %f microseconds\n", (double)elapsed / iters);
+    printf("time per iter: %f microseconds\n", perLaunch);
 
     gettimeofday(&start, nullptr);
 
@@ -103,9 +60,217 @@ int main(int argc, char** argv)
     printf("elapsed time with copy : %lld microseconds\n", elapsed);
     printf("time per iter with copy: %f microseconds\n", (double)elapsed / iters);
 
+    delete [] buf;
+    sc.clear();
+    t.clear();
+    e.clear();
+    ain.clear();
+    aout.clear();
+
+    return perLaunch;
+}
+
+// Returns the number of commands per second the context can accept.  Each
+// command is a small async global update, like the invoke_setParams calls
+// image filters make before every launch, so this measures the client to
+// RS thread transport rather than kernel execution.
+static double runCommands(uint32_t flags, int iters, const char *mode)
+{
+    printf("%s:\n", mode);
+
+    sp<RS> rs = new RS();
+
+    bool r = rs->init("/system/bin", flags);
+
+    sp<ScriptC_latency> sc = new ScriptC_latency(rs);
+
+    // Each iteration sends a burst of commands, then waits for the RS thread
+    // to catch up, so the count includes the cost of waking it back up.
+    const int burst = 100;
+    struct timeval start, stop;
+
+    gettimeofday(&start, nullptr);
+
+    for (int i = 0; i < iters; i++) {
+        for (int j = 0; j < burst; j++) {
+            sc->set_gParam(j);
+        }
+        rs->finish();
+    }
+
+    gettimeofday(&stop, nullptr);
+
+    long long elapsed = (stop.tv_sec * 1000000) - (start.tv_sec * 1000000) + (stop.tv_usec - start.tv_usec);
+    double perSec = (double)iters * burst * 1000000 / elapsed;
+    printf("commands sent: %d\n", iters * burst);
+    printf("commands per second: %f\n", perSec);
+
+    sc.clear();
+
+    return perSec;
+}
+
+// Returns the time per frame in microseconds for a multi pass frame of
+// set_gParam + forEach_root pairs, sent either call by call or as one
+// recorded ScriptBatch that has its parameters patched every frame.
+static double runBatch(uint32_t flags, int iters, int numElems, bool batched, const char *mode)
+{
+    printf("%s:\n", mode);
+
+    sp<RS> rs = new RS();
+
+    bool r = rs->init("/system/bin", flags);
+
+    sp<const Element> e = Element::U32(rs);
+
+    Type::Builder tb(rs, e);
+    tb.setX(numElems);
+    sp<const Type> t = tb.create();
+
+    sp<Allocation> ain = Allocation::createTyped(rs, t);
+    sp<Allocation> aout = Allocation::createTyped(rs, t);
+
+    sp<ScriptC_latency> sc = new ScriptC_latency(rs);
+
+    const int passes = 5;
+    sp<ScriptBatch> batch = new ScriptBatch(rs);
+    batch->begin();
+    for (int j = 0; j < passes; j++) {
+        sc->set_gParam(j);
+        sc->forEach_root(ain, aout);
+    }
+    batch->end();
+
+    struct timeval start, stop;
+
+    gettimeofday(&start, nullptr);
+
+    for (int i = 0; i < iters; i++) {
+        if (batched) {
+            batch->beginPatch();
+            for (int j = 0; j < passes; j++) {
+                sc->set_gParam(i + j);
+            }
+            batch->end();
+            batch->submit();
+        } else {
+            for (int j = 0; j < passes; j++) {
+                sc->set_gParam(i + j);
+                sc->forEach_root(ain, aout);
+            }
+        }
+    }
+
+    rs->finish();
+
+    gettimeofday(&stop, nullptr);
+
+    long long elapsed = (stop.tv_sec * 1000000) - (start.tv_sec * 1000000) + (stop.tv_usec - start.tv_usec);
+    double perFrame = (double)elapsed / iters;
+    printf("elapsed time : %lld microseconds\n", elapsed);
+    printf("time per frame: %f microseconds\n", perFrame);
+
+    batch.clear();
     sc.clear();
     t.clear();
     e.clear();
     ain.clear();
     aout.clear();
+
+    return perFrame;
+}
+
+int main(int argc, char** argv)
+{
+    int iters = 100;
+    int numElems = 1000;
+    bool forceCpu = false;
+    bool synchronous = false;
+    bool spinWait = false;
+    bool ringFifo = false;
+    bool batch = false;
+
+    if (argc >= 2) {
+        iters = atoi(argv[1]);
+        if (iters <= 0) {
+            printf("iters must be positive\n");
+            return 1;
+        }
+    }
+
+    printf("iters = %d\n", iters);
+
+    if (argc >= 3) {
+        numElems = atoi(argv[2]);
+        if (numElems <= 0) {
+            printf("numElems must be positive\n");
+            return 1;
+        }
+    }
+
+    if (argc >= 4) {
+        int temp = atoi(argv[3]);
+        if (temp != 0)
+            forceCpu = true;
+    }
+
+    if (argc >= 5) {
+        int temp = atoi(argv[4]);
+        if (temp != 0)
+            synchronous = true;
+    }
+
+    if (argc >= 6) {
+        int temp = atoi(argv[5]);
+        if (temp != 0)
+            spinWait = true;
+    }
+
+    if (argc >= 7) {
+        int temp = atoi(argv[6]);
+        if (temp != 0)
+            ringFifo = true;
+    }
+
+    if (argc >= 8) {
+        int temp = atoi(argv[7]);
+        if (temp != 0)
+            batch = true;
+    }
+
+    if (forceCpu)
+        printf("forcing CPU\n");
+
+    if (synchronous)
+        printf("forcing synchronous\n");
+
+    printf("numElems = %d\n", numElems);
+
+    uint32_t flags = 0;
+    if (forceCpu) flags |= RS_INIT_LOW_LATENCY;
+    if (synchronous) flags |= RS_INIT_SYNCHRONOUS;
+
+    // Measure the default worker wakeup first, then the spin wait mode, so
+    // the per launch cost of both can be compared from one run.
+    double base = runLatency(flags, iters, numElems, "default wakeup");
+    if (spinWait) {
+        double spin = runLatency(flags | RS_INIT_SPIN_WAIT, iters, numElems, "spin wait");
+        printf("spin wait per launch delta: %f microseconds\n", spin - base);
+    }
+
+    // Command throughput over the default socket transport, then over the
+    // shared memory ring.
+    if (ringFifo && !synchronous) {
+        double socket = runCommands(flags, iters, "socket fifo");
+        double ring = runCommands(flags | RS_INIT_RING_FIFO, iters, "ring fifo");
+        printf("ring fifo speedup: %fx\n", ring / socket);
+    }
+
+    // Five parameter + launch passes per frame, as individual commands and
+    // as one batch submission.
+    if (batch) {
+        double direct = runBatch(flags, iters, numElems, false, "direct passes");
+        double batched = runBatch(flags, iters, numElems, true, "batched passes");
+        printf("batch per frame delta: %f microseconds\n", batched - direct);
+    }
 }
@@ -18,6 +18,8 @@
 #pragma rs java_package_name(com.android.rs.cpptests)
 #pragma rs_fp_relaxed
 
+uint32_t gParam;
+
 void root(const uint32_t *v_in, uint32_t *v_out) {
 
 }